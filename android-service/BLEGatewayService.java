@@ -9,66 +9,102 @@ import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothManager;
 import android.bluetooth.le.BluetoothLeScanner;
 import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
 import android.bluetooth.le.ScanResult;
 import android.bluetooth.le.ScanSettings;
 import android.content.Intent;
 import android.os.Build;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.PowerManager;
+import android.os.SystemClock;
 import androidx.core.app.NotificationCompat;
 import android.util.Log;
-import org.json.JSONObject;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.net.InetSocketAddress;
-import java.nio.ByteBuffer;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
-import java.nio.channels.ServerSocketChannel;
-import java.nio.channels.SocketChannel;
-import java.util.Iterator;
-import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Properties;
 
 public class BLEGatewayService extends Service {
     private static final String TAG = "BLEGatewayService";
     private static final int NOTIFICATION_ID = 1001;
     private static final String CHANNEL_ID = "ble_gateway_channel";
-    private static final int WEBSOCKET_PORT = 3001;
+    private static final String BEACON_RULES_FILE = "beacon_rules.txt";
+    private static final String BEACON_POSITIONS_FILE = "beacon_positions.txt";
+    // Batched delivery: the controller buffers results for this long and the CPU wakes once per batch.
+    // 0 keeps per-advertisement delivery. Capped so in-batch offsets fit the binary format's u16.
+    public static final String EXTRA_REPORT_DELAY_MS = "com.hotel.blegateway.REPORT_DELAY_MS";
+    private static final long DEFAULT_REPORT_DELAY_MS = 0;
+    private static final long MAX_REPORT_DELAY_MS = 60000;
+    private static final long SCHEDULER_INTERVAL_MS = 5000;
+    private static final String JOURNAL_DIR = "journal";
+    private static final String SNAPSHOT_DIR = "state";
+    private static final String UPSTREAM_CONFIG_FILE = "upstream.properties";
+    private static final String UPSTREAM_SPILL_DIR = "upstream-spill";
+    private static final String COMPRESSION_CONFIG_FILE = "compression.properties";
+    private static final String PRESENCE_CONFIG_FILE = "presence.properties";
+    private static final String ZONES_CONFIG_FILE = "zones.properties";
+    private static final String COALESCING_CONFIG_FILE = "coalescing.properties";
+    private static final String KEEPALIVE_CONFIG_FILE = "keepalive.properties";
+    private static final long SERVER_SHUTDOWN_MS = 3000;
     
     private PowerManager.WakeLock wakeLock;
+    private BluetoothAdapter bluetoothAdapter;
     private BluetoothLeScanner bleScanner;
     private boolean isScanning = false;
-    private Thread wsServerThread;
-    private volatile boolean isServerRunning = false;
-    private Set<SocketChannel> wsClients = ConcurrentHashMap.newKeySet();
+    private long reportDelayMs = DEFAULT_REPORT_DELAY_MS;
+    private final ScanScheduler scanScheduler = new ScanScheduler();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private int activeScanMode = -1;
+    private GatewayPipeline pipeline;
+    private UpstreamForwarder forwarder;
     
+    // Written on the Bluetooth callback thread only
+    private volatile long scanCallbacks = 0;
+    
+    // Runs on the Bluetooth callback thread: match and copy into the ring, nothing else
     private ScanCallback scanCallback = new ScanCallback() {
         @Override
         public void onScanResult(int callbackType, ScanResult result) {
-            try {
-                String deviceName = result.getDevice().getName();
-                if (deviceName == null) deviceName = "Unknown";
-                
-                if (deviceName.contains("MWC") || deviceName.contains("Hotel") || 
-                    deviceName.contains("Gate") || deviceName.contains("Kiosk") ||
-                    deviceName.contains("Elevator") || deviceName.contains("Room")) {
-                    
-                    JSONObject bleEvent = new JSONObject();
-                    bleEvent.put("deviceId", result.getDevice().getAddress());
-                    bleEvent.put("beaconName", deviceName);
-                    bleEvent.put("rssi", result.getRssi());
-                    bleEvent.put("zone", deviceName);
-                    bleEvent.put("timestamp", System.currentTimeMillis());
-                    
-                    broadcastToClients(bleEvent.toString());
-                    Log.d(TAG, "BLE Event: " + bleEvent.toString());
-                }
-            } catch (Exception e) {
-                Log.e(TAG, "Error processing scan result", e);
+            scanCallbacks++;
+            if (stage(result, System.currentTimeMillis(), System.nanoTime())) {
+                pipeline.publishStaged();
+            }
+        }
+        
+        // The whole batch becomes visible to the selector thread at once and leaves as one frame
+        @Override
+        public void onBatchScanResults(List<ScanResult> results) {
+            scanCallbacks++;
+            long now = System.currentTimeMillis();
+            long nowNanos = SystemClock.elapsedRealtimeNanos();
+            long receivedNanos = System.nanoTime();
+            for (int i = 0; i < results.size(); i++) {
+                ScanResult result = results.get(i);
+                stage(result, now - (nowNanos - result.getTimestampNanos()) / 1000000L, receivedNanos);
             }
+            pipeline.publishStaged();
+        }
+        
+        @Override
+        public void onScanFailed(int errorCode) {
+            Log.e(TAG, "BLE scan failed: " + errorCode);
+            isScanning = false;
+            updateWakeLock();
         }
     };
     
+    private boolean stage(ScanResult result, long timestamp, long receivedNanos) {
+        return pipeline.stage(MacAddress.toLong(result.getDevice().getAddress()), result.getDevice().getName(),
+            result.getRssi(), timestamp, receivedNanos);
+    }
+    
     @Override
     public void onCreate() {
         super.onCreate();
@@ -79,10 +115,24 @@ public class BLEGatewayService extends Service {
             PowerManager.PARTIAL_WAKE_LOCK,
             "BLEGateway::WakeLock"
         );
-        wakeLock.acquire();
+        // Held only during LOW_LATENCY windows, see applySchedule()
+        wakeLock.setReferenceCounted(false);
         
+        pipeline = new GatewayPipeline(GatewayPipeline.DEFAULT_PORT, pipelineLog);
+        pipeline.setScanScheduler(scanScheduler);
+        pipeline.setMetricsSource(this::writeMetrics);
+        loadBeaconRules();
+        loadBeaconPositions();
+        configurePresence();
+        configureZones();
+        configureCoalescing();
+        configureCompression();
+        configureKeepalive();
+        restoreState();
+        openJournal();
+        startUpstreamForwarder();
         setupBluetooth();
-        startWebSocketServer();
+        pipeline.start();
     }
     
     @Override
@@ -91,6 +141,15 @@ public class BLEGatewayService extends Service {
         
         createNotificationChannel();
         
+        if (intent != null && intent.hasExtra(EXTRA_REPORT_DELAY_MS)) {
+            long delay = Math.max(0, Math.min(MAX_REPORT_DELAY_MS,
+                intent.getLongExtra(EXTRA_REPORT_DELAY_MS, DEFAULT_REPORT_DELAY_MS)));
+            if (delay != reportDelayMs) {
+                reportDelayMs = delay;
+                stopBLEScanning();
+            }
+        }
+        
         Intent notificationIntent = new Intent(this, MainActivity.class);
         PendingIntent pendingIntent = PendingIntent.getActivity(
             this, 0, notificationIntent, PendingIntent.FLAG_IMMUTABLE
@@ -114,7 +173,7 @@ public class BLEGatewayService extends Service {
     private void setupBluetooth() {
         BluetoothManager bluetoothManager = (BluetoothManager) getSystemService(BLUETOOTH_SERVICE);
         if (bluetoothManager != null) {
-            BluetoothAdapter bluetoothAdapter = bluetoothManager.getAdapter();
+            bluetoothAdapter = bluetoothManager.getAdapter();
             if (bluetoothAdapter != null) {
                 bleScanner = bluetoothAdapter.getBluetoothLeScanner();
             }
@@ -124,24 +183,393 @@ public class BLEGatewayService extends Service {
     private void startBLEScanning() {
         if (bleScanner != null && !isScanning) {
             try {
+                long delay = reportDelayMs;
+                if (delay > 0 && !bluetoothAdapter.isOffloadedScanBatchingSupported()) {
+                    Log.w(TAG, "Controller does not support scan batching, delivering results individually");
+                    delay = 0;
+                }
+                int mode = scanScheduler.getMode();
                 ScanSettings settings = new ScanSettings.Builder()
-                    .setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY)
-                    .setReportDelay(0)
+                    .setScanMode(scanModeFor(mode))
+                    .setReportDelay(delay)
                     .build();
-                bleScanner.startScan(null, settings, scanCallback);
+                pipeline.setBatching(delay > 0);
+                List<ScanFilter> filters = buildScanFilters();
+                bleScanner.startScan(filters, settings, scanCallback);
                 isScanning = true;
-                Log.d(TAG, "BLE scanning started");
+                if (activeScanMode < 0) {
+                    scanScheduler.start(System.currentTimeMillis());
+                    mainHandler.postDelayed(schedulerTick, SCHEDULER_INTERVAL_MS);
+                }
+                activeScanMode = mode;
+                updateWakeLock();
+                Log.d(TAG, "BLE scanning started in " + ScanScheduler.modeName(mode)
+                    + (filters != null ? " with " + filters.size() + " filters" : "")
+                    + (delay > 0 ? ", batched every " + delay + " ms" : ""));
             } catch (SecurityException e) {
                 Log.e(TAG, "Permission denied for BLE scanning", e);
             }
         }
     }
     
+    private final Runnable schedulerTick = new Runnable() {
+        @Override
+        public void run() {
+            applySchedule();
+            mainHandler.postDelayed(this, SCHEDULER_INTERVAL_MS);
+        }
+    };
+    
+    // Restarts the scan when the scheduler picks a different duty cycle
+    private void applySchedule() {
+        long now = System.currentTimeMillis();
+        int clients = pipeline.getClientCount();
+        int mode = scanScheduler.evaluate(now, clients, Calendar.getInstance().get(Calendar.HOUR_OF_DAY));
+        if (mode != activeScanMode && isScanning) {
+            Log.d(TAG, "Scan mode " + ScanScheduler.modeName(activeScanMode) + " -> " + ScanScheduler.modeName(mode)
+                + " (clients=" + clients + ", changes=" + scanScheduler.getModeChanges() + ")");
+            stopBLEScanning();
+            startBLEScanning();
+        }
+    }
+    
+    private void updateWakeLock() {
+        if (wakeLock == null) return;
+        if (isScanning && scanScheduler.isHighRate()) {
+            if (!wakeLock.isHeld()) wakeLock.acquire();
+        } else if (wakeLock.isHeld()) {
+            wakeLock.release();
+        }
+    }
+    
+    // Opportunistic scanning only exists from API 23; older releases get the lowest real duty cycle
+    private static int scanModeFor(int mode) {
+        switch (mode) {
+            case ScanScheduler.MODE_OPPORTUNISTIC:
+                return Build.VERSION.SDK_INT >= Build.VERSION_CODES.M
+                    ? ScanSettings.SCAN_MODE_OPPORTUNISTIC
+                    : ScanSettings.SCAN_MODE_LOW_POWER;
+            case ScanScheduler.MODE_LOW_POWER: return ScanSettings.SCAN_MODE_LOW_POWER;
+            case ScanScheduler.MODE_BALANCED: return ScanSettings.SCAN_MODE_BALANCED;
+            default: return ScanSettings.SCAN_MODE_LOW_LATENCY;
+        }
+    }
+    
+    // START_STICKY restarts come back to the zones, presence and event numbering the previous
+    // instance checkpointed, instead of re-converging every filter. Needs the beacon rules, the
+    // position map and the presence timeouts in place, so it runs after loading them.
+    private void restoreState() {
+        try {
+            pipeline.setSnapshot(new StateSnapshot(new File(getFilesDir(), SNAPSHOT_DIR)),
+                GatewayPipeline.DEFAULT_CHECKPOINT_INTERVAL_MS);
+        } catch (IOException e) {
+            Log.e(TAG, "State snapshot unavailable, starting cold", e);
+            return;
+        }
+        long started = System.nanoTime();
+        if (pipeline.restoreSnapshot(System.currentTimeMillis(), GatewayPipeline.DEFAULT_SNAPSHOT_MAX_AGE_MS)) {
+            Log.d(TAG, "Restored state in " + (System.nanoTime() - started) / 1000000 + " ms: "
+                + pipeline.getPresence().getTrackedBeacons() + " beacons, last seq " + pipeline.getLastSeq());
+        }
+    }
+    
+    // Durable observation history for post-incident and dwell-time analysis; the gateway runs without it
+    private void openJournal() {
+        try {
+            pipeline.setJournal(new EventJournal(new File(getFilesDir(), JOURNAL_DIR)));
+        } catch (IOException e) {
+            Log.e(TAG, "Event journal unavailable", e);
+        }
+    }
+    
+    // permessage-deflate for dashboard clients, on by default in shared mode. Optional
+    // compression.properties in the app's files dir tunes it per site:
+    //   enabled=true, contextTakeover=false, level=1,
+    //   minPayloadBytes=160 (32 with contextTakeover)
+    private void configureCompression() {
+        Properties config = new Properties();
+        File file = new File(getFilesDir(), COMPRESSION_CONFIG_FILE);
+        if (file.exists()) {
+            try (InputStream in = new FileInputStream(file)) {
+                config.load(in);
+            } catch (IOException e) {
+                Log.e(TAG, "Could not read " + COMPRESSION_CONFIG_FILE + ", using defaults", e);
+            }
+        }
+        if (!Boolean.parseBoolean(config.getProperty("enabled", "true"))) return;
+        try {
+            boolean contextTakeover = Boolean.parseBoolean(config.getProperty("contextTakeover", "false"));
+            pipeline.setCompression(new PerMessageDeflate(contextTakeover,
+                Integer.parseInt(config.getProperty("minPayloadBytes",
+                    Integer.toString(PerMessageDeflate.defaultMinPayload(contextTakeover)))),
+                Integer.parseInt(config.getProperty("level", Integer.toString(PerMessageDeflate.DEFAULT_LEVEL)))));
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "Invalid " + COMPRESSION_CONFIG_FILE + ", using defaults", e);
+            pipeline.setCompression(new PerMessageDeflate());
+        }
+    }
+    
+    // Optional keepalive.properties in the app's files dir tunes client reaping, in milliseconds:
+    //   pingIntervalMs=20000, pongTimeoutMs=10000, writeStallMs=30000
+    private void configureKeepalive() {
+        File file = new File(getFilesDir(), KEEPALIVE_CONFIG_FILE);
+        if (!file.exists()) return;
+        Properties config = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            config.load(in);
+            pipeline.getServer().setKeepalive(
+                Long.parseLong(config.getProperty("pingIntervalMs",
+                    Long.toString(WebSocketServer.DEFAULT_PING_INTERVAL_MS)).trim()),
+                Long.parseLong(config.getProperty("pongTimeoutMs",
+                    Long.toString(WebSocketServer.DEFAULT_PONG_TIMEOUT_MS)).trim()),
+                Long.parseLong(config.getProperty("writeStallMs",
+                    Long.toString(WebSocketServer.DEFAULT_WRITE_STALL_MS)).trim()));
+        } catch (IOException | IllegalArgumentException e) {
+            Log.e(TAG, "Invalid " + KEEPALIVE_CONFIG_FILE + ", using default keepalive timeouts", e);
+        }
+    }
+    
+    // Optional presence.properties in the app's files dir sets how long each beacon class may be
+    // silent before an EXITED event, in milliseconds (defaults GATE/ELEVATOR 15000, KIOSK 30000,
+    // ROOM/HOTEL 60000). Keep them above EXTRA_REPORT_DELAY_MS when scanning in batches.
+    //   ROOM=90000
+    private void configurePresence() {
+        File file = new File(getFilesDir(), PRESENCE_CONFIG_FILE);
+        if (!file.exists()) return;
+        Properties config = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            config.load(in);
+            long[] silence = new long[BeaconClass.COUNT];
+            for (String name : config.stringPropertyNames()) {
+                int beaconClass = BeaconClass.parse(name.trim());
+                if (beaconClass == BeaconClass.NONE) {
+                    throw new IllegalArgumentException("Unknown beacon class: " + name);
+                }
+                silence[beaconClass] = Long.parseLong(config.getProperty(name).trim());
+                if (silence[beaconClass] <= 0) {
+                    throw new IllegalArgumentException("Presence timeout must be positive: " + name);
+                }
+            }
+            for (int beaconClass = 0; beaconClass < BeaconClass.COUNT; beaconClass++) {
+                if (silence[beaconClass] > 0) pipeline.setPresenceTimeout(beaconClass, silence[beaconClass]);
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            Log.e(TAG, "Invalid " + PRESENCE_CONFIG_FILE + ", using default presence timeouts", e);
+        }
+    }
+    
+    // Optional zones.properties in the app's files dir tunes zone classification. The smoothing
+    // filter is filter=ema with alpha=0.4, or filter=kalman with processNoise=0.5 and
+    // measurementNoise=4; a beacon class line sets its enter threshold in dBm, optionally followed
+    // by its hysteresis in dB (default 4):
+    //   filter=kalman
+    //   ROOM=-62,5
+    private void configureZones() {
+        File file = new File(getFilesDir(), ZONES_CONFIG_FILE);
+        if (!file.exists()) return;
+        Properties config = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            config.load(in);
+            // Every value is checked against a scratch engine before any of them is applied
+            ZoneEngine check = new ZoneEngine(1);
+            String filter = config.getProperty("filter", "ema").trim();
+            boolean kalman = filter.equalsIgnoreCase("kalman");
+            if (!kalman && !filter.equalsIgnoreCase("ema")) {
+                throw new IllegalArgumentException("Unknown filter: " + filter);
+            }
+            float alpha = Float.parseFloat(config.getProperty("alpha", "0.4").trim());
+            float processNoise = Float.parseFloat(config.getProperty("processNoise", "0.5").trim());
+            float measurementNoise = Float.parseFloat(config.getProperty("measurementNoise", "4").trim());
+            check.useEma(alpha);
+            check.useKalman(processNoise, measurementNoise);
+            float[] enter = new float[BeaconClass.COUNT];
+            float[] hysteresis = new float[BeaconClass.COUNT];
+            boolean[] set = new boolean[BeaconClass.COUNT];
+            for (String name : config.stringPropertyNames()) {
+                if (name.equals("filter") || name.equals("alpha") || name.equals("processNoise")
+                        || name.equals("measurementNoise")) {
+                    continue;
+                }
+                int beaconClass = BeaconClass.parse(name.trim());
+                if (beaconClass == BeaconClass.NONE) {
+                    throw new IllegalArgumentException("Unknown beacon class: " + name);
+                }
+                String[] values = config.getProperty(name).split(",");
+                enter[beaconClass] = Float.parseFloat(values[0].trim());
+                hysteresis[beaconClass] = values.length > 1
+                    ? Float.parseFloat(values[1].trim()) : ZoneEngine.DEFAULT_HYSTERESIS_DB;
+                check.setThreshold(beaconClass, enter[beaconClass], hysteresis[beaconClass]);
+                set[beaconClass] = true;
+            }
+
+            if (kalman) {
+                pipeline.useKalmanFilter(processNoise, measurementNoise);
+            } else {
+                pipeline.useEmaFilter(alpha);
+            }
+            for (int beaconClass = 0; beaconClass < BeaconClass.COUNT; beaconClass++) {
+                if (set[beaconClass]) {
+                    pipeline.setZoneThreshold(beaconClass, enter[beaconClass], hysteresis[beaconClass]);
+                }
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            Log.e(TAG, "Invalid " + ZONES_CONFIG_FILE + ", using default zone settings", e);
+        }
+    }
+    
+    // Between zone transitions each beacon is re-sent at most once a second when its RSSI moved by
+    // 3 dB, and every 10 s regardless. Optional coalescing.properties in the app's files dir sets
+    // minIntervalMs,rssiDelta,keepaliveMs per beacon class, or "transitions" to send zone changes
+    // only; "default" applies to every class not listed:
+    //   default=transitions
+    //   GATE=500,2,5000
+    private void configureCoalescing() {
+        File file = new File(getFilesDir(), COALESCING_CONFIG_FILE);
+        if (!file.exists()) return;
+        Properties config = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            config.load(in);
+            long[][] settings = new long[BeaconClass.COUNT][];
+            long[] defaults = parseCoalescing(config.getProperty("default"));
+            for (int beaconClass = 0; beaconClass < BeaconClass.COUNT; beaconClass++) {
+                settings[beaconClass] = defaults;
+            }
+            for (String name : config.stringPropertyNames()) {
+                if (name.trim().equals("default")) continue;
+                int beaconClass = BeaconClass.parse(name.trim());
+                if (beaconClass == BeaconClass.NONE) {
+                    throw new IllegalArgumentException("Unknown beacon class: " + name);
+                }
+                settings[beaconClass] = parseCoalescing(config.getProperty(name));
+            }
+            for (int beaconClass = 0; beaconClass < BeaconClass.COUNT; beaconClass++) {
+                long[] values = settings[beaconClass];
+                if (values == null) continue;
+                if (values.length == 0) {
+                    pipeline.setTransitionsOnly(beaconClass);
+                } else {
+                    pipeline.setCoalescing(beaconClass, values[0], (int) values[1], values[2]);
+                }
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            Log.e(TAG, "Invalid " + COALESCING_CONFIG_FILE + ", using default coalescing", e);
+        }
+    }
+    
+    // null for an absent value, empty for "transitions", else minIntervalMs, rssiDelta, keepaliveMs
+    private static long[] parseCoalescing(String value) {
+        if (value == null) return null;
+        if (value.trim().equalsIgnoreCase("transitions")) return new long[0];
+        String[] parts = value.split(",");
+        if (parts.length != 3) {
+            throw new IllegalArgumentException("Expected minIntervalMs,rssiDelta,keepaliveMs: " + value);
+        }
+        long[] values = new long[3];
+        for (int i = 0; i < 3; i++) {
+            values[i] = Long.parseLong(parts[i].trim());
+            if (values[i] < 0 || (i == 1 && values[i] > Integer.MAX_VALUE)) {
+                throw new IllegalArgumentException("Out of range: " + value);
+            }
+        }
+        return values;
+    }
+    
+    // Optional upstream.properties in the app's files dir turns on forwarding to the central server:
+    //   url=http://central:3001/api/ble/batch
+    //   gatewayId=floor-3
+    //   batchSize=500, batchDelayMs=2000, queueCapacity=8192, spillBudgetBytes=67108864 (optional)
+    private void startUpstreamForwarder() {
+        File file = new File(getFilesDir(), UPSTREAM_CONFIG_FILE);
+        if (!file.exists()) return;
+        Properties config = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            config.load(in);
+            String url = config.getProperty("url");
+            if (url == null || url.trim().isEmpty()) return;
+            forwarder = new UpstreamForwarder(
+                new UpstreamForwarder.HttpUplink(new URL(url.trim())),
+                config.getProperty("gatewayId", Build.MODEL),
+                new File(getFilesDir(), UPSTREAM_SPILL_DIR),
+                Integer.parseInt(config.getProperty("queueCapacity",
+                    Integer.toString(UpstreamForwarder.DEFAULT_QUEUE_CAPACITY))),
+                Integer.parseInt(config.getProperty("batchSize",
+                    Integer.toString(UpstreamForwarder.DEFAULT_BATCH_SIZE))),
+                Long.parseLong(config.getProperty("batchDelayMs",
+                    Long.toString(UpstreamForwarder.DEFAULT_BATCH_DELAY_MS))),
+                Long.parseLong(config.getProperty("spillBudgetBytes",
+                    Long.toString(UpstreamForwarder.DEFAULT_SPILL_BUDGET))));
+            forwarder.start();
+            pipeline.setForwarder(forwarder);
+            Log.d(TAG, "Forwarding events to " + url.trim());
+        } catch (IOException | IllegalArgumentException e) {
+            forwarder = null;
+            Log.e(TAG, "Invalid " + UPSTREAM_CONFIG_FILE + ", upstream forwarding disabled", e);
+        }
+    }
+    
+    // Optional rules file in the app's files dir overrides the built-in name checks
+    private void loadBeaconRules() {
+        File file = new File(getFilesDir(), BEACON_RULES_FILE);
+        if (!file.exists()) return;
+        try {
+            List<BeaconRule> rules = BeaconRule.parse(readText(file));
+            if (rules.isEmpty()) return;
+            pipeline.setBeaconMatcher(BeaconMatcher.compile(rules));
+            Log.d(TAG, "Loaded " + rules.size() + " beacon rules");
+        } catch (IOException | IllegalArgumentException e) {
+            Log.e(TAG, "Invalid " + BEACON_RULES_FILE + ", using default beacon rules", e);
+        }
+    }
+    
+    // Optional map of the property's beacon positions turns on position estimates for this phone
+    private void loadBeaconPositions() {
+        File file = new File(getFilesDir(), BEACON_POSITIONS_FILE);
+        if (!file.exists()) return;
+        try {
+            BeaconMap map = BeaconMap.parse(readText(file));
+            if (map.size() == 0) return;
+            pipeline.setPositionSolver(new PositionSolver(map), Build.MODEL);
+            Log.d(TAG, "Loaded " + map.size() + " beacon positions");
+        } catch (IOException | IllegalArgumentException e) {
+            Log.e(TAG, "Invalid " + BEACON_POSITIONS_FILE + ", position estimates disabled", e);
+        }
+    }
+    
+    private static String readText(File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] data = new byte[(int) file.length()];
+            int read = 0;
+            while (read < data.length) {
+                int n = in.read(data, read, data.length - read);
+                if (n < 0) break;
+                read += n;
+            }
+            return new String(data, 0, read, WebSocketFrames.UTF_8);
+        }
+    }
+    
+    // Hands exact name/address rules to the controller so it drops everything else before
+    // waking the app processor. Substring rules cannot be expressed as a ScanFilter, so
+    // any "contains" rule means scanning unfiltered and matching in software.
+    private List<ScanFilter> buildScanFilters() {
+        BeaconMatcher matcher = pipeline.getBeaconMatcher();
+        if (!matcher.isOffloadable()) return null;
+        List<ScanFilter> filters = new ArrayList<>();
+        for (String name : matcher.getOffloadNames()) {
+            filters.add(new ScanFilter.Builder().setDeviceName(name).build());
+        }
+        for (String address : matcher.getOffloadAddresses()) {
+            filters.add(new ScanFilter.Builder().setDeviceAddress(address).build());
+        }
+        return filters;
+    }
+    
     private void stopBLEScanning() {
         if (bleScanner != null && isScanning) {
             try {
                 bleScanner.stopScan(scanCallback);
                 isScanning = false;
+                updateWakeLock();
                 Log.d(TAG, "BLE scanning stopped");
             } catch (SecurityException e) {
                 Log.e(TAG, "Error stopping BLE scan", e);
@@ -149,56 +577,34 @@ public class BLEGatewayService extends Service {
         }
     }
     
-    private void startWebSocketServer() {
-        isServerRunning = true;
-        wsServerThread = new Thread(() -> {
-            try {
-                ServerSocketChannel serverChannel = ServerSocketChannel.open();
-                serverChannel.bind(new InetSocketAddress(WEBSOCKET_PORT));
-                serverChannel.configureBlocking(false);
-                
-                Selector selector = Selector.open();
-                serverChannel.register(selector, SelectionKey.OP_ACCEPT);
-                
-                Log.d(TAG, "WebSocket server started on port " + WEBSOCKET_PORT);
-                
-                while (isServerRunning) {
-                    selector.select(1000);
-                    Set<SelectionKey> keys = selector.selectedKeys();
-                    Iterator<SelectionKey> iterator = keys.iterator();
-                    
-                    while (iterator.hasNext()) {
-                        SelectionKey key = iterator.next();
-                        iterator.remove();
-                        
-                        if (key.isAcceptable()) {
-                            SocketChannel client = serverChannel.accept();
-                            client.configureBlocking(false);
-                            wsClients.add(client);
-                            Log.d(TAG, "WebSocket client connected");
-                        }
-                    }
-                }
-                
-                serverChannel.close();
-            } catch (IOException e) {
-                Log.e(TAG, "WebSocket server error", e);
-            }
-        });
-        wsServerThread.start();
-    }
+    private final GatewayPipeline.Logger pipelineLog = new GatewayPipeline.Logger() {
+        @Override
+        public boolean isDebugEnabled() {
+            return Log.isLoggable(TAG, Log.DEBUG);
+        }
+        
+        @Override
+        public void debug(String message) {
+            Log.d(TAG, message);
+        }
+        
+        @Override
+        public void warn(String message, Throwable error) {
+            Log.w(TAG, message, error);
+        }
+    };
     
-    private void broadcastToClients(String message) {
-        for (SocketChannel client : wsClients) {
-            try {
-                if (client.isConnected()) {
-                    ByteBuffer buffer = ByteBuffer.wrap(message.getBytes());
-                    client.write(buffer);
-                }
-            } catch (IOException e) {
-                wsClients.remove(client);
-                try { client.close(); } catch (IOException ex) {}
-            }
+    // Scanner metrics, appended to the pipeline's on GET /metrics (selector thread)
+    private void writeMetrics(PrometheusText out) {
+        out.counter("blegateway_scan_callbacks_total", "Scan callbacks from the Bluetooth stack", scanCallbacks);
+        
+        long now = System.currentTimeMillis();
+        out.gauge("blegateway_scan_mode", "Current scan mode (0 opportunistic .. 3 low latency)",
+            scanScheduler.getMode());
+        out.counter("blegateway_scan_mode_changes_total", "Scan mode switches", scanScheduler.getModeChanges());
+        for (int mode = 0; mode < ScanScheduler.MODE_COUNT; mode++) {
+            out.counter("blegateway_scan_mode_milliseconds_total", "Time spent in each scan mode",
+                "mode", ScanScheduler.modeName(mode), scanScheduler.getTimeInMode(mode, now));
         }
     }
     
@@ -207,17 +613,16 @@ public class BLEGatewayService extends Service {
         super.onDestroy();
         Log.d(TAG, "Service destroyed");
         
+        mainHandler.removeCallbacks(schedulerTick);
         stopBLEScanning();
         
-        isServerRunning = false;
-        if (wsServerThread != null) {
-            wsServerThread.interrupt();
+        if (pipeline != null) {
+            pipeline.stop(SERVER_SHUTDOWN_MS);
         }
-        
-        for (SocketChannel client : wsClients) {
-            try { client.close(); } catch (IOException e) {}
+        if (forwarder != null) {
+            // Whatever has not been delivered is spilled and sent after the next start
+            forwarder.stop();
         }
-        wsClients.clear();
         
         if (wakeLock != null && wakeLock.isHeld()) {
             wakeLock.release();
@@ -0,0 +1,28 @@
+package com.hotel.blegateway;
+
+// Classification ids carried through the event pipeline instead of beacon name strings
+public final class BeaconClass {
+    public static final int NONE = 0;
+    public static final int GATE = 1;
+    public static final int KIOSK = 2;
+    public static final int ELEVATOR = 3;
+    public static final int ROOM = 4;
+    public static final int HOTEL = 5;
+
+    public static final int COUNT = 6;
+
+    private static final String[] NAMES = { "NONE", "GATE", "KIOSK", "ELEVATOR", "ROOM", "HOTEL" };
+
+    private BeaconClass() {}
+
+    public static String name(int beaconClass) {
+        return beaconClass >= 0 && beaconClass < COUNT ? NAMES[beaconClass] : NAMES[NONE];
+    }
+
+    public static int parse(String name) {
+        for (int i = 1; i < COUNT; i++) {
+            if (NAMES[i].equalsIgnoreCase(name)) return i;
+        }
+        return NONE;
+    }
+}
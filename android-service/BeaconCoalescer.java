@@ -0,0 +1,133 @@
+package com.hotel.blegateway;
+
+import java.nio.ByteBuffer;
+
+// Decides which classified events are worth sending. Zone transitions always go out;
+// otherwise a beacon is re-emitted only after its class's minimum interval when the
+// smoothed RSSI moved by at least the delta threshold, or once the keepalive interval
+// has passed. A class can also be set to transitions only, which sends nothing else.
+// State lives in a LongSlotTable plus primitive arrays. Selector thread only.
+public class BeaconCoalescer {
+    public static final int DEFAULT_CAPACITY = 65536;
+    public static final long DEFAULT_MIN_INTERVAL_MS = 1000;
+    public static final int DEFAULT_RSSI_DELTA = 3;
+    public static final long DEFAULT_KEEPALIVE_MS = 10000;
+
+    private final LongSlotTable beacons;
+    private final long[] lastEmitTime;
+    private final int[] lastEmitRssi;
+
+    private final long[] minIntervalMs = new long[BeaconClass.COUNT];
+    private final int[] rssiDelta = new int[BeaconClass.COUNT];
+    private final long[] keepaliveMs = new long[BeaconClass.COUNT];
+
+    private long emitted = 0;
+    private long coalesced = 0;
+    private long untracked = 0;
+
+    public BeaconCoalescer(int capacity) {
+        beacons = new LongSlotTable(capacity);
+        lastEmitTime = new long[capacity];
+        lastEmitRssi = new int[capacity];
+        for (int i = 0; i < BeaconClass.COUNT; i++) {
+            configure(i, DEFAULT_MIN_INTERVAL_MS, DEFAULT_RSSI_DELTA, DEFAULT_KEEPALIVE_MS);
+        }
+    }
+
+    public void configure(int beaconClass, long minIntervalMs, int rssiDelta, long keepaliveMs) {
+        if (minIntervalMs < 0 || rssiDelta < 0 || keepaliveMs < 0) {
+            throw new IllegalArgumentException("Coalescing intervals and delta must not be negative");
+        }
+        this.minIntervalMs[beaconClass] = minIntervalMs;
+        this.rssiDelta[beaconClass] = rssiDelta;
+        this.keepaliveMs[beaconClass] = keepaliveMs;
+    }
+
+    // Neither RSSI moves nor keepalives: the class's beacons are sent only when they change zone
+    public void configureTransitionsOnly(int beaconClass) {
+        configure(beaconClass, Long.MAX_VALUE, Integer.MAX_VALUE, Long.MAX_VALUE);
+    }
+
+    public boolean shouldEmit(BeaconEvent event, boolean zoneChanged) {
+        int slot = beacons.getOrAdd(event.mac);
+        if (slot == LongSlotTable.NO_SLOT) {
+            // Table full: only transitions get through until entries are forgotten
+            untracked++;
+            return count(zoneChanged);
+        }
+        if (!beacons.lastAdded() && !zoneChanged) {
+            int beaconClass = event.beaconClass;
+            long elapsed = event.timestamp - lastEmitTime[slot];
+            boolean keepalive = elapsed >= keepaliveMs[beaconClass];
+            boolean moved = elapsed >= minIntervalMs[beaconClass]
+                && Math.abs(event.rssi - lastEmitRssi[slot]) >= rssiDelta[beaconClass];
+            if (!keepalive && !moved) {
+                return count(false);
+            }
+        }
+        lastEmitTime[slot] = event.timestamp;
+        lastEmitRssi[slot] = event.rssi;
+        return count(true);
+    }
+
+    public boolean forget(long mac) {
+        return beacons.remove(mac) != LongSlotTable.NO_SLOT;
+    }
+
+    // Snapshot section, see StateSnapshot: i32 count, then per beacon
+    //   i64 mac | i64 last emit ms | i32 last emitted rssi
+    static final int SNAPSHOT_RECORD_BYTES = 20;
+
+    public int snapshotBytes() {
+        return 4 + beacons.size() * SNAPSHOT_RECORD_BYTES;
+    }
+
+    public void writeSnapshot(ByteBuffer out) {
+        out.putInt(beacons.size());
+        for (int slot = 0; slot < beacons.capacity(); slot++) {
+            if (!beacons.isUsed(slot)) continue;
+            out.putLong(beacons.keyAt(slot));
+            out.putLong(lastEmitTime[slot]);
+            out.putInt(lastEmitRssi[slot]);
+        }
+    }
+
+    // Into a fresh coalescer, so a restart does not re-emit every beacon on its first sighting
+    public void readSnapshot(ByteBuffer in) {
+        int count = in.getInt();
+        for (int i = 0; i < count; i++) {
+            long mac = in.getLong();
+            long time = in.getLong();
+            int rssi = in.getInt();
+            int slot = beacons.getOrAdd(mac);
+            if (slot == LongSlotTable.NO_SLOT) continue;
+            lastEmitTime[slot] = time;
+            lastEmitRssi[slot] = rssi;
+        }
+    }
+
+    public int getTrackedBeacons() {
+        return beacons.size();
+    }
+
+    public long getEmitted() {
+        return emitted;
+    }
+
+    public long getCoalesced() {
+        return coalesced;
+    }
+
+    public long getUntracked() {
+        return untracked;
+    }
+
+    private boolean count(boolean emit) {
+        if (emit) {
+            emitted++;
+        } else {
+            coalesced++;
+        }
+        return emit;
+    }
+}
@@ -0,0 +1,26 @@
+package com.hotel.blegateway;
+
+// Mutable, preallocated slot in BeaconEventRing; never retain a reference past the handler call
+public final class BeaconEvent {
+    public long mac;
+    public int rssi;
+    public long timestamp;
+    public int beaconClass;
+    public String name;
+    public int zone;
+    // Assigned when the event is published; 0 until then
+    public long seq;
+    // System.nanoTime() of the scan callback that delivered it, for latency histograms
+    public long receivedNanos;
+
+    public void set(long mac, int rssi, long timestamp, int beaconClass, String name) {
+        this.mac = mac;
+        this.rssi = rssi;
+        this.timestamp = timestamp;
+        this.beaconClass = beaconClass;
+        this.name = name;
+        this.zone = Zone.UNKNOWN;
+        this.seq = 0;
+        this.receivedNanos = 0;
+    }
+}
@@ -0,0 +1,221 @@
+package com.hotel.blegateway;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+
+// Writes the JSON beacon record and its WebSocket header straight into a pooled frame.
+// Selector thread only; steady state allocates nothing but the per-client read-only views.
+public class BeaconEventEncoder {
+    // Room for the largest server frame header; batched frames can exceed 64 KB
+    static final int HEADER_RESERVE = 10;
+    private static final int MAX_NAME_CACHE = 1024;
+
+    private static final byte[] DEVICE_ID = ascii("{\"deviceId\":\"");
+    private static final byte[] BEACON_NAME = ascii("\",\"beaconName\":");
+    private static final byte[] RSSI = ascii(",\"rssi\":");
+    private static final byte[] ZONE = ascii(",\"zone\":");
+    private static final byte[] TIMESTAMP = ascii(",\"timestamp\":");
+    private static final byte[] SEQ = ascii(",\"seq\":");
+    private static final byte[] UNKNOWN_NAME = ascii("\"Unknown\"");
+    private static final byte[] POSITION = ascii("{\"type\":\"position\",\"deviceId\":");
+    private static final byte[] X = ascii(",\"x\":");
+    private static final byte[] Y = ascii(",\"y\":");
+    private static final byte[] FLOOR = ascii(",\"floor\":");
+    private static final byte[] CONFIDENCE = ascii(",\"confidence\":");
+    private static final byte[] BEACONS = ascii(",\"beacons\":");
+    private static final byte[] HEX = ascii("0123456789ABCDEF");
+    private static final int FIXED_LENGTH = DEVICE_ID.length + 17 + BEACON_NAME.length + RSSI.length
+        + ZONE.length + TIMESTAMP.length + SEQ.length + 1;
+
+    private static final byte[][] ZONE_NAMES = new byte[256][];
+    static {
+        for (int i = 0; i < ZONE_NAMES.length; i++) {
+            ZONE_NAMES[i] = jsonString(Zone.name(i));
+        }
+    }
+
+    private final FramePool pool;
+    private final HashMap<String, byte[]> nameCache = new HashMap<>();
+    private final byte[] digits = new byte[20];
+
+    public BeaconEventEncoder(FramePool pool) {
+        this.pool = pool;
+    }
+
+    // The returned frame holds one reference for the caller, who releases it after fan-out
+    public PooledFrame encodeJson(BeaconEvent event) {
+        PooledFrame frame = acquire(HEADER_RESERVE + maxJsonLength(event));
+        ByteBuffer out = frame.buffer;
+        out.position(HEADER_RESERVE);
+        putJson(out, event);
+        finishFrame(out, WebSocketFrames.OP_TEXT);
+        return frame;
+    }
+
+    // Several events in one text frame as a JSON array, used for batched scan results
+    public PooledFrame encodeJson(BeaconEvent[] events, int count) {
+        int maxLength = HEADER_RESERVE + 2 + count;
+        for (int i = 0; i < count; i++) {
+            maxLength += maxJsonLength(events[i]);
+        }
+        PooledFrame frame = acquire(maxLength);
+        ByteBuffer out = frame.buffer;
+        out.position(HEADER_RESERVE);
+        out.put((byte) '[');
+        for (int i = 0; i < count; i++) {
+            if (i > 0) out.put((byte) ',');
+            putJson(out, events[i]);
+        }
+        out.put((byte) ']');
+        finishFrame(out, WebSocketFrames.OP_TEXT);
+        return frame;
+    }
+
+    // {"type":"position","deviceId":..,"x":..,"y":..,"floor":..,"confidence":..,"beacons":..,"timestamp":..}
+    // with coordinates to the centimetre
+    public PooledFrame encodePosition(String deviceId, PositionEstimate estimate) {
+        byte[] quotedId = quotedName(deviceId);
+        PooledFrame frame = acquire(HEADER_RESERVE + POSITION.length + quotedId.length + X.length + Y.length
+            + FLOOR.length + CONFIDENCE.length + BEACONS.length + TIMESTAMP.length + 6 * (digits.length + 2) + 1);
+        ByteBuffer out = frame.buffer;
+        out.position(HEADER_RESERVE);
+        out.put(POSITION);
+        out.put(quotedId);
+        out.put(X);
+        putDecimal(out, estimate.x, 100);
+        out.put(Y);
+        putDecimal(out, estimate.y, 100);
+        out.put(FLOOR);
+        putLong(out, estimate.floor);
+        out.put(CONFIDENCE);
+        putDecimal(out, estimate.confidence, 100);
+        out.put(BEACONS);
+        putLong(out, estimate.beacons);
+        out.put(TIMESTAMP);
+        putLong(out, estimate.timestamp);
+        out.put((byte) '}');
+        finishFrame(out, WebSocketFrames.OP_TEXT);
+        return frame;
+    }
+
+    private PooledFrame acquire(int maxLength) {
+        return maxLength <= pool.frameCapacity()
+            ? pool.acquire()
+            : pool.acquireUnpooled(maxLength);
+    }
+
+    private int maxJsonLength(BeaconEvent event) {
+        return FIXED_LENGTH + quotedName(event.name).length + ZONE_NAMES[event.zone & 0xFF].length
+            + 3 * digits.length;
+    }
+
+    private void putJson(ByteBuffer out, BeaconEvent event) {
+        out.put(DEVICE_ID);
+        putMac(out, event.mac);
+        out.put(BEACON_NAME);
+        out.put(quotedName(event.name));
+        out.put(RSSI);
+        putLong(out, event.rssi);
+        out.put(ZONE);
+        out.put(ZONE_NAMES[event.zone & 0xFF]);
+        out.put(TIMESTAMP);
+        putLong(out, event.timestamp);
+        out.put(SEQ);
+        putLong(out, event.seq);
+        out.put((byte) '}');
+    }
+
+    // Payload was written from HEADER_RESERVE onwards; back-fill the header right before it
+    static void finishFrame(ByteBuffer out, int opcode) {
+        int end = out.position();
+        int payloadLength = end - HEADER_RESERVE;
+        int start = HEADER_RESERVE - WebSocketFrames.headerLength(payloadLength);
+        out.limit(end);
+        out.position(start);
+        WebSocketFrames.putHeader(out, opcode, true, payloadLength);
+        out.position(start);
+    }
+
+    private byte[] quotedName(String name) {
+        if (name == null) return UNKNOWN_NAME;
+        byte[] cached = nameCache.get(name);
+        if (cached == null) {
+            if (nameCache.size() >= MAX_NAME_CACHE) {
+                nameCache.clear();
+            }
+            cached = jsonString(name);
+            nameCache.put(name, cached);
+        }
+        return cached;
+    }
+
+    static byte[] jsonString(String value) {
+        StringBuilder sb = new StringBuilder(value.length() + 2);
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"': sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\t': sb.append("\\t"); break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        sb.append('"');
+        return sb.toString().getBytes(WebSocketFrames.UTF_8);
+    }
+
+    // Formats the packed address as AA:BB:CC:DD:EE:FF without going through a String
+    static void putMac(ByteBuffer out, long mac) {
+        for (int i = 0; i < 6; i++) {
+            int b = (int) (mac >>> (40 - i * 8)) & 0xFF;
+            if (i > 0) out.put((byte) ':');
+            out.put(HEX[b >> 4]);
+            out.put(HEX[b & 0xF]);
+        }
+    }
+
+    void putLong(ByteBuffer out, long value) {
+        if (value == 0) {
+            out.put((byte) '0');
+            return;
+        }
+        boolean negative = value < 0;
+        int count = 0;
+        // Accumulate negated so Long.MIN_VALUE does not overflow
+        long remaining = negative ? value : -value;
+        while (remaining != 0) {
+            digits[count++] = (byte) ('0' - (remaining % 10));
+            remaining /= 10;
+        }
+        if (negative) out.put((byte) '-');
+        while (count > 0) {
+            out.put(digits[--count]);
+        }
+    }
+
+    // value rounded to 1/scale, scale a power of ten, with trailing zeros kept
+    void putDecimal(ByteBuffer out, float value, int scale) {
+        long scaled = Math.round((double) value * scale);
+        if (scaled < 0) {
+            out.put((byte) '-');
+            scaled = -scaled;
+        }
+        putLong(out, scaled / scale);
+        out.put((byte) '.');
+        for (int unit = scale / 10; unit > 0; unit /= 10) {
+            out.put((byte) ('0' + (scaled / unit) % 10));
+        }
+    }
+
+    private static byte[] ascii(String value) {
+        return value.getBytes(WebSocketFrames.US_ASCII);
+    }
+}
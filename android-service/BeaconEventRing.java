@@ -0,0 +1,113 @@
+package com.hotel.blegateway;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// Single-producer/single-consumer ring of preallocated BeaconEvent slots.
+// The scan callback claims and publishes slots without locks or allocation; the
+// selector thread drains them. The producer only signals the consumer when the
+// consumer has parked, so an idle ring costs neither side anything.
+public class BeaconEventRing {
+    public interface Handler {
+        void onEvent(BeaconEvent event, boolean endOfBatch);
+    }
+
+    // Keeps the producer and consumer counters on separate cache lines
+    @SuppressWarnings("unused")
+    private static final class Sequence extends AtomicLong {
+        private static final long serialVersionUID = 1L;
+
+        long p1, p2, p3, p4, p5, p6, p7;
+    }
+
+    private final BeaconEvent[] slots;
+    private final int mask;
+    private final Runnable wakeup;
+
+    private final Sequence published = new Sequence();
+    private final Sequence consumed = new Sequence();
+    private volatile boolean consumerParked = false;
+
+    // Producer-local state
+    private long nextClaim = 0;
+    private long cachedConsumed = 0;
+    private volatile long droppedEvents = 0;
+
+    public BeaconEventRing(int capacity, Runnable wakeup) {
+        int size = 2;
+        while (size < capacity) size <<= 1;
+        slots = new BeaconEvent[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new BeaconEvent();
+        }
+        mask = size - 1;
+        this.wakeup = wakeup;
+    }
+
+    public int capacity() {
+        return slots.length;
+    }
+
+    // Producer side: returns the next free slot, or null when the consumer has fallen a full ring behind
+    public BeaconEvent claim() {
+        if (nextClaim - cachedConsumed >= slots.length) {
+            cachedConsumed = consumed.get();
+            if (nextClaim - cachedConsumed >= slots.length) {
+                droppedEvents++;
+                return null;
+            }
+        }
+        return slots[(int) nextClaim & mask];
+    }
+
+    // Producer side: makes the slot returned by claim() visible to the consumer
+    public void publish() {
+        stage();
+        publishStaged();
+    }
+
+    // Producer side: keeps the filled slot back so a whole scan batch becomes visible at once
+    public void stage() {
+        nextClaim++;
+    }
+
+    // Producer side: publishes every slot staged since the last publish with a single store
+    public void publishStaged() {
+        if (published.get() == nextClaim) return;
+        published.set(nextClaim);
+        if (consumerParked) {
+            consumerParked = false;
+            wakeup.run();
+        }
+    }
+
+    public long getDroppedEvents() {
+        return droppedEvents;
+    }
+
+    // Consumer side: hands every published slot to the handler, returns how many were consumed
+    public int drain(Handler handler) {
+        long next = consumed.get();
+        long available = published.get();
+        if (next == available) return 0;
+        for (long sequence = next; sequence < available; sequence++) {
+            handler.onEvent(slots[(int) sequence & mask], sequence == available - 1);
+        }
+        consumed.lazySet(available);
+        return (int) (available - next);
+    }
+
+    // Consumer side: announces the consumer is about to block; false means events are
+    // already waiting and the consumer should not block
+    public boolean park() {
+        consumerParked = true;
+        if (published.get() != consumed.get()) {
+            consumerParked = false;
+            return false;
+        }
+        return true;
+    }
+
+    public void unpark() {
+        consumerParked = false;
+    }
+}
@@ -0,0 +1,112 @@
+package com.hotel.blegateway;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Surveyed positions of the property's fixed beacons, the anchors PositionSolver ranges against.
+// Text form, one beacon per line ('#' starts a comment), coordinates in metres on the floor plan:
+//
+//   AA:BB:CC:DD:EE:01  12.5  3.0  2              x y floor, default calibration
+//   AA:BB:CC:DD:EE:02  40.0  3.0  2  -62  2.4    measured RSSI at 1 m and path-loss exponent
+//
+// Anchors still have to pass the beacon rules to reach the pipeline, e.g. through address rules.
+// Read-only once built.
+public final class BeaconMap {
+    // RSSI at 1 m of a typical 0 dBm beacon, and the free-space exponent
+    public static final float DEFAULT_TX_POWER = -59f;
+    public static final float DEFAULT_PATH_LOSS_EXPONENT = 2f;
+
+    private final LongSlotTable beacons;
+    private final float[] x;
+    private final float[] y;
+    private final int[] floor;
+    private final float[] txPower;
+    private final float[] pathLossExponent;
+
+    public BeaconMap(int capacity) {
+        beacons = new LongSlotTable(capacity);
+        x = new float[capacity];
+        y = new float[capacity];
+        floor = new int[capacity];
+        txPower = new float[capacity];
+        pathLossExponent = new float[capacity];
+    }
+
+    public static BeaconMap parse(String text) {
+        List<String> lines = new ArrayList<>();
+        for (String raw : text.split("\n")) {
+            String line = raw.trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            lines.add(line);
+        }
+        BeaconMap map = new BeaconMap(Math.max(1, lines.size()));
+        for (String line : lines) {
+            map.addLine(line);
+        }
+        return map;
+    }
+
+    public void add(long mac, float x, float y, int floor, float txPower, float pathLossExponent) {
+        if (mac == MacAddress.NONE) {
+            throw new IllegalArgumentException("Invalid beacon address");
+        }
+        if (!(pathLossExponent > 0f)) {
+            throw new IllegalArgumentException("Path-loss exponent must be positive: " + pathLossExponent);
+        }
+        int index = beacons.getOrAdd(mac);
+        if (index == LongSlotTable.NO_SLOT) {
+            throw new IllegalArgumentException("Beacon map is full");
+        }
+        if (!beacons.lastAdded()) {
+            throw new IllegalArgumentException("Beacon listed twice: " + MacAddress.toString(mac));
+        }
+        this.x[index] = x;
+        this.y[index] = y;
+        this.floor[index] = floor;
+        this.txPower[index] = txPower;
+        this.pathLossExponent[index] = pathLossExponent;
+    }
+
+    private void addLine(String line) {
+        String[] fields = line.split("\\s+");
+        if (fields.length != 4 && fields.length != 6) {
+            throw new IllegalArgumentException("Malformed beacon position: " + line);
+        }
+        long mac = MacAddress.toLong(fields[0]);
+        if (mac == MacAddress.NONE) {
+            throw new IllegalArgumentException("Invalid beacon address: " + line);
+        }
+        add(mac, Float.parseFloat(fields[1]), Float.parseFloat(fields[2]), Integer.parseInt(fields[3]),
+            fields.length == 6 ? Float.parseFloat(fields[4]) : DEFAULT_TX_POWER,
+            fields.length == 6 ? Float.parseFloat(fields[5]) : DEFAULT_PATH_LOSS_EXPONENT);
+    }
+
+    // Dense index of the beacon, or -1 when it is not an anchor
+    public int indexOf(long mac) {
+        return beacons.get(mac);
+    }
+
+    public int size() {
+        return beacons.size();
+    }
+
+    public float x(int index) {
+        return x[index];
+    }
+
+    public float y(int index) {
+        return y[index];
+    }
+
+    public int floor(int index) {
+        return floor[index];
+    }
+
+    public float txPower(int index) {
+        return txPower[index];
+    }
+
+    public float pathLossExponent(int index) {
+        return pathLossExponent[index];
+    }
+}
@@ -0,0 +1,195 @@
+package com.hotel.blegateway;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeSet;
+
+// Beacon rules compiled once into lookup structures: an Aho-Corasick automaton (as a dense
+// DFA) for "contains" rules, a hash lookup for exact names and a sorted array for addresses.
+// match() walks the device name once and allocates nothing. Immutable, so any thread may use it.
+public final class BeaconMatcher {
+    private static final int NO_RULE = Integer.MAX_VALUE;
+
+    private final List<BeaconRule> rules;
+    private final int[] ruleClasses;
+
+    // Aho-Corasick DFA over the characters used by "contains" patterns; symbol 0 is "anything else"
+    private final short[] asciiSymbols = new short[128];
+    private final char[] wideChars;
+    private final int alphabetSize;
+    private final int[] transitions;
+    private final int[] output;
+
+    private final HashMap<String, Integer> exactNames = new HashMap<>();
+    private final long[] addresses;
+    private final int[] addressRules;
+
+    private final boolean offloadable;
+    private final List<String> offloadNames = new ArrayList<>();
+    private final List<String> offloadAddresses = new ArrayList<>();
+
+    private BeaconMatcher(List<BeaconRule> rules) {
+        this.rules = Collections.unmodifiableList(new ArrayList<>(rules));
+        ruleClasses = new int[rules.size()];
+        boolean allOffloadable = !rules.isEmpty();
+        List<long[]> addressList = new ArrayList<>();
+
+        TreeSet<Character> alphabet = new TreeSet<>();
+        for (int i = 0; i < rules.size(); i++) {
+            BeaconRule rule = rules.get(i);
+            ruleClasses[i] = rule.beaconClass;
+            if (rule.type == BeaconRule.CONTAINS) {
+                allOffloadable = false;
+                for (int c = 0; c < rule.pattern.length(); c++) {
+                    alphabet.add(rule.pattern.charAt(c));
+                }
+            } else if (rule.type == BeaconRule.NAME) {
+                if (!exactNames.containsKey(rule.pattern)) {
+                    exactNames.put(rule.pattern, i);
+                }
+                offloadNames.add(rule.pattern);
+            } else {
+                addressList.add(new long[] { MacAddress.toLong(rule.pattern), i });
+                offloadAddresses.add(rule.pattern.toUpperCase());
+            }
+        }
+        offloadable = allOffloadable;
+
+        StringBuilder wide = new StringBuilder();
+        short symbol = 1;
+        for (char c : alphabet) {
+            if (c < 128) {
+                asciiSymbols[c] = symbol;
+            } else {
+                wide.append(c);
+            }
+            symbol++;
+        }
+        wideChars = wide.toString().toCharArray();
+        alphabetSize = symbol;
+
+        int maxStates = 1;
+        for (BeaconRule rule : rules) {
+            if (rule.type == BeaconRule.CONTAINS) maxStates += rule.pattern.length();
+        }
+        int[] trie = new int[maxStates * alphabetSize];
+        int[] ruleAt = new int[maxStates];
+        Arrays.fill(ruleAt, NO_RULE);
+        int states = 1;
+        for (int i = 0; i < rules.size(); i++) {
+            BeaconRule rule = rules.get(i);
+            if (rule.type != BeaconRule.CONTAINS) continue;
+            int state = 0;
+            for (int c = 0; c < rule.pattern.length(); c++) {
+                int index = state * alphabetSize + symbolOf(rule.pattern.charAt(c));
+                if (trie[index] == 0) {
+                    trie[index] = states++;
+                }
+                state = trie[index];
+            }
+            ruleAt[state] = Math.min(ruleAt[state], i);
+        }
+
+        // Breadth-first pass turns the trie into a complete DFA and folds outputs along failure links
+        transitions = new int[states * alphabetSize];
+        output = new int[states];
+        int[] failure = new int[states];
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        output[0] = ruleAt[0];
+        for (int s = 0; s < alphabetSize; s++) {
+            int next = trie[s];
+            transitions[s] = next;
+            if (next != 0) {
+                failure[next] = 0;
+                queue.add(next);
+            }
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            output[state] = Math.min(ruleAt[state], output[failure[state]]);
+            for (int s = 0; s < alphabetSize; s++) {
+                int next = trie[state * alphabetSize + s];
+                if (next != 0) {
+                    failure[next] = transitions[failure[state] * alphabetSize + s];
+                    transitions[state * alphabetSize + s] = next;
+                    queue.add(next);
+                } else {
+                    transitions[state * alphabetSize + s] = transitions[failure[state] * alphabetSize + s];
+                }
+            }
+        }
+
+        // Sorted for binary search; a repeated address keeps only its earliest rule
+        addressList.sort((a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]));
+        long[] sortedAddresses = new long[addressList.size()];
+        int[] sortedRules = new int[addressList.size()];
+        int unique = 0;
+        for (long[] entry : addressList) {
+            if (unique > 0 && sortedAddresses[unique - 1] == entry[0]) continue;
+            sortedAddresses[unique] = entry[0];
+            sortedRules[unique] = (int) entry[1];
+            unique++;
+        }
+        addresses = Arrays.copyOf(sortedAddresses, unique);
+        addressRules = Arrays.copyOf(sortedRules, unique);
+    }
+
+    public static BeaconMatcher compile(List<BeaconRule> rules) {
+        return new BeaconMatcher(rules);
+    }
+
+    public static BeaconMatcher defaults() {
+        return new BeaconMatcher(BeaconRule.defaults());
+    }
+
+    // Beacon class of the highest priority rule matching the device, or BeaconClass.NONE
+    public int match(long mac, String name) {
+        int best = NO_RULE;
+        if (addresses.length > 0 && mac != MacAddress.NONE) {
+            int index = Arrays.binarySearch(addresses, mac);
+            if (index >= 0) best = addressRules[index];
+        }
+        if (name != null) {
+            if (!exactNames.isEmpty()) {
+                Integer rule = exactNames.get(name);
+                if (rule != null && rule < best) best = rule;
+            }
+            int state = 0;
+            for (int i = 0; i < name.length() && best > 0; i++) {
+                state = transitions[state * alphabetSize + symbolOf(name.charAt(i))];
+                if (output[state] < best) best = output[state];
+            }
+        }
+        return best == NO_RULE ? BeaconClass.NONE : ruleClasses[best];
+    }
+
+    // The rules this matcher was compiled from, in priority order
+    public List<BeaconRule> getRules() {
+        return rules;
+    }
+
+    // True when every rule can be expressed as a controller-side ScanFilter (exact name or address)
+    public boolean isOffloadable() {
+        return offloadable;
+    }
+
+    public List<String> getOffloadNames() {
+        return offloadNames;
+    }
+
+    public List<String> getOffloadAddresses() {
+        return offloadAddresses;
+    }
+
+    private int symbolOf(char c) {
+        if (c < 128) return asciiSymbols[c];
+        int index = Arrays.binarySearch(wideChars, c);
+        if (index < 0) return 0;
+        // Wide characters sort after every ASCII character in the alphabet
+        return alphabetSize - wideChars.length + index;
+    }
+}
@@ -0,0 +1,95 @@
+package com.hotel.blegateway;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// One beacon matching rule. Text form, one per line ('#' starts a comment):
+//
+//   contains:Gate=GATE            device name contains the text
+//   name:MWC Entry Gate=GATE      device name equals the text (hardware offloadable)
+//   address:AA:BB:CC:DD:EE:FF=ROOM  device address equals (hardware offloadable)
+//
+// Earlier rules win when several match. Scanning is offloaded to the controller only when every
+// rule is a name: or address: rule; a single contains: rule (and so the built-in defaults, which
+// are all contains: rules) means scanning unfiltered. To offload, list the beacons' exact names
+// or addresses in beacon_rules.txt, e.g.
+//
+//   name:MWC Entry Gate=GATE
+//   name:Kiosk Lobby=KIOSK
+//   address:AA:BB:CC:DD:EE:FF=ROOM
+public final class BeaconRule {
+    public static final int CONTAINS = 0;
+    public static final int NAME = 1;
+    public static final int ADDRESS = 2;
+
+    public final int type;
+    public final String pattern;
+    public final int beaconClass;
+
+    public BeaconRule(int type, String pattern, int beaconClass) {
+        if (pattern == null || pattern.isEmpty()) {
+            throw new IllegalArgumentException("Empty beacon rule pattern");
+        }
+        if (type == ADDRESS && MacAddress.toLong(pattern) == MacAddress.NONE) {
+            throw new IllegalArgumentException("Invalid beacon address: " + pattern);
+        }
+        this.type = type;
+        this.pattern = pattern;
+        this.beaconClass = beaconClass;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof BeaconRule)) return false;
+        BeaconRule rule = (BeaconRule) other;
+        return type == rule.type && beaconClass == rule.beaconClass && pattern.equals(rule.pattern);
+    }
+
+    @Override
+    public int hashCode() {
+        return (type * 31 + beaconClass) * 31 + pattern.hashCode();
+    }
+
+    // The checks the gateway has always applied, most specific beacon types first
+    public static List<BeaconRule> defaults() {
+        return Arrays.asList(
+            new BeaconRule(CONTAINS, "Gate", BeaconClass.GATE),
+            new BeaconRule(CONTAINS, "Kiosk", BeaconClass.KIOSK),
+            new BeaconRule(CONTAINS, "Elevator", BeaconClass.ELEVATOR),
+            new BeaconRule(CONTAINS, "Room", BeaconClass.ROOM),
+            new BeaconRule(CONTAINS, "MWC", BeaconClass.HOTEL),
+            new BeaconRule(CONTAINS, "Hotel", BeaconClass.HOTEL)
+        );
+    }
+
+    public static List<BeaconRule> parse(String text) {
+        List<BeaconRule> rules = new ArrayList<>();
+        for (String raw : text.split("\n")) {
+            String line = raw.trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            rules.add(parseLine(line));
+        }
+        return rules;
+    }
+
+    public static BeaconRule parseLine(String line) {
+        int colon = line.indexOf(':');
+        int equals = line.lastIndexOf('=');
+        if (colon <= 0 || equals <= colon) {
+            throw new IllegalArgumentException("Malformed beacon rule: " + line);
+        }
+        String kind = line.substring(0, colon).trim();
+        String pattern = line.substring(colon + 1, equals);
+        int beaconClass = BeaconClass.parse(line.substring(equals + 1).trim());
+        if (beaconClass == BeaconClass.NONE) {
+            throw new IllegalArgumentException("Unknown beacon class in rule: " + line);
+        }
+        switch (kind) {
+            case "contains": return new BeaconRule(CONTAINS, pattern, beaconClass);
+            case "name": return new BeaconRule(NAME, pattern, beaconClass);
+            case "address": return new BeaconRule(ADDRESS, pattern.trim(), beaconClass);
+            default: throw new IllegalArgumentException("Unknown beacon rule type: " + line);
+        }
+    }
+}
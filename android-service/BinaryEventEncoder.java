@@ -0,0 +1,144 @@
+package com.hotel.blegateway;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+// Fixed-layout binary encoding for the hotel-ble.bin.v2 subprotocol (big endian):
+//
+//   EVENTS  u8 type=0x02 | u16 count | i64 base timestamp ms | i64 base seq | count x record
+//   record  6 bytes MAC | i8 rssi | u8 zone | u16 name id | u16 ms since base | u16 seq - base seq
+//   NAMES   u8 type=0x01 | u16 count | count x (u16 id | u8 length | UTF-8 name)
+//
+// Name ids index a table each client receives once on connect, plus incremental
+// NAMES messages for beacons first seen afterwards. Selector thread only.
+public class BinaryEventEncoder {
+    public static final int RECORD_SIZE = 14;
+    public static final int EVENTS_HEADER_SIZE = 19;
+    public static final int MAX_NAMES = 0xFFFF;
+    private static final int HEADER_RESERVE = BeaconEventEncoder.HEADER_RESERVE;
+
+    private final FramePool pool;
+    private final HashMap<String, Integer> nameIds = new HashMap<>();
+    private final List<byte[]> names = new ArrayList<>();
+    private final List<String> nameStrings = new ArrayList<>();
+    private int firstPendingName = 0;
+
+    public BinaryEventEncoder(FramePool pool) {
+        this.pool = pool;
+    }
+
+    public int nameId(String name) {
+        if (name == null) name = "Unknown";
+        Integer id = nameIds.get(name);
+        if (id != null) return id;
+        if (names.size() >= MAX_NAMES) return 0;
+        byte[] bytes = name.getBytes(WebSocketFrames.UTF_8);
+        if (bytes.length > 0xFF) {
+            byte[] truncated = new byte[0xFF];
+            System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+            bytes = truncated;
+        }
+        int assigned = names.size();
+        names.add(bytes);
+        nameStrings.add(name);
+        nameIds.put(name, assigned);
+        return assigned;
+    }
+
+    public String name(int id) {
+        return id < nameStrings.size() ? nameStrings.get(id) : null;
+    }
+
+    public int nameCount() {
+        return nameStrings.size();
+    }
+
+    public boolean hasPendingNames() {
+        return firstPendingName < names.size();
+    }
+
+    // Names registered since the last call, for clients that already hold the earlier table
+    public ByteBuffer takePendingNames() {
+        ByteBuffer frame = namesFrame(firstPendingName);
+        firstPendingName = names.size();
+        return frame;
+    }
+
+    // Complete table for a client that has just connected
+    public ByteBuffer fullNameTable() {
+        return namesFrame(0);
+    }
+
+    public PooledFrame encode(BeaconEvent event) {
+        int id = nameId(event.name);
+        PooledFrame frame = pool.acquire();
+        ByteBuffer out = frame.buffer;
+        out.position(HEADER_RESERVE);
+        out.put((byte) WireFormat.MSG_EVENTS);
+        out.putShort((short) 1);
+        out.putLong(event.timestamp);
+        out.putLong(event.seq);
+        putRecord(out, event, id, 0, 0);
+        BeaconEventEncoder.finishFrame(out, WebSocketFrames.OP_BINARY);
+        return frame;
+    }
+
+    // One EVENTS message for several events; timestamps and sequence numbers are stored relative
+    // to the earliest, so the caller keeps each within 0xFFFF of it
+    public PooledFrame encode(BeaconEvent[] events, int count) {
+        long base = Long.MAX_VALUE;
+        long baseSeq = Long.MAX_VALUE;
+        for (int i = 0; i < count; i++) {
+            base = Math.min(base, events[i].timestamp);
+            baseSeq = Math.min(baseSeq, events[i].seq);
+        }
+        int length = HEADER_RESERVE + EVENTS_HEADER_SIZE + count * RECORD_SIZE;
+        PooledFrame frame = length <= pool.frameCapacity()
+            ? pool.acquire()
+            : pool.acquireUnpooled(length);
+        ByteBuffer out = frame.buffer;
+        out.position(HEADER_RESERVE);
+        out.put((byte) WireFormat.MSG_EVENTS);
+        out.putShort((short) count);
+        out.putLong(base);
+        out.putLong(baseSeq);
+        for (int i = 0; i < count; i++) {
+            BeaconEvent event = events[i];
+            putRecord(out, event, nameId(event.name), (int) Math.min(0xFFFF, event.timestamp - base),
+                (int) (event.seq - baseSeq));
+        }
+        BeaconEventEncoder.finishFrame(out, WebSocketFrames.OP_BINARY);
+        return frame;
+    }
+
+    static void putRecord(ByteBuffer out, BeaconEvent event, int nameId, int timestampDelta, int seqDelta) {
+        long mac = event.mac;
+        out.putShort((short) (mac >>> 32));
+        out.putInt((int) mac);
+        out.put((byte) Math.max(-128, Math.min(127, event.rssi)));
+        out.put((byte) event.zone);
+        out.putShort((short) nameId);
+        out.putShort((short) timestampDelta);
+        out.putShort((short) seqDelta);
+    }
+
+    private ByteBuffer namesFrame(int from) {
+        int length = 3;
+        for (int i = from; i < names.size(); i++) {
+            length += 3 + names.get(i).length;
+        }
+        byte[] payload = new byte[length];
+        ByteBuffer out = ByteBuffer.wrap(payload);
+        out.put((byte) WireFormat.MSG_NAMES);
+        out.putShort((short) (names.size() - from));
+        for (int i = from; i < names.size(); i++) {
+            byte[] name = names.get(i);
+            out.putShort((short) i);
+            out.put((byte) name.length);
+            out.put(name);
+        }
+        return WebSocketFrames.encode(WebSocketFrames.OP_BINARY, true, payload, 0, payload.length);
+    }
+}
@@ -0,0 +1,93 @@
+package com.hotel.blegateway;
+
+// The one timer structure of a reactor: a hashed timing wheel holding each of its connections
+// at most once, as an intrusive doubly linked list threaded through the connections themselves.
+// A connection has a single deadline, its next check; WebSocketConnection.onTimer() enforces
+// whichever of its timeouts is due and schedules the next check, so reads and writes never touch
+// the wheel. schedule, cancel and firing are O(1) per connection. Reactor thread only.
+final class ConnectionTimers {
+    static final long TICK_MS = 250;
+    // 512 ticks of 250 ms: one revolution covers 128 s, longer deadlines wait for their round
+    private static final int WHEEL_SIZE = 512;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+
+    private final WebSocketConnection[] buckets = new WebSocketConnection[WHEEL_SIZE];
+    // Next tick advance() has to process; Long.MIN_VALUE before the first call
+    private long currentTick = Long.MIN_VALUE;
+    private int size = 0;
+
+    // Replaces the connection's deadline
+    void schedule(WebSocketConnection connection, long deadline) {
+        if (connection.timerBucket >= 0) unlink(connection);
+        connection.timerDeadline = deadline;
+        link(connection);
+    }
+
+    void cancel(WebSocketConnection connection) {
+        if (connection.timerBucket >= 0) unlink(connection);
+    }
+
+    int size() {
+        return size;
+    }
+
+    // Fires every connection whose deadline is at or before now. A connection that reschedules
+    // itself from onTimer() into the bucket being walked is not fired again in this pass.
+    void advance(long now) {
+        long nowTick = Math.floorDiv(now, TICK_MS);
+        if (currentTick == Long.MIN_VALUE) {
+            currentTick = nowTick;
+        }
+        if (nowTick < currentTick) return;
+        long lastTick = Math.min(nowTick, currentTick + WHEEL_MASK);
+        for (long tick = currentTick; tick <= lastTick; tick++) {
+            int bucket = (int) (tick & WHEEL_MASK);
+            WebSocketConnection connection = buckets[bucket];
+            while (connection != null) {
+                WebSocketConnection following = connection.timerNext;
+                if (connection.timerDeadline <= now) {
+                    unlink(connection);
+                    connection.onTimer(now);
+                } else if (bucket(connection.timerDeadline) != bucket) {
+                    unlink(connection);
+                    link(connection);
+                }
+                connection = following;
+            }
+        }
+        currentTick = nowTick + 1;
+    }
+
+    private int bucket(long deadline) {
+        // Rounded up, so a connection's bucket never comes round before its deadline
+        long tick = Math.floorDiv(deadline + TICK_MS - 1, TICK_MS);
+        if (currentTick != Long.MIN_VALUE && tick < currentTick) tick = currentTick;
+        return (int) (tick & WHEEL_MASK);
+    }
+
+    private void link(WebSocketConnection connection) {
+        int bucket = bucket(connection.timerDeadline);
+        WebSocketConnection head = buckets[bucket];
+        connection.timerNext = head;
+        connection.timerPrevious = null;
+        if (head != null) head.timerPrevious = connection;
+        buckets[bucket] = connection;
+        connection.timerBucket = bucket;
+        size++;
+    }
+
+    private void unlink(WebSocketConnection connection) {
+        WebSocketConnection before = connection.timerPrevious;
+        WebSocketConnection after = connection.timerNext;
+        if (before != null) {
+            before.timerNext = after;
+        } else {
+            buckets[connection.timerBucket] = after;
+        }
+        if (after != null) after.timerPrevious = before;
+        connection.timerNext = null;
+        connection.timerPrevious = null;
+        connection.timerBucket = -1;
+        size--;
+    }
+}
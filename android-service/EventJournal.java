@@ -0,0 +1,500 @@
+package com.hotel.blegateway;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+// Append-only on-device history of beacon observations in memory-mapped segment files.
+// append() is a bounds check plus absolute puts into the mapped segment (selector thread only).
+// Segments rotate by size and age; sealing, compaction and deletion to stay within the disk
+// budget run on a background thread. Range reads go through Cursor from any thread.
+//
+// Segment file: 64-byte header, then fixed 24-byte records (big endian):
+//   header  i32 magic | u16 version | u16 record size | i32 flags | i32 count | i64 created ms |
+//           i64 min timestamp | i64 max timestamp
+//   record  i64 timestamp ms | i64 mac | i8 smoothed rssi | u8 zone | u8 class | u8 flags |
+//           u16 name id | i8 raw rssi | 1 pad
+//
+// A timestamp of 0 marks the end of an unsealed segment, so a crash loses nothing that reached
+// the page cache. Over budget, the oldest full-resolution segment is compacted down to its zone
+// transitions; once everything is compacted the oldest segment is deleted.
+public class EventJournal implements Closeable {
+    public static final int RECORD_SIZE = 24;
+    public static final int HEADER_SIZE = 64;
+    public static final int FLAG_TRANSITION = 1;
+
+    public static final long DEFAULT_SEGMENT_BYTES = 4L * 1024 * 1024;
+    public static final long DEFAULT_SEGMENT_MAX_AGE_MS = 60L * 60 * 1000;
+    public static final long DEFAULT_DISK_BUDGET = 256L * 1024 * 1024;
+
+    // Sparse time index: one entry per this many records
+    private static final int INDEX_STRIDE = 256;
+
+    private static final int MAGIC = 0x48424A31; // "HBJ1"
+    private static final int VERSION = 1;
+    private static final int SEGMENT_SEALED = 1;
+    private static final int SEGMENT_COMPACTED = 2;
+    private static final String SUFFIX = ".seg";
+
+    private static final int H_MAGIC = 0;
+    private static final int H_VERSION = 4;
+    private static final int H_RECORD_SIZE = 6;
+    private static final int H_FLAGS = 8;
+    private static final int H_COUNT = 12;
+    private static final int H_CREATED = 16;
+    private static final int H_MIN = 24;
+    private static final int H_MAX = 32;
+
+    private static final int R_TIMESTAMP = 0;
+    private static final int R_MAC = 8;
+    private static final int R_RSSI = 16;
+    private static final int R_ZONE = 17;
+    private static final int R_CLASS = 18;
+    private static final int R_FLAGS = 19;
+    private static final int R_NAME_ID = 20;
+    private static final int R_RAW_RSSI = 22;
+
+    private static final class Segment {
+        final File file;
+        final long created;
+        final int capacity;
+        final boolean compacted;
+        private MappedByteBuffer buffer;
+        volatile int count;
+        volatile long minTimestamp = Long.MAX_VALUE;
+        volatile long maxTimestamp = Long.MIN_VALUE;
+        // index[k] is the highest timestamp among records before k * INDEX_STRIDE
+        private long[] index;
+
+        Segment(File file, long created, int capacity, boolean compacted, MappedByteBuffer buffer) {
+            this.file = file;
+            this.created = created;
+            this.capacity = capacity;
+            this.compacted = compacted;
+            this.buffer = buffer;
+        }
+
+        // Sealed segments found on disk are only mapped once something reads them
+        synchronized MappedByteBuffer buffer() throws IOException {
+            if (buffer == null) {
+                buffer = map(file, FileChannel.MapMode.READ_ONLY, file.length());
+            }
+            return buffer;
+        }
+
+        synchronized long[] index() throws IOException {
+            if (index == null) {
+                MappedByteBuffer data = buffer();
+                int n = count;
+                index = new long[n / INDEX_STRIDE + 1];
+                long max = Long.MIN_VALUE;
+                for (int i = 0; i < n; i++) {
+                    if (i % INDEX_STRIDE == 0) index[i / INDEX_STRIDE] = max;
+                    max = Math.max(max, data.getLong(HEADER_SIZE + i * RECORD_SIZE + R_TIMESTAMP));
+                }
+            }
+            return index;
+        }
+
+        // First record that can be at or after from; everything before it is older
+        int startIndex(long from) throws IOException {
+            long[] entries = index();
+            int entryCount = Math.min(entries.length, (count + INDEX_STRIDE - 1) / INDEX_STRIDE);
+            int low = 0;
+            int high = entryCount - 1;
+            while (low < high) {
+                int mid = (low + high + 1) >>> 1;
+                if (entries[mid] < from) low = mid; else high = mid - 1;
+            }
+            return low * INDEX_STRIDE;
+        }
+    }
+
+    private final File directory;
+    private final long segmentBytes;
+    private final long segmentMaxAgeMs;
+    private final long diskBudget;
+    private final int segmentCapacity;
+    private final CopyOnWriteArrayList<Segment> segments = new CopyOnWriteArrayList<>();
+    private final ExecutorService maintenance = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "journal-maintenance");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Writer (selector thread) state
+    private Segment active;
+    private volatile long appendedRecords = 0;
+    private volatile long writeErrors = 0;
+    private volatile long compactedSegments = 0;
+    private volatile long deletedSegments = 0;
+    private volatile IOException lastError;
+
+    public EventJournal(File directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_BYTES, DEFAULT_SEGMENT_MAX_AGE_MS, DEFAULT_DISK_BUDGET);
+    }
+
+    public EventJournal(File directory, long segmentBytes, long segmentMaxAgeMs, long diskBudget)
+            throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create journal directory " + directory);
+        }
+        this.directory = directory;
+        this.segmentCapacity = (int) ((segmentBytes - HEADER_SIZE) / RECORD_SIZE);
+        this.segmentBytes = HEADER_SIZE + (long) segmentCapacity * RECORD_SIZE;
+        this.segmentMaxAgeMs = segmentMaxAgeMs;
+        this.diskBudget = diskBudget;
+        loadSegments();
+        active = createSegment(System.currentTimeMillis());
+        segments.add(active);
+        maintenance.execute(this::enforceBudget);
+    }
+
+    // Hot path: copies one observation into the active segment
+    public void append(BeaconEvent event, int rawRssi, int nameId, boolean transition) {
+        Segment segment = active;
+        if (segment == null) return;
+        if (segment.count == segment.capacity || event.timestamp - segment.created >= segmentMaxAgeMs) {
+            segment = rotate();
+            if (segment == null) return;
+        }
+        int n = segment.count;
+        MappedByteBuffer out = segment.buffer;
+        int base = HEADER_SIZE + n * RECORD_SIZE;
+        long timestamp = event.timestamp;
+        out.putLong(base + R_TIMESTAMP, timestamp);
+        out.putLong(base + R_MAC, event.mac);
+        out.put(base + R_RSSI, clampRssi(event.rssi));
+        out.put(base + R_ZONE, (byte) event.zone);
+        out.put(base + R_CLASS, (byte) event.beaconClass);
+        out.put(base + R_FLAGS, (byte) (transition ? FLAG_TRANSITION : 0));
+        out.putShort(base + R_NAME_ID, (short) nameId);
+        out.put(base + R_RAW_RSSI, clampRssi(rawRssi));
+
+        if (n % INDEX_STRIDE == 0) segment.index[n / INDEX_STRIDE] = segment.maxTimestamp;
+        if (timestamp < segment.minTimestamp) segment.minTimestamp = timestamp;
+        if (timestamp > segment.maxTimestamp) segment.maxTimestamp = timestamp;
+        segment.count = n + 1;
+        appendedRecords++;
+    }
+
+    // Records with from <= timestamp <= to, oldest segment first. Records inside a segment keep
+    // arrival order, which batched scans can make slightly non-monotonic.
+    public Cursor read(long from, long to) {
+        return new Cursor(segments.toArray(new Segment[0]), from, to);
+    }
+
+    public final class Cursor {
+        private final Segment[] candidates;
+        private final long from;
+        private final long to;
+        private int next = 0;
+        private MappedByteBuffer data;
+        private int position;
+        private int end;
+        private int base;
+
+        private Cursor(Segment[] candidates, long from, long to) {
+            this.candidates = candidates;
+            this.from = from;
+            this.to = to;
+        }
+
+        // Advances to the next record in range; false when exhausted
+        public boolean next() throws IOException {
+            while (true) {
+                while (data != null && position < end) {
+                    int record = HEADER_SIZE + position++ * RECORD_SIZE;
+                    long timestamp = data.getLong(record + R_TIMESTAMP);
+                    if (timestamp >= from && timestamp <= to) {
+                        base = record;
+                        return true;
+                    }
+                }
+                if (next == candidates.length) return false;
+                Segment segment = candidates[next++];
+                end = segment.count;
+                if (end == 0 || segment.minTimestamp > to || segment.maxTimestamp < from) {
+                    data = null;
+                    continue;
+                }
+                data = segment.buffer();
+                position = segment.startIndex(from);
+            }
+        }
+
+        public long timestamp() {
+            return data.getLong(base + R_TIMESTAMP);
+        }
+
+        public long mac() {
+            return data.getLong(base + R_MAC);
+        }
+
+        public int rssi() {
+            return data.get(base + R_RSSI);
+        }
+
+        public int rawRssi() {
+            return data.get(base + R_RAW_RSSI);
+        }
+
+        public int zone() {
+            return data.get(base + R_ZONE) & 0xFF;
+        }
+
+        public int beaconClass() {
+            return data.get(base + R_CLASS);
+        }
+
+        public int nameId() {
+            return data.getShort(base + R_NAME_ID) & 0xFFFF;
+        }
+
+        public boolean isTransition() {
+            return (data.get(base + R_FLAGS) & FLAG_TRANSITION) != 0;
+        }
+    }
+
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    public long getDiskBytes() {
+        long total = 0;
+        for (Segment segment : segments) {
+            total += segment.file.length();
+        }
+        return total;
+    }
+
+    public long getAppendedRecords() {
+        return appendedRecords;
+    }
+
+    public long getWriteErrors() {
+        return writeErrors;
+    }
+
+    public long getCompactedSegments() {
+        return compactedSegments;
+    }
+
+    public long getDeletedSegments() {
+        return deletedSegments;
+    }
+
+    public IOException getLastError() {
+        return lastError;
+    }
+
+    // Seals the active segment; call from the writer thread once it has stopped appending
+    @Override
+    public void close() {
+        // Still the active segment while pending maintenance runs, so it is not compacted away
+        maintenance.shutdown();
+        try {
+            maintenance.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Segment last = active;
+        active = null;
+        if (last != null) seal(last);
+    }
+
+    private Segment rotate() {
+        Segment previous = active;
+        try {
+            active = createSegment(System.currentTimeMillis());
+        } catch (IOException e) {
+            // Stop journaling rather than retrying file creation on every event
+            active = null;
+            writeErrors++;
+            lastError = e;
+            return null;
+        }
+        segments.add(active);
+        maintenance.execute(() -> {
+            seal(previous);
+            enforceBudget();
+        });
+        return active;
+    }
+
+    private Segment createSegment(long created) throws IOException {
+        File file = new File(directory, segmentName(created));
+        while (file.exists()) {
+            file = new File(directory, segmentName(++created));
+        }
+        MappedByteBuffer buffer = map(file, FileChannel.MapMode.READ_WRITE, segmentBytes);
+        buffer.putInt(H_MAGIC, MAGIC);
+        buffer.putShort(H_VERSION, (short) VERSION);
+        buffer.putShort(H_RECORD_SIZE, (short) RECORD_SIZE);
+        buffer.putLong(H_CREATED, created);
+        Segment segment = new Segment(file, created, segmentCapacity, false, buffer);
+        segment.index = new long[segmentCapacity / INDEX_STRIDE + 1];
+        return segment;
+    }
+
+    private static String segmentName(long created) {
+        String digits = Long.toString(created);
+        StringBuilder name = new StringBuilder("journal-");
+        for (int i = digits.length(); i < 16; i++) name.append('0');
+        return name.append(digits).append(SUFFIX).toString();
+    }
+
+    private void seal(Segment segment) {
+        try {
+            MappedByteBuffer buffer = segment.buffer();
+            buffer.putInt(H_COUNT, segment.count);
+            buffer.putLong(H_MIN, segment.minTimestamp);
+            buffer.putLong(H_MAX, segment.maxTimestamp);
+            buffer.putInt(H_FLAGS, SEGMENT_SEALED | (segment.compacted ? SEGMENT_COMPACTED : 0));
+            buffer.force();
+        } catch (IOException e) {
+            writeErrors++;
+            lastError = e;
+        }
+    }
+
+    // Picks up segments from earlier runs; unsealed ones (the process died) are recovered first
+    private void loadSegments() throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) return;
+        Arrays.sort(files);
+        for (File file : files) {
+            if (!file.getName().endsWith(SUFFIX) || file.length() < HEADER_SIZE) continue;
+            int flags;
+            long created;
+            int count;
+            long min;
+            long max;
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                if (raf.readInt() != MAGIC) continue;
+                raf.readShort();
+                if (raf.readShort() != RECORD_SIZE) continue;
+                flags = raf.readInt();
+                count = raf.readInt();
+                created = raf.readLong();
+                min = raf.readLong();
+                max = raf.readLong();
+            }
+            int capacity = (int) ((file.length() - HEADER_SIZE) / RECORD_SIZE);
+            if ((flags & SEGMENT_SEALED) != 0) {
+                Segment segment = new Segment(file, created, capacity, (flags & SEGMENT_COMPACTED) != 0, null);
+                segment.count = count;
+                segment.minTimestamp = min;
+                segment.maxTimestamp = max;
+                segments.add(segment);
+                continue;
+            }
+            MappedByteBuffer buffer = map(file, FileChannel.MapMode.READ_WRITE, file.length());
+            Segment segment = new Segment(file, created, capacity, false, buffer);
+            int n = 0;
+            min = Long.MAX_VALUE;
+            max = Long.MIN_VALUE;
+            while (n < capacity) {
+                long timestamp = buffer.getLong(HEADER_SIZE + n * RECORD_SIZE + R_TIMESTAMP);
+                if (timestamp == 0) break;
+                min = Math.min(min, timestamp);
+                max = Math.max(max, timestamp);
+                n++;
+            }
+            segment.count = n;
+            segment.minTimestamp = min;
+            segment.maxTimestamp = max;
+            seal(segment);
+            segments.add(segment);
+        }
+    }
+
+    // Maintenance thread: keeps the journal under diskBudget
+    private void enforceBudget() {
+        while (getDiskBytes() > diskBudget) {
+            Segment writing = active;
+            Segment oldest = null;
+            Segment oldestFull = null;
+            for (Segment segment : segments) {
+                if (segment == writing) continue;
+                if (oldest == null) oldest = segment;
+                if (oldestFull == null && !segment.compacted) oldestFull = segment;
+            }
+            if (oldest == null) return;
+            try {
+                if (oldestFull != null) {
+                    compact(oldestFull);
+                    continue;
+                }
+            } catch (IOException e) {
+                writeErrors++;
+                lastError = e;
+            }
+            segments.remove(oldest);
+            if (oldest.file.delete()) deletedSegments++;
+        }
+    }
+
+    // Rewrites the segment with only its zone transitions, which is what dwell analytics needs
+    private void compact(Segment segment) throws IOException {
+        MappedByteBuffer source = segment.buffer();
+        int n = segment.count;
+        int transitions = 0;
+        for (int i = 0; i < n; i++) {
+            if ((source.get(HEADER_SIZE + i * RECORD_SIZE + R_FLAGS) & FLAG_TRANSITION) != 0) transitions++;
+        }
+        File temp = new File(directory, segment.file.getName() + ".tmp");
+        MappedByteBuffer target = map(temp, FileChannel.MapMode.READ_WRITE,
+            HEADER_SIZE + (long) transitions * RECORD_SIZE);
+        for (int i = 0; i < HEADER_SIZE; i++) {
+            target.put(i, source.get(i));
+        }
+        Segment compacted = new Segment(segment.file, segment.created, transitions, true, target);
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        int written = 0;
+        for (int i = 0; i < n; i++) {
+            int from = HEADER_SIZE + i * RECORD_SIZE;
+            if ((source.get(from + R_FLAGS) & FLAG_TRANSITION) == 0) continue;
+            int to = HEADER_SIZE + written++ * RECORD_SIZE;
+            for (int b = 0; b < RECORD_SIZE; b++) {
+                target.put(to + b, source.get(from + b));
+            }
+            long timestamp = source.getLong(from + R_TIMESTAMP);
+            min = Math.min(min, timestamp);
+            max = Math.max(max, timestamp);
+        }
+        compacted.count = written;
+        compacted.minTimestamp = min;
+        compacted.maxTimestamp = max;
+        seal(compacted);
+        // Open cursors keep reading the old mapping; the rename only swaps the directory entry
+        if (!temp.renameTo(segment.file)) {
+            temp.delete();
+            throw new IOException("Cannot replace " + segment.file);
+        }
+        int position = segments.indexOf(segment);
+        if (position >= 0) segments.set(position, compacted);
+        compactedSegments++;
+    }
+
+    private static MappedByteBuffer map(File file, FileChannel.MapMode mode, long size) throws IOException {
+        // The mapping stays valid after the channel is closed
+        try (RandomAccessFile raf = new RandomAccessFile(file, mode == FileChannel.MapMode.READ_ONLY ? "r" : "rw")) {
+            if (mode != FileChannel.MapMode.READ_ONLY && raf.length() != size) raf.setLength(size);
+            return raf.getChannel().map(mode, 0, size);
+        }
+    }
+
+    private static byte clampRssi(int rssi) {
+        return (byte) Math.max(-128, Math.min(127, rssi));
+    }
+}
@@ -0,0 +1,57 @@
+package com.hotel.blegateway;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+// Free list of direct frame buffers. Frames are acquired on the selector thread and recycled by
+// the reactor that released them last, so the list is locked; it is uncontended in practice.
+public class FramePool {
+    private final int frameCapacity;
+    private final int maxRetained;
+    private final ArrayDeque<PooledFrame> free;
+    private long allocated = 0;
+
+    public FramePool(int frameCapacity, int maxRetained) {
+        this.frameCapacity = frameCapacity;
+        this.maxRetained = maxRetained;
+        this.free = new ArrayDeque<>(maxRetained);
+    }
+
+    public int frameCapacity() {
+        return frameCapacity;
+    }
+
+    public synchronized long getAllocatedFrames() {
+        return allocated;
+    }
+
+    // Returned frame is cleared and holds one reference for the caller
+    public PooledFrame acquire() {
+        PooledFrame frame;
+        synchronized (this) {
+            frame = free.poll();
+            if (frame == null) allocated++;
+        }
+        if (frame == null) {
+            frame = new PooledFrame(ByteBuffer.allocateDirect(frameCapacity), this);
+        }
+        frame.buffer.clear();
+        frame.originNanos = 0;
+        frame.deflateState = PooledFrame.DEFLATE_UNKNOWN;
+        frame.retain();
+        return frame;
+    }
+
+    // Oversized one-off frame that is left to the GC instead of the pool
+    public PooledFrame acquireUnpooled(int capacity) {
+        PooledFrame frame = new PooledFrame(ByteBuffer.allocate(capacity), null);
+        frame.retain();
+        return frame;
+    }
+
+    synchronized void recycle(PooledFrame frame) {
+        if (free.size() < maxRetained) {
+            free.add(frame);
+        }
+    }
+}
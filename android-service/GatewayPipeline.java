@@ -0,0 +1,827 @@
+package com.hotel.blegateway;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Everything between a matched advertisement and the client sockets, without the Android scanner:
+// event ring -> zone engine -> coalescer -> replay/journal/upstream -> routing -> encoders -> server,
+// with the position solver, when configured, taking the raw readings alongside the zone engine.
+// A presence tracker notices beacons that went quiet, publishes an EXITED_<class> event for each
+// and drops their per-beacon state, so the tables stay bounded however long the gateway runs.
+// With a StateSnapshot set, that state is checkpointed every few seconds so a restarted service
+// carries on where the last one stopped instead of re-converging every filter.
+// BLEGatewayService feeds it from its ScanCallback; the load tool in gateway-bench feeds it
+// synthetic advertisements, so both exercise the same path.
+//
+// stage()/publishStaged() belong to the scan thread. Everything else runs on the server's
+// selector thread once start() has been called.
+public class GatewayPipeline {
+    public static final int DEFAULT_PORT = 3001;
+    public static final int CLIENT_QUEUE_CAPACITY = 256;
+    private static final int EVENT_RING_CAPACITY = 4096;
+    private static final int FRAME_CAPACITY = 512;
+    private static final int FRAME_POOL_SIZE = 1024;
+    // 64K events x 32 bytes = 2 MB off-heap history for resume(lastSeq)
+    private static final int REPLAY_CAPACITY = 65536;
+    // At most this many missed events are replayed, in frames of REPLAY_CHUNK, to stay inside the client queue
+    static final int MAX_REPLAY_EVENTS = 4096;
+    private static final int REPLAY_CHUNK = 64;
+    public static final long DEFAULT_CHECKPOINT_INTERVAL_MS = 5000;
+    // Older checkpoints only restore event numbering and names; their zones are too stale to keep
+    public static final long DEFAULT_SNAPSHOT_MAX_AGE_MS = 10 * 60 * 1000;
+    // Payload layout of the checkpoints, after the StateSnapshot header:
+    //   i32 format | i64 last seq | u16 rule count | rules (u8 type | u8 class | string) |
+    //   i32 name count | names (string, in id order) | ZoneEngine | PresenceTracker |
+    //   BeaconCoalescer | PositionSolver sections, strings as u16 length + UTF-8
+    private static final int SNAPSHOT_FORMAT = 1;
+
+    // Where the pipeline's connection and routing messages go (logcat on the device)
+    public interface Logger {
+        Logger NONE = new Logger() {
+            @Override
+            public boolean isDebugEnabled() {
+                return false;
+            }
+
+            @Override
+            public void debug(String message) {
+            }
+
+            @Override
+            public void warn(String message, Throwable error) {
+            }
+        };
+
+        boolean isDebugEnabled();
+        void debug(String message);
+        void warn(String message, Throwable error);
+    }
+
+    private final int port;
+    private final Logger log;
+    private final WebSocketServer wsServer;
+    private final BeaconEventRing eventRing;
+    private Thread serverThread;
+    private volatile boolean batching = false;
+    private volatile BeaconMatcher beaconMatcher = BeaconMatcher.defaults();
+    // Selector thread only: events of the current ring batch that survived coalescing
+    private BeaconEvent[] pendingBatch;
+    private int pendingCount = 0;
+    private final FramePool framePool = new FramePool(FRAME_CAPACITY, FRAME_POOL_SIZE);
+    private final BeaconEventEncoder eventEncoder = new BeaconEventEncoder(framePool);
+    private final BinaryEventEncoder binaryEncoder = new BinaryEventEncoder(framePool);
+    private final ZoneEngine zoneEngine = new ZoneEngine(ZoneEngine.DEFAULT_CAPACITY);
+    private final BeaconCoalescer coalescer = new BeaconCoalescer(BeaconCoalescer.DEFAULT_CAPACITY);
+    private final PresenceTracker presence = new PresenceTracker(PresenceTracker.DEFAULT_CAPACITY);
+    private final BeaconEvent exitEvent = new BeaconEvent();
+    private final SubscriptionIndex subscriptions = new SubscriptionIndex(SubscriptionIndex.DEFAULT_DEVICE_CAPACITY);
+    private final ReplayRing replayRing = new ReplayRing(REPLAY_CAPACITY);
+    private final BeaconEvent[] replayChunk = new BeaconEvent[REPLAY_CHUNK];
+    private ScanScheduler scanScheduler;
+    private EventJournal journal;
+    private UpstreamForwarder forwarder;
+    private PositionSolver positionSolver;
+    private String positionDeviceId;
+    private final PositionEstimate position = new PositionEstimate();
+    private WebSocketServer.MetricsSource metricsSource;
+    private StateSnapshot snapshot;
+    private long checkpointIntervalMs = DEFAULT_CHECKPOINT_INTERVAL_MS;
+    // Selector thread only
+    private long lastCheckpoint = 0;
+
+    // Written on the scan thread only
+    private volatile long scanResults = 0;
+    private volatile long filterHits = 0;
+    private volatile long filterMisses = 0;
+    private final LatencyHistogram encodeLatency = new LatencyHistogram();
+
+    public GatewayPipeline(int port, Logger log) {
+        this(port, WebSocketServer.defaultReactorCount(), log);
+    }
+
+    public GatewayPipeline(int port, int reactorCount, Logger log) {
+        this.port = port;
+        this.log = log;
+        this.wsServer = new WebSocketServer(port, wsHandler, CLIENT_QUEUE_CAPACITY,
+            OutboundQueue.OverflowPolicy.COALESCE_PER_BEACON, reactorCount);
+        this.eventRing = new BeaconEventRing(EVENT_RING_CAPACITY, wsServer::wakeup);
+        this.pendingBatch = new BeaconEvent[eventRing.capacity()];
+        for (int i = 0; i < replayChunk.length; i++) {
+            replayChunk[i] = new BeaconEvent();
+        }
+        wsServer.setMetricsSource(this::writeMetrics);
+        wsServer.setEventSource(new WebSocketServer.EventSource() {
+            @Override
+            public void poll() {
+                eventRing.drain(eventHandler);
+                long now = System.currentTimeMillis();
+                presence.expire(now, exitListener);
+                if (snapshot != null && now - lastCheckpoint >= checkpointIntervalMs) {
+                    checkpoint(now);
+                }
+            }
+
+            @Override
+            public boolean park() {
+                return eventRing.park();
+            }
+
+            @Override
+            public void unpark() {
+                eventRing.unpark();
+            }
+        });
+    }
+
+    // Swapped in whole; takes effect from the next stage() call
+    public void setBeaconMatcher(BeaconMatcher matcher) {
+        this.beaconMatcher = matcher;
+    }
+
+    public BeaconMatcher getBeaconMatcher() {
+        return beaconMatcher;
+    }
+
+    // True while the scanner delivers batches: survivors of one ring drain leave as one frame
+    public void setBatching(boolean batching) {
+        this.batching = batching;
+    }
+
+    // Must be set before start(); told about every observation and zone change
+    public void setScanScheduler(ScanScheduler scanScheduler) {
+        this.scanScheduler = scanScheduler;
+    }
+
+    // Must be set before start(); closed by the selector thread when the server stops
+    public void setJournal(EventJournal journal) {
+        this.journal = journal;
+    }
+
+    // Must be set before start(); the caller starts and stops it
+    public void setForwarder(UpstreamForwarder forwarder) {
+        this.forwarder = forwarder;
+    }
+
+    // Must be set before start(); estimates of the gateway's own position go to clients that
+    // subscribe with "positions":true, under deviceId
+    public void setPositionSolver(PositionSolver positionSolver, String deviceId) {
+        this.positionSolver = positionSolver;
+        this.positionDeviceId = deviceId;
+    }
+
+    // Must be called before start(); RSSI smoothing for zone classification, EMA by default
+    public void useEmaFilter(float alpha) {
+        zoneEngine.useEma(alpha);
+    }
+
+    // Must be called before start()
+    public void useKalmanFilter(float processNoise, float measurementNoise) {
+        zoneEngine.useKalman(processNoise, measurementNoise);
+    }
+
+    // Must be called before start(); a beacon of the class is inside its zone above enterDbm
+    // (smoothed) and leaves it below enterDbm - hysteresisDb
+    public void setZoneThreshold(int beaconClass, float enterDbm, float hysteresisDb) {
+        zoneEngine.setThreshold(beaconClass, enterDbm, hysteresisDb);
+    }
+
+    // Must be called before start(); between zone transitions a beacon of the class is re-sent
+    // once minIntervalMs has passed and its RSSI moved by rssiDelta, or after keepaliveMs
+    public void setCoalescing(int beaconClass, long minIntervalMs, int rssiDelta, long keepaliveMs) {
+        coalescer.configure(beaconClass, minIntervalMs, rssiDelta, keepaliveMs);
+    }
+
+    // Must be called before start(); beacons of the class are sent only when they change zone
+    public void setTransitionsOnly(int beaconClass) {
+        coalescer.configureTransitionsOnly(beaconClass);
+    }
+
+    // Must be called before start(); silence after which a beacon of the class has left
+    public void setPresenceTimeout(int beaconClass, long silenceMs) {
+        presence.setSilence(beaconClass, silenceMs);
+    }
+
+    // Must be set before start(); null leaves permessage-deflate off
+    public void setCompression(PerMessageDeflate compression) {
+        wsServer.setCompression(compression);
+    }
+
+    // Must be set before start(); the selector thread checkpoints every intervalMs, and once more
+    // when the server stops, then closes it
+    public void setSnapshot(StateSnapshot snapshot, long intervalMs) {
+        this.snapshot = snapshot;
+        this.checkpointIntervalMs = intervalMs;
+    }
+
+    // Must be called before start(), after the beacon rules and position solver are set, on a
+    // pipeline that has not seen any events. Reloads the snapshot's newest checkpoint: event
+    // numbering and the name table always, the per-beacon state (filters, zones, presence,
+    // coalescing, positions) only if the checkpoint is younger than maxAgeMs and was taken under
+    // the same beacon rules, as zones classified by other rules would be wrong. Returns false when
+    // there was nothing to restore; a checkpoint that cannot be read in full restores nothing.
+    public boolean restoreSnapshot(long now, long maxAgeMs) {
+        ByteBuffer in = snapshot != null ? snapshot.read() : null;
+        if (in == null) return false;
+        try {
+            if (in.getInt() != SNAPSHOT_FORMAT) return false;
+            long lastSeq = in.getLong();
+            int ruleCount = in.getShort() & 0xFFFF;
+            List<BeaconRule> rules = new ArrayList<>(ruleCount);
+            for (int i = 0; i < ruleCount; i++) {
+                int type = in.get();
+                int beaconClass = in.get();
+                rules.add(new BeaconRule(type, getString(in), beaconClass));
+            }
+            String[] names = new String[in.getInt()];
+            for (int i = 0; i < names.length; i++) {
+                names[i] = getString(in);
+            }
+            boolean current = now - snapshot.getWrittenAt() <= maxAgeMs && rules.equals(beaconMatcher.getRules());
+            if (current) {
+                // Walks the per-beacon sections first, so a bad one leaves every component untouched
+                ByteBuffer sections = in.duplicate();
+                skipSection(sections, ZoneEngine.SNAPSHOT_RECORD_BYTES);
+                skipSection(sections, PresenceTracker.SNAPSHOT_RECORD_BYTES);
+                skipSection(sections, BeaconCoalescer.SNAPSHOT_RECORD_BYTES);
+                if (positionSolver != null) {
+                    skipSection(sections, PositionSolver.SNAPSHOT_RECORD_BYTES);
+                }
+            }
+
+            // Nothing below can fail
+            replayRing.restoreLastSeq(lastSeq);
+            // Same ids as before, which the presence entries refer to. No client holds them yet,
+            // and each gets the full table when it connects.
+            for (String name : names) {
+                binaryEncoder.nameId(name);
+            }
+            if (binaryEncoder.hasPendingNames()) {
+                binaryEncoder.takePendingNames();
+            }
+            if (!current) return true;
+            zoneEngine.readSnapshot(in);
+            presence.readSnapshot(in);
+            coalescer.readSnapshot(in);
+            if (positionSolver != null) {
+                positionSolver.readSnapshot(in, now);
+            }
+            return true;
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            // The CRC matched, so this is a layout mismatch rather than a torn write; start cold
+            log.warn("Ignoring unreadable state snapshot", e);
+            return false;
+        }
+    }
+
+    // Moves past a section of count-prefixed records, or throws if the buffer cannot hold it
+    private static void skipSection(ByteBuffer in, int recordBytes) {
+        int count = in.getInt();
+        if (count < 0 || (long) count * recordBytes > in.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        in.position(in.position() + count * recordBytes);
+    }
+
+    // Must be set before start(); appended after the pipeline's own metrics
+    public void setMetricsSource(WebSocketServer.MetricsSource metricsSource) {
+        this.metricsSource = metricsSource;
+    }
+
+    public void start() {
+        serverThread = new Thread(() -> {
+            try {
+                log.debug("WebSocket server started on port " + port);
+                wsServer.serve();
+            } catch (IOException e) {
+                log.warn("WebSocket server error", e);
+            } finally {
+                // The selector thread is the only journal writer, so it seals the last segment
+                if (journal != null) {
+                    journal.close();
+                }
+                // It also owns the state, so it takes the final checkpoint
+                if (snapshot != null) {
+                    checkpoint(System.currentTimeMillis());
+                    snapshot.close();
+                }
+            }
+        }, "ws-server");
+        serverThread.start();
+    }
+
+    // serve() closes the clients, reactors, selector and listening socket on its way out.
+    // Interrupting instead could close the journal's channel mid-write.
+    public void stop(long millis) {
+        wsServer.stop();
+        if (serverThread == null) return;
+        try {
+            serverThread.join(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Scan thread: match and copy into the ring, nothing else. Returns true if the event was staged;
+    // staged events reach the selector thread at the next publishStaged().
+    public boolean stage(long mac, String name, int rssi, long timestamp, long receivedNanos) {
+        scanResults++;
+        // An address that did not parse has nothing to key per-beacon state on
+        if (mac == MacAddress.NONE) {
+            filterMisses++;
+            return false;
+        }
+        int beaconClass = beaconMatcher.match(mac, name);
+        if (beaconClass == BeaconClass.NONE) {
+            filterMisses++;
+            return false;
+        }
+        filterHits++;
+
+        BeaconEvent slot = eventRing.claim();
+        if (slot == null) return false;
+        slot.set(mac, rssi, timestamp, beaconClass, name);
+        slot.receivedNanos = receivedNanos;
+        eventRing.stage();
+        return true;
+    }
+
+    public void publishStaged() {
+        eventRing.publishStaged();
+    }
+
+    public WebSocketServer getServer() {
+        return wsServer;
+    }
+
+    public int getClientCount() {
+        return wsServer.getClientCount();
+    }
+
+    public long getRingDroppedEvents() {
+        return eventRing.getDroppedEvents();
+    }
+
+    public long getPublishedEvents() {
+        return coalescer.getEmitted();
+    }
+
+    public long getCoalescedEvents() {
+        return coalescer.getCoalesced();
+    }
+
+    public long getLastSeq() {
+        return replayRing.lastSeq();
+    }
+
+    public PresenceTracker getPresence() {
+        return presence;
+    }
+
+    public LatencyHistogram getEncodeLatency() {
+        return encodeLatency;
+    }
+
+    private final WebSocketServer.Handler wsHandler = new WebSocketServer.Handler() {
+        @Override
+        public void onOpen(WebSocketConnection connection) {
+            log.debug("WebSocket client connected: " + connection.getRemoteAddress());
+            subscriptions.add(connection);
+            if (connection.getWireFormat() == WireFormat.BINARY) {
+                connection.sendPriority(binaryEncoder.fullNameTable());
+            }
+        }
+
+        @Override
+        public void onMessage(WebSocketConnection connection, String text) {
+            if (log.isDebugEnabled()) {
+                log.debug("WebSocket message from " + connection.getRemoteAddress() + ": " + text);
+            }
+            try {
+                JSONObject message = new JSONObject(text);
+                String type = message.optString("type");
+                if ("subscribe".equals(type)) {
+                    subscribe(connection, message);
+                    // In the same callback, so the replay goes out before any live event can
+                    if (message.has("lastSeq")) {
+                        replay(connection, message.optLong("lastSeq", 0));
+                    }
+                } else if ("resume".equals(type)) {
+                    replay(connection, message.optLong("lastSeq", 0));
+                }
+            } catch (JSONException e) {
+                log.warn("Ignoring malformed message from " + connection.getRemoteAddress(), null);
+            }
+        }
+
+        @Override
+        public void onClose(WebSocketConnection connection, int code, String reason) {
+            subscriptions.remove(connection);
+            log.debug("WebSocket client disconnected: " + connection.getRemoteAddress() + " (" + code + ")"
+                + " dropped=" + connection.getDroppedFrames() + " coalesced=" + connection.getCoalescedFrames());
+        }
+    };
+
+    // Runs on the selector thread for every event drained from the ring: classify, then coalesce.
+    // In batched mode the survivors of one drain go out together as a single multi-event frame.
+    private final BeaconEventRing.Handler eventHandler = (event, endOfBatch) -> {
+        int rawRssi = event.rssi;
+        int nameId = binaryEncoder.nameId(event.name);
+        boolean zoneChanged = zoneEngine.update(event);
+        presence.touch(event.mac, event.beaconClass, event.rssi, nameId, event.timestamp);
+        if (positionSolver != null && positionSolver.observe(PositionSolver.LOCAL_DEVICE, event.mac, rawRssi,
+                event.timestamp, position)) {
+            publishPosition();
+        }
+        if (scanScheduler != null) {
+            scanScheduler.recordActivity(event.timestamp, zoneChanged);
+        }
+        if (journal != null) {
+            journal.append(event, rawRssi, nameId, zoneChanged);
+        }
+        if (coalescer.shouldEmit(event, zoneChanged)) {
+            replayRing.append(event, nameId);
+            if (forwarder != null) {
+                forwarder.offer(event);
+            }
+            if (batching) {
+                pendingBatch[pendingCount++] = event;
+            } else {
+                publishEvent(event);
+            }
+        }
+        if (endOfBatch && pendingCount > 0) {
+            publishBatch();
+        }
+    };
+
+    // A beacon went silent: its zone and coalescing state go, and its subscribers hear that it left.
+    // The exit carries the last smoothed RSSI and the time it was last heard.
+    private final PresenceTracker.Listener exitListener = (mac, beaconClass, rssi, nameId, lastSeen) -> {
+        zoneEngine.forget(mac);
+        coalescer.forget(mac);
+        BeaconEvent event = exitEvent;
+        event.set(mac, rssi, lastSeen, beaconClass, binaryEncoder.name(nameId));
+        event.zone = Zone.exited(beaconClass);
+        if (journal != null) {
+            journal.append(event, rssi, nameId, true);
+        }
+        replayRing.append(event, nameId);
+        if (forwarder != null) {
+            forwarder.offer(event);
+        }
+        publishEvent(event);
+    };
+
+    private void publishEvent(BeaconEvent event) {
+        sendRouted(event, subscriptions.route(event, true));
+        if (log.isDebugEnabled()) {
+            log.debug("BLE Event: " + MacAddress.toString(event.mac) + " " + event.name
+                + " " + Zone.name(event.zone) + " " + event.rssi);
+        }
+    }
+
+    // Position messages are JSON for every client; binary clients already take JSON control messages
+    private void publishPosition() {
+        int matched = subscriptions.routePositions();
+        if (matched == 0) return;
+        PooledFrame frame = eventEncoder.encodePosition(positionDeviceId, position);
+        for (int i = 0; i < matched; i++) {
+            subscriptions.matched(i).send(frame, MacAddress.NONE);
+        }
+        frame.release();
+    }
+
+    // Encodes the event once per wire format and sends it to the connections the last route() matched
+    private void sendRouted(BeaconEvent event, int matched) {
+        if (matched == 0) return;
+        if (subscriptions.matchedCount(WireFormat.JSON) > 0) {
+            PooledFrame frame = eventEncoder.encodeJson(event);
+            encoded(frame, event.receivedNanos);
+            sendToMatched(frame, matched, WireFormat.JSON, event.mac);
+            frame.release();
+        }
+        if (subscriptions.matchedCount(WireFormat.BINARY) > 0) {
+            publishPendingNames(event);
+            PooledFrame frame = binaryEncoder.encode(event);
+            encoded(frame, event.receivedNanos);
+            sendToMatched(frame, matched, WireFormat.BINARY, event.mac);
+            frame.release();
+        }
+    }
+
+    // Stamps the frame with its scan callback time so reactors can record scan-to-write latency
+    private void encoded(PooledFrame frame, long receivedNanos) {
+        if (receivedNanos == 0) return;
+        frame.originNanos = receivedNanos;
+        encodeLatency.recordNanos(System.nanoTime() - receivedNanos);
+    }
+
+    private void sendToMatched(PooledFrame frame, int matched, int wireFormat, long beaconKey) {
+        for (int i = 0; i < matched; i++) {
+            WebSocketConnection connection = subscriptions.matched(i);
+            if (connection.getWireFormat() == wireFormat) {
+                connection.send(frame, beaconKey);
+            }
+        }
+    }
+
+    // Name table updates go to every binary client so ids stay consistent across subscriptions
+    private void publishPendingNames(BeaconEvent event) {
+        binaryEncoder.nameId(event.name);
+        if (binaryEncoder.hasPendingNames()) {
+            wsServer.publishPriority(binaryEncoder.takePendingNames(), WireFormat.BINARY);
+        }
+    }
+
+    // Wildcard clients get the whole batch as one frame; narrower subscribers get just their events.
+    // Multi-event frames describe several beacons, so they are never coalesced per beacon in the queues.
+    private void publishBatch() {
+        int count = pendingCount;
+        pendingCount = 0;
+        if (count == 1) {
+            publishEvent(pendingBatch[0]);
+            return;
+        }
+        int wildcards = subscriptions.routeWildcards(pendingBatch[0].seq);
+        long oldestNanos = pendingBatch[0].receivedNanos;
+        for (int i = 1; i < count; i++) {
+            oldestNanos = Math.min(oldestNanos, pendingBatch[i].receivedNanos);
+        }
+        if (subscriptions.matchedCount(WireFormat.JSON) > 0) {
+            PooledFrame frame = eventEncoder.encodeJson(pendingBatch, count);
+            encoded(frame, oldestNanos);
+            sendToMatched(frame, wildcards, WireFormat.JSON, MacAddress.NONE);
+            frame.release();
+        }
+        if (subscriptions.matchedCount(WireFormat.BINARY) > 0) {
+            for (int i = 0; i < count; i++) {
+                publishPendingNames(pendingBatch[i]);
+            }
+            PooledFrame frame = binaryEncoder.encode(pendingBatch, count);
+            encoded(frame, oldestNanos);
+            sendToMatched(frame, wildcards, WireFormat.BINARY, MacAddress.NONE);
+            frame.release();
+        }
+        for (int i = 0; i < count; i++) {
+            sendRouted(pendingBatch[i], subscriptions.route(pendingBatch[i], false));
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("BLE batch: " + count + " events");
+        }
+    }
+
+    // {"type":"subscribe","userId":..,"devices":[mac..],"zones":[zone..],"classes":[class..],
+    //  "positions":false,"events":true,"lastSeq":..}, lastSeq only when resuming
+    // A userId alone gets the events of the devices that guest registered; a subscribe with none of
+    // userId, devices, zones or classes gets everything.
+    private void subscribe(WebSocketConnection connection, JSONObject message) {
+        String userId = message.optString("userId", null);
+        JSONArray deviceList = message.optJSONArray("devices");
+        JSONArray zoneList = message.optJSONArray("zones");
+        JSONArray classList = message.optJSONArray("classes");
+
+        long[] devices = new long[deviceList != null ? deviceList.length() : 0];
+        int deviceCount = 0;
+        for (int i = 0; i < devices.length; i++) {
+            long mac = MacAddress.toLong(deviceList.optString(i));
+            if (mac != MacAddress.NONE) devices[deviceCount++] = mac;
+        }
+        int[] zones = new int[zoneList != null ? zoneList.length() : 0];
+        int zoneCount = 0;
+        for (int i = 0; i < zones.length; i++) {
+            int zone = Zone.parse(zoneList.optString(i));
+            if (zone >= 0) zones[zoneCount++] = zone;
+        }
+        int[] classes = new int[classList != null ? classList.length() : 0];
+        int classCount = 0;
+        for (int i = 0; i < classes.length; i++) {
+            int beaconClass = BeaconClass.parse(classList.optString(i));
+            if (beaconClass != BeaconClass.NONE) classes[classCount++] = beaconClass;
+        }
+
+        boolean events = message.optBoolean("events", true);
+        boolean positions = message.optBoolean("positions", false);
+        boolean registered = subscriptions.subscribe(connection, userId, Arrays.copyOf(devices, deviceCount),
+            Arrays.copyOf(zones, zoneCount), Arrays.copyOf(classes, classCount), events, positions);
+        if (!registered) {
+            log.warn("Some devices for " + userId + " are already registered to another guest", null);
+        }
+        log.debug("Subscribed " + connection.getRemoteAddress() + " user=" + userId + " devices=" + deviceCount
+            + " zones=" + zoneCount + " classes=" + classCount + " events=" + events + " positions=" + positions);
+    }
+
+    // Sends the connection the events after lastSeq that its subscription covers, then a "resumed"
+    // message with the last sequence number it is now caught up to and how many events had already
+    // left the ring. Live events that reached the connection before its resume are not replayed
+    // again: the replay ends just before the first of them. Resuming in the subscribe message
+    // avoids that gap, as nothing has been routed to the connection yet.
+    private void replay(WebSocketConnection connection, long lastSeq) {
+        long current = replayRing.lastSeq();
+        long firstRouted = subscriptions.firstRoutedSeq(connection);
+        long last = firstRouted > 0 ? Math.min(current, firstRouted - 1) : current;
+        long from = Math.max(lastSeq + 1, replayRing.firstSeq());
+        // A lastSeq from the future means the gateway restarted; the client starts over from here
+        long lost = lastSeq > current ? 0 : from - (lastSeq + 1);
+        if (last - from + 1 > MAX_REPLAY_EVENTS) {
+            lost += last - from + 1 - MAX_REPLAY_EVENTS;
+            from = last - MAX_REPLAY_EVENTS + 1;
+        }
+
+        int replayed = 0;
+        int count = 0;
+        long minTimestamp = Long.MAX_VALUE;
+        long maxTimestamp = Long.MIN_VALUE;
+        for (long seq = from; seq <= last; seq++) {
+            BeaconEvent event = replayChunk[count];
+            int nameId = replayRing.read(seq, event);
+            if (nameId < 0) continue;
+            event.name = binaryEncoder.name(nameId);
+            if (!subscriptions.matches(connection, event)) continue;
+            // Binary records hold u16 offsets from the first event of the frame
+            if (count > 0 && (seq - replayChunk[0].seq > 0xFFFF
+                    || Math.max(maxTimestamp, event.timestamp) - Math.min(minTimestamp, event.timestamp) > 0xFFFF)) {
+                sendReplayChunk(connection, count);
+                // The current event starts the next frame
+                replayChunk[count] = replayChunk[0];
+                replayChunk[0] = event;
+                count = 0;
+                minTimestamp = Long.MAX_VALUE;
+                maxTimestamp = Long.MIN_VALUE;
+            }
+            minTimestamp = Math.min(minTimestamp, event.timestamp);
+            maxTimestamp = Math.max(maxTimestamp, event.timestamp);
+            count++;
+            replayed++;
+            if (count == REPLAY_CHUNK) {
+                sendReplayChunk(connection, count);
+                count = 0;
+                minTimestamp = Long.MAX_VALUE;
+                maxTimestamp = Long.MIN_VALUE;
+            }
+        }
+        if (count > 0) sendReplayChunk(connection, count);
+
+        connection.sendText("{\"type\":\"resumed\",\"lastSeq\":" + current + ",\"replayed\":" + replayed
+            + ",\"lost\":" + lost + "}");
+        log.debug("Resumed " + connection.getRemoteAddress() + " after seq " + lastSeq
+            + ": replayed=" + replayed + " lost=" + lost);
+    }
+
+    private void sendReplayChunk(WebSocketConnection connection, int count) {
+        PooledFrame frame = connection.getWireFormat() == WireFormat.BINARY
+            ? binaryEncoder.encode(replayChunk, count)
+            : eventEncoder.encodeJson(replayChunk, count);
+        connection.send(frame, MacAddress.NONE);
+        frame.release();
+    }
+
+    // Selector thread: writes the hot state as the snapshot's newest checkpoint. Every table is
+    // walked once; for a few thousand beacons that is well under a millisecond.
+    void checkpoint(long now) {
+        lastCheckpoint = now;
+        List<BeaconRule> rules = beaconMatcher.getRules();
+        int nameCount = binaryEncoder.nameCount();
+        int capacity = 32 + zoneEngine.snapshotBytes() + presence.snapshotBytes() + coalescer.snapshotBytes()
+            + (positionSolver != null ? positionSolver.snapshotBytes() : 0);
+        for (BeaconRule rule : rules) {
+            capacity += 2 + stringBytes(rule.pattern);
+        }
+        for (int i = 0; i < nameCount; i++) {
+            capacity += stringBytes(binaryEncoder.name(i));
+        }
+
+        ByteBuffer out = snapshot.buffer(capacity);
+        out.putInt(SNAPSHOT_FORMAT);
+        out.putLong(replayRing.lastSeq());
+        out.putShort((short) rules.size());
+        for (BeaconRule rule : rules) {
+            out.put((byte) rule.type);
+            out.put((byte) rule.beaconClass);
+            putString(out, rule.pattern);
+        }
+        out.putInt(nameCount);
+        for (int i = 0; i < nameCount; i++) {
+            putString(out, binaryEncoder.name(i));
+        }
+        zoneEngine.writeSnapshot(out);
+        presence.writeSnapshot(out);
+        coalescer.writeSnapshot(out);
+        if (positionSolver != null) {
+            positionSolver.writeSnapshot(out);
+        }
+        if (!snapshot.write(now)) {
+            log.warn("State checkpoint failed", null);
+        }
+    }
+
+    // Upper bound of putString's output
+    private static int stringBytes(String value) {
+        return 2 + 3 * value.length();
+    }
+
+    private static void putString(ByteBuffer out, String value) {
+        byte[] bytes = value.getBytes(WebSocketFrames.UTF_8);
+        out.putShort((short) bytes.length);
+        out.put(bytes);
+    }
+
+    private static String getString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getShort() & 0xFFFF];
+        in.get(bytes);
+        return new String(bytes, WebSocketFrames.UTF_8);
+    }
+
+    // GET /metrics on the gateway port; runs on the selector thread alongside the pipeline
+    private void writeMetrics(PrometheusText out) {
+        out.counter("blegateway_scan_results_total", "Scan results delivered, batched or not", scanResults);
+        out.counter("blegateway_filter_results_total", "Scan results by beacon rule outcome",
+            "outcome", "hit", filterHits);
+        out.counter("blegateway_filter_results_total", "Scan results by beacon rule outcome",
+            "outcome", "miss", filterMisses);
+        out.counter("blegateway_ring_dropped_total", "Matched results dropped because the event ring was full",
+            eventRing.getDroppedEvents());
+        out.counter("blegateway_zone_transitions_total", "Zone changes detected", zoneEngine.getTransitions());
+        out.counter("blegateway_events_coalesced_total", "Events suppressed by per-beacon rate limiting",
+            coalescer.getCoalesced());
+        out.counter("blegateway_events_published_total", "Events published to clients", coalescer.getEmitted());
+        out.counter("blegateway_coalescer_untracked_total", "Events passed as transitions only, coalescer table full",
+            coalescer.getUntracked());
+        out.gauge("blegateway_tracked_devices", "Devices with zone state", zoneEngine.getTrackedDevices());
+        out.counter("blegateway_zone_evicted_total", "Idle devices evicted to make room in the zone table",
+            zoneEngine.getEvicted());
+        out.counter("blegateway_zone_untracked_total", "Sightings left UNKNOWN because the zone table was full",
+            zoneEngine.getRejected());
+        out.gauge("blegateway_present_beacons", "Beacons heard within their presence timeout",
+            presence.getTrackedBeacons());
+        out.counter("blegateway_beacon_exits_total", "Beacons that went silent and were evicted",
+            presence.getExpired());
+        out.counter("blegateway_presence_untracked_total", "Sightings not tracked because the table was full",
+            presence.getRejected());
+        out.gauge("blegateway_last_seq", "Sequence number of the last published event", replayRing.lastSeq());
+        out.summary("blegateway_scan_to_encode_seconds", "Scan callback to encoded frame latency", encodeLatency);
+        out.gauge("blegateway_frames_allocated", "Direct frame buffers allocated by the pool",
+            framePool.getAllocatedFrames());
+
+        out.gauge("blegateway_subscribers", "Connections in the routing index", subscriptions.getSubscriberCount());
+        out.gauge("blegateway_wildcard_subscribers", "Connections receiving every event",
+            subscriptions.getWildcardCount());
+        out.gauge("blegateway_registered_devices", "Devices registered to a guest",
+            subscriptions.getRegisteredDevices());
+
+        if (positionSolver != null) {
+            out.gauge("blegateway_position_anchors", "Beacons in the position map", positionSolver.getMap().size());
+            out.gauge("blegateway_position_devices", "Devices with position state",
+                positionSolver.getTrackedDevices());
+            out.counter("blegateway_position_observations_total", "Anchor readings taken by the position solver",
+                positionSolver.getObservations());
+            out.counter("blegateway_position_updates_total", "Position solutions computed",
+                positionSolver.getUpdates());
+            out.counter("blegateway_position_published_total", "Position estimates published",
+                positionSolver.getPublished());
+            out.gauge("blegateway_position_subscribers", "Connections receiving position estimates",
+                subscriptions.getPositionSubscriberCount());
+        }
+        if (journal != null) {
+            out.gauge("blegateway_journal_segments", "Journal segment files", journal.getSegmentCount());
+            out.gauge("blegateway_journal_bytes", "Journal bytes on disk", journal.getDiskBytes());
+            out.counter("blegateway_journal_records_total", "Observations journaled", journal.getAppendedRecords());
+            out.counter("blegateway_journal_write_errors_total", "Journal write failures", journal.getWriteErrors());
+        }
+        if (snapshot != null) {
+            out.counter("blegateway_snapshot_checkpoints_total", "State checkpoints written for warm restart",
+                snapshot.getCheckpoints());
+            out.counter("blegateway_snapshot_write_errors_total", "State checkpoints that could not be written",
+                snapshot.getWriteErrors());
+            out.gauge("blegateway_snapshot_bytes", "Payload size of the last state checkpoint",
+                snapshot.getLastBytes());
+        }
+        UpstreamForwarder upstream = forwarder;
+        if (upstream != null) {
+            out.counter("blegateway_upstream_batches_total", "Batches delivered upstream", upstream.getBatchesSent());
+            out.counter("blegateway_upstream_events_total", "Events delivered upstream", upstream.getEventsSent());
+            out.counter("blegateway_upstream_bytes_total", "Compressed bytes delivered upstream",
+                upstream.getBytesSent());
+            out.gauge("blegateway_upstream_last_batch_size", "Events in the last delivered batch",
+                upstream.getLastBatchSize());
+            out.gauge("blegateway_upstream_lag_milliseconds", "Age of the oldest event in the last delivered batch",
+                upstream.getLastLagMs());
+            out.counter("blegateway_upstream_failures_total", "Failed upstream sends", upstream.getSendFailures());
+            out.counter("blegateway_upstream_dropped_total", "Events dropped before delivery",
+                "reason", "queue_full", upstream.getQueueDrops());
+            out.counter("blegateway_upstream_dropped_total", "Events dropped before delivery",
+                "reason", "spill_budget", upstream.getSpillDroppedEvents());
+            out.gauge("blegateway_upstream_spill_batches", "Batches waiting in the spill directory",
+                upstream.getSpillBacklog());
+        }
+        if (metricsSource != null) {
+            metricsSource.writeMetrics(out);
+        }
+    }
+}
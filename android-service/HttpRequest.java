@@ -0,0 +1,84 @@
+package com.hotel.blegateway;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+// Minimal HTTP/1.1 request head parser used for the WebSocket upgrade
+public final class HttpRequest {
+    public static final int MAX_HEAD_SIZE = 8192;
+
+    public final String method;
+    public final String path;
+    private final Map<String, String> headers;
+
+    private HttpRequest(String method, String path, Map<String, String> headers) {
+        this.method = method;
+        this.path = path;
+        this.headers = headers;
+    }
+
+    public String pathWithoutQuery() {
+        int query = path.indexOf('?');
+        return query < 0 ? path : path.substring(0, query);
+    }
+
+    public String header(String name) {
+        return headers.get(name.toLowerCase(Locale.US));
+    }
+
+    // True when a comma separated header contains the token, e.g. "Connection: keep-alive, Upgrade"
+    public boolean headerHasToken(String name, String token) {
+        String value = header(name);
+        if (value == null) return false;
+        for (String part : value.split(",")) {
+            if (part.trim().equalsIgnoreCase(token)) return true;
+        }
+        return false;
+    }
+
+    // Returns null until the full head has arrived; consumes it from the buffer on success
+    public static HttpRequest parse(ByteBuffer buffer) throws IOException {
+        int start = buffer.position();
+        int limit = buffer.limit();
+        int end = -1;
+        for (int i = start; i + 3 < limit; i++) {
+            if (buffer.get(i) == '\r' && buffer.get(i + 1) == '\n'
+                && buffer.get(i + 2) == '\r' && buffer.get(i + 3) == '\n') {
+                end = i;
+                break;
+            }
+        }
+        if (end < 0) {
+            if (limit - start >= MAX_HEAD_SIZE) {
+                throw new IOException("HTTP request head too large");
+            }
+            return null;
+        }
+
+        byte[] head = new byte[end - start];
+        buffer.get(head);
+        buffer.position(end + 4);
+
+        String[] lines = new String(head, WebSocketFrames.US_ASCII).split("\r\n");
+        String[] requestLine = lines[0].split(" ");
+        if (requestLine.length != 3 || !requestLine[2].startsWith("HTTP/1.")) {
+            throw new IOException("Malformed request line: " + lines[0]);
+        }
+
+        Map<String, String> headers = new HashMap<>();
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon <= 0) {
+                throw new IOException("Malformed header: " + lines[i]);
+            }
+            String name = lines[i].substring(0, colon).trim().toLowerCase(Locale.US);
+            String value = lines[i].substring(colon + 1).trim();
+            String previous = headers.get(name);
+            headers.put(name, previous == null ? value : previous + ", " + value);
+        }
+        return new HttpRequest(requestLine[0], requestLine[1], headers);
+    }
+}
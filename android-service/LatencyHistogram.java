@@ -0,0 +1,79 @@
+package com.hotel.blegateway;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Log-linear latency histogram in the HDR style: each power of two in microseconds is split
+// into 32 linear sub-buckets, so any recorded value is reported within ~3% using a fixed 8 KB
+// of counters. record() is a few atomic adds and safe from any thread.
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Below this everything is exact; above it each octave gets SUB_BUCKETS buckets
+    private static final int LINEAR = SUB_BUCKETS * 2;
+    // Values up to 2^36 us (~19 hours); anything longer lands in the last bucket
+    private static final int MAX_BIT = 36;
+    private static final int BUCKETS = LINEAR + (MAX_BIT - SUB_BUCKET_BITS - 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sumMicros = new AtomicLong();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    public void recordNanos(long nanos) {
+        record(nanos / 1000);
+    }
+
+    public void record(long micros) {
+        if (micros < 0) micros = 0;
+        counts.incrementAndGet(index(micros));
+        count.incrementAndGet();
+        sumMicros.addAndGet(micros);
+        long max = maxMicros.get();
+        while (micros > max && !maxMicros.compareAndSet(max, micros)) {
+            max = maxMicros.get();
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getSumMicros() {
+        return sumMicros.get();
+    }
+
+    public long getMaxMicros() {
+        return maxMicros.get();
+    }
+
+    // Highest value equivalent to the bucket holding the q-th quantile, 0 when empty
+    public long quantileMicros(double q) {
+        long total = count.get();
+        if (total == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(q * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) return Math.min(upperBound(i), maxMicros.get());
+        }
+        return maxMicros.get();
+    }
+
+    static int index(long micros) {
+        if (micros < LINEAR) return (int) micros;
+        int msb = 63 - Long.numberOfLeadingZeros(micros);
+        if (msb >= MAX_BIT) return BUCKETS - 1;
+        int shift = msb - SUB_BUCKET_BITS;
+        int sub = (int) (micros >>> shift) - SUB_BUCKETS;
+        return LINEAR + (shift - 1) * SUB_BUCKETS + sub;
+    }
+
+    static long upperBound(int index) {
+        if (index < LINEAR) return index;
+        int shift = (index - LINEAR) / SUB_BUCKETS + 1;
+        int sub = (index - LINEAR) % SUB_BUCKETS;
+        long lower = (long) (SUB_BUCKETS + sub) << shift;
+        return lower + (1L << shift) - 1;
+    }
+}
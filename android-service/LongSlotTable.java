@@ -0,0 +1,124 @@
+package com.hotel.blegateway;
+
+// Open-addressing map from a packed MAC (or any non-zero long) to a dense slot index.
+// Callers keep per-device state in their own primitive arrays indexed by slot, so
+// lookups never box and steady-state updates never allocate. Not thread safe.
+public class LongSlotTable {
+    public static final int NO_SLOT = -1;
+
+    private static final long EMPTY = 0L;
+
+    private final long[] keys;
+    private final int[] slots;
+    private final int mask;
+    private final int[] freeSlots;
+    private final long[] slotKeys;
+    private int freeCount;
+    private int size = 0;
+    private boolean lastAdded = false;
+
+    // capacity is the number of slots; the hash array is sized to stay at most half full
+    public LongSlotTable(int capacity) {
+        int tableSize = 2;
+        while (tableSize < capacity * 2) tableSize <<= 1;
+        keys = new long[tableSize];
+        slots = new int[tableSize];
+        mask = tableSize - 1;
+        freeSlots = new int[capacity];
+        slotKeys = new long[capacity];
+        for (int i = 0; i < capacity; i++) {
+            freeSlots[i] = capacity - 1 - i;
+        }
+        freeCount = capacity;
+    }
+
+    public int capacity() {
+        return slotKeys.length;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int get(long key) {
+        if (key == EMPTY) return NO_SLOT;
+        int index = hash(key) & mask;
+        while (true) {
+            long existing = keys[index];
+            if (existing == key) return slots[index];
+            if (existing == EMPTY) return NO_SLOT;
+            index = (index + 1) & mask;
+        }
+    }
+
+    // Returns the existing slot for key, a freshly assigned one, or NO_SLOT when the table is full.
+    // lastAdded() tells the two apart until the next call.
+    public int getOrAdd(long key) {
+        lastAdded = false;
+        // The probe below would take an empty bucket for a match
+        if (key == EMPTY) return NO_SLOT;
+        int index = hash(key) & mask;
+        while (true) {
+            long existing = keys[index];
+            if (existing == key) return slots[index];
+            if (existing == EMPTY) break;
+            index = (index + 1) & mask;
+        }
+        if (freeCount == 0) return NO_SLOT;
+        int slot = freeSlots[--freeCount];
+        keys[index] = key;
+        slots[index] = slot;
+        slotKeys[slot] = key;
+        size++;
+        lastAdded = true;
+        return slot;
+    }
+
+    public boolean lastAdded() {
+        return lastAdded;
+    }
+
+    public long keyAt(int slot) {
+        return slotKeys[slot];
+    }
+
+    // False for a free slot; walking 0..capacity()-1 with it visits every key
+    public boolean isUsed(int slot) {
+        return slotKeys[slot] != EMPTY;
+    }
+
+    // Frees the slot for reuse; uses backward-shift deletion so probe chains stay intact
+    public int remove(long key) {
+        if (key == EMPTY) return NO_SLOT;
+        int index = hash(key) & mask;
+        while (true) {
+            long existing = keys[index];
+            if (existing == EMPTY) return NO_SLOT;
+            if (existing == key) break;
+            index = (index + 1) & mask;
+        }
+        int slot = slots[index];
+        int hole = index;
+        int next = (hole + 1) & mask;
+        while (keys[next] != EMPTY) {
+            int home = hash(keys[next]) & mask;
+            // Move the entry back if its home position is not between the hole and its current index
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                keys[hole] = keys[next];
+                slots[hole] = slots[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        keys[hole] = EMPTY;
+        slotKeys[slot] = EMPTY;
+        freeSlots[freeCount++] = slot;
+        size--;
+        return slot;
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
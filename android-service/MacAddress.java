@@ -0,0 +1,38 @@
+package com.hotel.blegateway;
+
+// Packs "AA:BB:CC:DD:EE:FF" style Bluetooth addresses into the low 48 bits of a long
+public final class MacAddress {
+    public static final long NONE = 0L;
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private MacAddress() {}
+
+    // Returns NONE for anything that is not a colon separated 6-byte address
+    public static long toLong(String address) {
+        if (address == null || address.length() != 17) return NONE;
+        long value = 0;
+        for (int i = 0; i < 17; i++) {
+            char c = address.charAt(i);
+            if (i % 3 == 2) {
+                if (c != ':') return NONE;
+                continue;
+            }
+            int digit = Character.digit(c, 16);
+            if (digit < 0) return NONE;
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+
+    public static String toString(long mac) {
+        char[] chars = new char[17];
+        for (int i = 0; i < 6; i++) {
+            int b = (int) (mac >>> (40 - i * 8)) & 0xFF;
+            chars[i * 3] = HEX[b >> 4];
+            chars[i * 3 + 1] = HEX[b & 0xF];
+            if (i < 5) chars[i * 3 + 2] = ':';
+        }
+        return new String(chars);
+    }
+}
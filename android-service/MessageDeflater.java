@@ -0,0 +1,88 @@
+package com.hotel.blegateway;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+// One raw deflate stream turning complete server frames into compressed RSV1 frames (RFC 7692
+// section 7.2.1). Used by one thread at a time: the selector thread for shared frames, or the
+// reactor of a connection that keeps its compression context between messages.
+final class MessageDeflater {
+    private static final int INITIAL_BUFFER = 1024;
+
+    private final PerMessageDeflate config;
+    private final Deflater deflater;
+    private final boolean contextTakeover;
+    private byte[] input = new byte[INITIAL_BUFFER];
+    private byte[] output = new byte[INITIAL_BUFFER];
+    // Result of the last deflate(): payload length without the flush tail, and the frame's opcode
+    private int outputLength;
+    private int opcode;
+
+    MessageDeflater(PerMessageDeflate config, Deflater deflater, boolean contextTakeover) {
+        this.config = config;
+        this.deflater = deflater;
+        this.contextTakeover = contextTakeover;
+    }
+
+    Deflater deflater() {
+        return deflater;
+    }
+
+    // Compresses the payload of the unfragmented data frame at frame.position(), leaving the frame
+    // untouched. Returns false for frames that go out as they are: anything but a complete text or
+    // binary frame, payloads under the size threshold, and payloads that do not shrink. With context
+    // takeover the last case cannot be undone, as the client's window has to see every compressed
+    // byte, so such a frame is still sent compressed.
+    boolean deflate(ByteBuffer frame) {
+        int start = frame.position();
+        int b0 = frame.get(start) & 0xFF;
+        opcode = b0 & 0x0F;
+        if ((b0 & 0x80) == 0 || (b0 & WebSocketFrames.RSV1) != 0
+            || opcode != WebSocketFrames.OP_TEXT && opcode != WebSocketFrames.OP_BINARY) {
+            return false;
+        }
+        int offset = WebSocketFrames.payloadOffset(frame);
+        int length = frame.remaining() - offset;
+        if (length < config.getMinPayload()) {
+            config.onSkipped();
+            return false;
+        }
+
+        long started = System.nanoTime();
+        if (input.length < length) {
+            input = new byte[Math.max(length, input.length * 2)];
+        }
+        ByteBuffer payload = frame.duplicate();
+        payload.position(start + offset);
+        payload.get(input, 0, length);
+        deflater.setInput(input, 0, length);
+        int produced = 0;
+        while (true) {
+            produced += deflater.deflate(output, produced, output.length - produced, Deflater.SYNC_FLUSH);
+            if (produced < output.length) break;
+            output = Arrays.copyOf(output, output.length * 2);
+        }
+        if (!contextTakeover) {
+            deflater.reset();
+        }
+        outputLength = produced - PerMessageDeflate.FLUSH_TAIL.length;
+        long nanos = System.nanoTime() - started;
+        if (!contextTakeover && outputLength >= length) {
+            config.onIncompressible(nanos);
+            return false;
+        }
+        config.onDeflated(contextTakeover, length, outputLength, nanos);
+        return true;
+    }
+
+    // Size of the frame put() writes for the last deflate()
+    int frameLength() {
+        return WebSocketFrames.headerLength(outputLength) + outputLength;
+    }
+
+    void put(ByteBuffer out) {
+        WebSocketFrames.putHeader(out, opcode, true, true, outputLength);
+        out.put(output, 0, outputLength);
+    }
+}
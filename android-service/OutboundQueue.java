@@ -0,0 +1,302 @@
+package com.hotel.blegateway;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+// Bounded per-client ring of pending frames, drained by the owning reactor thread on OP_WRITE.
+// Control frames (handshake, pong, close) bypass the bound and are never dropped; a close frame
+// discards the data frames still waiting, as none may be sent after it.
+public class OutboundQueue {
+    public enum OverflowPolicy {
+        DROP_OLDEST,
+        COALESCE_PER_BEACON,
+        DISCONNECT
+    }
+
+    public static final int ACCEPTED = 0;
+    public static final int COALESCED = 1;
+    public static final int DROPPED_OLDEST = 2;
+    public static final int REJECTED = 3;
+
+    private static final int MAX_GATHER = 16;
+    // Data frames compressed per write when the connection keeps a deflate context
+    private static final int DEFLATE_BATCH_BYTES = 16384;
+
+    private final OverflowPolicy policy;
+    private final ByteBuffer[] frames;
+    private final long[] keys;
+    private final PooledFrame[] owners;
+    private final int mask;
+    private int head = 0;
+    private int size = 0;
+
+    private final ArrayDeque<ByteBuffer> control = new ArrayDeque<>();
+    private ByteBuffer current;
+    private PooledFrame currentOwner;
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+    private long pendingBytes = 0;
+
+    private long droppedFrames = 0;
+    private long coalescedFrames = 0;
+    private long bytesWritten = 0;
+    private final LatencyHistogram writeLatency;
+
+    // Context takeover only: frames compressed into one buffer, and the origin times behind it
+    private MessageDeflater deflater;
+    private ByteBuffer deflated;
+    private final long[] deflatedOrigins = new long[MAX_GATHER];
+    private int deflatedOriginCount = 0;
+
+    public OutboundQueue(int capacity, OverflowPolicy policy) {
+        this(capacity, policy, null);
+    }
+
+    // writeLatency, when set, records origin-to-wire time for every pooled frame fully written
+    public OutboundQueue(int capacity, OverflowPolicy policy, LatencyHistogram writeLatency) {
+        this.writeLatency = writeLatency;
+        int rounded = 2;
+        while (rounded < capacity) rounded <<= 1;
+        this.frames = new ByteBuffer[rounded];
+        this.keys = new long[rounded];
+        this.owners = new PooledFrame[rounded];
+        this.mask = rounded - 1;
+        this.policy = policy;
+    }
+
+    public int offer(ByteBuffer frame, long key) {
+        return offer(frame, key, null);
+    }
+
+    // key identifies the beacon a frame describes; MacAddress.NONE disables coalescing for it.
+    // owner, when set, is released once the frame has been written or discarded.
+    public int offer(ByteBuffer frame, long key, PooledFrame owner) {
+        int result = ACCEPTED;
+        if (size == frames.length) {
+            if (policy == OverflowPolicy.DISCONNECT) {
+                droppedFrames++;
+                release(owner);
+                return REJECTED;
+            }
+            if (policy == OverflowPolicy.COALESCE_PER_BEACON && key != MacAddress.NONE) {
+                for (int i = size - 1; i >= 0; i--) {
+                    int index = (head + i) & mask;
+                    if (keys[index] == key) {
+                        pendingBytes += frame.remaining() - frames[index].remaining();
+                        release(owners[index]);
+                        frames[index] = frame;
+                        owners[index] = owner;
+                        coalescedFrames++;
+                        return COALESCED;
+                    }
+                }
+            }
+            pendingBytes -= frames[head].remaining();
+            release(owners[head]);
+            pollFrame();
+            droppedFrames++;
+            result = DROPPED_OLDEST;
+        }
+        int tail = (head + size) & mask;
+        frames[tail] = frame;
+        keys[tail] = key;
+        owners[tail] = owner;
+        size++;
+        pendingBytes += frame.remaining();
+        return result;
+    }
+
+    // Compresses data frames in a per-connection stream from now on (permessage-deflate with
+    // context takeover). Priority and control frames are still written as they are.
+    void setDeflater(MessageDeflater deflater) {
+        this.deflater = deflater;
+        this.deflated = ByteBuffer.allocateDirect(DEFLATE_BATCH_BYTES);
+    }
+
+    public void offerControl(ByteBuffer frame) {
+        control.add(frame);
+        pendingBytes += frame.remaining();
+    }
+
+    // Nothing may follow a close frame (RFC 6455 section 5.5.1): data frames not yet started are
+    // dropped, while a frame already partly on the wire is finished first
+    public void offerClose(ByteBuffer frame) {
+        while (size > 0) {
+            pendingBytes -= frames[head].remaining();
+            release(owners[head]);
+            pollFrame();
+        }
+        offerControl(frame);
+    }
+
+    public boolean isEmpty() {
+        return current == null && control.isEmpty() && size == 0;
+    }
+
+    public long getPendingBytes() {
+        return pendingBytes;
+    }
+
+    public long getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    public long getCoalescedFrames() {
+        return coalescedFrames;
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    // Gathering write of as many frames as the socket accepts; true once the queue is empty
+    public boolean writeTo(GatheringByteChannel channel) throws IOException {
+        while (true) {
+            if (deflater != null && current == null && size > 0) {
+                deflatePending();
+            }
+            int count = 0;
+            if (current != null) {
+                gather[count++] = current;
+            }
+            if (!control.isEmpty()) {
+                Iterator<ByteBuffer> controlFrames = control.iterator();
+                while (count < MAX_GATHER && controlFrames.hasNext()) {
+                    gather[count++] = controlFrames.next();
+                }
+            }
+            for (int i = 0; deflater == null && count < MAX_GATHER && i < size; i++) {
+                gather[count++] = frames[(head + i) & mask];
+            }
+            if (count == 0) return true;
+
+            long written = channel.write(gather, 0, count);
+            pendingBytes -= written;
+            bytesWritten += written;
+
+            int index = 0;
+            if (current != null) {
+                if (current.hasRemaining()) {
+                    clearGather(count);
+                    return false;
+                }
+                if (current == deflated) {
+                    recordDeflated();
+                }
+                current = null;
+                recordWritten(currentOwner);
+                release(currentOwner);
+                currentOwner = null;
+                index++;
+            }
+            for (; index < count; index++) {
+                ByteBuffer frame = gather[index];
+                PooledFrame owner = null;
+                if (!control.isEmpty() && control.peek() == frame) {
+                    control.poll();
+                } else {
+                    owner = owners[head];
+                    pollFrame();
+                }
+                if (frame.hasRemaining()) {
+                    current = frame;
+                    currentOwner = owner;
+                    clearGather(count);
+                    return false;
+                }
+                recordWritten(owner);
+                release(owner);
+            }
+            clearGather(count);
+        }
+    }
+
+    public void clear() {
+        while (size > 0) {
+            release(owners[head]);
+            pollFrame();
+        }
+        head = 0;
+        control.clear();
+        current = null;
+        release(currentOwner);
+        currentOwner = null;
+        pendingBytes = 0;
+        deflatedOriginCount = 0;
+    }
+
+    // Each compressed frame extends the client's window, so frames are compressed only as they are
+    // about to be written, in order, and can no longer be dropped or coalesced after that. The batch
+    // goes out as the current buffer and holds no frame references.
+    private void deflatePending() {
+        ByteBuffer out = deflated;
+        out.clear();
+        int batched = 0;
+        while (size > 0 && batched < MAX_GATHER && out.position() < DEFLATE_BATCH_BYTES) {
+            ByteBuffer frame = frames[head];
+            PooledFrame owner = owners[head];
+            int before = frame.remaining();
+            boolean compressed = deflater.deflate(frame);
+            int length = compressed ? deflater.frameLength() : before;
+            if (out.remaining() < length) {
+                ByteBuffer grown = ByteBuffer.allocateDirect(out.position() + length);
+                out.flip();
+                grown.put(out);
+                out = grown;
+            }
+            if (compressed) {
+                deflater.put(out);
+            } else {
+                out.put(frame);
+            }
+            pendingBytes += length - before;
+            if (owner != null && owner.originNanos != 0) {
+                deflatedOrigins[deflatedOriginCount++] = owner.originNanos;
+            }
+            release(owner);
+            pollFrame();
+            batched++;
+        }
+        out.flip();
+        deflated = out;
+        current = out;
+        currentOwner = null;
+    }
+
+    private void recordDeflated() {
+        if (writeLatency != null) {
+            long now = System.nanoTime();
+            for (int i = 0; i < deflatedOriginCount; i++) {
+                writeLatency.recordNanos(now - deflatedOrigins[i]);
+            }
+        }
+        deflatedOriginCount = 0;
+    }
+
+    private void pollFrame() {
+        frames[head] = null;
+        owners[head] = null;
+        head = (head + 1) & mask;
+        size--;
+    }
+
+    private void recordWritten(PooledFrame owner) {
+        if (writeLatency != null && owner != null && owner.originNanos != 0) {
+            writeLatency.recordNanos(System.nanoTime() - owner.originNanos);
+        }
+    }
+
+    private static void release(PooledFrame owner) {
+        if (owner != null) {
+            owner.release();
+        }
+    }
+
+    private void clearGather(int count) {
+        for (int i = 0; i < count; i++) {
+            gather[i] = null;
+        }
+    }
+}
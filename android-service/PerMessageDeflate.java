@@ -0,0 +1,310 @@
+package com.hotel.blegateway;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// RFC 7692 permessage-deflate, negotiated per client. Server-to-client messages run in one of two
+// parameter sets:
+//   shared          server_no_context_takeover: every message is compressed on its own, so a pooled
+//                   frame is deflated once on the selector thread and all such clients get those bytes
+//   context takeover  each client keeps a 32 KB window across messages, so repeated records shrink to
+//                   a few bytes, for one compression per client per message on its reactor and a
+//                   pooled Deflater held for the life of the connection
+// The server picks shared unless contextTakeover is on and the client did not ask for
+// server_no_context_takeover. Payloads under minPayload are sent uncompressed either way. The
+// answer always includes client_no_context_takeover, so inbound messages (a subscribe now and then)
+// are inflated independently with an Inflater that goes back to the pool on close.
+public final class PerMessageDeflate {
+    public static final String EXTENSION = "permessage-deflate";
+    public static final String HEADER = "Sec-WebSocket-Extensions";
+    // Smallest payloads worth compressing. A lone JSON event barely shrinks on its own, while
+    // batches and replay chunks do; with context takeover even a single event shrinks several times.
+    public static final int DEFAULT_MIN_PAYLOAD = 160;
+    public static final int DEFAULT_MIN_PAYLOAD_CONTEXT_TAKEOVER = 32;
+    // Cheapest level; on these records it gets most of what level 6 would at a fraction of the CPU
+    public static final int DEFAULT_LEVEL = Deflater.BEST_SPEED;
+
+    // Handshake outcome per connection; 0 means the extension is off
+    static final int NEGOTIATED = 1;
+    static final int SERVER_NO_CONTEXT_TAKEOVER = 2;
+    // The client offered server_max_window_bits=15, which has to be echoed back
+    static final int ECHO_WINDOW_BITS = 4;
+
+    static final String MODE_SHARED = "shared";
+    static final String MODE_CONTEXT_TAKEOVER = "context_takeover";
+
+    // java.util.zip always deflates with a 32 KB window
+    private static final int WINDOW_BITS = 15;
+    private static final int MIN_WINDOW_BITS = 8;
+    private static final int MAX_POOLED = 64;
+    // Empty stored block that ends every SYNC_FLUSH; stripped on send, appended again before inflating
+    static final byte[] FLUSH_TAIL = { 0, 0, (byte) 0xFF, (byte) 0xFF };
+
+    private static final class Stats {
+        final AtomicLong messages = new AtomicLong();
+        final AtomicLong inputBytes = new AtomicLong();
+        final AtomicLong outputBytes = new AtomicLong();
+        final AtomicLong nanos = new AtomicLong();
+    }
+
+    private final boolean contextTakeover;
+    private final int minPayload;
+    private final int level;
+
+    private final ArrayDeque<Deflater> deflaters = new ArrayDeque<>();
+    private final ArrayDeque<Inflater> inflaters = new ArrayDeque<>();
+    // Selector thread, for shared frames
+    private MessageDeflater sharedDeflater;
+
+    private final Stats shared = new Stats();
+    private final Stats perClient = new Stats();
+    private final AtomicLong skippedSmall = new AtomicLong();
+    private final AtomicLong incompressible = new AtomicLong();
+    private final AtomicLong incompressibleNanos = new AtomicLong();
+    private final AtomicLong inflatedMessages = new AtomicLong();
+
+    public PerMessageDeflate() {
+        this(false, DEFAULT_MIN_PAYLOAD, DEFAULT_LEVEL);
+    }
+
+    public static int defaultMinPayload(boolean contextTakeover) {
+        return contextTakeover ? DEFAULT_MIN_PAYLOAD_CONTEXT_TAKEOVER : DEFAULT_MIN_PAYLOAD;
+    }
+
+    // level is a Deflater level, 0-9 or Deflater.DEFAULT_COMPRESSION
+    public PerMessageDeflate(boolean contextTakeover, int minPayload, int level) {
+        if (level != Deflater.DEFAULT_COMPRESSION
+            && (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION)) {
+            throw new IllegalArgumentException("Invalid deflate level " + level);
+        }
+        this.contextTakeover = contextTakeover;
+        this.minPayload = Math.max(1, minPayload);
+        this.level = level;
+    }
+
+    public boolean isContextTakeover() {
+        return contextTakeover;
+    }
+
+    public int getMinPayload() {
+        return minPayload;
+    }
+
+    // Picks the first acceptable permessage-deflate offer; 0 when there is none
+    int negotiate(HttpRequest request) {
+        String header = request.header(HEADER);
+        if (header == null) return 0;
+        for (String offer : header.split(",")) {
+            int agreement = accept(offer);
+            if (agreement != 0) return agreement;
+        }
+        return 0;
+    }
+
+    static String responseHeader(int agreement) {
+        StringBuilder response = new StringBuilder(EXTENSION);
+        if ((agreement & SERVER_NO_CONTEXT_TAKEOVER) != 0) response.append("; server_no_context_takeover");
+        response.append("; client_no_context_takeover");
+        if ((agreement & ECHO_WINDOW_BITS) != 0) response.append("; server_max_window_bits=").append(WINDOW_BITS);
+        return response.toString();
+    }
+
+    // An offer with unknown, repeated or out of range parameters is declined (RFC 7692 section 7)
+    private int accept(String offer) {
+        String[] params = offer.split(";");
+        if (!EXTENSION.equalsIgnoreCase(params[0].trim())) return 0;
+        int agreement = NEGOTIATED | (contextTakeover ? 0 : SERVER_NO_CONTEXT_TAKEOVER);
+        int seen = 0;
+        for (int i = 1; i < params.length; i++) {
+            String param = params[i].trim();
+            int eq = param.indexOf('=');
+            String name = (eq < 0 ? param : param.substring(0, eq)).trim().toLowerCase(Locale.US);
+            String value = eq < 0 ? null : unquote(param.substring(eq + 1).trim());
+            int bit;
+            switch (name) {
+                case "server_no_context_takeover":
+                    if (value != null) return 0;
+                    agreement |= SERVER_NO_CONTEXT_TAKEOVER;
+                    bit = 1;
+                    break;
+                case "client_no_context_takeover":
+                    if (value != null) return 0;
+                    bit = 2;
+                    break;
+                case "server_max_window_bits":
+                    // A smaller window cannot be honoured with java.util.zip
+                    if (windowBits(value) != WINDOW_BITS) return 0;
+                    agreement |= ECHO_WINDOW_BITS;
+                    bit = 4;
+                    break;
+                case "client_max_window_bits":
+                    if (value != null && windowBits(value) < 0) return 0;
+                    bit = 8;
+                    break;
+                default:
+                    return 0;
+            }
+            if ((seen & bit) != 0) return 0;
+            seen |= bit;
+        }
+        return agreement;
+    }
+
+    private static int windowBits(String value) {
+        if (value == null) return -1;
+        try {
+            int bits = Integer.parseInt(value);
+            return bits >= MIN_WINDOW_BITS && bits <= WINDOW_BITS ? bits : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static String unquote(String value) {
+        return value.length() >= 2 && value.charAt(0) == '"' && value.charAt(value.length() - 1) == '"'
+            ? value.substring(1, value.length() - 1)
+            : value;
+    }
+
+    // Selector thread: a view of the frame for a shared-mode client. The compressed twin is built on
+    // first use and cached on the frame, so it costs one deflate however many clients receive it.
+    // Takes one reference on the frame either way.
+    ByteBuffer share(PooledFrame frame) {
+        if (frame.deflateState == PooledFrame.DEFLATE_UNKNOWN) {
+            if (sharedDeflater == null) {
+                sharedDeflater = new MessageDeflater(this, new Deflater(level, true), false);
+            }
+            if (sharedDeflater.deflate(frame.buffer)) {
+                frame.setDeflated(sharedDeflater);
+            } else {
+                frame.deflateState = PooledFrame.DEFLATE_PLAIN;
+            }
+        }
+        return frame.deflateState == PooledFrame.DEFLATED ? frame.shareDeflated() : frame.share();
+    }
+
+    // Reactor thread: a stream for a context takeover connection; return it with release()
+    MessageDeflater acquireDeflater() {
+        Deflater deflater;
+        synchronized (deflaters) {
+            deflater = deflaters.poll();
+        }
+        return new MessageDeflater(this, deflater != null ? deflater : new Deflater(level, true), true);
+    }
+
+    void release(MessageDeflater stream) {
+        Deflater deflater = stream.deflater();
+        deflater.reset();
+        synchronized (deflaters) {
+            if (deflaters.size() < MAX_POOLED) {
+                deflaters.add(deflater);
+                return;
+            }
+        }
+        deflater.end();
+    }
+
+    Inflater acquireInflater() {
+        Inflater inflater;
+        synchronized (inflaters) {
+            inflater = inflaters.poll();
+        }
+        return inflater != null ? inflater : new Inflater(true);
+    }
+
+    void release(Inflater inflater) {
+        inflater.reset();
+        synchronized (inflaters) {
+            if (inflaters.size() < MAX_POOLED) {
+                inflaters.add(inflater);
+                return;
+            }
+        }
+        inflater.end();
+    }
+
+    void onDeflated(boolean perClientStream, int inputBytes, int outputBytes, long nanos) {
+        Stats stats = perClientStream ? perClient : shared;
+        stats.messages.incrementAndGet();
+        stats.inputBytes.addAndGet(inputBytes);
+        stats.outputBytes.addAndGet(outputBytes);
+        stats.nanos.addAndGet(nanos);
+    }
+
+    void onSkipped() {
+        skippedSmall.incrementAndGet();
+    }
+
+    void onIncompressible(long nanos) {
+        incompressible.incrementAndGet();
+        incompressibleNanos.addAndGet(nanos);
+    }
+
+    void onInflated() {
+        inflatedMessages.incrementAndGet();
+    }
+
+    public long getDeflatedMessages() {
+        return shared.messages.get() + perClient.messages.get();
+    }
+
+    public long getInputBytes() {
+        return shared.inputBytes.get() + perClient.inputBytes.get();
+    }
+
+    public long getOutputBytes() {
+        return shared.outputBytes.get() + perClient.outputBytes.get();
+    }
+
+    // Time spent compressing, including attempts that did not pay off
+    public long getDeflateNanos() {
+        return shared.nanos.get() + perClient.nanos.get() + incompressibleNanos.get();
+    }
+
+    public long getSkippedMessages() {
+        return skippedSmall.get() + incompressible.get();
+    }
+
+    // clients holds the open connections per mode: [shared, context takeover]
+    void writeMetrics(PrometheusText out, int[] clients) {
+        out.gauge("blegateway_deflate_clients", "Clients that negotiated permessage-deflate, by mode",
+            "mode", MODE_SHARED, clients[0]);
+        out.gauge("blegateway_deflate_clients", "Clients that negotiated permessage-deflate, by mode",
+            "mode", MODE_CONTEXT_TAKEOVER, clients[1]);
+        out.counter("blegateway_deflate_messages_total", "Messages compressed, by mode; once for all shared clients",
+            "mode", MODE_SHARED, shared.messages.get());
+        out.counter("blegateway_deflate_messages_total", "Messages compressed, by mode; once for all shared clients",
+            "mode", MODE_CONTEXT_TAKEOVER, perClient.messages.get());
+        out.counter("blegateway_deflate_skipped_total", "Messages sent uncompressed to deflate clients",
+            "reason", "small", skippedSmall.get());
+        out.counter("blegateway_deflate_skipped_total", "Messages sent uncompressed to deflate clients",
+            "reason", "incompressible", incompressible.get());
+        out.counter("blegateway_deflate_input_bytes_total", "Payload bytes before compression",
+            "mode", MODE_SHARED, shared.inputBytes.get());
+        out.counter("blegateway_deflate_input_bytes_total", "Payload bytes before compression",
+            "mode", MODE_CONTEXT_TAKEOVER, perClient.inputBytes.get());
+        out.counter("blegateway_deflate_output_bytes_total", "Payload bytes after compression",
+            "mode", MODE_SHARED, shared.outputBytes.get());
+        out.counter("blegateway_deflate_output_bytes_total", "Payload bytes after compression",
+            "mode", MODE_CONTEXT_TAKEOVER, perClient.outputBytes.get());
+        out.gauge("blegateway_deflate_ratio", "Payload bytes in per byte out since start, by mode",
+            "mode", MODE_SHARED, ratio(shared));
+        out.gauge("blegateway_deflate_ratio", "Payload bytes in per byte out since start, by mode",
+            "mode", MODE_CONTEXT_TAKEOVER, ratio(perClient));
+        out.secondsCounter("blegateway_deflate_cpu_seconds_total", "Thread time spent compressing, by mode",
+            "mode", MODE_SHARED, shared.nanos.get() + incompressibleNanos.get());
+        out.secondsCounter("blegateway_deflate_cpu_seconds_total", "Thread time spent compressing, by mode",
+            "mode", MODE_CONTEXT_TAKEOVER, perClient.nanos.get());
+        out.counter("blegateway_inflate_messages_total", "Compressed messages received from clients",
+            inflatedMessages.get());
+    }
+
+    private static double ratio(Stats stats) {
+        long output = stats.outputBytes.get();
+        return output == 0 ? 0 : (double) stats.inputBytes.get() / output;
+    }
+}
@@ -0,0 +1,72 @@
+package com.hotel.blegateway;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+// A frame encoded once and shared read-only by every client queue it is handed to.
+// References are taken on the selector thread and released by whichever reactor wrote or
+// dropped the frame; it returns to its pool when the last client is done.
+public final class PooledFrame {
+    private static final AtomicIntegerFieldUpdater<PooledFrame> REF_COUNT =
+        AtomicIntegerFieldUpdater.newUpdater(PooledFrame.class, "refCount");
+
+    static final int DEFLATE_UNKNOWN = 0;
+    static final int DEFLATED = 1;
+    static final int DEFLATE_PLAIN = 2;
+
+    final ByteBuffer buffer;
+    private final FramePool pool;
+    // permessage-deflate twin for shared-mode clients, kept with the frame when it is pooled
+    private ByteBuffer deflated;
+    private volatile int refCount = 0;
+
+    // System.nanoTime() of the scan callback behind the frame's oldest event, 0 when unknown.
+    // Set on the selector thread before the frame is shared.
+    long originNanos = 0;
+    // Whether deflated holds this frame's compressed form; selector thread, like originNanos
+    int deflateState = DEFLATE_UNKNOWN;
+
+    PooledFrame(ByteBuffer buffer, FramePool pool) {
+        this.buffer = buffer;
+        this.pool = pool;
+    }
+
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    // Read-only view for one client; the caller owns one reference until release()
+    public ByteBuffer share() {
+        REF_COUNT.incrementAndGet(this);
+        return buffer.asReadOnlyBuffer();
+    }
+
+    // Read-only view of the compressed twin; same reference counting as share()
+    ByteBuffer shareDeflated() {
+        REF_COUNT.incrementAndGet(this);
+        return deflated.asReadOnlyBuffer();
+    }
+
+    // Stores the frame the deflater just produced from this one; it is never larger than the original
+    void setDeflated(MessageDeflater deflater) {
+        if (deflated == null) {
+            deflated = buffer.isDirect()
+                ? ByteBuffer.allocateDirect(buffer.capacity())
+                : ByteBuffer.allocate(buffer.capacity());
+        }
+        deflated.clear();
+        deflater.put(deflated);
+        deflated.flip();
+        deflateState = DEFLATED;
+    }
+
+    public void retain() {
+        REF_COUNT.incrementAndGet(this);
+    }
+
+    public void release() {
+        if (REF_COUNT.decrementAndGet(this) == 0 && pool != null) {
+            pool.recycle(this);
+        }
+    }
+}
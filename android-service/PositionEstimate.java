@@ -0,0 +1,15 @@
+package com.hotel.blegateway;
+
+// Mutable result slot filled by PositionSolver.observe(); the caller owns and reuses it
+public final class PositionEstimate {
+    public long device;
+    // Metres in the beacon map's floor plan coordinates
+    public float x;
+    public float y;
+    public int floor;
+    // 0..1, falls with the estimate's expected error and the range residuals
+    public float confidence;
+    // Anchors on the chosen floor that went into the solution
+    public int beacons;
+    public long timestamp;
+}
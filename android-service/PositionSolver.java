@@ -0,0 +1,369 @@
+package com.hotel.blegateway;
+
+import java.nio.ByteBuffer;
+
+// Turns RSSI from the fixed beacons of a BeaconMap into an (x, y, floor, confidence) estimate per
+// scanning device, replacing "nearest beacon above a threshold" as the notion of where someone is.
+//
+// Each device remembers its MAX_ANCHORS most recently heard anchors with a smoothed RSSI and the
+// range the log-distance path-loss model gives for it: d = 10^((txPower - rssi) / (10 n)). An
+// observation updates one anchor, then re-solves weighted least squares for the position with a
+// few damped Gauss-Newton steps starting from the previous estimate. Weights follow log-normal
+// shadowing, where a fixed error in dB is a range error proportional to distance, so near anchors
+// count more. Every step is O(anchors) on a 2x2 normal matrix held in locals; per-device state
+// lives in preallocated arrays indexed by a LongSlotTable slot, so observe() never allocates.
+//
+// observe() reports an estimate at most once per publish interval per device. Selector thread only.
+public class PositionSolver {
+    public static final int DEFAULT_CAPACITY = 4096;
+    public static final int MAX_ANCHORS = 8;
+    public static final long DEFAULT_PUBLISH_INTERVAL_MS = 500;
+    // Anchors not heard for this long drop out of the solution
+    public static final long DEFAULT_ANCHOR_TIMEOUT_MS = 5000;
+    // Key the pipeline uses for the gateway's own scanner; slot table keys must be non-zero
+    public static final long LOCAL_DEVICE = 1L;
+
+    private static final int MAX_ITERATIONS = 4;
+    private static final double CONVERGED_M2 = 0.01 * 0.01;
+    private static final float RSSI_ALPHA = 0.3f;
+    private static final double SHADOWING_DB = 4.0;
+    private static final double MIN_RANGE_SIGMA_M = 0.5;
+    private static final double MIN_RANGE_M = 0.1;
+    private static final double MAX_RANGE_M = 100.0;
+    // Levenberg damping on the normal matrix diagonal, against overshoot near an anchor
+    private static final double DAMPING = 0.1;
+    // Weak pull towards the previous estimate, so one or two anchors cannot send it anywhere
+    private static final double PRIOR_SIGMA_M = 10.0;
+    // A floor change needs this much more total weight than the current floor
+    private static final double FLOOR_SWITCH_RATIO = 1.5;
+    // Expected error (1 sigma plus RMS residual) at which confidence is 0.5
+    private static final double CONFIDENCE_SCALE_M = 3.0;
+    private static final double LN10 = Math.log(10.0);
+
+    private final BeaconMap map;
+    private final LongSlotTable devices;
+    private final long publishIntervalMs;
+    private final long anchorTimeoutMs;
+
+    // MAX_ANCHORS entries per device slot; anchorBeacon is -1 for an empty entry
+    private final int[] anchorBeacon;
+    private final float[] anchorRssi;
+    private final float[] anchorRange;
+    private final float[] anchorWeight;
+    private final long[] anchorSeen;
+
+    private final float[] positionX;
+    private final float[] positionY;
+    private final int[] positionFloor;
+    private final boolean[] hasFix;
+    private final long[] lastPublished;
+
+    // Scratch for one solve
+    private final double[] solveX = new double[MAX_ANCHORS];
+    private final double[] solveY = new double[MAX_ANCHORS];
+    private final double[] solveRange = new double[MAX_ANCHORS];
+    private final double[] solveWeight = new double[MAX_ANCHORS];
+    private final int[] floorIds = new int[MAX_ANCHORS];
+    private final double[] floorWeights = new double[MAX_ANCHORS];
+    private float solvedConfidence;
+
+    private long observations = 0;
+    private long updates = 0;
+    private long published = 0;
+    private long rejected = 0;
+
+    public PositionSolver(BeaconMap map) {
+        this(map, DEFAULT_CAPACITY, DEFAULT_PUBLISH_INTERVAL_MS, DEFAULT_ANCHOR_TIMEOUT_MS);
+    }
+
+    public PositionSolver(BeaconMap map, int capacity, long publishIntervalMs, long anchorTimeoutMs) {
+        this.map = map;
+        this.devices = new LongSlotTable(capacity);
+        this.publishIntervalMs = publishIntervalMs;
+        this.anchorTimeoutMs = anchorTimeoutMs;
+        anchorBeacon = new int[capacity * MAX_ANCHORS];
+        anchorRssi = new float[capacity * MAX_ANCHORS];
+        anchorRange = new float[capacity * MAX_ANCHORS];
+        anchorWeight = new float[capacity * MAX_ANCHORS];
+        anchorSeen = new long[capacity * MAX_ANCHORS];
+        positionX = new float[capacity];
+        positionY = new float[capacity];
+        positionFloor = new int[capacity];
+        hasFix = new boolean[capacity];
+        lastPublished = new long[capacity];
+    }
+
+    public BeaconMap getMap() {
+        return map;
+    }
+
+    // Takes one raw RSSI reading of beacon by device. Returns true and fills out when an estimate
+    // is due for publishing; readings of beacons that are not in the map are ignored.
+    public boolean observe(long device, long beacon, int rssi, long timestamp, PositionEstimate out) {
+        int beaconIndex = map.indexOf(beacon);
+        if (beaconIndex < 0) return false;
+        int slot = devices.getOrAdd(device);
+        if (slot == LongSlotTable.NO_SLOT) {
+            rejected++;
+            return false;
+        }
+        if (devices.lastAdded()) {
+            reset(slot, timestamp);
+        }
+        observations++;
+
+        updateAnchor(slot, beaconIndex, rssi, timestamp);
+        int used = solve(slot, timestamp);
+        if (used == 0) return false;
+        updates++;
+        if (timestamp - lastPublished[slot] < publishIntervalMs) return false;
+        lastPublished[slot] = timestamp;
+        published++;
+
+        out.device = device;
+        out.x = positionX[slot];
+        out.y = positionY[slot];
+        out.floor = positionFloor[slot];
+        out.confidence = solvedConfidence;
+        out.beacons = used;
+        out.timestamp = timestamp;
+        return true;
+    }
+
+    public boolean forget(long device) {
+        return devices.remove(device) != LongSlotTable.NO_SLOT;
+    }
+
+    private void reset(int slot, long timestamp) {
+        int base = slot * MAX_ANCHORS;
+        for (int i = base; i < base + MAX_ANCHORS; i++) {
+            anchorBeacon[i] = -1;
+            anchorSeen[i] = Long.MIN_VALUE;
+        }
+        hasFix[slot] = false;
+        // The first solution goes out straight away
+        lastPublished[slot] = timestamp - publishIntervalMs;
+    }
+
+    // Smooths the reading into the device's entry for the beacon, or takes over the empty or
+    // least recently heard entry
+    private void updateAnchor(int slot, int beaconIndex, int rssi, long timestamp) {
+        int base = slot * MAX_ANCHORS;
+        int entry = -1;
+        int oldest = base;
+        for (int i = base; i < base + MAX_ANCHORS; i++) {
+            if (anchorBeacon[i] == beaconIndex) {
+                entry = i;
+                break;
+            }
+            if (anchorSeen[i] < anchorSeen[oldest]) oldest = i;
+        }
+        float smoothed;
+        if (entry < 0) {
+            entry = oldest;
+            anchorBeacon[entry] = beaconIndex;
+            smoothed = rssi;
+        } else {
+            smoothed = anchorRssi[entry] + RSSI_ALPHA * (rssi - anchorRssi[entry]);
+        }
+        anchorRssi[entry] = smoothed;
+        anchorSeen[entry] = Math.max(anchorSeen[entry], timestamp);
+
+        float exponent = map.pathLossExponent(beaconIndex);
+        double range = Math.pow(10.0, (map.txPower(beaconIndex) - smoothed) / (10.0 * exponent));
+        range = Math.max(MIN_RANGE_M, Math.min(MAX_RANGE_M, range));
+        double sigma = Math.max(MIN_RANGE_SIGMA_M, range * LN10 / (10.0 * exponent) * SHADOWING_DB);
+        anchorRange[entry] = (float) range;
+        anchorWeight[entry] = (float) (1.0 / (sigma * sigma));
+    }
+
+    // Drops stale anchors, picks the floor, and refines the slot's position; returns the number of
+    // anchors used, 0 when there is nothing to solve with
+    private int solve(int slot, long now) {
+        int base = slot * MAX_ANCHORS;
+        int floors = 0;
+        for (int i = base; i < base + MAX_ANCHORS; i++) {
+            int beacon = anchorBeacon[i];
+            if (beacon < 0) continue;
+            if (now - anchorSeen[i] > anchorTimeoutMs) {
+                anchorBeacon[i] = -1;
+                anchorSeen[i] = Long.MIN_VALUE;
+                continue;
+            }
+            int floor = map.floor(beacon);
+            int f = 0;
+            while (f < floors && floorIds[f] != floor) f++;
+            if (f == floors) {
+                floorIds[floors] = floor;
+                floorWeights[floors++] = 0;
+            }
+            floorWeights[f] += anchorWeight[i];
+        }
+        if (floors == 0) return 0;
+
+        int best = 0;
+        for (int f = 1; f < floors; f++) {
+            if (floorWeights[f] > floorWeights[best]) best = f;
+        }
+        int floor = floorIds[best];
+        if (hasFix[slot] && floor != positionFloor[slot]) {
+            int current = positionFloor[slot];
+            for (int f = 0; f < floors; f++) {
+                if (floorIds[f] == current && floorWeights[f] * FLOOR_SWITCH_RATIO >= floorWeights[best]) {
+                    floor = current;
+                }
+            }
+        }
+
+        int count = 0;
+        double weightSum = 0;
+        double centroidX = 0;
+        double centroidY = 0;
+        for (int i = base; i < base + MAX_ANCHORS; i++) {
+            int beacon = anchorBeacon[i];
+            if (beacon < 0 || map.floor(beacon) != floor) continue;
+            double weight = anchorWeight[i];
+            solveX[count] = map.x(beacon);
+            solveY[count] = map.y(beacon);
+            solveRange[count] = anchorRange[i];
+            solveWeight[count] = weight;
+            weightSum += weight;
+            centroidX += weight * solveX[count];
+            centroidY += weight * solveY[count];
+            count++;
+        }
+
+        // A new device or floor starts from the weighted centroid of what it hears
+        double px;
+        double py;
+        if (!hasFix[slot] || positionFloor[slot] != floor) {
+            px = centroidX / weightSum;
+            py = centroidY / weightSum;
+        } else {
+            px = positionX[slot];
+            py = positionY[slot];
+        }
+        double priorX = px;
+        double priorY = py;
+        double priorWeight = 1.0 / (PRIOR_SIGMA_M * PRIOR_SIGMA_M);
+
+        double h11 = 0;
+        double h12 = 0;
+        double h22 = 0;
+        double residuals = 0;
+        for (int iteration = 0; iteration < MAX_ITERATIONS; iteration++) {
+            h11 = priorWeight;
+            h12 = 0;
+            h22 = priorWeight;
+            double g1 = priorWeight * (px - priorX);
+            double g2 = priorWeight * (py - priorY);
+            residuals = 0;
+            for (int j = 0; j < count; j++) {
+                double dx = px - solveX[j];
+                double dy = py - solveY[j];
+                double distance = Math.sqrt(dx * dx + dy * dy);
+                if (distance < 1e-3) {
+                    // On top of the anchor the direction is undefined; any unit vector will do
+                    dx = 1e-3;
+                    dy = 0;
+                    distance = 1e-3;
+                }
+                double jx = dx / distance;
+                double jy = dy / distance;
+                double residual = distance - solveRange[j];
+                double weight = solveWeight[j];
+                h11 += weight * jx * jx;
+                h12 += weight * jx * jy;
+                h22 += weight * jy * jy;
+                g1 += weight * jx * residual;
+                g2 += weight * jy * residual;
+                residuals += weight * residual * residual;
+            }
+            double a11 = h11 * (1.0 + DAMPING);
+            double a22 = h22 * (1.0 + DAMPING);
+            double det = a11 * a22 - h12 * h12;
+            if (!(det > 0)) break;
+            double stepX = -(a22 * g1 - h12 * g2) / det;
+            double stepY = -(a11 * g2 - h12 * g1) / det;
+            px += stepX;
+            py += stepY;
+            if (stepX * stepX + stepY * stepY < CONVERGED_M2) break;
+        }
+
+        // Expected error from the inverse normal matrix (trace of the 2x2 covariance) plus the
+        // weighted RMS range residual, which grows when the anchors disagree
+        double det = h11 * h22 - h12 * h12;
+        double sigma = det > 0 ? Math.sqrt((h11 + h22) / det) : PRIOR_SIGMA_M;
+        double rms = Math.sqrt(residuals / weightSum);
+        solvedConfidence = (float) (1.0 / (1.0 + (sigma + rms) / CONFIDENCE_SCALE_M));
+
+        positionX[slot] = (float) px;
+        positionY[slot] = (float) py;
+        positionFloor[slot] = floor;
+        hasFix[slot] = true;
+        return count;
+    }
+
+    // Snapshot section, see StateSnapshot: i32 count, then per device with a fix
+    //   i64 device | f32 x | f32 y | i32 floor
+    // Anchors are not kept: they time out long before a restarted service hears its first batch.
+    static final int SNAPSHOT_RECORD_BYTES = 20;
+
+    public int snapshotBytes() {
+        return 4 + devices.size() * SNAPSHOT_RECORD_BYTES;
+    }
+
+    public void writeSnapshot(ByteBuffer out) {
+        int countAt = out.position();
+        out.putInt(0);
+        int count = 0;
+        for (int slot = 0; slot < devices.capacity(); slot++) {
+            if (!devices.isUsed(slot) || !hasFix[slot]) continue;
+            out.putLong(devices.keyAt(slot));
+            out.putFloat(positionX[slot]);
+            out.putFloat(positionY[slot]);
+            out.putInt(positionFloor[slot]);
+            count++;
+        }
+        out.putInt(countAt, count);
+    }
+
+    // Into a fresh solver: devices solve from their last fix instead of the anchors' centroid
+    public void readSnapshot(ByteBuffer in, long now) {
+        int count = in.getInt();
+        for (int i = 0; i < count; i++) {
+            long device = in.getLong();
+            float x = in.getFloat();
+            float y = in.getFloat();
+            int floor = in.getInt();
+            int slot = devices.getOrAdd(device);
+            if (slot == LongSlotTable.NO_SLOT) continue;
+            reset(slot, now);
+            positionX[slot] = x;
+            positionY[slot] = y;
+            positionFloor[slot] = floor;
+            hasFix[slot] = true;
+        }
+    }
+
+    public int getTrackedDevices() {
+        return devices.size();
+    }
+
+    public long getObservations() {
+        return observations;
+    }
+
+    // Solutions computed, published or not
+    public long getUpdates() {
+        return updates;
+    }
+
+    public long getPublished() {
+        return published;
+    }
+
+    public long getRejected() {
+        return rejected;
+    }
+}
@@ -0,0 +1,244 @@
+package com.hotel.blegateway;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// Notices beacons going quiet. Every tracked MAC has a deadline, last heard plus its class's
+// silence timeout, and sits in one bucket of a hashed timing wheel: WHEEL_SIZE buckets of one
+// tick each, bucket = deadline tick mod WHEEL_SIZE, as intrusive doubly linked lists over the
+// LongSlotTable slots. Hearing a beacon only pushes its deadline out; the entry is moved when its
+// bucket comes round and the deadline has not passed yet, so the per-advertisement cost is a few
+// array stores. expire() walks the buckets of the ticks that elapsed since the last call and
+// evicts every entry whose deadline has passed, reporting it to the listener.
+//
+// schedule, reschedule and expire are all O(1) per entry, whatever the number of tracked beacons
+// and however far out the deadline (entries more than a revolution ahead are passed over until
+// their round comes). Selector thread only.
+public class PresenceTracker {
+    public static final int DEFAULT_CAPACITY = 65536;
+    public static final long DEFAULT_TICK_MS = 250;
+    public static final long DEFAULT_SILENCE_MS = 30000;
+
+    // 1024 ticks of 250 ms: one revolution covers 256 s
+    private static final int WHEEL_SIZE = 1024;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+    private static final int NONE = -1;
+
+    // Told about each beacon as it expires, after its state has been dropped
+    public interface Listener {
+        void onExit(long mac, int beaconClass, int rssi, int nameId, long lastSeen);
+    }
+
+    private final LongSlotTable beacons;
+    private final long tickMs;
+    private final long[] deadline;
+    private final long[] lastSeen;
+    private final int[] rssi;
+    private final int[] nameId;
+    private final byte[] beaconClass;
+    private final int[] next;
+    private final int[] previous;
+    private final int[] bucketOf;
+    private final int[] buckets = new int[WHEEL_SIZE];
+    private final long[] silenceMs = new long[BeaconClass.COUNT];
+    // Next tick expire() has to process; Long.MIN_VALUE before the first call
+    private long currentTick = Long.MIN_VALUE;
+
+    private long expired = 0;
+    private long rescheduled = 0;
+    private long rejected = 0;
+
+    public PresenceTracker(int capacity) {
+        this(capacity, DEFAULT_TICK_MS);
+    }
+
+    public PresenceTracker(int capacity, long tickMs) {
+        if (tickMs <= 0) {
+            throw new IllegalArgumentException("Tick must be positive: " + tickMs);
+        }
+        this.tickMs = tickMs;
+        beacons = new LongSlotTable(capacity);
+        deadline = new long[capacity];
+        lastSeen = new long[capacity];
+        rssi = new int[capacity];
+        nameId = new int[capacity];
+        beaconClass = new byte[capacity];
+        next = new int[capacity];
+        previous = new int[capacity];
+        bucketOf = new int[capacity];
+        Arrays.fill(buckets, NONE);
+        for (int i = 0; i < BeaconClass.COUNT; i++) {
+            silenceMs[i] = DEFAULT_SILENCE_MS;
+        }
+        // Gates and elevators are passed through; rooms and the hotel beacons are where guests
+        // stay, with the phone often in a pocket or bag, so they get longer before counting as gone
+        setSilence(BeaconClass.GATE, 15000);
+        setSilence(BeaconClass.ELEVATOR, 15000);
+        setSilence(BeaconClass.ROOM, 60000);
+        setSilence(BeaconClass.HOTEL, 60000);
+    }
+
+    // How long a beacon of the class may stay silent before it counts as gone. With batched scans
+    // this has to exceed the report delay, or beacons expire between two batches.
+    public void setSilence(int beaconClass, long silenceMs) {
+        if (silenceMs <= 0) {
+            throw new IllegalArgumentException("Silence must be positive: " + silenceMs);
+        }
+        this.silenceMs[beaconClass] = silenceMs;
+    }
+
+    public long getSilence(int beaconClass) {
+        return silenceMs[beaconClass];
+    }
+
+    // Records that the beacon was heard at timestamp; false when the table is full
+    public boolean touch(long mac, int beaconClass, int rssi, int nameId, long timestamp) {
+        int slot = beacons.getOrAdd(mac);
+        if (slot == LongSlotTable.NO_SLOT) {
+            rejected++;
+            return false;
+        }
+        long due = timestamp + silenceMs[beaconClass];
+        if (beacons.lastAdded()) {
+            deadline[slot] = due;
+            lastSeen[slot] = timestamp;
+            link(slot, due);
+        } else {
+            // Batched results can arrive out of order; only the latest sighting counts
+            if (due > deadline[slot]) deadline[slot] = due;
+            if (timestamp > lastSeen[slot]) lastSeen[slot] = timestamp;
+        }
+        this.rssi[slot] = rssi;
+        this.nameId[slot] = nameId;
+        this.beaconClass[slot] = (byte) beaconClass;
+        return true;
+    }
+
+    // Drops the beacon without reporting it
+    public boolean forget(long mac) {
+        int slot = beacons.get(mac);
+        if (slot == LongSlotTable.NO_SLOT) return false;
+        unlink(slot);
+        beacons.remove(mac);
+        return true;
+    }
+
+    // Processes every tick up to now and returns the number of beacons that expired. After a
+    // stall longer than a revolution one pass over the wheel is enough, as it visits every entry.
+    public int expire(long now, Listener listener) {
+        long nowTick = Math.floorDiv(now, tickMs);
+        if (currentTick == Long.MIN_VALUE) {
+            currentTick = nowTick;
+        }
+        if (nowTick < currentTick) return 0;
+        long lastTick = Math.min(nowTick, currentTick + WHEEL_MASK);
+        int count = 0;
+        for (long tick = currentTick; tick <= lastTick; tick++) {
+            int bucket = (int) (tick & WHEEL_MASK);
+            int slot = buckets[bucket];
+            while (slot != NONE) {
+                int following = next[slot];
+                long due = deadline[slot];
+                if (due <= now) {
+                    unlink(slot);
+                    long mac = beacons.keyAt(slot);
+                    beacons.remove(mac);
+                    expired++;
+                    count++;
+                    listener.onExit(mac, beaconClass[slot], rssi[slot], nameId[slot], lastSeen[slot]);
+                } else {
+                    int target = bucket(due);
+                    if (target != bucket) {
+                        unlink(slot);
+                        link(slot, due);
+                        rescheduled++;
+                    }
+                }
+                slot = following;
+            }
+        }
+        currentTick = nowTick + 1;
+        return count;
+    }
+
+    private int bucket(long due) {
+        // Rounded up, so an entry's bucket never comes round before its deadline
+        long tick = Math.floorDiv(due + tickMs - 1, tickMs);
+        // A deadline already behind the wheel (a late batched result) is handled at the next tick
+        if (currentTick != Long.MIN_VALUE && tick < currentTick) tick = currentTick;
+        return (int) (tick & WHEEL_MASK);
+    }
+
+    private void link(int slot, long due) {
+        int bucket = bucket(due);
+        int head = buckets[bucket];
+        next[slot] = head;
+        previous[slot] = NONE;
+        if (head != NONE) previous[head] = slot;
+        buckets[bucket] = slot;
+        bucketOf[slot] = bucket;
+    }
+
+    private void unlink(int slot) {
+        int before = previous[slot];
+        int after = next[slot];
+        if (before != NONE) {
+            next[before] = after;
+        } else {
+            buckets[bucketOf[slot]] = after;
+        }
+        if (after != NONE) previous[after] = before;
+    }
+
+    // Snapshot section, see StateSnapshot: i32 count, then per beacon
+    //   i64 mac | i64 last seen ms | i32 name id | i32 rssi | u8 class
+    static final int SNAPSHOT_RECORD_BYTES = 25;
+
+    public int snapshotBytes() {
+        return 4 + beacons.size() * SNAPSHOT_RECORD_BYTES;
+    }
+
+    public void writeSnapshot(ByteBuffer out) {
+        out.putInt(beacons.size());
+        for (int slot = 0; slot < beacons.capacity(); slot++) {
+            if (!beacons.isUsed(slot)) continue;
+            out.putLong(beacons.keyAt(slot));
+            out.putLong(lastSeen[slot]);
+            out.putInt(nameId[slot]);
+            out.putInt(rssi[slot]);
+            out.put(beaconClass[slot]);
+        }
+    }
+
+    // Beacons are rescheduled from when they were last heard, so those that went quiet while the
+    // gateway was down expire, with their exit events, on the first expire() after the restart
+    public void readSnapshot(ByteBuffer in) {
+        int count = in.getInt();
+        for (int i = 0; i < count; i++) {
+            long mac = in.getLong();
+            long seen = in.getLong();
+            int name = in.getInt();
+            int lastRssi = in.getInt();
+            int type = in.get();
+            if (type >= 0 && type < BeaconClass.COUNT) {
+                touch(mac, type, lastRssi, name, seen);
+            }
+        }
+    }
+
+    public int getTrackedBeacons() {
+        return beacons.size();
+    }
+
+    public long getExpired() {
+        return expired;
+    }
+
+    public long getRescheduled() {
+        return rescheduled;
+    }
+
+    public long getRejected() {
+        return rejected;
+    }
+}
@@ -0,0 +1,86 @@
+package com.hotel.blegateway;
+
+// Writer for the Prometheus text exposition format (0.0.4) served on GET /metrics.
+// Series of one family must be written back to back; HELP/TYPE go out once per family.
+public class PrometheusText {
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+    private final StringBuilder out = new StringBuilder(8192);
+    private String family;
+
+    public PrometheusText counter(String name, String help, long value) {
+        header(name, help, "counter");
+        out.append(name).append(' ').append(value).append('\n');
+        return this;
+    }
+
+    public PrometheusText counter(String name, String help, String label, String labelValue, long value) {
+        header(name, help, "counter");
+        series(name, label, labelValue).append(value).append('\n');
+        return this;
+    }
+
+    public PrometheusText gauge(String name, String help, long value) {
+        header(name, help, "gauge");
+        out.append(name).append(' ').append(value).append('\n');
+        return this;
+    }
+
+    public PrometheusText gauge(String name, String help, String label, String labelValue, long value) {
+        header(name, help, "gauge");
+        series(name, label, labelValue).append(value).append('\n');
+        return this;
+    }
+
+    public PrometheusText gauge(String name, String help, String label, String labelValue, double value) {
+        header(name, help, "gauge");
+        series(name, label, labelValue).append(value).append('\n');
+        return this;
+    }
+
+    // Time accumulated in nanoseconds, exposed as a counter in seconds
+    public PrometheusText secondsCounter(String name, String help, String label, String labelValue, long nanos) {
+        header(name, help, "counter");
+        series(name, label, labelValue).append(nanos / 1e9).append('\n');
+        return this;
+    }
+
+    // Latency as a summary in seconds: p50/p90/p99/p99.9 plus _sum, _count and a _max gauge
+    public PrometheusText summary(String name, String help, LatencyHistogram histogram) {
+        header(name, help, "summary");
+        for (double q : QUANTILES) {
+            out.append(name).append("{quantile=\"").append(q).append("\"} ");
+            seconds(histogram.quantileMicros(q)).append('\n');
+        }
+        out.append(name).append("_sum ");
+        seconds(histogram.getSumMicros()).append('\n');
+        out.append(name).append("_count ").append(histogram.getCount()).append('\n');
+        String max = name + "_max";
+        header(max, "Largest value recorded in " + name, "gauge");
+        out.append(max).append(' ');
+        seconds(histogram.getMaxMicros()).append('\n');
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return out.toString();
+    }
+
+    private void header(String name, String help, String type) {
+        if (name.equals(family)) return;
+        family = name;
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private StringBuilder series(String name, String label, String labelValue) {
+        return out.append(name).append('{').append(label).append("=\"").append(labelValue).append("\"} ");
+    }
+
+    private StringBuilder seconds(long micros) {
+        return out.append(micros / 1e6);
+    }
+}
@@ -0,0 +1,81 @@
+package com.hotel.blegateway;
+
+import java.nio.ByteBuffer;
+
+// Fixed-size off-heap history of published events, indexed by sequence number, so a client
+// that reconnects can send resume(lastSeq) and get what it missed before live traffic.
+// Each record is 32 bytes in one direct buffer; names are stored as ids into the
+// BinaryEventEncoder name table. Selector thread only.
+public class ReplayRing {
+    public static final int RECORD_SIZE = 32;
+
+    private static final int SEQ = 0;
+    private static final int TIMESTAMP = 8;
+    private static final int MAC = 16;
+    private static final int RSSI = 24;
+    private static final int ZONE = 25;
+    private static final int CLASS = 26;
+    private static final int NAME_ID = 28;
+
+    private final ByteBuffer records;
+    private final int mask;
+    private long nextSeq = 1;
+    // Oldest sequence number this ring has ever held; moves past the gap of a warm restart
+    private long firstRecorded = 1;
+
+    public ReplayRing(int capacity) {
+        int size = 2;
+        while (size < capacity) size <<= 1;
+        records = ByteBuffer.allocateDirect(size * RECORD_SIZE);
+        mask = size - 1;
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+
+    // Assigns the next sequence number to the event and records it
+    public long append(BeaconEvent event, int nameId) {
+        long seq = nextSeq++;
+        event.seq = seq;
+        int base = ((int) seq & mask) * RECORD_SIZE;
+        records.putLong(base + SEQ, seq);
+        records.putLong(base + TIMESTAMP, event.timestamp);
+        records.putLong(base + MAC, event.mac);
+        records.put(base + RSSI, (byte) Math.max(-128, Math.min(127, event.rssi)));
+        records.put(base + ZONE, (byte) event.zone);
+        records.put(base + CLASS, (byte) event.beaconClass);
+        records.putShort(base + NAME_ID, (short) nameId);
+        return seq;
+    }
+
+    // Warm restart: numbering carries on after lastSeq, so clients resuming from before the
+    // restart are told what they lost instead of being handed events with reused numbers
+    public void restoreLastSeq(long lastSeq) {
+        nextSeq = lastSeq + 1;
+        firstRecorded = nextSeq;
+    }
+
+    // Oldest sequence number still held, or lastSeq() + 1 when empty
+    public long firstSeq() {
+        return Math.max(firstRecorded, nextSeq - capacity());
+    }
+
+    public long lastSeq() {
+        return nextSeq - 1;
+    }
+
+    // Copies the record into event and returns its name id, or -1 once seq has been overwritten
+    // or not yet written. The caller resolves event.name from the id.
+    public int read(long seq, BeaconEvent event) {
+        if (seq < firstSeq() || seq > lastSeq()) return -1;
+        int base = ((int) seq & mask) * RECORD_SIZE;
+        event.seq = seq;
+        event.timestamp = records.getLong(base + TIMESTAMP);
+        event.mac = records.getLong(base + MAC);
+        event.rssi = records.get(base + RSSI);
+        event.zone = records.get(base + ZONE) & 0xFF;
+        event.beaconClass = records.get(base + CLASS);
+        return records.getShort(base + NAME_ID) & 0xFFFF;
+    }
+}
@@ -0,0 +1,155 @@
+package com.hotel.blegateway;
+
+// Picks the scan duty cycle from recent beacon activity, connected clients and a quiet-hours
+// policy, instead of scanning at LOW_LATENCY forever. Moves up a level as soon as activity
+// calls for it and steps down only after a hold period, with a minimum gap between switches
+// so the platform's scan start throttling is never hit.
+//
+// Activity is recorded on the selector thread; evaluate() runs on the service's main thread.
+// The getters may be called from any thread (/metrics reads them on the selector thread): they
+// read an immutable snapshot republished on each mode switch.
+public class ScanScheduler {
+    public static final int MODE_OPPORTUNISTIC = 0;
+    public static final int MODE_LOW_POWER = 1;
+    public static final int MODE_BALANCED = 2;
+    public static final int MODE_LOW_LATENCY = 3;
+    public static final int MODE_COUNT = 4;
+
+    private static final String[] MODE_NAMES = { "OPPORTUNISTIC", "LOW_POWER", "BALANCED", "LOW_LATENCY" };
+
+    // Android refuses more than 5 scan starts per 30 s, so never switch faster than this
+    public static final long MIN_SWITCH_INTERVAL_MS = 6000;
+    public static final long DEFAULT_STEP_DOWN_HOLD_MS = 60000;
+    public static final long DEFAULT_ACTIVE_WINDOW_MS = 30000;
+    public static final long DEFAULT_PEAK_TRANSITION_WINDOW_MS = 15000;
+
+    private long stepDownHoldMs = DEFAULT_STEP_DOWN_HOLD_MS;
+    private long activeWindowMs = DEFAULT_ACTIVE_WINDOW_MS;
+    private long peakTransitionWindowMs = DEFAULT_PEAK_TRANSITION_WINDOW_MS;
+    private int quietStartHour = 1;
+    private int quietEndHour = 5;
+
+    // Written by the selector thread only
+    private volatile long lastEventAt = 0;
+    private volatile long lastTransitionAt = 0;
+
+    // Owned by the thread calling evaluate()
+    private int mode = MODE_LOW_LATENCY;
+    private long modeSince = 0;
+    private long lastSwitchAt = Long.MIN_VALUE / 2;
+    private long wantedBelowSince = -1;
+    private final long[] timeInMode = new long[MODE_COUNT];
+
+    private volatile ModeClock published = new ModeClock(mode, modeSince, timeInMode);
+    private volatile long modeChanges = 0;
+    private volatile long evaluations = 0;
+
+    public static String modeName(int mode) {
+        return MODE_NAMES[mode];
+    }
+
+    // Hours in [startHour, endHour) local time are quiet: with no activity the radio idles lower
+    public void setQuietHours(int startHour, int endHour) {
+        quietStartHour = startHour;
+        quietEndHour = endHour;
+    }
+
+    public void setStepDownHold(long millis) {
+        stepDownHoldMs = millis;
+    }
+
+    // Selector thread: a matched beacon was seen, and whether it changed zone
+    public void recordActivity(long now, boolean zoneTransition) {
+        lastEventAt = now;
+        if (zoneTransition) lastTransitionAt = now;
+    }
+
+    // Returns the mode the scanner should be in now; changes take effect in the returned value
+    public int evaluate(long now, int clients, int hourOfDay) {
+        evaluations++;
+        int target = target(now, clients, hourOfDay);
+
+        if (target > mode) {
+            wantedBelowSince = -1;
+            if (now - lastSwitchAt >= MIN_SWITCH_INTERVAL_MS) switchTo(target, now);
+        } else if (target < mode) {
+            if (wantedBelowSince < 0) wantedBelowSince = now;
+            if (now - wantedBelowSince >= stepDownHoldMs && now - lastSwitchAt >= MIN_SWITCH_INTERVAL_MS) {
+                wantedBelowSince = -1;
+                switchTo(target, now);
+            }
+        } else {
+            wantedBelowSince = -1;
+        }
+        return mode;
+    }
+
+    private int target(long now, int clients, int hourOfDay) {
+        boolean quiet = isQuietHour(hourOfDay);
+        boolean active = lastEventAt != 0 && now - lastEventAt < activeWindowMs;
+        boolean peak = lastTransitionAt != 0 && now - lastTransitionAt < peakTransitionWindowMs;
+
+        if (clients == 0) {
+            // Nobody is listening: keep zone state roughly warm for the next connect
+            return quiet || !active ? MODE_OPPORTUNISTIC : MODE_LOW_POWER;
+        }
+        if (peak) return MODE_LOW_LATENCY;
+        if (active) return MODE_BALANCED;
+        return quiet ? MODE_LOW_POWER : MODE_BALANCED;
+    }
+
+    private boolean isQuietHour(int hour) {
+        if (quietStartHour == quietEndHour) return false;
+        if (quietStartHour < quietEndHour) return hour >= quietStartHour && hour < quietEndHour;
+        return hour >= quietStartHour || hour < quietEndHour;
+    }
+
+    private void switchTo(int target, long now) {
+        timeInMode[mode] += now - modeSince;
+        mode = target;
+        modeSince = now;
+        lastSwitchAt = now;
+        modeChanges++;
+        published = new ModeClock(mode, modeSince, timeInMode);
+    }
+
+    // Starts the clock for the initial mode when scanning begins
+    public void start(long now) {
+        modeSince = now;
+        published = new ModeClock(mode, modeSince, timeInMode);
+    }
+
+    public int getMode() {
+        return published.mode;
+    }
+
+    public boolean isHighRate() {
+        return published.mode == MODE_LOW_LATENCY;
+    }
+
+    public long getModeChanges() {
+        return modeChanges;
+    }
+
+    public long getEvaluations() {
+        return evaluations;
+    }
+
+    public long getTimeInMode(int mode, long now) {
+        ModeClock clock = published;
+        return clock.timeInMode[mode] + (mode == clock.mode ? now - clock.since : 0);
+    }
+
+    // Mode, when it was entered and the time spent in each mode before that, as of one switch
+    private static final class ModeClock {
+        final int mode;
+        final long since;
+        final long[] timeInMode;
+
+        ModeClock(int mode, long since, long[] timeInMode) {
+            this.mode = mode;
+            this.since = since;
+            this.timeInMode = timeInMode.clone();
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package com.hotel.blegateway;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+// Warm-restart checkpoint of the pipeline's hot state, double buffered over two memory-mapped
+// files. Each checkpoint goes to the file that does not hold the newest one and is committed by
+// its header: generation, length and a CRC-32 of the payload. A process killed mid-write, or
+// pages that never reached storage, fail the CRC, and the other file still has the previous
+// checkpoint. Writing is a copy into the page cache, which survives the process being killed;
+// force() to storage, against power loss, runs on a background thread.
+//
+// File: 32-byte header, then the payload (big endian):
+//   header  i32 magic | u16 version | u16 reserved | i64 generation | i64 written ms |
+//           i32 payload length | i32 payload CRC-32
+//
+// The payload is opaque here; GatewayPipeline lays out its sections. buffer() and write() belong
+// to the selector thread, read() to startup.
+public class StateSnapshot implements Closeable {
+    public static final int HEADER_SIZE = 32;
+
+    private static final int MAGIC = 0x48425331; // "HBS1"
+    private static final int VERSION = 1;
+    private static final String[] FILE_NAMES = { "state-a.snap", "state-b.snap" };
+    private static final int MIN_FILE_BYTES = 64 * 1024;
+
+    private static final int H_MAGIC = 0;
+    private static final int H_VERSION = 4;
+    private static final int H_GENERATION = 8;
+    private static final int H_WRITTEN = 16;
+    private static final int H_LENGTH = 24;
+    private static final int H_CRC = 28;
+
+    private final File[] files = new File[FILE_NAMES.length];
+    private final MappedByteBuffer[] mapped = new MappedByteBuffer[FILE_NAMES.length];
+    private final ExecutorService flusher = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "snapshot-flush");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final CRC32 crc = new CRC32();
+    private ByteBuffer payload = ByteBuffer.allocate(MIN_FILE_BYTES);
+
+    // File index holding the newest valid checkpoint, -1 for none
+    private int newest = -1;
+    private long generation = 0;
+    private long writtenAt = 0;
+    // Payload found at startup, handed out once by read()
+    private byte[] restored;
+
+    private volatile long checkpoints = 0;
+    private volatile long writeErrors = 0;
+    private volatile int lastBytes = 0;
+
+    public StateSnapshot(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create snapshot directory " + directory);
+        }
+        for (int i = 0; i < files.length; i++) {
+            files[i] = new File(directory, FILE_NAMES[i]);
+            load(i);
+        }
+    }
+
+    // Payload of the newest valid checkpoint, once; null when there is none
+    public ByteBuffer read() {
+        byte[] bytes = restored;
+        restored = null;
+        return bytes != null ? ByteBuffer.wrap(bytes) : null;
+    }
+
+    // Wall-clock time the newest checkpoint was taken, 0 when there is none
+    public long getWrittenAt() {
+        return writtenAt;
+    }
+
+    // Cleared buffer for the next checkpoint's payload, with room for at least capacity bytes
+    public ByteBuffer buffer(int capacity) {
+        if (payload.capacity() < capacity) {
+            payload = ByteBuffer.allocate(Math.max(capacity, payload.capacity() * 2));
+        }
+        payload.clear();
+        return payload;
+    }
+
+    // Commits what was put into buffer() as the newest checkpoint, over the older of the two files
+    public boolean write(long now) {
+        int length = payload.position();
+        int target = newest == 0 ? 1 : 0;
+        MappedByteBuffer out;
+        try {
+            out = map(target, HEADER_SIZE + length);
+        } catch (IOException e) {
+            writeErrors++;
+            return false;
+        }
+        crc.reset();
+        crc.update(payload.array(), 0, length);
+        ByteBuffer body = out.duplicate();
+        body.position(HEADER_SIZE);
+        body.put(payload.array(), 0, length);
+        out.putInt(H_MAGIC, MAGIC);
+        out.putShort(H_VERSION, (short) VERSION);
+        out.putLong(H_GENERATION, generation + 1);
+        out.putLong(H_WRITTEN, now);
+        out.putInt(H_LENGTH, length);
+        out.putInt(H_CRC, (int) crc.getValue());
+        generation++;
+        newest = target;
+        writtenAt = now;
+        checkpoints++;
+        lastBytes = length;
+        flusher.execute(out::force);
+        return true;
+    }
+
+    @Override
+    public void close() {
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public long getCheckpoints() {
+        return checkpoints;
+    }
+
+    public long getWriteErrors() {
+        return writeErrors;
+    }
+
+    public int getLastBytes() {
+        return lastBytes;
+    }
+
+    // Checks the file's header and CRC; keeps its payload if it is the newest valid one so far
+    private void load(int index) {
+        File file = files[index];
+        if (file.length() < HEADER_SIZE) return;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            if (raf.readInt() != MAGIC || raf.readShort() != VERSION) return;
+            raf.readShort();
+            long fileGeneration = raf.readLong();
+            long fileWrittenAt = raf.readLong();
+            int length = raf.readInt();
+            int expected = raf.readInt();
+            if (length < 0 || length > file.length() - HEADER_SIZE || fileGeneration <= generation) return;
+            byte[] bytes = new byte[length];
+            raf.readFully(bytes);
+            crc.reset();
+            crc.update(bytes, 0, length);
+            if ((int) crc.getValue() != expected) return;
+            newest = index;
+            generation = fileGeneration;
+            writtenAt = fileWrittenAt;
+            restored = bytes;
+        } catch (IOException e) {
+            // Unreadable: as good as absent, the next checkpoint overwrites it
+        }
+    }
+
+    // The file's mapping, remapped larger when the checkpoint has outgrown it
+    private MappedByteBuffer map(int index, int size) throws IOException {
+        MappedByteBuffer buffer = mapped[index];
+        if (buffer != null && buffer.capacity() >= size) return buffer;
+        long fileBytes = Math.max(MIN_FILE_BYTES, size + size / 4L);
+        // The mapping stays valid after the channel is closed
+        try (RandomAccessFile raf = new RandomAccessFile(files[index], "rw")) {
+            if (raf.length() < fileBytes) raf.setLength(fileBytes);
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+        }
+        mapped[index] = buffer;
+        return buffer;
+    }
+}
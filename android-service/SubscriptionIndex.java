@@ -0,0 +1,309 @@
+package com.hotel.blegateway;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+// Routing index from event attributes to the connections that asked for them, so each event
+// costs O(interested clients) rather than O(all clients). A connection can subscribe to:
+//
+//   userId   its guest; events from devices registered to that guest reach all of their sessions
+//   zones    zone ids (GATE, APPROACHING_ROOM, ...)
+//   classes  beacon classes, i.e. both the inside and approaching zone of a class
+//
+// A new connection receives nothing until it subscribes. A userId on its own routes the events
+// of whatever devices that guest's sessions registered; only a subscribe that names no userId,
+// devices, zones or classes makes a wildcard that receives everything, for dashboards. Position
+// estimates are opt-in, and a connection that only wants positions can turn beacon events off.
+// Selector thread only.
+public class SubscriptionIndex {
+    public static final int DEFAULT_DEVICE_CAPACITY = 4096;
+
+    private static final int[] NONE = new int[0];
+    private static final long[] NO_DEVICES = new long[0];
+
+    private static final class Subscriber {
+        final WebSocketConnection connection;
+        User user;
+        boolean wildcard = false;
+        int[] zones = NONE;
+        int[] classes = NONE;
+        boolean events = true;
+        boolean positions = false;
+        long stamp = 0;
+        // Sequence number of the first event routed to the connection, 0 before that
+        long firstSeq = 0;
+
+        Subscriber(WebSocketConnection connection) {
+            this.connection = connection;
+        }
+    }
+
+    private static final class User {
+        final String userId;
+        final ArrayList<Subscriber> sessions = new ArrayList<>();
+        long[] devices = NO_DEVICES;
+
+        User(String userId) {
+            this.userId = userId;
+        }
+    }
+
+    private final IdentityHashMap<WebSocketConnection, Subscriber> subscribers = new IdentityHashMap<>();
+    private final HashMap<String, User> users = new HashMap<>();
+    private final ArrayList<Subscriber> wildcards = new ArrayList<>();
+    private final ArrayList<Subscriber> positionSubscribers = new ArrayList<>();
+    private final ArrayList<ArrayList<Subscriber>> byZone = new ArrayList<>();
+    private final ArrayList<ArrayList<Subscriber>> byClass = new ArrayList<>();
+    private final LongSlotTable devices;
+    private final User[] deviceOwners;
+
+    // Result of the last route() call, reused to avoid allocating per event
+    private WebSocketConnection[] matched = new WebSocketConnection[16];
+    private int matchedCount = 0;
+    private final int[] matchedFormats = new int[WireFormat.COUNT];
+    private long stamp = 0;
+    private boolean includeWildcards;
+    private long routedSeq;
+
+    public SubscriptionIndex(int deviceCapacity) {
+        devices = new LongSlotTable(deviceCapacity);
+        deviceOwners = new User[deviceCapacity];
+        for (int i = 0; i < 256; i++) {
+            byZone.add(new ArrayList<Subscriber>());
+        }
+        for (int i = 0; i < BeaconClass.COUNT; i++) {
+            byClass.add(new ArrayList<Subscriber>());
+        }
+    }
+
+    // New connections are known but not routed to until they subscribe
+    public void add(WebSocketConnection connection) {
+        if (subscribers.containsKey(connection)) return;
+        subscribers.put(connection, new Subscriber(connection));
+    }
+
+    // Replaces the connection's subscription. Devices already registered to another guest are
+    // left with their owner; returns false when that happened.
+    public boolean subscribe(WebSocketConnection connection, String userId, long[] deviceMacs,
+                             int[] zones, int[] classes) {
+        return subscribe(connection, userId, deviceMacs, zones, classes, true, false);
+    }
+
+    // events=false stops beacon events (the userId still owns its devices); positions=true adds
+    // the position estimates
+    public boolean subscribe(WebSocketConnection connection, String userId, long[] deviceMacs,
+                             int[] zones, int[] classes, boolean events, boolean positions) {
+        Subscriber subscriber = subscribers.get(connection);
+        if (subscriber == null) {
+            add(connection);
+            subscriber = subscribers.get(connection);
+        }
+        unlink(subscriber);
+
+        subscriber.zones = zones != null ? zones : NONE;
+        subscriber.classes = classes != null ? classes : NONE;
+        boolean hasDevices = deviceMacs != null && deviceMacs.length > 0;
+        boolean hasUser = userId != null && !userId.isEmpty();
+        subscriber.wildcard = subscriber.zones.length == 0 && subscriber.classes.length == 0 && !hasDevices
+            && !hasUser;
+        subscriber.events = events;
+        subscriber.positions = positions;
+
+        boolean allRegistered = true;
+        if (hasUser) {
+            User user = users.get(userId);
+            if (user == null) {
+                user = new User(userId);
+                users.put(userId, user);
+            }
+            user.sessions.add(subscriber);
+            subscriber.user = user;
+            if (hasDevices) {
+                allRegistered = registerDevices(user, deviceMacs);
+            }
+        }
+
+        if (subscriber.wildcard) wildcards.add(subscriber);
+        if (positions) positionSubscribers.add(subscriber);
+        for (int zone : subscriber.zones) {
+            byZone.get(zone & 0xFF).add(subscriber);
+        }
+        for (int beaconClass : subscriber.classes) {
+            byClass.get(beaconClass).add(subscriber);
+        }
+        return allRegistered;
+    }
+
+    public void remove(WebSocketConnection connection) {
+        Subscriber subscriber = subscribers.remove(connection);
+        if (subscriber != null) unlink(subscriber);
+    }
+
+    // Collects the open connections interested in the event; read them with matched(i).
+    // includeWildcards=false skips connections that take everything (they get batch frames instead).
+    public int route(BeaconEvent event, boolean includeWildcards) {
+        stamp++;
+        matchedCount = 0;
+        Arrays.fill(matchedFormats, 0);
+        this.includeWildcards = includeWildcards;
+        routedSeq = event.seq;
+
+        if (includeWildcards) addAll(wildcards);
+        int slot = devices.get(event.mac);
+        if (slot != LongSlotTable.NO_SLOT) addAll(deviceOwners[slot].sessions);
+        addAll(byZone.get(event.zone & 0xFF));
+        addAll(byClass.get(event.beaconClass));
+        return matchedCount;
+    }
+
+    // Collects every open wildcard connection for a frame whose events start at firstSeq
+    public int routeWildcards(long firstSeq) {
+        stamp++;
+        matchedCount = 0;
+        Arrays.fill(matchedFormats, 0);
+        includeWildcards = true;
+        routedSeq = firstSeq;
+        addAll(wildcards);
+        return matchedCount;
+    }
+
+    // Collects every open connection that asked for position estimates
+    public int routePositions() {
+        stamp++;
+        matchedCount = 0;
+        Arrays.fill(matchedFormats, 0);
+        includeWildcards = true;
+        routedSeq = 0;
+        for (int i = 0; i < positionSubscribers.size(); i++) {
+            match(positionSubscribers.get(i));
+        }
+        return matchedCount;
+    }
+
+    // Whether route() would pick this connection for the event; used when replaying history
+    public boolean matches(WebSocketConnection connection, BeaconEvent event) {
+        Subscriber subscriber = subscribers.get(connection);
+        if (subscriber == null || !subscriber.events) return false;
+        if (subscriber.wildcard) return true;
+        if (subscriber.user != null) {
+            int slot = devices.get(event.mac);
+            if (slot != LongSlotTable.NO_SLOT && deviceOwners[slot] == subscriber.user) return true;
+        }
+        for (int zone : subscriber.zones) {
+            if (zone == event.zone) return true;
+        }
+        for (int beaconClass : subscriber.classes) {
+            if (beaconClass == event.beaconClass) return true;
+        }
+        return false;
+    }
+
+    // Sequence number of the first event routed to the connection, 0 if none has been; a replay
+    // stops short of it, as that event and the ones after it are already on their way
+    public long firstRoutedSeq(WebSocketConnection connection) {
+        Subscriber subscriber = subscribers.get(connection);
+        return subscriber != null ? subscriber.firstSeq : 0;
+    }
+
+    public WebSocketConnection matched(int index) {
+        return matched[index];
+    }
+
+    public int matchedCount(int wireFormat) {
+        return matchedFormats[wireFormat];
+    }
+
+    public int getSubscriberCount() {
+        return subscribers.size();
+    }
+
+    public int getWildcardCount() {
+        return wildcards.size();
+    }
+
+    public int getPositionSubscriberCount() {
+        return positionSubscribers.size();
+    }
+
+    public int getUserCount() {
+        return users.size();
+    }
+
+    public int getRegisteredDevices() {
+        return devices.size();
+    }
+
+    private void addAll(ArrayList<Subscriber> list) {
+        for (int i = 0; i < list.size(); i++) {
+            Subscriber subscriber = list.get(i);
+            if (subscriber.events) match(subscriber);
+        }
+    }
+
+    private void match(Subscriber subscriber) {
+        if (subscriber.stamp == stamp) return;
+        subscriber.stamp = stamp;
+        if (subscriber.wildcard && !includeWildcards) return;
+        WebSocketConnection connection = subscriber.connection;
+        if (!connection.isOpen()) return;
+        if (matchedCount == matched.length) {
+            matched = Arrays.copyOf(matched, matched.length * 2);
+        }
+        matched[matchedCount++] = connection;
+        matchedFormats[connection.getWireFormat()]++;
+        if (subscriber.firstSeq == 0) subscriber.firstSeq = routedSeq;
+    }
+
+    private boolean registerDevices(User user, long[] deviceMacs) {
+        releaseDevices(user);
+        long[] owned = new long[deviceMacs.length];
+        int count = 0;
+        boolean allRegistered = true;
+        for (long mac : deviceMacs) {
+            int slot = devices.getOrAdd(mac);
+            if (slot == LongSlotTable.NO_SLOT || (!devices.lastAdded() && deviceOwners[slot] != user)) {
+                allRegistered = false;
+                continue;
+            }
+            deviceOwners[slot] = user;
+            owned[count++] = mac;
+        }
+        user.devices = Arrays.copyOf(owned, count);
+        return allRegistered;
+    }
+
+    private void releaseDevices(User user) {
+        for (long mac : user.devices) {
+            int slot = devices.remove(mac);
+            if (slot != LongSlotTable.NO_SLOT) deviceOwners[slot] = null;
+        }
+        user.devices = NO_DEVICES;
+    }
+
+    private void unlink(Subscriber subscriber) {
+        if (subscriber.wildcard) wildcards.remove(subscriber);
+        if (subscriber.positions) positionSubscribers.remove(subscriber);
+        for (int zone : subscriber.zones) {
+            byZone.get(zone & 0xFF).remove(subscriber);
+        }
+        for (int beaconClass : subscriber.classes) {
+            byClass.get(beaconClass).remove(subscriber);
+        }
+        User user = subscriber.user;
+        if (user != null) {
+            user.sessions.remove(subscriber);
+            if (user.sessions.isEmpty()) {
+                releaseDevices(user);
+                users.remove(user.userId);
+            }
+            subscriber.user = null;
+        }
+        subscriber.wildcard = false;
+        subscriber.events = true;
+        subscriber.positions = false;
+        subscriber.zones = NONE;
+        subscriber.classes = NONE;
+    }
+}
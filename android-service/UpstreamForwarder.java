@@ -0,0 +1,501 @@
+package com.hotel.blegateway;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.GZIPOutputStream;
+
+// Forwards published events to a central gateway server. The selector thread offers events
+// into a bounded queue; a sender thread cuts batches by size or age, gzips them and sends
+// them through an Uplink, backing off exponentially on failure. While the uplink is down,
+// batches spill to local files and are replayed in order, ahead of newer batches, once it
+// recovers. The spill directory has its own byte budget; the oldest batches go first.
+//
+// Batch body (before gzip):
+//   {"gatewayId":"..","events":[{"deviceId":..,"beaconName":..,"rssi":..,"zone":..,"timestamp":..,"seq":..},..]}
+public class UpstreamForwarder {
+    public interface Uplink {
+        // body is the gzipped batch; throws when the batch was not accepted
+        void send(byte[] body, int eventCount) throws IOException;
+    }
+
+    // POSTs each batch with Content-Encoding: gzip; anything but 2xx counts as a failure
+    public static class HttpUplink implements Uplink {
+        private static final int CONNECT_TIMEOUT_MS = 10000;
+        private static final int READ_TIMEOUT_MS = 15000;
+
+        private final URL url;
+
+        public HttpUplink(URL url) {
+            this.url = url;
+        }
+
+        @Override
+        public void send(byte[] body, int eventCount) throws IOException {
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            boolean drained = false;
+            try {
+                connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+                connection.setReadTimeout(READ_TIMEOUT_MS);
+                connection.setRequestMethod("POST");
+                connection.setDoOutput(true);
+                connection.setRequestProperty("Content-Type", "application/json");
+                connection.setRequestProperty("Content-Encoding", "gzip");
+                connection.setRequestProperty("X-Event-Count", Integer.toString(eventCount));
+                connection.setFixedLengthStreamingMode(body.length);
+                try (OutputStream out = connection.getOutputStream()) {
+                    out.write(body);
+                }
+                int status = connection.getResponseCode();
+                InputStream response = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+                if (response != null) {
+                    byte[] discard = new byte[512];
+                    while (response.read(discard) >= 0) {
+                        // Drain so the connection can be reused
+                    }
+                    response.close();
+                }
+                drained = true;
+                if (status / 100 != 2) {
+                    throw new IOException("Upstream returned HTTP " + status);
+                }
+            } finally {
+                // A drained response leaves the socket in the keep-alive cache for the next batch
+                if (!drained) connection.disconnect();
+            }
+        }
+    }
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 8192;
+    public static final int DEFAULT_BATCH_SIZE = 500;
+    public static final long DEFAULT_BATCH_DELAY_MS = 2000;
+    public static final long DEFAULT_SPILL_BUDGET = 64L * 1024 * 1024;
+
+    private static final long INITIAL_BACKOFF_MS = 1000;
+    private static final long MAX_BACKOFF_MS = 5 * 60 * 1000;
+    private static final String SPILL_PREFIX = "spill-";
+    private static final String SPILL_SUFFIX = ".gz";
+
+    private final Uplink uplink;
+    private final String gatewayId;
+    private final File spillDirectory;
+    private final int batchSize;
+    private final long batchDelayMs;
+    private final long spillBudget;
+
+    // Bounded queue of event fields, guarded by lock
+    private final Object lock = new Object();
+    private final long[] macs;
+    private final long[] timestamps;
+    private final long[] seqs;
+    private final int[] rssis;
+    private final int[] zones;
+    private final String[] names;
+    private int head = 0;
+    private int size = 0;
+    private long firstQueuedAt = 0;
+
+    // Sender thread state
+    private final long[] batchMacs;
+    private final long[] batchTimestamps;
+    private final long[] batchSeqs;
+    private final int[] batchRssis;
+    private final int[] batchZones;
+    private final String[] batchNames;
+    private final ArrayDeque<File> spillFiles = new ArrayDeque<>();
+    private long spillBytes = 0;
+    private long spillCounter = 0;
+    private int consecutiveFailures = 0;
+    private long nextAttemptAt = 0;
+    private Thread thread;
+    private volatile boolean running = false;
+
+    private volatile long batchesSent = 0;
+    private volatile long eventsSent = 0;
+    private volatile long bytesSent = 0;
+    private volatile long uncompressedBytes = 0;
+    private volatile int lastBatchSize = 0;
+    private volatile long lastLagMs = 0;
+    private volatile long maxLagMs = 0;
+    private volatile long sendFailures = 0;
+    private volatile long queueDrops = 0;
+    private volatile long spillDroppedEvents = 0;
+    private volatile long spilledBatches = 0;
+    private volatile int spillBacklog = 0;
+    private volatile long spillBacklogBytes = 0;
+
+    public UpstreamForwarder(Uplink uplink, String gatewayId, File spillDirectory) {
+        this(uplink, gatewayId, spillDirectory, DEFAULT_QUEUE_CAPACITY, DEFAULT_BATCH_SIZE,
+            DEFAULT_BATCH_DELAY_MS, DEFAULT_SPILL_BUDGET);
+    }
+
+    public UpstreamForwarder(Uplink uplink, String gatewayId, File spillDirectory, int queueCapacity,
+                             int batchSize, long batchDelayMs, long spillBudget) {
+        this.uplink = uplink;
+        this.gatewayId = gatewayId;
+        this.spillDirectory = spillDirectory;
+        this.batchSize = batchSize;
+        this.batchDelayMs = batchDelayMs;
+        this.spillBudget = spillBudget;
+        macs = new long[queueCapacity];
+        timestamps = new long[queueCapacity];
+        seqs = new long[queueCapacity];
+        rssis = new int[queueCapacity];
+        zones = new int[queueCapacity];
+        names = new String[queueCapacity];
+        batchMacs = new long[batchSize];
+        batchTimestamps = new long[batchSize];
+        batchSeqs = new long[batchSize];
+        batchRssis = new int[batchSize];
+        batchZones = new int[batchSize];
+        batchNames = new String[batchSize];
+    }
+
+    public void start() {
+        loadSpill();
+        running = true;
+        thread = new Thread(this::run, "upstream-forwarder");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Anything still queued is spilled so it is sent after the next start
+    public void stop() {
+        running = false;
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+        if (thread != null) {
+            thread.interrupt();
+            try {
+                thread.join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // Selector thread: copies the event into the queue; false (and counted) when it is full
+    public boolean offer(BeaconEvent event) {
+        synchronized (lock) {
+            if (size == macs.length) {
+                queueDrops++;
+                return false;
+            }
+            int index = (head + size) % macs.length;
+            macs[index] = event.mac;
+            timestamps[index] = event.timestamp;
+            seqs[index] = event.seq;
+            rssis[index] = event.rssi;
+            zones[index] = event.zone;
+            names[index] = event.name;
+            if (size++ == 0) firstQueuedAt = System.currentTimeMillis();
+            if (size == batchSize) lock.notifyAll();
+            return true;
+        }
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                int count = takeBatch();
+                if (count > 0) forwardBatch(count);
+                if (!spillFiles.isEmpty() && System.currentTimeMillis() >= nextAttemptAt) drainSpill();
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        // Shutting down: keep whatever is left for the next run
+        int count;
+        while ((count = takeAvailable()) > 0) {
+            spill(encode(count), count, oldestTimestamp(count));
+        }
+    }
+
+    // Waits until a full batch is queued, the oldest queued event is batchDelayMs old, or a
+    // spilled batch is due for another attempt
+    private int takeBatch() throws InterruptedException {
+        synchronized (lock) {
+            while (running) {
+                long now = System.currentTimeMillis();
+                if (size >= batchSize || (size > 0 && now - firstQueuedAt >= batchDelayMs)) break;
+                if (!spillFiles.isEmpty() && now >= nextAttemptAt) return 0;
+                long wait = size > 0 ? firstQueuedAt + batchDelayMs - now : batchDelayMs;
+                if (!spillFiles.isEmpty()) wait = Math.min(wait, nextAttemptAt - now);
+                lock.wait(Math.max(1, wait));
+            }
+            return takeLocked();
+        }
+    }
+
+    private int takeAvailable() {
+        synchronized (lock) {
+            return takeLocked();
+        }
+    }
+
+    private int takeLocked() {
+        int count = Math.min(size, batchSize);
+        for (int i = 0; i < count; i++) {
+            int index = (head + i) % macs.length;
+            batchMacs[i] = macs[index];
+            batchTimestamps[i] = timestamps[index];
+            batchSeqs[i] = seqs[index];
+            batchRssis[i] = rssis[index];
+            batchZones[i] = zones[index];
+            batchNames[i] = names[index];
+            names[index] = null;
+        }
+        head = (head + count) % macs.length;
+        size -= count;
+        if (size > 0) firstQueuedAt = System.currentTimeMillis();
+        return count;
+    }
+
+    // New batches go straight out only when nothing older is waiting in the spill
+    private void forwardBatch(int count) {
+        byte[] body = encode(count);
+        long oldest = oldestTimestamp(count);
+        if (spillFiles.isEmpty() && System.currentTimeMillis() >= nextAttemptAt) {
+            if (trySend(body, count, oldest)) return;
+        }
+        spill(body, count, oldest);
+    }
+
+    private void drainSpill() {
+        while (running && !spillFiles.isEmpty()) {
+            File file = spillFiles.peekFirst();
+            byte[] body;
+            try {
+                body = readFile(file);
+            } catch (IOException e) {
+                // Unreadable spill file: drop it rather than block everything behind it
+                removeOldestSpill(true);
+                continue;
+            }
+            if (!trySend(body, spillEvents(file), spillOldest(file))) return;
+            removeOldestSpill(false);
+            synchronized (lock) {
+                // Let a full live batch move into the spill behind the backlog
+                if (size >= batchSize) return;
+            }
+        }
+    }
+
+    private boolean trySend(byte[] body, int count, long oldestTimestamp) {
+        try {
+            uplink.send(body, count);
+        } catch (IOException e) {
+            sendFailures++;
+            consecutiveFailures++;
+            long backoff = Math.min(MAX_BACKOFF_MS, INITIAL_BACKOFF_MS << Math.min(consecutiveFailures - 1, 20));
+            // Jitter so a floor of gateways does not retry in lockstep
+            backoff += ThreadLocalRandom.current().nextLong(backoff / 5 + 1);
+            nextAttemptAt = System.currentTimeMillis() + backoff;
+            return false;
+        }
+        consecutiveFailures = 0;
+        nextAttemptAt = 0;
+        long lag = System.currentTimeMillis() - oldestTimestamp;
+        batchesSent++;
+        eventsSent += count;
+        bytesSent += body.length;
+        lastBatchSize = count;
+        lastLagMs = lag;
+        if (lag > maxLagMs) maxLagMs = lag;
+        return true;
+    }
+
+    private byte[] encode(int count) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + count * 40);
+        StringBuilder json = new StringBuilder(128 + count * 140);
+        json.append("{\"gatewayId\":").append(new String(BeaconEventEncoder.jsonString(gatewayId),
+            WebSocketFrames.UTF_8)).append(",\"events\":[");
+        for (int i = 0; i < count; i++) {
+            if (i > 0) json.append(',');
+            json.append("{\"deviceId\":\"").append(MacAddress.toString(batchMacs[i]))
+                .append("\",\"beaconName\":")
+                .append(batchNames[i] != null
+                    ? new String(BeaconEventEncoder.jsonString(batchNames[i]), WebSocketFrames.UTF_8)
+                    : "\"Unknown\"")
+                .append(",\"rssi\":").append(batchRssis[i])
+                .append(",\"zone\":\"").append(Zone.name(batchZones[i]))
+                .append("\",\"timestamp\":").append(batchTimestamps[i])
+                .append(",\"seq\":").append(batchSeqs[i])
+                .append('}');
+            batchNames[i] = null;
+        }
+        json.append("]}");
+        try (Writer writer = new OutputStreamWriter(new GZIPOutputStream(bytes), WebSocketFrames.UTF_8)) {
+            writer.write(json.toString());
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // In-memory streams do not fail
+        }
+        uncompressedBytes += json.length();
+        return bytes.toByteArray();
+    }
+
+    private long oldestTimestamp(int count) {
+        long oldest = Long.MAX_VALUE;
+        for (int i = 0; i < count; i++) {
+            oldest = Math.min(oldest, batchTimestamps[i]);
+        }
+        return oldest;
+    }
+
+    // Spill file names carry order, event count and oldest timestamp: spill-<counter>-<events>-<oldest>.gz
+    private void spill(byte[] body, int count, long oldestTimestamp) {
+        if (!spillDirectory.isDirectory() && !spillDirectory.mkdirs()) {
+            spillDroppedEvents += count;
+            return;
+        }
+        String counter = Long.toString(spillCounter++);
+        StringBuilder name = new StringBuilder(SPILL_PREFIX);
+        for (int i = counter.length(); i < 16; i++) name.append('0');
+        name.append(counter).append('-').append(count).append('-').append(oldestTimestamp).append(SPILL_SUFFIX);
+        File file = new File(spillDirectory, name.toString());
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(body);
+        } catch (IOException e) {
+            file.delete();
+            spillDroppedEvents += count;
+            return;
+        }
+        spillFiles.addLast(file);
+        spillBytes += body.length;
+        spilledBatches++;
+        while (spillBytes > spillBudget && spillFiles.size() > 1) {
+            removeOldestSpill(true);
+        }
+        updateSpillMetrics();
+    }
+
+    private void removeOldestSpill(boolean dropped) {
+        File file = spillFiles.pollFirst();
+        if (file == null) return;
+        if (dropped) spillDroppedEvents += spillEvents(file);
+        spillBytes -= file.length();
+        file.delete();
+        updateSpillMetrics();
+    }
+
+    private void loadSpill() {
+        File[] files = spillDirectory.listFiles();
+        if (files == null) return;
+        Arrays.sort(files);
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.startsWith(SPILL_PREFIX) || !name.endsWith(SPILL_SUFFIX)) continue;
+            spillFiles.addLast(file);
+            spillBytes += file.length();
+            spillCounter = Math.max(spillCounter, spillField(file, 0) + 1);
+        }
+        updateSpillMetrics();
+    }
+
+    private void updateSpillMetrics() {
+        spillBacklog = spillFiles.size();
+        spillBacklogBytes = spillBytes;
+    }
+
+    private static int spillEvents(File file) {
+        return (int) spillField(file, 1);
+    }
+
+    private static long spillOldest(File file) {
+        return spillField(file, 2);
+    }
+
+    private static long spillField(File file, int field) {
+        String name = file.getName();
+        String[] parts = name.substring(SPILL_PREFIX.length(), name.length() - SPILL_SUFFIX.length()).split("-");
+        try {
+            return field < parts.length ? Long.parseLong(parts[field]) : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        try (InputStream in = new FileInputStream(file)) {
+            int read = 0;
+            while (read < data.length) {
+                int n = in.read(data, read, data.length - read);
+                if (n < 0) throw new IOException("Truncated spill file " + file);
+                read += n;
+            }
+        }
+        return data;
+    }
+
+    public long getBatchesSent() {
+        return batchesSent;
+    }
+
+    public long getEventsSent() {
+        return eventsSent;
+    }
+
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    public long getUncompressedBytes() {
+        return uncompressedBytes;
+    }
+
+    public int getLastBatchSize() {
+        return lastBatchSize;
+    }
+
+    // Age of the oldest event in the most recently delivered batch
+    public long getLastLagMs() {
+        return lastLagMs;
+    }
+
+    public long getMaxLagMs() {
+        return maxLagMs;
+    }
+
+    public long getSendFailures() {
+        return sendFailures;
+    }
+
+    public long getQueueDrops() {
+        return queueDrops;
+    }
+
+    public long getSpillDroppedEvents() {
+        return spillDroppedEvents;
+    }
+
+    public long getSpilledBatches() {
+        return spilledBatches;
+    }
+
+    public int getSpillBacklog() {
+        return spillBacklog;
+    }
+
+    public long getSpillBacklogBytes() {
+        return spillBacklogBytes;
+    }
+
+    public int getQueuedEvents() {
+        synchronized (lock) {
+            return size;
+        }
+    }
+}
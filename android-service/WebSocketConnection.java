@@ -0,0 +1,708 @@
+package com.hotel.blegateway;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+// Per-client RFC 6455 state machine, owned by one reactor thread. The public send and close
+// methods may also be called from the server's selector thread; they are then posted to the
+// reactor and take effect on its next flush.
+public class WebSocketConnection {
+    static final int STATE_HANDSHAKE = 0;
+    static final int STATE_OPEN = 1;
+    static final int STATE_CLOSING = 2;
+    static final int STATE_CLOSED = 3;
+
+    static final int MAX_MESSAGE_SIZE = 64 * 1024;
+    private static final int INITIAL_READ_BUFFER = 4096;
+    private static final byte[] NO_PAYLOAD = new byte[0];
+
+    private final WebSocketServer server;
+    private final WebSocketReactor reactor;
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final String remoteAddress;
+    private final CharsetDecoder utf8 = WebSocketFrames.UTF_8.newDecoder()
+        .onMalformedInput(CodingErrorAction.REPORT)
+        .onUnmappableCharacter(CodingErrorAction.REPORT);
+
+    // Written by the reactor, read by the selector thread to skip closed connections early
+    private volatile int state = STATE_HANDSHAKE;
+    private volatile int wireFormat = WireFormat.JSON;
+    // PerMessageDeflate agreement flags, 0 when the client did not negotiate compression
+    private volatile int deflateAgreement = 0;
+    private final PerMessageDeflate compression;
+    // Pooled, held while open: the outbound stream with context takeover, and the inbound inflater
+    private MessageDeflater deflater;
+    private Inflater inflater;
+    private byte[] inflated;
+    private ByteBuffer inbound = ByteBuffer.allocate(INITIAL_READ_BUFFER);
+    private final OutboundQueue outbound;
+    private boolean opened = false;
+    private boolean closeSent = false;
+    private boolean closeAfterFlush = false;
+    // Plain HTTP request handed to the selector thread; input is ignored until it answers
+    private boolean awaitingResponse = false;
+    private int closeCode = WebSocketFrames.CLOSE_ABNORMAL;
+    private String closeReason = "";
+
+    // Reassembly of fragmented data messages
+    private byte[] message = new byte[0];
+    private int messageLength = 0;
+    private int messageOpcode = -1;
+    private boolean messageCompressed = false;
+
+    // Reactor thread: already on its list of connections to flush after the current batch
+    boolean flushQueued = false;
+
+    // Reactor thread: links of the reactor's timer wheel, see ConnectionTimers
+    WebSocketConnection timerNext;
+    WebSocketConnection timerPrevious;
+    int timerBucket = -1;
+    long timerDeadline;
+
+    // Liveness bookkeeping on the reactor's millisecond clock. Any inbound bytes count as a sign
+    // of life; a ping goes out only after pingInterval of silence.
+    private final long createdAt;
+    private long lastSeen;
+    private boolean pingOutstanding = false;
+    private long pingSentAt;
+    private long writeMark;
+    private long writeProgressAt;
+    private long closingSince;
+
+    WebSocketConnection(WebSocketServer server, WebSocketReactor reactor, SocketChannel channel,
+                        SelectionKey key, OutboundQueue outbound) {
+        this.server = server;
+        this.reactor = reactor;
+        this.channel = channel;
+        this.key = key;
+        this.outbound = outbound;
+        this.compression = server.getCompression();
+        this.remoteAddress = String.valueOf(channel.socket().getRemoteSocketAddress());
+        this.createdAt = reactor.now();
+        this.lastSeen = createdAt;
+        this.writeProgressAt = createdAt;
+    }
+
+    public String getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    public boolean isOpen() {
+        return state == STATE_OPEN;
+    }
+
+    public int getWireFormat() {
+        return wireFormat;
+    }
+
+    int getDeflateAgreement() {
+        return deflateAgreement;
+    }
+
+    boolean wasOpened() {
+        return opened;
+    }
+
+    public void send(ByteBuffer frame) {
+        send(frame, MacAddress.NONE);
+    }
+
+    public void send(ByteBuffer frame, long beaconKey) {
+        send(frame, beaconKey, null);
+    }
+
+    // Queues a shared frame; the connection takes one reference and releases it once written or dropped.
+    // Clients without context takeover get the frame's compressed twin, deflated once for all of them.
+    public void send(PooledFrame frame, long beaconKey) {
+        if (state != STATE_OPEN) return;
+        boolean shared = (deflateAgreement & PerMessageDeflate.SERVER_NO_CONTEXT_TAKEOVER) != 0;
+        send(shared ? compression.share(frame) : frame.share(), beaconKey, frame);
+    }
+
+    private void send(ByteBuffer frame, long beaconKey, PooledFrame owner) {
+        if (reactor.inReactorThread()) {
+            enqueue(frame, beaconKey, owner);
+            flush();
+        } else {
+            reactor.post(WebSocketReactor.SEND, this, frame, beaconKey, owner, null);
+        }
+    }
+
+    // Reactor thread: queues a data frame without writing it; beaconKey lets a full queue
+    // coalesce it with an older frame for the same beacon
+    void enqueue(ByteBuffer frame, long beaconKey, PooledFrame owner) {
+        if (state != STATE_OPEN) {
+            if (owner != null) owner.release();
+            return;
+        }
+        int result = outbound.offer(frame, beaconKey, owner);
+        if (result != OutboundQueue.ACCEPTED) {
+            reactor.onOverflow(result);
+            if (result == OutboundQueue.REJECTED) {
+                closeCode = WebSocketFrames.CLOSE_POLICY_VIOLATION;
+                closeReason = "Slow consumer";
+                closeNow();
+            }
+        }
+    }
+
+    public void sendText(String text) {
+        send(WebSocketFrames.encodeText(text));
+    }
+
+    public long getPendingBytes() {
+        return outbound.getPendingBytes();
+    }
+
+    public long getDroppedFrames() {
+        return outbound.getDroppedFrames();
+    }
+
+    public long getCoalescedFrames() {
+        return outbound.getCoalescedFrames();
+    }
+
+    // For frames later ones depend on (e.g. the binary name table): never dropped or coalesced
+    public void sendPriority(ByteBuffer frame) {
+        if (state != STATE_OPEN) return;
+        if (reactor.inReactorThread()) {
+            sendControl(frame);
+        } else {
+            reactor.post(WebSocketReactor.SEND_PRIORITY, this, frame, MacAddress.NONE, null, null);
+        }
+    }
+
+    // Reactor thread: queues a priority frame without writing it
+    void enqueuePriority(ByteBuffer frame) {
+        if (state == STATE_OPEN) outbound.offerControl(frame);
+    }
+
+    private void sendControl(ByteBuffer frame) {
+        outbound.offerControl(frame);
+        flush();
+    }
+
+    public void close(int code, String reason) {
+        if (!reactor.inReactorThread()) {
+            reactor.post(WebSocketReactor.CLOSE, this, null, code, null, reason);
+            return;
+        }
+        closeCode = code;
+        closeReason = reason;
+        if (state == STATE_HANDSHAKE) {
+            closeNow();
+        } else {
+            sendClose(code, reason);
+        }
+    }
+
+    void onReadable() throws IOException {
+        int read = channel.read(inbound);
+        if (read < 0) {
+            closeNow();
+            return;
+        }
+        if (read > 0) {
+            lastSeen = reactor.now();
+            pingOutstanding = false;
+        }
+        inbound.flip();
+        try {
+            if (awaitingResponse) {
+                inbound.position(inbound.limit());
+                return;
+            }
+            if (state == STATE_HANDSHAKE && !readHandshake()) {
+                return;
+            }
+            while ((state == STATE_OPEN || state == STATE_CLOSING) && !closeAfterFlush) {
+                if (!readFrame()) break;
+            }
+        } finally {
+            inbound.compact();
+        }
+    }
+
+    void flush() {
+        if (state == STATE_CLOSED) return;
+        long written = outbound.getBytesWritten();
+        try {
+            boolean drained = outbound.writeTo(channel);
+            reactor.onBytesWritten(outbound.getBytesWritten() - written);
+            if (!drained) {
+                setWriteInterest(true);
+                return;
+            }
+            setWriteInterest(false);
+            if (closeAfterFlush) {
+                closeNow();
+            }
+        } catch (IOException e) {
+            closeNow();
+        }
+    }
+
+    void closeNow() {
+        if (state == STATE_CLOSED) return;
+        state = STATE_CLOSED;
+        outbound.clear();
+        if (deflater != null) {
+            compression.release(deflater);
+            deflater = null;
+        }
+        if (inflater != null) {
+            compression.release(inflater);
+            inflater = null;
+        }
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // already gone
+        }
+        reactor.onConnectionClosed(this);
+        server.onConnectionClosed(this, closeCode, closeReason);
+    }
+
+    private boolean readHandshake() throws IOException {
+        HttpRequest request;
+        try {
+            request = HttpRequest.parse(inbound);
+        } catch (IOException e) {
+            // parse() gives up on a head that fills MAX_HEAD_SIZE without ending
+            boolean tooLarge = inbound.remaining() >= HttpRequest.MAX_HEAD_SIZE;
+            rejectHandshake(tooLarge ? "431 Request Header Fields Too Large" : "400 Bad Request", "");
+            return false;
+        }
+        if (request == null) {
+            // A full buffer would never be read into again; heads up to MAX_HEAD_SIZE get the room
+            if (inbound.remaining() == inbound.capacity()) {
+                ensureCapacity(Math.min(HttpRequest.MAX_HEAD_SIZE, inbound.capacity() * 2));
+            }
+            return false;
+        }
+
+        if ("GET".equals(request.method) && request.header("Upgrade") == null
+            && WebSocketServer.METRICS_PATH.equals(request.pathWithoutQuery())) {
+            awaitingResponse = true;
+            server.onMetricsRequest(this);
+            return false;
+        }
+
+        String secKey = request.header("Sec-WebSocket-Key");
+        if (!"GET".equals(request.method)
+            || !request.headerHasToken("Upgrade", "websocket")
+            || !request.headerHasToken("Connection", "Upgrade")
+            || secKey == null || secKey.trim().length() != 24) {
+            rejectHandshake("400 Bad Request", "");
+            return false;
+        }
+        if (!"13".equals(request.header("Sec-WebSocket-Version"))) {
+            rejectHandshake("426 Upgrade Required", "Sec-WebSocket-Version: 13\r\n");
+            return false;
+        }
+
+        String protocol = WireFormat.select(request);
+        wireFormat = WireFormat.fromProtocol(protocol);
+        int agreement = compression != null ? compression.negotiate(request) : 0;
+        if (agreement != 0 && (agreement & PerMessageDeflate.SERVER_NO_CONTEXT_TAKEOVER) == 0) {
+            deflater = compression.acquireDeflater();
+            outbound.setDeflater(deflater);
+        }
+        deflateAgreement = agreement;
+        String extensions = agreement != 0
+            ? PerMessageDeflate.HEADER + ": " + PerMessageDeflate.responseHeader(agreement) + "\r\n"
+            : "";
+
+        String response = "HTTP/1.1 101 Switching Protocols\r\n"
+            + "Upgrade: websocket\r\n"
+            + "Connection: Upgrade\r\n"
+            + "Sec-WebSocket-Accept: " + WebSocketFrames.acceptKey(secKey) + "\r\n"
+            + (protocol != null ? "Sec-WebSocket-Protocol: " + protocol + "\r\n" : "")
+            + extensions
+            + "\r\n";
+        state = STATE_OPEN;
+        opened = true;
+        sendControl(ByteBuffer.wrap(response.getBytes(WebSocketFrames.US_ASCII)));
+        server.onConnectionOpen(this);
+        return state == STATE_OPEN;
+    }
+
+    private void rejectHandshake(String status, String extraHeaders) {
+        String response = "HTTP/1.1 " + status + "\r\n"
+            + extraHeaders
+            + "Connection: close\r\n"
+            + "Content-Length: 0\r\n"
+            + "\r\n";
+        respond(ByteBuffer.wrap(response.getBytes(WebSocketFrames.US_ASCII)));
+    }
+
+    // Writes a complete plain HTTP response, then closes the connection
+    void respond(ByteBuffer response) {
+        if (!reactor.inReactorThread()) {
+            reactor.post(WebSocketReactor.RESPOND, this, response, 0, null, null);
+            return;
+        }
+        if (state == STATE_CLOSED) return;
+        awaitingResponse = false;
+        state = STATE_CLOSING;
+        closeSent = true;
+        closeAfterFlush = true;
+        startClosing();
+        sendControl(response);
+    }
+
+    // Decodes one complete frame from the inbound buffer; returns false when more bytes are needed
+    private boolean readFrame() {
+        int start = inbound.position();
+        int available = inbound.remaining();
+        if (available < 2) return false;
+
+        int b0 = inbound.get(start) & 0xFF;
+        int b1 = inbound.get(start + 1) & 0xFF;
+        boolean fin = (b0 & 0x80) != 0;
+        int opcode = b0 & 0x0F;
+        boolean masked = (b1 & 0x80) != 0;
+        long length = b1 & 0x7F;
+        int headerLength = 2;
+
+        if (length == 126) {
+            if (available < 4) return false;
+            length = inbound.getShort(start + 2) & 0xFFFF;
+            headerLength = 4;
+        } else if (length == 127) {
+            if (available < 10) return false;
+            length = inbound.getLong(start + 2);
+            headerLength = 10;
+        }
+
+        // RSV1 marks a compressed message, and only on its first frame
+        boolean compressed = (b0 & WebSocketFrames.RSV1) != 0;
+        if ((b0 & 0x30) != 0 || compressed && (deflateAgreement == 0 || WebSocketFrames.isControl(opcode)
+            || opcode == WebSocketFrames.OP_CONTINUATION)) {
+            return fail(WebSocketFrames.CLOSE_PROTOCOL_ERROR, "Reserved bits set");
+        }
+        if (!masked) {
+            return fail(WebSocketFrames.CLOSE_PROTOCOL_ERROR, "Client frames must be masked");
+        }
+        if (WebSocketFrames.isControl(opcode)) {
+            if (!fin || length > WebSocketFrames.MAX_CONTROL_PAYLOAD) {
+                return fail(WebSocketFrames.CLOSE_PROTOCOL_ERROR, "Invalid control frame");
+            }
+            if (opcode != WebSocketFrames.OP_CLOSE && opcode != WebSocketFrames.OP_PING
+                && opcode != WebSocketFrames.OP_PONG) {
+                return fail(WebSocketFrames.CLOSE_PROTOCOL_ERROR, "Unknown opcode");
+            }
+        } else if (opcode != WebSocketFrames.OP_CONTINUATION && opcode != WebSocketFrames.OP_TEXT
+            && opcode != WebSocketFrames.OP_BINARY) {
+            return fail(WebSocketFrames.CLOSE_PROTOCOL_ERROR, "Unknown opcode");
+        }
+        if (length < 0 || length > MAX_MESSAGE_SIZE) {
+            return fail(WebSocketFrames.CLOSE_MESSAGE_TOO_BIG, "Frame too large");
+        }
+
+        int payloadLength = (int) length;
+        int frameLength = headerLength + 4 + payloadLength;
+        if (available < frameLength) {
+            ensureCapacity(frameLength);
+            return false;
+        }
+
+        int maskKey = inbound.getInt(start + headerLength);
+        int payloadStart = start + headerLength + 4;
+        WebSocketFrames.unmask(inbound, payloadStart, payloadLength, maskKey);
+        inbound.position(start + frameLength);
+
+        if (WebSocketFrames.isControl(opcode)) {
+            return handleControl(opcode, payloadStart, payloadLength);
+        }
+        if (state != STATE_OPEN) {
+            // Data after our close frame is discarded while we wait for the peer's close
+            return true;
+        }
+        return handleData(opcode, fin, compressed, payloadStart, payloadLength);
+    }
+
+    private boolean handleControl(int opcode, int payloadStart, int payloadLength) {
+        if (opcode == WebSocketFrames.OP_PING) {
+            if (state == STATE_OPEN) {
+                byte[] payload = new byte[payloadLength];
+                copyPayload(payloadStart, payload, 0, payloadLength);
+                sendControl(WebSocketFrames.encodeControl(WebSocketFrames.OP_PONG, payload, payloadLength));
+            }
+            return true;
+        }
+        if (opcode == WebSocketFrames.OP_PONG) {
+            return true;
+        }
+
+        // OP_CLOSE
+        int code = WebSocketFrames.CLOSE_NO_STATUS;
+        String reason = "";
+        if (payloadLength == 1) {
+            return fail(WebSocketFrames.CLOSE_PROTOCOL_ERROR, "Invalid close payload");
+        }
+        if (payloadLength >= 2) {
+            code = inbound.getShort(payloadStart) & 0xFFFF;
+            if (!WebSocketFrames.isValidCloseCode(code)) {
+                return fail(WebSocketFrames.CLOSE_PROTOCOL_ERROR, "Invalid close code");
+            }
+            try {
+                reason = decodeText(payloadStart + 2, payloadLength - 2);
+            } catch (CharacterCodingException e) {
+                return fail(WebSocketFrames.CLOSE_INVALID_PAYLOAD, "Invalid close reason");
+            }
+        }
+        closeCode = code;
+        closeReason = reason;
+        if (!closeSent) {
+            sendClose(code == WebSocketFrames.CLOSE_NO_STATUS ? WebSocketFrames.CLOSE_NORMAL : code, "");
+        }
+        closeAfterFlush = true;
+        flush();
+        return false;
+    }
+
+    private boolean handleData(int opcode, boolean fin, boolean compressed, int payloadStart, int payloadLength) {
+        if (opcode == WebSocketFrames.OP_CONTINUATION) {
+            if (messageOpcode < 0) {
+                return fail(WebSocketFrames.CLOSE_PROTOCOL_ERROR, "Unexpected continuation frame");
+            }
+            if (messageLength + payloadLength > MAX_MESSAGE_SIZE) {
+                return fail(WebSocketFrames.CLOSE_MESSAGE_TOO_BIG, "Message too large");
+            }
+            appendFragment(payloadStart, payloadLength);
+            if (fin) {
+                int completedOpcode = messageOpcode;
+                messageOpcode = -1;
+                return deliver(completedOpcode, messageCompressed, ByteBuffer.wrap(message, 0, messageLength));
+            }
+            return true;
+        }
+
+        if (messageOpcode >= 0) {
+            return fail(WebSocketFrames.CLOSE_PROTOCOL_ERROR, "Expected continuation frame");
+        }
+        if (!fin) {
+            messageOpcode = opcode;
+            messageCompressed = compressed;
+            messageLength = 0;
+            appendFragment(payloadStart, payloadLength);
+            return true;
+        }
+        ByteBuffer payload = inbound.duplicate();
+        payload.limit(payloadStart + payloadLength).position(payloadStart);
+        return deliver(opcode, compressed, payload);
+    }
+
+    private boolean deliver(int opcode, boolean compressed, ByteBuffer payload) {
+        if (opcode == WebSocketFrames.OP_BINARY) {
+            return fail(WebSocketFrames.CLOSE_UNSUPPORTED_DATA, "Binary messages not supported");
+        }
+        if (compressed) {
+            payload = inflate(payload);
+            if (payload == null) return false;
+        }
+        String text;
+        try {
+            utf8.reset();
+            CharBuffer chars = utf8.decode(payload);
+            text = chars.toString();
+        } catch (CharacterCodingException e) {
+            return fail(WebSocketFrames.CLOSE_INVALID_PAYLOAD, "Invalid UTF-8");
+        }
+        server.onConnectionMessage(this, text);
+        return state == STATE_OPEN;
+    }
+
+    // client_no_context_takeover is always agreed, so every message inflates on its own. Returns
+    // null after failing the connection on corrupt data or a message that inflates past the limit.
+    private ByteBuffer inflate(ByteBuffer payload) {
+        if (inflater == null) {
+            inflater = compression.acquireInflater();
+            inflated = new byte[INITIAL_READ_BUFFER];
+        }
+        int length;
+        try {
+            inflater.setInput(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining());
+            length = inflateInput(0);
+            if (length >= 0) {
+                inflater.setInput(PerMessageDeflate.FLUSH_TAIL);
+                length = inflateInput(length);
+            }
+        } catch (DataFormatException e) {
+            inflater.reset();
+            fail(WebSocketFrames.CLOSE_INVALID_PAYLOAD, "Invalid compressed data");
+            return null;
+        }
+        inflater.reset();
+        if (length < 0) {
+            fail(WebSocketFrames.CLOSE_MESSAGE_TOO_BIG, "Message too large");
+            return null;
+        }
+        compression.onInflated();
+        return ByteBuffer.wrap(inflated, 0, length);
+    }
+
+    // Inflates the current input after length bytes of output; -1 once the message would exceed the limit
+    private int inflateInput(int length) throws DataFormatException {
+        while (true) {
+            if (length == inflated.length) {
+                if (length >= MAX_MESSAGE_SIZE) return -1;
+                inflated = Arrays.copyOf(inflated, Math.min(MAX_MESSAGE_SIZE, length * 2));
+            }
+            int n = inflater.inflate(inflated, length, inflated.length - length);
+            length += n;
+            if (n == 0 && (inflater.needsInput() || inflater.finished() || inflater.needsDictionary())) {
+                return length;
+            }
+        }
+    }
+
+    private String decodeText(int position, int length) throws CharacterCodingException {
+        ByteBuffer payload = inbound.duplicate();
+        payload.limit(position + length).position(position);
+        utf8.reset();
+        return utf8.decode(payload).toString();
+    }
+
+    private void appendFragment(int payloadStart, int payloadLength) {
+        int required = messageLength + payloadLength;
+        if (message.length < required) {
+            byte[] grown = new byte[Math.max(required, message.length * 2)];
+            System.arraycopy(message, 0, grown, 0, messageLength);
+            message = grown;
+        }
+        copyPayload(payloadStart, message, messageLength, payloadLength);
+        messageLength = required;
+    }
+
+    private void copyPayload(int payloadStart, byte[] target, int offset, int length) {
+        ByteBuffer payload = inbound.duplicate();
+        payload.limit(payloadStart + length).position(payloadStart);
+        payload.get(target, offset, length);
+    }
+
+    private void ensureCapacity(int frameLength) {
+        if (inbound.capacity() >= frameLength) return;
+        ByteBuffer grown = ByteBuffer.allocate(Math.max(frameLength, inbound.capacity() * 2));
+        grown.put(inbound);
+        grown.flip();
+        inbound = grown;
+    }
+
+    private boolean fail(int code, String reason) {
+        closeCode = code;
+        closeReason = reason;
+        sendClose(code, reason);
+        closeAfterFlush = true;
+        flush();
+        return false;
+    }
+
+    private void sendClose(int code, String reason) {
+        if (closeSent || state == STATE_CLOSED) return;
+        closeSent = true;
+        state = STATE_CLOSING;
+        startClosing();
+        outbound.offerClose(WebSocketFrames.encodeClose(code, reason));
+        flush();
+    }
+
+    // The peer gets closeTimeout to drain our last frames and answer before the socket is dropped
+    private void startClosing() {
+        closingSince = reactor.now();
+        reactor.schedule(this, closingSince + server.getCloseTimeout());
+    }
+
+    // Reactor thread: the connection's timer fired. Enforces whichever deadline applies to its
+    // state and schedules the next check, so a connection always holds exactly one timer.
+    void onTimer(long now) {
+        if (state == STATE_CLOSED) return;
+        if (state == STATE_HANDSHAKE) {
+            // Also bounds a metrics request the selector thread has not answered
+            long deadline = createdAt + server.getHandshakeTimeout();
+            if (now >= deadline) {
+                timeout(WebSocketReactor.TIMEOUT_HANDSHAKE, "Handshake timeout");
+            } else {
+                reactor.schedule(this, deadline);
+            }
+            return;
+        }
+        if (state == STATE_CLOSING) {
+            long deadline = closingSince + server.getCloseTimeout();
+            if (now >= deadline) {
+                // Keeps the close code already sent or received
+                reactor.onTimeout(WebSocketReactor.TIMEOUT_CLOSE);
+                closeNow();
+            } else {
+                reactor.schedule(this, deadline);
+            }
+            return;
+        }
+
+        long writeStall = server.getWriteStallTimeout();
+        long pending = outbound.getPendingBytes();
+        long written = outbound.getBytesWritten();
+        if (pending == 0 || written != writeMark) {
+            writeMark = written;
+            writeProgressAt = now;
+        } else if (now - writeProgressAt >= writeStall) {
+            // Queued bytes and no room in the socket buffer for that long: the reader is gone
+            // or wedged, and a close frame would never get out either
+            timeout(WebSocketReactor.TIMEOUT_WRITE_STALL, "Write stalled");
+            return;
+        }
+
+        long pongTimeout = server.getPongTimeout();
+        if (pingOutstanding) {
+            if (pending > 0) {
+                // The ping may still sit behind the backlog; write-stall detection covers this
+                // client until the queue drains, then the pong gets its full timeout
+                pingSentAt = now;
+            } else if (now - pingSentAt >= pongTimeout) {
+                timeout(WebSocketReactor.TIMEOUT_PONG, "Ping timeout");
+                return;
+            }
+        } else if (now - lastSeen >= server.getPingInterval()) {
+            pingOutstanding = true;
+            pingSentAt = now;
+            reactor.onPingSent();
+            sendControl(WebSocketFrames.encodeControl(WebSocketFrames.OP_PING, NO_PAYLOAD, 0));
+            if (state != STATE_OPEN) return;
+            pending = outbound.getPendingBytes();
+        }
+
+        long deadline = pingOutstanding ? pingSentAt + pongTimeout : lastSeen + server.getPingInterval();
+        if (pending > 0) {
+            deadline = Math.min(deadline, Math.min(writeProgressAt + writeStall, now + writeStall / 4));
+        }
+        reactor.schedule(this, Math.max(deadline, now + ConnectionTimers.TICK_MS));
+    }
+
+    private void timeout(int reason, String message) {
+        reactor.onTimeout(reason);
+        closeCode = WebSocketFrames.CLOSE_ABNORMAL;
+        closeReason = message;
+        closeNow();
+    }
+
+    private void setWriteInterest(boolean enabled) {
+        if (!key.isValid()) return;
+        int ops = key.interestOps();
+        int updated = enabled ? ops | SelectionKey.OP_WRITE : ops & ~SelectionKey.OP_WRITE;
+        if (updated != ops) {
+            key.interestOps(updated);
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package com.hotel.blegateway;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+// RFC 6455 constants and frame encoding helpers shared by the gateway server
+public final class WebSocketFrames {
+    public static final int OP_CONTINUATION = 0x0;
+    public static final int OP_TEXT = 0x1;
+    public static final int OP_BINARY = 0x2;
+    public static final int OP_CLOSE = 0x8;
+    public static final int OP_PING = 0x9;
+    public static final int OP_PONG = 0xA;
+
+    public static final int CLOSE_NORMAL = 1000;
+    public static final int CLOSE_GOING_AWAY = 1001;
+    public static final int CLOSE_PROTOCOL_ERROR = 1002;
+    public static final int CLOSE_UNSUPPORTED_DATA = 1003;
+    public static final int CLOSE_NO_STATUS = 1005;
+    public static final int CLOSE_ABNORMAL = 1006;
+    public static final int CLOSE_INVALID_PAYLOAD = 1007;
+    public static final int CLOSE_POLICY_VIOLATION = 1008;
+    public static final int CLOSE_MESSAGE_TOO_BIG = 1009;
+    public static final int CLOSE_INTERNAL_ERROR = 1011;
+
+    // Set on the first frame of a permessage-deflate compressed message (RFC 7692)
+    public static final int RSV1 = 0x40;
+
+    public static final int MAX_CONTROL_PAYLOAD = 125;
+    public static final int MAX_HEADER_LENGTH = 14;
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+    static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    private static final String HANDSHAKE_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final char[] BASE64 =
+        "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    private WebSocketFrames() {}
+
+    public static int headerLength(int payloadLength) {
+        if (payloadLength <= 125) return 2;
+        if (payloadLength <= 0xFFFF) return 4;
+        return 10;
+    }
+
+    // Writes an unmasked server frame header; the payload must follow directly
+    public static void putHeader(ByteBuffer out, int opcode, boolean fin, int payloadLength) {
+        putHeader(out, opcode, fin, false, payloadLength);
+    }
+
+    public static void putHeader(ByteBuffer out, int opcode, boolean fin, boolean compressed, int payloadLength) {
+        out.put((byte) ((fin ? 0x80 : 0) | (compressed ? RSV1 : 0) | opcode));
+        if (payloadLength <= 125) {
+            out.put((byte) payloadLength);
+        } else if (payloadLength <= 0xFFFF) {
+            out.put((byte) 126);
+            out.putShort((short) payloadLength);
+        } else {
+            out.put((byte) 127);
+            out.putLong(payloadLength);
+        }
+    }
+
+    // Offset of the payload from the start of the server frame at frame.position()
+    public static int payloadOffset(ByteBuffer frame) {
+        int length = frame.get(frame.position() + 1) & 0x7F;
+        if (length == 126) return 4;
+        if (length == 127) return 10;
+        return 2;
+    }
+
+    public static ByteBuffer encode(int opcode, boolean fin, byte[] payload, int offset, int length) {
+        ByteBuffer frame = ByteBuffer.allocate(headerLength(length) + length);
+        putHeader(frame, opcode, fin, length);
+        frame.put(payload, offset, length);
+        frame.flip();
+        return frame;
+    }
+
+    public static ByteBuffer encodeText(String text) {
+        byte[] payload = text.getBytes(UTF_8);
+        return encode(OP_TEXT, true, payload, 0, payload.length);
+    }
+
+    public static ByteBuffer encodeControl(int opcode, byte[] payload, int length) {
+        return encode(opcode, true, payload, 0, Math.min(length, MAX_CONTROL_PAYLOAD));
+    }
+
+    public static ByteBuffer encodeClose(int code, String reason) {
+        byte[] reasonBytes = reason == null ? new byte[0] : reason.getBytes(UTF_8);
+        int reasonLength = Math.min(reasonBytes.length, MAX_CONTROL_PAYLOAD - 2);
+        byte[] payload = new byte[2 + reasonLength];
+        payload[0] = (byte) (code >> 8);
+        payload[1] = (byte) code;
+        System.arraycopy(reasonBytes, 0, payload, 2, reasonLength);
+        return encode(OP_CLOSE, true, payload, 0, payload.length);
+    }
+
+    public static boolean isControl(int opcode) {
+        return (opcode & 0x8) != 0;
+    }
+
+    // Close codes a peer is allowed to put on the wire (RFC 6455 section 7.4)
+    public static boolean isValidCloseCode(int code) {
+        if (code >= 3000 && code <= 4999) return true;
+        switch (code) {
+            case 1000: case 1001: case 1002: case 1003:
+            case 1007: case 1008: case 1009: case 1010: case 1011:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    public static void unmask(ByteBuffer buffer, int position, int length, int maskKey) {
+        for (int i = 0; i < length; i++) {
+            int shift = 24 - ((i & 3) << 3);
+            int index = position + i;
+            buffer.put(index, (byte) (buffer.get(index) ^ (maskKey >>> shift)));
+        }
+    }
+
+    public static String acceptKey(String secWebSocketKey) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            byte[] digest = sha1.digest((secWebSocketKey.trim() + HANDSHAKE_GUID).getBytes(US_ASCII));
+            return base64(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 not available", e);
+        }
+    }
+
+    static String base64(byte[] data) {
+        StringBuilder sb = new StringBuilder((data.length + 2) / 3 * 4);
+        for (int i = 0; i < data.length; i += 3) {
+            int b0 = data[i] & 0xFF;
+            int b1 = i + 1 < data.length ? data[i + 1] & 0xFF : 0;
+            int b2 = i + 2 < data.length ? data[i + 2] & 0xFF : 0;
+            sb.append(BASE64[b0 >> 2]);
+            sb.append(BASE64[((b0 & 0x3) << 4) | (b1 >> 4)]);
+            sb.append(i + 1 < data.length ? BASE64[((b1 & 0xF) << 2) | (b2 >> 6)] : '=');
+            sb.append(i + 2 < data.length ? BASE64[b2 & 0x3F] : '=');
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,393 @@
+package com.hotel.blegateway;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// One worker selector owning a share of the client sockets: handshake, frame reads and writes.
+// The server's selector thread hands it new channels and outbound frames through post(); they
+// are staged without locking and handed over a whole batch at a time by flush(), which wakes
+// the reactor only if it had nothing pending. Connections flush once per handed-over batch.
+// Handshake, keepalive and write-stall deadlines of its connections live in one timing wheel,
+// advanced once per loop iteration on a monotonic millisecond clock.
+class WebSocketReactor implements Runnable {
+    private static final int SELECT_TIMEOUT_MS = 1000;
+
+    static final int REGISTER = 0;
+    static final int SEND = 1;
+    static final int SEND_PRIORITY = 2;
+    static final int CLOSE = 3;
+    static final int RESPOND = 4;
+
+    // Why a connection was reaped by its timer, the label of blegateway_connection_timeouts_total
+    static final int TIMEOUT_HANDSHAKE = 0;
+    static final int TIMEOUT_PONG = 1;
+    static final int TIMEOUT_WRITE_STALL = 2;
+    static final int TIMEOUT_CLOSE = 3;
+    static final String[] TIMEOUT_REASONS = { "handshake", "pong", "write_stall", "close" };
+
+    // Struct-of-arrays batch of posted work; key doubles as the close code for CLOSE
+    private static final class Batch {
+        int size = 0;
+        int[] kinds = new int[64];
+        Object[] targets = new Object[64];
+        ByteBuffer[] frames = new ByteBuffer[64];
+        long[] keys = new long[64];
+        PooledFrame[] owners = new PooledFrame[64];
+        String[] reasons = new String[64];
+
+        void add(int kind, Object target, ByteBuffer frame, long key, PooledFrame owner, String reason) {
+            if (size == kinds.length) grow(size * 2);
+            kinds[size] = kind;
+            targets[size] = target;
+            frames[size] = frame;
+            keys[size] = key;
+            owners[size] = owner;
+            reasons[size] = reason;
+            size++;
+        }
+
+        void addAll(Batch other) {
+            if (size + other.size > kinds.length) grow(Math.max(kinds.length * 2, size + other.size));
+            System.arraycopy(other.kinds, 0, kinds, size, other.size);
+            System.arraycopy(other.targets, 0, targets, size, other.size);
+            System.arraycopy(other.frames, 0, frames, size, other.size);
+            System.arraycopy(other.keys, 0, keys, size, other.size);
+            System.arraycopy(other.owners, 0, owners, size, other.size);
+            System.arraycopy(other.reasons, 0, reasons, size, other.size);
+            size += other.size;
+        }
+
+        void clear() {
+            Arrays.fill(targets, 0, size, null);
+            Arrays.fill(frames, 0, size, null);
+            Arrays.fill(owners, 0, size, null);
+            Arrays.fill(reasons, 0, size, null);
+            size = 0;
+        }
+
+        private void grow(int capacity) {
+            kinds = Arrays.copyOf(kinds, capacity);
+            targets = Arrays.copyOf(targets, capacity);
+            frames = Arrays.copyOf(frames, capacity);
+            keys = Arrays.copyOf(keys, capacity);
+            owners = Arrays.copyOf(owners, capacity);
+            reasons = Arrays.copyOf(reasons, capacity);
+        }
+    }
+
+    private final WebSocketServer server;
+    private final Selector selector;
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    // Assigned by the selector thread, released here; read for least-connections placement
+    private final AtomicInteger connectionCount = new AtomicInteger();
+
+    // staged: selector thread only. inbox: guarded by inboxLock. draining: reactor thread only.
+    private final Object inboxLock = new Object();
+    private Batch staged = new Batch();
+    private Batch inbox = new Batch();
+    private Batch draining = new Batch();
+
+    // Reactor thread only
+    private final ArrayList<WebSocketConnection> connections = new ArrayList<>();
+    private final ArrayList<WebSocketConnection> dirty = new ArrayList<>();
+    private final ConnectionTimers timers = new ConnectionTimers();
+    private long now = clock();
+
+    private volatile long droppedFrames = 0;
+    private volatile long coalescedFrames = 0;
+    private volatile long slowConsumerDisconnects = 0;
+    private volatile long wakeups = 0;
+    private volatile long bytesWritten = 0;
+    private volatile long pingsSent = 0;
+    private volatile long handshakeTimeouts = 0;
+    private volatile long pongTimeouts = 0;
+    private volatile long writeStallTimeouts = 0;
+    private volatile long closeTimeouts = 0;
+
+    WebSocketReactor(WebSocketServer server, int index) throws IOException {
+        this.server = server;
+        this.selector = Selector.open();
+        this.thread = new Thread(this, "ws-reactor-" + index);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    boolean inReactorThread() {
+        return Thread.currentThread() == thread;
+    }
+
+    int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    // Selector thread: hands over a freshly accepted channel
+    void assign(SocketChannel channel) {
+        connectionCount.incrementAndGet();
+        staged.add(REGISTER, channel, null, 0, null, null);
+    }
+
+    // Selector thread: queued until the next flush()
+    void post(int kind, WebSocketConnection connection, ByteBuffer frame, long key, PooledFrame owner,
+              String reason) {
+        staged.add(kind, connection, frame, key, owner, reason);
+    }
+
+    // Selector thread: publishes everything staged since the last flush in one handover
+    void flush() {
+        if (staged.size == 0) return;
+        boolean wake;
+        synchronized (inboxLock) {
+            wake = inbox.size == 0;
+            if (wake) {
+                Batch empty = inbox;
+                inbox = staged;
+                staged = empty;
+            } else {
+                // The reactor has not picked up the last batch yet, so it is already awake
+                inbox.addAll(staged);
+                staged.clear();
+            }
+        }
+        if (wake) {
+            wakeups++;
+            selector.wakeup();
+        }
+    }
+
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    void join(long millis) throws InterruptedException {
+        thread.join(millis);
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                selector.select(SELECT_TIMEOUT_MS);
+                now = clock();
+                drainInbox();
+
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    if (!key.isValid()) continue;
+
+                    WebSocketConnection connection = (WebSocketConnection) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            connection.onReadable();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.flush();
+                        }
+                    } catch (IOException e) {
+                        connection.closeNow();
+                    }
+                }
+                timers.advance(now);
+            }
+        } catch (IOException e) {
+            // Selector failure: fall through and drop this reactor's clients
+        } finally {
+            for (WebSocketConnection connection : new ArrayList<>(connections)) {
+                connection.close(WebSocketFrames.CLOSE_GOING_AWAY, "Gateway shutting down");
+                connection.closeNow();
+            }
+            releaseUndelivered();
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // nothing left to do
+            }
+        }
+    }
+
+    private void drainInbox() {
+        synchronized (inboxLock) {
+            if (inbox.size == 0) return;
+            Batch taken = inbox;
+            inbox = draining;
+            draining = taken;
+        }
+        Batch batch = draining;
+        for (int i = 0; i < batch.size; i++) {
+            switch (batch.kinds[i]) {
+                case REGISTER:
+                    register((SocketChannel) batch.targets[i]);
+                    break;
+                case SEND:
+                    markDirty((WebSocketConnection) batch.targets[i])
+                        .enqueue(batch.frames[i], batch.keys[i], batch.owners[i]);
+                    break;
+                case SEND_PRIORITY:
+                    markDirty((WebSocketConnection) batch.targets[i]).enqueuePriority(batch.frames[i]);
+                    break;
+                case RESPOND:
+                    ((WebSocketConnection) batch.targets[i]).respond(batch.frames[i]);
+                    break;
+                default:
+                    ((WebSocketConnection) batch.targets[i]).close((int) batch.keys[i], batch.reasons[i]);
+                    break;
+            }
+        }
+        batch.clear();
+        for (int i = 0; i < dirty.size(); i++) {
+            WebSocketConnection connection = dirty.get(i);
+            connection.flushQueued = false;
+            connection.flush();
+        }
+        dirty.clear();
+    }
+
+    private WebSocketConnection markDirty(WebSocketConnection connection) {
+        if (!connection.flushQueued) {
+            connection.flushQueued = true;
+            dirty.add(connection);
+        }
+        return connection;
+    }
+
+    private void register(SocketChannel channel) {
+        try {
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            WebSocketConnection connection = new WebSocketConnection(server, this, channel, key,
+                new OutboundQueue(server.getQueueCapacity(), server.getOverflowPolicy(), server.getWriteLatency()));
+            key.attach(connection);
+            connections.add(connection);
+            timers.schedule(connection, now + server.getHandshakeTimeout());
+        } catch (IOException e) {
+            connectionCount.decrementAndGet();
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // already gone
+            }
+        }
+    }
+
+    private void releaseUndelivered() {
+        synchronized (inboxLock) {
+            for (int i = 0; i < inbox.size; i++) {
+                if (inbox.owners[i] != null) inbox.owners[i].release();
+                if (inbox.kinds[i] == REGISTER) {
+                    try {
+                        ((SocketChannel) inbox.targets[i]).close();
+                    } catch (IOException e) {
+                        // already gone
+                    }
+                }
+            }
+            inbox.clear();
+        }
+    }
+
+    // Milliseconds on the monotonic clock as of this loop iteration; reactor thread only
+    long now() {
+        return now;
+    }
+
+    private static long clock() {
+        return System.nanoTime() / 1000000;
+    }
+
+    // Reactor thread: moves the connection's single timer, see WebSocketConnection.onTimer()
+    void schedule(WebSocketConnection connection, long deadline) {
+        timers.schedule(connection, deadline);
+    }
+
+    void onConnectionClosed(WebSocketConnection connection) {
+        timers.cancel(connection);
+        if (connections.remove(connection)) {
+            connectionCount.decrementAndGet();
+        }
+    }
+
+    void onBytesWritten(long bytes) {
+        if (bytes > 0) bytesWritten += bytes;
+    }
+
+    void onOverflow(int result) {
+        if (result == OutboundQueue.COALESCED) {
+            coalescedFrames++;
+        } else {
+            droppedFrames++;
+            if (result == OutboundQueue.REJECTED) {
+                slowConsumerDisconnects++;
+            }
+        }
+    }
+
+    void onPingSent() {
+        pingsSent++;
+    }
+
+    void onTimeout(int reason) {
+        switch (reason) {
+            case TIMEOUT_HANDSHAKE:
+                handshakeTimeouts++;
+                break;
+            case TIMEOUT_PONG:
+                pongTimeouts++;
+                break;
+            case TIMEOUT_WRITE_STALL:
+                writeStallTimeouts++;
+                break;
+            default:
+                closeTimeouts++;
+                break;
+        }
+    }
+
+    long getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    long getCoalescedFrames() {
+        return coalescedFrames;
+    }
+
+    long getSlowConsumerDisconnects() {
+        return slowConsumerDisconnects;
+    }
+
+    long getWakeups() {
+        return wakeups;
+    }
+
+    long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    long getPingsSent() {
+        return pingsSent;
+    }
+
+    long getTimeouts(int reason) {
+        switch (reason) {
+            case TIMEOUT_HANDSHAKE:
+                return handshakeTimeouts;
+            case TIMEOUT_PONG:
+                return pongTimeouts;
+            case TIMEOUT_WRITE_STALL:
+                return writeStallTimeouts;
+            default:
+                return closeTimeouts;
+        }
+    }
+}
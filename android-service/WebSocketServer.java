@@ -0,0 +1,516 @@
+package com.hotel.blegateway;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// Multi-reactor WebSocket server. The selector thread running serve() accepts connections,
+// drains the event source and runs every Handler callback, so handlers and publishers keep a
+// single-threaded view of the clients. Each accepted socket goes to the reactor with the fewest
+// connections, which then does its handshake and frame I/O; frames published on the selector
+// thread reach the reactors in one batched handover per loop iteration.
+public class WebSocketServer {
+    private static final int SELECT_TIMEOUT_MS = 1000;
+    private static final long REACTOR_SHUTDOWN_MS = 2000;
+    public static final int DEFAULT_QUEUE_CAPACITY = 256;
+    public static final long DEFAULT_PING_INTERVAL_MS = 20000;
+    public static final long DEFAULT_PONG_TIMEOUT_MS = 10000;
+    public static final long DEFAULT_WRITE_STALL_MS = 30000;
+    public static final long DEFAULT_HANDSHAKE_TIMEOUT_MS = 10000;
+    public static final long DEFAULT_CLOSE_TIMEOUT_MS = 5000;
+    // Plain GET on this path (no Upgrade) returns Prometheus text instead of a WebSocket
+    public static final String METRICS_PATH = "/metrics";
+
+    public interface Handler {
+        void onOpen(WebSocketConnection connection);
+        void onMessage(WebSocketConnection connection, String text);
+        void onClose(WebSocketConnection connection, int code, String reason);
+    }
+
+    // Adds application metrics to the server's own; runs on the selector thread
+    public interface MetricsSource {
+        void writeMetrics(PrometheusText out);
+    }
+
+    // Work produced off the selector thread (e.g. scan results) that the loop drains itself
+    public interface EventSource {
+        void poll();
+        // Returns false when work is already pending and the loop must not block
+        boolean park();
+        void unpark();
+    }
+
+    // Connection lifecycle reported by a reactor, handled on the selector thread
+    private static final class ConnectionEvent {
+        static final int OPEN = 0;
+        static final int MESSAGE = 1;
+        static final int CLOSED = 2;
+        static final int METRICS = 3;
+
+        final int type;
+        final WebSocketConnection connection;
+        final String text;
+        final int code;
+
+        ConnectionEvent(int type, WebSocketConnection connection, String text, int code) {
+            this.type = type;
+            this.connection = connection;
+            this.text = text;
+            this.code = code;
+        }
+    }
+
+    private static final class Broadcast {
+        final ByteBuffer frame;
+        final long beaconKey;
+
+        Broadcast(ByteBuffer frame, long beaconKey) {
+            this.frame = frame;
+            this.beaconKey = beaconKey;
+        }
+    }
+
+    private final int port;
+    private final Handler handler;
+    private final int queueCapacity;
+    private final OutboundQueue.OverflowPolicy overflowPolicy;
+    private final int reactorCount;
+    private final Queue<Broadcast> pendingBroadcasts = new ConcurrentLinkedQueue<>();
+    private final Queue<ConnectionEvent> connectionEvents = new ConcurrentLinkedQueue<>();
+    // Open connections, selector thread only
+    private final List<WebSocketConnection> connections = new ArrayList<>();
+    private volatile WebSocketReactor[] reactors = new WebSocketReactor[0];
+    private volatile boolean running = true;
+    private volatile Selector selector;
+    private volatile int clientCount = 0;
+    private final int[] formatCounts = new int[WireFormat.COUNT];
+    // Selector thread: open clients per deflate mode, [shared, context takeover]
+    private final int[] deflateCounts = new int[2];
+    private PerMessageDeflate compression;
+    private EventSource eventSource;
+    private MetricsSource metricsSource;
+    private final LatencyHistogram writeLatency = new LatencyHistogram();
+    private long pingIntervalMs = DEFAULT_PING_INTERVAL_MS;
+    private long pongTimeoutMs = DEFAULT_PONG_TIMEOUT_MS;
+    private long writeStallMs = DEFAULT_WRITE_STALL_MS;
+    private long handshakeTimeoutMs = DEFAULT_HANDSHAKE_TIMEOUT_MS;
+    private long closeTimeoutMs = DEFAULT_CLOSE_TIMEOUT_MS;
+
+    public WebSocketServer(int port, Handler handler) {
+        this(port, handler, DEFAULT_QUEUE_CAPACITY, OutboundQueue.OverflowPolicy.COALESCE_PER_BEACON);
+    }
+
+    public WebSocketServer(int port, Handler handler, int queueCapacity,
+                           OutboundQueue.OverflowPolicy overflowPolicy) {
+        this(port, handler, queueCapacity, overflowPolicy, defaultReactorCount());
+    }
+
+    public WebSocketServer(int port, Handler handler, int queueCapacity,
+                           OutboundQueue.OverflowPolicy overflowPolicy, int reactorCount) {
+        this.port = port;
+        this.handler = handler;
+        this.queueCapacity = queueCapacity;
+        this.overflowPolicy = overflowPolicy;
+        this.reactorCount = Math.max(1, reactorCount);
+    }
+
+    // One core stays with the selector thread, which also runs the scan pipeline
+    public static int defaultReactorCount() {
+        return Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+    }
+
+    // Must be set before serve() is called
+    public void setEventSource(EventSource eventSource) {
+        this.eventSource = eventSource;
+    }
+
+    // Must be set before serve() is called
+    public void setMetricsSource(MetricsSource metricsSource) {
+        this.metricsSource = metricsSource;
+    }
+
+    // Must be set before serve() is called; without it permessage-deflate offers are ignored
+    public void setCompression(PerMessageDeflate compression) {
+        this.compression = compression;
+    }
+
+    public PerMessageDeflate getCompression() {
+        return compression;
+    }
+
+    // Must be called before serve(). A client silent for pingInterval is pinged and closed if no
+    // bytes come back within pongTimeout; one whose queued bytes make no progress for writeStall
+    // is closed as well. Together they reap half-open connections the TCP stack would keep for hours.
+    public void setKeepalive(long pingIntervalMs, long pongTimeoutMs, long writeStallMs) {
+        if (pingIntervalMs <= 0 || pongTimeoutMs <= 0 || writeStallMs <= 0) {
+            throw new IllegalArgumentException("Keepalive timeouts must be positive: " + pingIntervalMs + ", "
+                + pongTimeoutMs + ", " + writeStallMs);
+        }
+        this.pingIntervalMs = pingIntervalMs;
+        this.pongTimeoutMs = pongTimeoutMs;
+        this.writeStallMs = writeStallMs;
+    }
+
+    // Must be called before serve(); bounds the upgrade request and the closing handshake
+    public void setHandshakeTimeouts(long handshakeTimeoutMs, long closeTimeoutMs) {
+        if (handshakeTimeoutMs <= 0 || closeTimeoutMs <= 0) {
+            throw new IllegalArgumentException("Handshake timeouts must be positive: " + handshakeTimeoutMs + ", "
+                + closeTimeoutMs);
+        }
+        this.handshakeTimeoutMs = handshakeTimeoutMs;
+        this.closeTimeoutMs = closeTimeoutMs;
+    }
+
+    public void serve() throws IOException {
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        Selector sel = Selector.open();
+        selector = sel;
+        WebSocketReactor[] workers = new WebSocketReactor[reactorCount];
+        try {
+            for (int i = 0; i < workers.length; i++) {
+                workers[i] = new WebSocketReactor(this, i);
+            }
+            reactors = workers;
+            serverChannel.socket().setReuseAddress(true);
+            serverChannel.bind(new InetSocketAddress(port));
+            serverChannel.configureBlocking(false);
+            serverChannel.register(sel, SelectionKey.OP_ACCEPT);
+            for (WebSocketReactor reactor : workers) {
+                reactor.start();
+            }
+
+            while (running) {
+                if (eventSource == null) {
+                    sel.select(SELECT_TIMEOUT_MS);
+                } else {
+                    if (eventSource.park()) {
+                        sel.select(SELECT_TIMEOUT_MS);
+                    } else {
+                        sel.selectNow();
+                    }
+                    eventSource.unpark();
+                }
+                drainConnectionEvents();
+                if (eventSource != null) {
+                    eventSource.poll();
+                }
+                drainBroadcasts();
+
+                Iterator<SelectionKey> iterator = sel.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    if (key.isValid() && key.isAcceptable()) {
+                        accept(serverChannel);
+                    }
+                }
+                for (WebSocketReactor reactor : workers) {
+                    reactor.flush();
+                }
+            }
+        } finally {
+            for (WebSocketReactor reactor : workers) {
+                if (reactor != null) reactor.shutdown();
+            }
+            for (WebSocketReactor reactor : workers) {
+                if (reactor == null) continue;
+                try {
+                    reactor.join(REACTOR_SHUTDOWN_MS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            // Reactors have closed their clients; let the handler see every close
+            drainConnectionEvents();
+            sel.close();
+            serverChannel.close();
+        }
+    }
+
+    // Safe to call from any thread; serve() closes every client, the reactors and the listening
+    // socket before it returns
+    public void stop() {
+        running = false;
+        wakeup();
+    }
+
+    public void wakeup() {
+        Selector sel = selector;
+        if (sel != null) {
+            sel.wakeup();
+        }
+    }
+
+    public void broadcastText(String message) {
+        broadcastText(message, MacAddress.NONE);
+    }
+
+    // Safe to call from any thread; the frame is encoded once and shared by every client
+    public void broadcastText(String message, long beaconKey) {
+        pendingBroadcasts.add(new Broadcast(WebSocketFrames.encodeText(message), beaconKey));
+        wakeup();
+    }
+
+    // Selector thread only: every open client speaking wireFormat gets a read-only view of the same frame
+    public void publish(PooledFrame frame, int wireFormat, long beaconKey) {
+        for (int i = connections.size() - 1; i >= 0; i--) {
+            WebSocketConnection connection = connections.get(i);
+            if (connection.isOpen() && connection.getWireFormat() == wireFormat) {
+                connection.send(frame, beaconKey);
+            }
+        }
+    }
+
+    // Selector thread only: frames that must not be dropped under backpressure
+    public void publishPriority(ByteBuffer frame, int wireFormat) {
+        for (int i = connections.size() - 1; i >= 0; i--) {
+            WebSocketConnection connection = connections.get(i);
+            if (connection.isOpen() && connection.getWireFormat() == wireFormat) {
+                connection.sendPriority(frame.duplicate());
+            }
+        }
+    }
+
+    // Selector thread only: fans a ready frame out to every open client
+    public void publish(ByteBuffer frame, long beaconKey) {
+        for (int i = connections.size() - 1; i >= 0; i--) {
+            WebSocketConnection connection = connections.get(i);
+            if (connection.isOpen()) {
+                connection.send(frame.duplicate(), beaconKey);
+            }
+        }
+    }
+
+    public int getClientCount() {
+        return clientCount;
+    }
+
+    // Selector thread only
+    public int getClientCount(int wireFormat) {
+        return formatCounts[wireFormat];
+    }
+
+    public long getDroppedFrames() {
+        long total = 0;
+        for (WebSocketReactor reactor : reactors) total += reactor.getDroppedFrames();
+        return total;
+    }
+
+    public long getCoalescedFrames() {
+        long total = 0;
+        for (WebSocketReactor reactor : reactors) total += reactor.getCoalescedFrames();
+        return total;
+    }
+
+    public long getSlowConsumerDisconnects() {
+        long total = 0;
+        for (WebSocketReactor reactor : reactors) total += reactor.getSlowConsumerDisconnects();
+        return total;
+    }
+
+    public int getReactorCount() {
+        return reactorCount;
+    }
+
+    // Selector wakeups the handover to reactors actually needed; at most one per reactor per loop
+    public long getReactorWakeups() {
+        long total = 0;
+        for (WebSocketReactor reactor : reactors) total += reactor.getWakeups();
+        return total;
+    }
+
+    public long getBytesWritten() {
+        long total = 0;
+        for (WebSocketReactor reactor : reactors) total += reactor.getBytesWritten();
+        return total;
+    }
+
+    // Scan callback to socket write, one sample per client per frame that carries an origin time
+    public LatencyHistogram getWriteLatency() {
+        return writeLatency;
+    }
+
+    public long getPingsSent() {
+        long total = 0;
+        for (WebSocketReactor reactor : reactors) total += reactor.getPingsSent();
+        return total;
+    }
+
+    // Connections reaped by their timer, by WebSocketReactor.TIMEOUT_* reason
+    long getConnectionTimeouts(int reason) {
+        long total = 0;
+        for (WebSocketReactor reactor : reactors) total += reactor.getTimeouts(reason);
+        return total;
+    }
+
+    long getPingInterval() {
+        return pingIntervalMs;
+    }
+
+    long getPongTimeout() {
+        return pongTimeoutMs;
+    }
+
+    long getWriteStallTimeout() {
+        return writeStallMs;
+    }
+
+    long getHandshakeTimeout() {
+        return handshakeTimeoutMs;
+    }
+
+    long getCloseTimeout() {
+        return closeTimeoutMs;
+    }
+
+    int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    OutboundQueue.OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    // Drains the accept backlog, placing each socket on the least-loaded reactor
+    private void accept(ServerSocketChannel serverChannel) {
+        WebSocketReactor[] workers = reactors;
+        while (true) {
+            SocketChannel client;
+            try {
+                client = serverChannel.accept();
+                if (client == null) return;
+                client.configureBlocking(false);
+                client.socket().setTcpNoDelay(true);
+            } catch (IOException e) {
+                // e.g. out of file descriptors; the next select retries
+                return;
+            }
+            WebSocketReactor target = workers[0];
+            for (int i = 1; i < workers.length; i++) {
+                if (workers[i].getConnectionCount() < target.getConnectionCount()) {
+                    target = workers[i];
+                }
+            }
+            target.assign(client);
+        }
+    }
+
+    private void drainBroadcasts() {
+        Broadcast broadcast;
+        while ((broadcast = pendingBroadcasts.poll()) != null) {
+            publish(broadcast.frame, broadcast.beaconKey);
+        }
+    }
+
+    private void drainConnectionEvents() {
+        ConnectionEvent event;
+        while ((event = connectionEvents.poll()) != null) {
+            WebSocketConnection connection = event.connection;
+            switch (event.type) {
+                case ConnectionEvent.OPEN:
+                    connections.add(connection);
+                    clientCount++;
+                    formatCounts[connection.getWireFormat()]++;
+                    countDeflate(connection, 1);
+                    handler.onOpen(connection);
+                    break;
+                case ConnectionEvent.METRICS:
+                    respondMetrics(connection);
+                    break;
+                case ConnectionEvent.MESSAGE:
+                    if (connections.contains(connection)) {
+                        handler.onMessage(connection, event.text);
+                    }
+                    break;
+                default:
+                    if (connections.remove(connection)) {
+                        clientCount--;
+                        formatCounts[connection.getWireFormat()]--;
+                        countDeflate(connection, -1);
+                        handler.onClose(connection, event.code, event.text);
+                    }
+                    break;
+            }
+        }
+    }
+
+    private void countDeflate(WebSocketConnection connection, int delta) {
+        int agreement = connection.getDeflateAgreement();
+        if (agreement != 0) {
+            deflateCounts[(agreement & PerMessageDeflate.SERVER_NO_CONTEXT_TAKEOVER) != 0 ? 0 : 1] += delta;
+        }
+    }
+
+    private void respondMetrics(WebSocketConnection connection) {
+        PrometheusText out = new PrometheusText();
+        out.gauge("blegateway_clients", "Open WebSocket connections by wire format",
+            "format", "json", formatCounts[WireFormat.JSON]);
+        out.gauge("blegateway_clients", "Open WebSocket connections by wire format",
+            "format", "binary", formatCounts[WireFormat.BINARY]);
+        out.gauge("blegateway_reactors", "Reactor threads serving client sockets", reactorCount);
+        out.counter("blegateway_reactor_wakeups_total", "Selector wakeups needed to hand frames to reactors",
+            getReactorWakeups());
+        out.counter("blegateway_bytes_written_total", "Bytes written to client sockets", getBytesWritten());
+        out.counter("blegateway_frames_dropped_total", "Frames dropped by full client queues", getDroppedFrames());
+        out.counter("blegateway_frames_coalesced_total", "Frames replaced by a newer one for the same beacon",
+            getCoalescedFrames());
+        out.counter("blegateway_slow_consumer_disconnects_total", "Clients disconnected for falling behind",
+            getSlowConsumerDisconnects());
+        out.counter("blegateway_pings_sent_total", "Keepalive pings sent to silent clients", getPingsSent());
+        for (int reason = 0; reason < WebSocketReactor.TIMEOUT_REASONS.length; reason++) {
+            out.counter("blegateway_connection_timeouts_total",
+                "Connections closed by a handshake, keepalive or write deadline",
+                "reason", WebSocketReactor.TIMEOUT_REASONS[reason], getConnectionTimeouts(reason));
+        }
+        out.summary("blegateway_scan_to_write_seconds", "Scan callback to socket write latency", writeLatency);
+        if (compression != null) {
+            compression.writeMetrics(out, deflateCounts);
+        }
+        if (metricsSource != null) {
+            metricsSource.writeMetrics(out);
+        }
+        byte[] body = out.toString().getBytes(WebSocketFrames.UTF_8);
+        byte[] head = ("HTTP/1.1 200 OK\r\n"
+            + "Content-Type: " + PrometheusText.CONTENT_TYPE + "\r\n"
+            + "Content-Length: " + body.length + "\r\n"
+            + "Connection: close\r\n"
+            + "\r\n").getBytes(WebSocketFrames.US_ASCII);
+        ByteBuffer response = ByteBuffer.allocate(head.length + body.length);
+        response.put(head).put(body).flip();
+        connection.respond(response);
+    }
+
+    private void postConnectionEvent(ConnectionEvent event) {
+        connectionEvents.add(event);
+        wakeup();
+    }
+
+    // Reactor thread callbacks, forwarded to the selector thread in order
+
+    void onConnectionOpen(WebSocketConnection connection) {
+        postConnectionEvent(new ConnectionEvent(ConnectionEvent.OPEN, connection, null, 0));
+    }
+
+    void onConnectionMessage(WebSocketConnection connection, String text) {
+        postConnectionEvent(new ConnectionEvent(ConnectionEvent.MESSAGE, connection, text, 0));
+    }
+
+    void onMetricsRequest(WebSocketConnection connection) {
+        postConnectionEvent(new ConnectionEvent(ConnectionEvent.METRICS, connection, null, 0));
+    }
+
+    void onConnectionClosed(WebSocketConnection connection, int code, String reason) {
+        if (connection.wasOpened()) {
+            postConnectionEvent(new ConnectionEvent(ConnectionEvent.CLOSED, connection, reason, code));
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package com.hotel.blegateway;
+
+// Event encodings a client can pick through Sec-WebSocket-Protocol
+public final class WireFormat {
+    public static final int JSON = 0;
+    public static final int BINARY = 1;
+    public static final int COUNT = 2;
+
+    public static final String PROTOCOL_JSON = "hotel-ble.json";
+    public static final String PROTOCOL_BINARY = "hotel-ble.bin.v2";
+
+    // First byte of every binary message
+    public static final int MSG_NAMES = 0x01;
+    public static final int MSG_EVENTS = 0x02;
+
+    private WireFormat() {}
+
+    // Returns the subprotocol to echo back, or null when the client offered none we speak
+    public static String select(HttpRequest request) {
+        if (request.headerHasToken("Sec-WebSocket-Protocol", PROTOCOL_BINARY)) return PROTOCOL_BINARY;
+        if (request.headerHasToken("Sec-WebSocket-Protocol", PROTOCOL_JSON)) return PROTOCOL_JSON;
+        return null;
+    }
+
+    public static int fromProtocol(String protocol) {
+        return PROTOCOL_BINARY.equals(protocol) ? BINARY : JSON;
+    }
+}
@@ -0,0 +1,68 @@
+package com.hotel.blegateway;
+
+// Zone ids: the beacon class, with APPROACHING set while the signal is below the enter threshold
+// and EXITED once the beacon has been silent for its class's presence timeout
+public final class Zone {
+    public static final int UNKNOWN = 0;
+    public static final int APPROACHING = 0x80;
+    public static final int EXITED = 0x40;
+
+    private static final String[] INSIDE = new String[BeaconClass.COUNT];
+    private static final String[] NEAR = new String[BeaconClass.COUNT];
+    private static final String[] GONE = new String[BeaconClass.COUNT];
+    static {
+        for (int i = 0; i < BeaconClass.COUNT; i++) {
+            INSIDE[i] = BeaconClass.name(i);
+            NEAR[i] = "APPROACHING_" + BeaconClass.name(i);
+            GONE[i] = "EXITED_" + BeaconClass.name(i);
+        }
+        INSIDE[BeaconClass.NONE] = "UNKNOWN";
+        NEAR[BeaconClass.NONE] = "UNKNOWN";
+        GONE[BeaconClass.NONE] = "UNKNOWN";
+    }
+
+    private Zone() {}
+
+    public static int of(int beaconClass, boolean inside) {
+        if (beaconClass <= BeaconClass.NONE || beaconClass >= BeaconClass.COUNT) return UNKNOWN;
+        return inside ? beaconClass : beaconClass | APPROACHING;
+    }
+
+    public static int exited(int beaconClass) {
+        if (beaconClass <= BeaconClass.NONE || beaconClass >= BeaconClass.COUNT) return UNKNOWN;
+        return beaconClass | EXITED;
+    }
+
+    public static boolean isInside(int zone) {
+        return zone != UNKNOWN && (zone & (APPROACHING | EXITED)) == 0;
+    }
+
+    public static boolean isExited(int zone) {
+        return (zone & EXITED) != 0;
+    }
+
+    public static int beaconClass(int zone) {
+        return zone & ~(APPROACHING | EXITED);
+    }
+
+    // Inverse of name(); -1 when the text names no zone
+    public static int parse(String name) {
+        if (name == null) return -1;
+        if (name.equalsIgnoreCase("UNKNOWN")) return UNKNOWN;
+        if (name.regionMatches(true, 0, "EXITED_", 0, 7)) {
+            int beaconClass = BeaconClass.parse(name.substring(7));
+            return beaconClass == BeaconClass.NONE ? -1 : exited(beaconClass);
+        }
+        boolean approaching = name.regionMatches(true, 0, "APPROACHING_", 0, 12);
+        int beaconClass = BeaconClass.parse(approaching ? name.substring(12) : name);
+        if (beaconClass == BeaconClass.NONE) return -1;
+        return of(beaconClass, !approaching);
+    }
+
+    public static String name(int zone) {
+        int beaconClass = beaconClass(zone);
+        if (beaconClass >= BeaconClass.COUNT) return "UNKNOWN";
+        if (isExited(zone)) return GONE[beaconClass];
+        return isInside(zone) ? INSIDE[beaconClass] : NEAR[beaconClass];
+    }
+}
@@ -0,0 +1,204 @@
+package com.hotel.blegateway;
+
+import java.nio.ByteBuffer;
+
+// Gateway-side RSSI smoothing and zone classification (formerly done per client in bleBridge.js).
+// Per-device state lives in primitive arrays indexed by a LongSlotTable slot keyed on the MAC.
+// update() reports only zone transitions, so steady signals produce no downstream traffic.
+// Devices that went silent are normally forgotten on their presence exit; if the table fills up
+// anyway, devices idle for IDLE_EVICT_MS make room for new ones. Selector thread only.
+public class ZoneEngine {
+    public static final int FILTER_EMA = 0;
+    public static final int FILTER_KALMAN = 1;
+
+    public static final int DEFAULT_CAPACITY = 16384;
+    public static final float DEFAULT_HYSTERESIS_DB = 4f;
+    public static final long IDLE_EVICT_MS = 60000;
+    // A full table is swept for idle devices at most this often
+    private static final long EVICT_SWEEP_MS = 1000;
+
+    private final LongSlotTable devices;
+    private final float[] estimate;
+    private final float[] variance;
+    private final byte[] zones;
+    private final long[] lastSeen;
+
+    private final float[] enterThreshold = new float[BeaconClass.COUNT];
+    private final float[] exitThreshold = new float[BeaconClass.COUNT];
+
+    private int filterType = FILTER_EMA;
+    private float emaAlpha = 0.4f;
+    private float processNoise = 0.5f;
+    private float measurementNoise = 4f;
+
+    private long transitions = 0;
+    private long suppressed = 0;
+    private long rejected = 0;
+    private long evicted = 0;
+    private long lastSweep = -EVICT_SWEEP_MS;
+
+    public ZoneEngine(int capacity) {
+        devices = new LongSlotTable(capacity);
+        estimate = new float[capacity];
+        variance = new float[capacity];
+        zones = new byte[capacity];
+        lastSeen = new long[capacity];
+
+        setThreshold(BeaconClass.GATE, -65f, DEFAULT_HYSTERESIS_DB);
+        setThreshold(BeaconClass.KIOSK, -70f, DEFAULT_HYSTERESIS_DB);
+        setThreshold(BeaconClass.ELEVATOR, -75f, DEFAULT_HYSTERESIS_DB);
+        setThreshold(BeaconClass.ROOM, -60f, DEFAULT_HYSTERESIS_DB);
+        setThreshold(BeaconClass.HOTEL, -70f, DEFAULT_HYSTERESIS_DB);
+    }
+
+    public void useEma(float alpha) {
+        if (!(alpha > 0f && alpha <= 1f)) throw new IllegalArgumentException("EMA alpha must be in (0, 1]");
+        filterType = FILTER_EMA;
+        emaAlpha = alpha;
+    }
+
+    public void useKalman(float processNoise, float measurementNoise) {
+        if (!(processNoise > 0f && measurementNoise > 0f)) {
+            throw new IllegalArgumentException("Kalman noise must be positive");
+        }
+        filterType = FILTER_KALMAN;
+        this.processNoise = processNoise;
+        this.measurementNoise = measurementNoise;
+    }
+
+    // Enter the zone above enterDbm; leave it again only below enterDbm - hysteresisDb
+    public void setThreshold(int beaconClass, float enterDbm, float hysteresisDb) {
+        if (hysteresisDb < 0f) throw new IllegalArgumentException("Hysteresis must not be negative");
+        enterThreshold[beaconClass] = enterDbm;
+        exitThreshold[beaconClass] = enterDbm - hysteresisDb;
+    }
+
+    // Smooths event.rssi in place and sets event.zone; true only when the device changed zone
+    public boolean update(BeaconEvent event) {
+        int slot = devices.getOrAdd(event.mac);
+        if (slot == LongSlotTable.NO_SLOT && evictIdle(event.timestamp)) {
+            slot = devices.getOrAdd(event.mac);
+        }
+        if (slot == LongSlotTable.NO_SLOT) {
+            rejected++;
+            event.zone = Zone.UNKNOWN;
+            return false;
+        }
+
+        float smoothed;
+        if (devices.lastAdded()) {
+            smoothed = event.rssi;
+            variance[slot] = measurementNoise;
+            zones[slot] = (byte) Zone.UNKNOWN;
+        } else if (filterType == FILTER_KALMAN) {
+            float p = variance[slot] + processNoise;
+            float gain = p / (p + measurementNoise);
+            smoothed = estimate[slot] + gain * (event.rssi - estimate[slot]);
+            variance[slot] = (1f - gain) * p;
+        } else {
+            smoothed = estimate[slot] + emaAlpha * (event.rssi - estimate[slot]);
+        }
+        estimate[slot] = smoothed;
+        lastSeen[slot] = event.timestamp;
+        event.rssi = Math.round(smoothed);
+
+        int previous = zones[slot] & 0xFF;
+        int beaconClass = event.beaconClass;
+        boolean inside;
+        if (Zone.beaconClass(previous) == beaconClass && Zone.isInside(previous)) {
+            inside = smoothed > exitThreshold[beaconClass];
+        } else {
+            inside = smoothed > enterThreshold[beaconClass];
+        }
+        int zone = Zone.of(beaconClass, inside);
+        event.zone = zone;
+        if (zone == previous) {
+            suppressed++;
+            return false;
+        }
+        zones[slot] = (byte) zone;
+        transitions++;
+        return true;
+    }
+
+    public int zoneOf(long mac) {
+        int slot = devices.get(mac);
+        return slot == LongSlotTable.NO_SLOT ? Zone.UNKNOWN : zones[slot] & 0xFF;
+    }
+
+    public boolean forget(long mac) {
+        return devices.remove(mac) != LongSlotTable.NO_SLOT;
+    }
+
+    // Frees the slots of devices not updated for IDLE_EVICT_MS; true if any were freed
+    private boolean evictIdle(long now) {
+        if (now - lastSweep < EVICT_SWEEP_MS) return false;
+        lastSweep = now;
+        int before = devices.size();
+        for (int slot = 0; slot < devices.capacity(); slot++) {
+            if (devices.isUsed(slot) && now - lastSeen[slot] > IDLE_EVICT_MS) {
+                devices.remove(devices.keyAt(slot));
+            }
+        }
+        evicted += before - devices.size();
+        return devices.size() < before;
+    }
+
+    // Snapshot section, see StateSnapshot: i32 count, then per device
+    //   i64 mac | f32 smoothed rssi | f32 variance | u8 zone
+    static final int SNAPSHOT_RECORD_BYTES = 17;
+
+    public int snapshotBytes() {
+        return 4 + devices.size() * SNAPSHOT_RECORD_BYTES;
+    }
+
+    public void writeSnapshot(ByteBuffer out) {
+        out.putInt(devices.size());
+        for (int slot = 0; slot < devices.capacity(); slot++) {
+            if (!devices.isUsed(slot)) continue;
+            out.putLong(devices.keyAt(slot));
+            out.putFloat(estimate[slot]);
+            out.putFloat(variance[slot]);
+            out.put(zones[slot]);
+        }
+    }
+
+    // Into a fresh engine: devices carry on from their checkpointed filter state and zone
+    public void readSnapshot(ByteBuffer in) {
+        int count = in.getInt();
+        for (int i = 0; i < count; i++) {
+            long mac = in.getLong();
+            float smoothed = in.getFloat();
+            float p = in.getFloat();
+            byte zone = in.get();
+            int slot = devices.getOrAdd(mac);
+            if (slot == LongSlotTable.NO_SLOT) continue;
+            estimate[slot] = smoothed;
+            variance[slot] = p;
+            zones[slot] = zone;
+            // Not heard since the restart: first to go if the table fills before it is
+            lastSeen[slot] = 0;
+        }
+    }
+
+    public int getTrackedDevices() {
+        return devices.size();
+    }
+
+    public long getTransitions() {
+        return transitions;
+    }
+
+    public long getSuppressed() {
+        return suppressed;
+    }
+
+    // Sightings classified UNKNOWN because the table was full of recently heard devices
+    public long getRejected() {
+        return rejected;
+    }
+
+    public long getEvicted() {
+        return evicted;
+    }
+}
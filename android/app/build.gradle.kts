@@ -37,6 +37,73 @@ android {
     buildFeatures {
         compose = true
     }
+    androidResources {
+        // The React build's text files ship only as the gzip copies made by compressWebAssets,
+        // stored rather than deflated again so WebAssetHandler streams them straight from the APK
+        ignoreAssetsPatterns += listOf("!*.map", "!*.html", "!*.js", "!*.css", "!*.json", "!*.txt", "!*.svg")
+        noCompress += "gz"
+    }
+}
+
+abstract class CompressWebAssets : DefaultTask() {
+    @get:InputDirectory
+    abstract val webBuild: DirectoryProperty
+
+    @get:OutputDirectory
+    abstract val outputDir: DirectoryProperty
+
+    @TaskAction
+    fun compress() {
+        val source = webBuild.get().asFile
+        val target = File(outputDir.get().asFile, "build")
+        target.deleteRecursively()
+        source.walkTopDown()
+            .filter { it.isFile && it.extension in setOf("html", "js", "css", "json", "txt", "svg") }
+            .forEach { file ->
+                val out = File(target, file.relativeTo(source).path + ".gz")
+                out.parentFile.mkdirs()
+                object : java.util.zip.GZIPOutputStream(out.outputStream()) {
+                    init {
+                        def.setLevel(java.util.zip.Deflater.BEST_COMPRESSION)
+                    }
+                }.use { gzip -> file.inputStream().use { it.copyTo(gzip) } }
+            }
+    }
+}
+
+val compressWebAssets = tasks.register<CompressWebAssets>("compressWebAssets") {
+    webBuild.set(layout.projectDirectory.dir("src/main/assets/build"))
+}
+
+// The beacon rule set lives with the gateway service; the app compiles the same sources so both
+// classify (and offload) beacons from one rules format instead of keeping a second list
+abstract class ShareBeaconRules : DefaultTask() {
+    @get:InputFiles
+    abstract val sources: ConfigurableFileCollection
+
+    @get:OutputDirectory
+    abstract val outputDir: DirectoryProperty
+
+    @TaskAction
+    fun copy() {
+        val target = File(outputDir.get().asFile, "com/hotel/blegateway")
+        target.deleteRecursively()
+        target.mkdirs()
+        sources.forEach { it.copyTo(File(target, it.name)) }
+    }
+}
+
+val shareBeaconRules = tasks.register<ShareBeaconRules>("shareBeaconRules") {
+    val service = layout.projectDirectory.dir("../../android-service")
+    sources.from(listOf("BeaconRule.java", "BeaconMatcher.java", "BeaconClass.java", "MacAddress.java")
+        .map { service.file(it) })
+}
+
+androidComponents {
+    onVariants { variant ->
+        variant.sources.assets?.addGeneratedSourceDirectory(compressWebAssets, CompressWebAssets::outputDir)
+        variant.sources.java?.addGeneratedSourceDirectory(shareBeaconRules, ShareBeaconRules::outputDir)
+    }
 }
 
 dependencies {
@@ -49,6 +116,8 @@ dependencies {
     implementation(libs.androidx.compose.ui.tooling.preview)
     implementation(libs.androidx.compose.material3)
     implementation(libs.androidx.appcompat)
+    // WebMessagePort channel for batched BLE events (WebViewCompat works back to minSdk 21)
+    implementation("androidx.webkit:webkit:1.8.0")
     testImplementation(libs.junit)
     androidTestImplementation(libs.androidx.junit)
     androidTestImplementation(libs.androidx.espresso.core)
@@ -0,0 +1,135 @@
+package com.hotel.mdu;
+
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+import android.webkit.WebView;
+import androidx.webkit.WebMessageCompat;
+import androidx.webkit.WebMessagePortCompat;
+import androidx.webkit.WebViewCompat;
+import androidx.webkit.WebViewFeature;
+import org.json.JSONObject;
+
+// Hands scan results to the page at most once per display frame. The Bluetooth thread appends
+// each result to a JSON buffer; a Choreographer callback on the UI thread swaps the buffer out
+// and posts the whole array through a WebMessagePort, so the page parses one message per frame
+// instead of one evaluateJavascript() per advertisement. WebViews without message channels get
+// the same array through a single evaluateJavascript() call per frame.
+class BleEventBridge implements Choreographer.FrameCallback {
+    // First message on the window; its port carries the event batches from then on
+    static final String PORT_MESSAGE = "hotel-ble-port";
+    // A frame's worth of results the page can absorb; beyond this new results are dropped
+    private static final int MAX_PENDING = 512;
+
+    private final WebView webView;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Choreographer choreographer;
+    private final Runnable requestFrame = new Runnable() {
+        @Override
+        public void run() {
+            choreographer.postFrameCallback(BleEventBridge.this);
+        }
+    };
+
+    // Guarded by lock
+    private final Object lock = new Object();
+    private StringBuilder pending = new StringBuilder(1024);
+    private int pendingCount = 0;
+    private boolean frameRequested = false;
+    private long droppedEvents = 0;
+
+    // UI thread only
+    private StringBuilder sending = new StringBuilder(1024);
+    private WebMessagePortCompat port;
+    private boolean pageReady = false;
+
+    // Must be created on the UI thread
+    BleEventBridge(WebView webView) {
+        this.webView = webView;
+        this.choreographer = Choreographer.getInstance();
+    }
+
+    // Any thread, normally the Bluetooth callback thread
+    void add(String address, String name, int rssi, long timestamp) {
+        boolean request;
+        synchronized (lock) {
+            if (pendingCount >= MAX_PENDING) {
+                droppedEvents++;
+                return;
+            }
+            if (pendingCount > 0) pending.append(',');
+            pending.append("{\"deviceId\":\"").append(address)
+                .append("\",\"deviceName\":").append(JSONObject.quote(name))
+                .append(",\"rssi\":").append(rssi)
+                .append(",\"timestamp\":").append(timestamp)
+                .append('}');
+            pendingCount++;
+            request = !frameRequested;
+            frameRequested = true;
+        }
+        if (request) {
+            mainHandler.post(requestFrame);
+        }
+    }
+
+    long getDroppedEvents() {
+        synchronized (lock) {
+            return droppedEvents;
+        }
+    }
+
+    // UI thread: called for every page load, so a reload gets a fresh channel
+    void onPageFinished() {
+        closePort();
+        pageReady = true;
+        if (!WebViewFeature.isFeatureSupported(WebViewFeature.CREATE_WEB_MESSAGE_CHANNEL)
+                || !WebViewFeature.isFeatureSupported(WebViewFeature.POST_WEB_MESSAGE)
+                || !WebViewFeature.isFeatureSupported(WebViewFeature.WEB_MESSAGE_PORT_POST_MESSAGE)) {
+            return;
+        }
+        WebMessagePortCompat[] ports = WebViewCompat.createWebMessageChannel(webView);
+        port = ports[0];
+        WebViewCompat.postWebMessage(webView,
+            new WebMessageCompat(PORT_MESSAGE, new WebMessagePortCompat[] { ports[1] }),
+            Uri.parse(MainActivity.APP_ORIGIN));
+    }
+
+    // UI thread
+    void close() {
+        choreographer.removeFrameCallback(this);
+        mainHandler.removeCallbacks(requestFrame);
+        closePort();
+        pageReady = false;
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        StringBuilder batch;
+        synchronized (lock) {
+            batch = pending;
+            pending = sending;
+            pendingCount = 0;
+            frameRequested = false;
+        }
+        sending = batch;
+        if (batch.length() == 0 || !pageReady) {
+            batch.setLength(0);
+            return;
+        }
+        String events = "[" + batch + "]";
+        batch.setLength(0);
+        if (port != null) {
+            port.postMessage(new WebMessageCompat(events));
+        } else {
+            webView.evaluateJavascript("window.onBleEvents && window.onBleEvents(" + events + ");", null);
+        }
+    }
+
+    private void closePort() {
+        if (port != null) {
+            port.close();
+            port = null;
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package com.hotel.mdu;
+
+import android.app.Application;
+import android.webkit.WebSettings;
+
+public class HotelApplication extends Application {
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        StartupTrace.processStarted();
+        prewarmWebView();
+    }
+
+    // Loading the WebView provider (Chromium's native library and resources) is the bulk of the
+    // first WebView's cost. Asking for the user agent loads it on a background thread while the
+    // activity inflates, instead of inside setContentView() on the UI thread.
+    private void prewarmWebView() {
+        Thread thread = new Thread(() -> {
+            try {
+                WebSettings.getDefaultUserAgent(this);
+                StartupTrace.mark("webview-warm");
+            } catch (RuntimeException e) {
+                // No WebView provider installed or updating; the activity will load it itself
+            }
+        }, "webview-warmup");
+        thread.start();
+    }
+}
@@ -5,51 +5,65 @@ import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothManager;
 import android.bluetooth.le.BluetoothLeScanner;
 import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
 import android.bluetooth.le.ScanResult;
 import android.bluetooth.le.ScanSettings;
 import android.content.pm.PackageManager;
 import android.os.Bundle;
+import android.util.Log;
 import android.webkit.JavascriptInterface;
+import android.webkit.WebResourceRequest;
+import android.webkit.WebResourceResponse;
 import android.webkit.WebView;
 import android.webkit.WebViewClient;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
-import org.json.JSONObject;
+import androidx.webkit.WebViewAssetLoader;
+import androidx.webkit.WebViewCompat;
+import androidx.webkit.WebViewFeature;
+import com.hotel.blegateway.BeaconClass;
+import com.hotel.blegateway.BeaconMatcher;
+import com.hotel.blegateway.BeaconRule;
+import com.hotel.blegateway.MacAddress;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 
 public class MainActivity extends AppCompatActivity {
+    private static final String TAG = "MainActivity";
     private static final int PERMISSION_REQUEST_CODE = 1;
+    // Same rules format as the gateway service, see BeaconRule
+    private static final String BEACON_RULES_FILE = "beacon_rules.txt";
+    static final String APP_ORIGIN = "https://" + WebViewAssetLoader.DEFAULT_DOMAIN;
     private WebView webView;
-    private BluetoothLeScanner bleScanner;
+    private volatile BleEventBridge bleEventBridge;
+    // Set after first paint; read on the JavaScript bridge thread
+    private volatile BluetoothLeScanner bleScanner;
+    // Read on the binder thread that delivers scan results
+    private volatile BeaconMatcher beaconMatcher = BeaconMatcher.defaults();
+    private boolean firstPaintDone = false;
     private boolean isScanning = false;
     
     private ScanCallback scanCallback = new ScanCallback() {
         @Override
         public void onScanResult(int callbackType, ScanResult result) {
             try {
+                String address = result.getDevice().getAddress();
                 String deviceName = result.getDevice().getName();
+                // Hotel beacons only; with offloaded filters the controller has already checked this
+                if (beaconMatcher.match(MacAddress.toLong(address), deviceName) == BeaconClass.NONE) return;
                 if (deviceName == null) deviceName = "Unknown";
-                
-                // Filter for iBeacon/Eddystone or hotel beacons
-                if (deviceName.contains("MWC") || deviceName.contains("Hotel") || 
-                    deviceName.contains("Gate") || deviceName.contains("Kiosk") ||
-                    deviceName.contains("Elevator") || deviceName.contains("Room")) {
-                    
-                    JSONObject bleEvent = new JSONObject();
-                    bleEvent.put("deviceId", result.getDevice().getAddress());
-                    bleEvent.put("deviceName", deviceName);
-                    bleEvent.put("rssi", result.getRssi());
-                    bleEvent.put("timestamp", System.currentTimeMillis());
-                    
-                    // Send to React via JavaScript bridge
-                    runOnUiThread(() -> {
-                        if (webView != null) {
-                            webView.evaluateJavascript(
-                                "window.onBleEvent && window.onBleEvent('" + bleEvent.toString() + "');", 
-                                null
-                            );
-                        }
-                    });
+
+                // Batched per display frame, see BleEventBridge
+                BleEventBridge bridge = bleEventBridge;
+                if (bridge != null) {
+                    bridge.add(address, deviceName, result.getRssi(), System.currentTimeMillis());
                 }
             } catch (Exception e) {
                 e.printStackTrace();
@@ -61,11 +75,12 @@ public class MainActivity extends AppCompatActivity {
     protected void onCreate(Bundle savedInstanceState) {
         setTheme(R.style.Theme_HotelMDU_NoActionBar);
         super.onCreate(savedInstanceState);
+        StartupTrace.mark("activity");
         setContentView(R.layout.activity_main);
+        StartupTrace.mark("webview-created");
         
+        // Bluetooth and the permission dialog wait for first paint, see onFirstPaint()
         setupWebView();
-        setupBluetooth();
-        requestPermissions();
     }
 
     private void setupWebView() {
@@ -74,13 +89,43 @@ public class MainActivity extends AppCompatActivity {
             webView.getSettings().setJavaScriptEnabled(true);
             webView.getSettings().setDomStorageEnabled(true);
             webView.addJavascriptInterface(new AndroidBLE(), "AndroidBLE");
-            webView.setWebViewClient(new WebViewClient());
+            bleEventBridge = new BleEventBridge(webView);
+            // The React build uses absolute /static/... paths, so it is served from an https origin
+            final WebViewAssetLoader assetLoader = new WebViewAssetLoader.Builder()
+                .addPathHandler("/", new WebAssetHandler(getAssets()))
+                .build();
+            webView.setWebViewClient(new WebViewClient() {
+                @Override
+                public WebResourceResponse shouldInterceptRequest(WebView view, WebResourceRequest request) {
+                    return assetLoader.shouldInterceptRequest(request.getUrl());
+                }
+                
+                @Override
+                public void onPageFinished(WebView view, String url) {
+                    bleEventBridge.onPageFinished();
+                    if (WebViewFeature.isFeatureSupported(WebViewFeature.VISUAL_STATE_CALLBACK)) {
+                        WebViewCompat.postVisualStateCallback(view, 0, requestId -> onFirstPaint());
+                    } else {
+                        onFirstPaint();
+                    }
+                }
+            });
             
             // Load your React app (production build from assets)
-            webView.loadUrl("file:///android_asset/build/index.html");
+            webView.loadUrl(APP_ORIGIN + "/index.html");
         }
     }
 
+    // Bluetooth setup and the permission dialog wait until the guest can see the app
+    private void onFirstPaint() {
+        if (firstPaintDone) return;
+        firstPaintDone = true;
+        StartupTrace.mark("first-paint");
+        loadBeaconRules();
+        setupBluetooth();
+        requestPermissions();
+    }
+
     private void setupBluetooth() {
         BluetoothManager bluetoothManager = (BluetoothManager) getSystemService(BLUETOOTH_SERVICE);
         if (bluetoothManager != null) {
@@ -91,6 +136,46 @@ public class MainActivity extends AppCompatActivity {
         }
     }
 
+    // Optional rules file in the app's files dir overrides the built-in name checks
+    private void loadBeaconRules() {
+        File file = new File(getFilesDir(), BEACON_RULES_FILE);
+        if (!file.exists()) return;
+        try {
+            List<BeaconRule> rules = BeaconRule.parse(readText(file));
+            if (rules.isEmpty()) return;
+            beaconMatcher = BeaconMatcher.compile(rules);
+        } catch (IOException | IllegalArgumentException e) {
+            Log.e(TAG, "Invalid " + BEACON_RULES_FILE + ", using default beacon rules", e);
+        }
+    }
+
+    private static String readText(File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] data = new byte[(int) file.length()];
+            int read = 0;
+            while (read < data.length) {
+                int n = in.read(data, read, data.length - read);
+                if (n < 0) break;
+                read += n;
+            }
+            return new String(data, 0, read, StandardCharsets.UTF_8);
+        }
+    }
+
+    // Exact name/address rules run in the controller; any "contains" rule means scanning unfiltered
+    private List<ScanFilter> buildScanFilters() {
+        BeaconMatcher matcher = beaconMatcher;
+        if (!matcher.isOffloadable()) return null;
+        List<ScanFilter> filters = new ArrayList<>();
+        for (String name : matcher.getOffloadNames()) {
+            filters.add(new ScanFilter.Builder().setDeviceName(name).build());
+        }
+        for (String address : matcher.getOffloadAddresses()) {
+            filters.add(new ScanFilter.Builder().setDeviceAddress(address).build());
+        }
+        return filters;
+    }
+
     private void requestPermissions() {
         String[] permissions = {
             Manifest.permission.BLUETOOTH,
@@ -111,7 +196,7 @@ public class MainActivity extends AppCompatActivity {
                     .setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY)
                     .build();
                 try {
-                    bleScanner.startScan(null, settings, scanCallback);
+                    bleScanner.startScan(buildScanFilters(), settings, scanCallback);
                     isScanning = true;
                 } catch (SecurityException e) {
                     e.printStackTrace();
@@ -131,6 +216,12 @@ public class MainActivity extends AppCompatActivity {
             }
         }
 
+        // Called by the page once its first render is on screen
+        @JavascriptInterface
+        public void appReady() {
+            runOnUiThread(() -> StartupTrace.interactive(MainActivity.this));
+        }
+
         @JavascriptInterface
         public void requestScan() {
             // Perform single scan burst
@@ -153,6 +244,9 @@ public class MainActivity extends AppCompatActivity {
                 e.printStackTrace();
             }
         }
+        if (bleEventBridge != null) {
+            bleEventBridge.close();
+        }
         super.onDestroy();
     }
 }
\ No newline at end of file
@@ -0,0 +1,45 @@
+package com.hotel.mdu;
+
+import android.app.Activity;
+import android.os.Build;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+// Cold start milestones, logged as "Startup: <milestone> +<ms since process start>":
+//   adb logcat -s Startup
+// "interactive" is when the page reports its first render; it is also passed to
+// reportFullyDrawn() so it shows up as "Fully drawn" in ActivityManager and in startup traces.
+final class StartupTrace {
+    private static final String TAG = "Startup";
+
+    private static long processStartMs = -1;
+    private static boolean interactive = false;
+
+    private StartupTrace() {
+    }
+
+    // Application.onCreate; before API 24 the process start time is not available, so this is it
+    static synchronized void processStarted() {
+        if (processStartMs >= 0) return;
+        processStartMs = Build.VERSION.SDK_INT >= Build.VERSION_CODES.N
+            ? Process.getStartUptimeMillis()
+            : SystemClock.uptimeMillis();
+        mark("application");
+    }
+
+    static synchronized void mark(String milestone) {
+        if (processStartMs < 0) return;
+        Log.i(TAG, milestone + " +" + (SystemClock.uptimeMillis() - processStartMs) + " ms");
+    }
+
+    // UI thread; only the first call after a cold start counts
+    static void interactive(Activity activity) {
+        synchronized (StartupTrace.class) {
+            if (interactive) return;
+            interactive = true;
+            mark("interactive");
+        }
+        activity.reportFullyDrawn();
+    }
+}
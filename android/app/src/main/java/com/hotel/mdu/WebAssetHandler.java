@@ -0,0 +1,74 @@
+package com.hotel.mdu;
+
+import android.content.res.AssetManager;
+import android.webkit.WebResourceResponse;
+import androidx.webkit.WebViewAssetLoader;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+// Serves the React build from assets/build for WebViewAssetLoader. Text assets are packaged as
+// gzip copies (see compressWebAssets in build.gradle.kts) and inflated while the WebView reads
+// them; content-hashed files under static/ never change, so they are marked immutable.
+class WebAssetHandler implements WebViewAssetLoader.PathHandler {
+    private static final String ROOT = "build/";
+    private static final String INDEX = "index.html";
+    private static final String HASHED_PREFIX = "static/";
+    private static final int BUFFER_SIZE = 16384;
+
+    private final AssetManager assets;
+
+    WebAssetHandler(AssetManager assets) {
+        this.assets = assets;
+    }
+
+    @Override
+    public WebResourceResponse handle(String path) {
+        if (path.isEmpty() || path.endsWith("/")) path += INDEX;
+        InputStream body = open(ROOT + path);
+        if (body == null) return null;
+
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Cache-Control", path.startsWith(HASHED_PREFIX)
+            ? "public, max-age=31536000, immutable"
+            : "no-cache");
+        String mimeType = mimeType(path);
+        String encoding = mimeType.startsWith("text/") || mimeType.endsWith("javascript")
+            || mimeType.endsWith("json") ? "utf-8" : null;
+        return new WebResourceResponse(mimeType, encoding, 200, "OK", headers, body);
+    }
+
+    // Prefers the pre-compressed copy; falls back to the plain file for assets the build left alone
+    private InputStream open(String name) {
+        try {
+            return new GZIPInputStream(assets.open(name + ".gz", AssetManager.ACCESS_STREAMING), BUFFER_SIZE);
+        } catch (IOException e) {
+            // not compressed at build time
+        }
+        try {
+            return new BufferedInputStream(assets.open(name, AssetManager.ACCESS_STREAMING), BUFFER_SIZE);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static String mimeType(String path) {
+        int dot = path.lastIndexOf('.');
+        String extension = dot < 0 ? "" : path.substring(dot + 1);
+        switch (extension) {
+            case "html": return "text/html";
+            case "js": return "application/javascript";
+            case "css": return "text/css";
+            case "json": return "application/json";
+            case "txt": return "text/plain";
+            case "svg": return "image/svg+xml";
+            case "png": return "image/png";
+            case "ico": return "image/x-icon";
+            case "woff2": return "font/woff2";
+            default: return "application/octet-stream";
+        }
+    }
+}
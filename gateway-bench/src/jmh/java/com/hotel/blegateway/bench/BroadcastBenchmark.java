@@ -0,0 +1,102 @@
+package com.hotel.blegateway.bench;
+
+import com.hotel.blegateway.BeaconEvent;
+import com.hotel.blegateway.BeaconEventEncoder;
+import com.hotel.blegateway.FramePool;
+import com.hotel.blegateway.OutboundQueue;
+import com.hotel.blegateway.PooledFrame;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.concurrent.TimeUnit;
+
+// Fan-out of one encoded event to N clients: a shared frame offered to every client queue
+// and written to an in-memory channel standing in for the client socket
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class BroadcastBenchmark {
+    @Param({ "1", "16", "128", "512" })
+    public int clients;
+
+    private BeaconEventEncoder encoder;
+    private OutboundQueue[] queues;
+    private SinkChannel[] sockets;
+    private BeaconEvent[] events;
+    private int index;
+
+    // Accepts every byte, like a socket whose send buffer never fills
+    static final class SinkChannel implements GatheringByteChannel {
+        long bytes;
+
+        @Override
+        public long write(ByteBuffer[] sources, int offset, int length) {
+            long written = 0;
+            for (int i = offset; i < offset + length; i++) {
+                written += sources[i].remaining();
+                sources[i].position(sources[i].limit());
+            }
+            bytes += written;
+            return written;
+        }
+
+        @Override
+        public long write(ByteBuffer[] sources) {
+            return write(sources, 0, sources.length);
+        }
+
+        @Override
+        public int write(ByteBuffer source) {
+            int written = source.remaining();
+            source.position(source.limit());
+            bytes += written;
+            return written;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @Setup
+    public void setup() {
+        encoder = new BeaconEventEncoder(new FramePool(512, 64));
+        queues = new OutboundQueue[clients];
+        sockets = new SinkChannel[clients];
+        for (int i = 0; i < clients; i++) {
+            queues[i] = new OutboundQueue(256, OutboundQueue.OverflowPolicy.COALESCE_PER_BEACON);
+            sockets[i] = new SinkChannel();
+        }
+        events = Fixtures.events(64, 8);
+    }
+
+    @Benchmark
+    public long broadcast() throws Exception {
+        BeaconEvent event = events[index++ & 63];
+        PooledFrame frame = encoder.encodeJson(event);
+        for (int i = 0; i < clients; i++) {
+            queues[i].offer(frame.share(), event.mac, frame);
+        }
+        frame.release();
+        long bytes = 0;
+        for (int i = 0; i < clients; i++) {
+            queues[i].writeTo(sockets[i]);
+            bytes += sockets[i].bytes;
+        }
+        return bytes;
+    }
+}
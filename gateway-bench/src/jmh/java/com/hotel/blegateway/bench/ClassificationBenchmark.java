@@ -0,0 +1,67 @@
+package com.hotel.blegateway.bench;
+
+import com.hotel.blegateway.BeaconMatcher;
+import com.hotel.blegateway.BeaconRule;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Beacon name classification as done in the scan callback, against a contains() chain baseline
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ClassificationBenchmark {
+    private static final int SAMPLES = 1024;
+
+    // Number of extra contains-rules on top of the defaults, as a property rules file would add
+    @Param({ "0", "32" })
+    public int extraRules;
+
+    private BeaconMatcher matcher;
+    private String[] patterns;
+    private long[] macs;
+    private String[] names;
+    private int index;
+
+    @Setup
+    public void setup() {
+        List<BeaconRule> rules = new ArrayList<>(BeaconRule.defaults());
+        for (int i = 0; i < extraRules; i++) {
+            rules.add(BeaconRule.parseLine("contains:Suite" + i + "=ROOM"));
+        }
+        matcher = BeaconMatcher.compile(rules);
+        patterns = new String[rules.size()];
+        for (int i = 0; i < patterns.length; i++) {
+            patterns[i] = rules.get(i).pattern;
+        }
+        macs = Fixtures.macs(SAMPLES, 1);
+        names = Fixtures.names(SAMPLES, 2);
+    }
+
+    @Benchmark
+    public int matcher() {
+        int i = index++ & (SAMPLES - 1);
+        return matcher.match(macs[i], names[i]);
+    }
+
+    @Benchmark
+    public int containsChain() {
+        int i = index++ & (SAMPLES - 1);
+        String name = names[i];
+        if (name == null) return -1;
+        for (int p = 0; p < patterns.length; p++) {
+            if (name.contains(patterns[p])) return p;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,53 @@
+package com.hotel.blegateway.bench;
+
+import com.hotel.blegateway.BeaconCoalescer;
+import com.hotel.blegateway.BeaconEvent;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+// Per-beacon rate limiting lookups, from a few beacons to a table near its working size
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CoalescerBenchmark {
+    private static final int SAMPLES = 1 << 16;
+
+    @Param({ "100", "10000", "50000" })
+    public int beacons;
+
+    private BeaconCoalescer coalescer;
+    private final BeaconEvent event = new BeaconEvent();
+    private long[] macs;
+    private int[] rssi;
+    private int index;
+    private long clock;
+
+    @Setup
+    public void setup() {
+        coalescer = new BeaconCoalescer(BeaconCoalescer.DEFAULT_CAPACITY);
+        long[] population = Fixtures.macs(beacons, 6);
+        macs = new long[SAMPLES];
+        for (int i = 0; i < SAMPLES; i++) {
+            macs[i] = population[i % beacons];
+        }
+        rssi = Fixtures.rssiWalk(SAMPLES, 7);
+    }
+
+    @Benchmark
+    public boolean shouldEmit() {
+        int i = index++ & (SAMPLES - 1);
+        // ~100 advertisements per second of simulated time
+        clock += 10;
+        event.set(macs[i], rssi[i], clock, Fixtures.CLASSES[i & 3], null);
+        return coalescer.shouldEmit(event, false);
+    }
+}
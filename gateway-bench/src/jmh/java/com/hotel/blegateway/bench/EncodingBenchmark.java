@@ -0,0 +1,60 @@
+package com.hotel.blegateway.bench;
+
+import com.hotel.blegateway.BeaconEvent;
+import com.hotel.blegateway.BeaconEventEncoder;
+import com.hotel.blegateway.BinaryEventEncoder;
+import com.hotel.blegateway.FramePool;
+import com.hotel.blegateway.PooledFrame;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+// One event (batch=1) or a batched-scan frame, encoded as JSON text and as hotel-ble.bin.v2.
+// Frames go straight back to the pool, as they do once every client has written them.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class EncodingBenchmark {
+    @Param({ "1", "32" })
+    public int batch;
+
+    private BeaconEventEncoder jsonEncoder;
+    private BinaryEventEncoder binaryEncoder;
+    private BeaconEvent[] events;
+
+    @Setup
+    public void setup() {
+        FramePool pool = new FramePool(512, 64);
+        jsonEncoder = new BeaconEventEncoder(pool);
+        binaryEncoder = new BinaryEventEncoder(pool);
+        events = Fixtures.events(batch, 5);
+        for (BeaconEvent event : events) {
+            binaryEncoder.nameId(event.name);
+        }
+        binaryEncoder.takePendingNames();
+    }
+
+    @Benchmark
+    public int json() {
+        PooledFrame frame = batch == 1 ? jsonEncoder.encodeJson(events[0]) : jsonEncoder.encodeJson(events, batch);
+        int length = frame.buffer().remaining();
+        frame.release();
+        return length;
+    }
+
+    @Benchmark
+    public int binary() {
+        PooledFrame frame = batch == 1 ? binaryEncoder.encode(events[0]) : binaryEncoder.encode(events, batch);
+        int length = frame.buffer().remaining();
+        frame.release();
+        return length;
+    }
+}
@@ -0,0 +1,66 @@
+package com.hotel.blegateway.bench;
+
+import com.hotel.blegateway.BeaconClass;
+import com.hotel.blegateway.BeaconEvent;
+
+import java.util.Random;
+
+// Deterministic synthetic advertisements shared by the benchmarks
+final class Fixtures {
+    // Roughly what a hotel lobby scan sees: our beacons plus phones, watches and TVs
+    static final String[] NAMES = {
+        "MWC Gate 1", "MWC Gate 2", "Kiosk-Lobby", "Elevator A", "Room 1204", "Hotel Beacon",
+        "Galaxy Buds2", "Apple Watch", "[TV] Samsung 7 Series", "JBL Flip 5", null, "LE-Bose QC35",
+        "Fitbit Charge 5", "Tile", "Room 317", "Kiosk-Spa"
+    };
+
+    static final int[] CLASSES = {
+        BeaconClass.GATE, BeaconClass.KIOSK, BeaconClass.ELEVATOR, BeaconClass.ROOM
+    };
+
+    private Fixtures() {
+    }
+
+    static long[] macs(int count, long seed) {
+        Random random = new Random(seed);
+        long[] macs = new long[count];
+        for (int i = 0; i < count; i++) {
+            macs[i] = random.nextLong() & 0xFFFFFFFFFFFFL;
+        }
+        return macs;
+    }
+
+    static String[] names(int count, long seed) {
+        Random random = new Random(seed);
+        String[] names = new String[count];
+        for (int i = 0; i < count; i++) {
+            names[i] = NAMES[random.nextInt(NAMES.length)];
+        }
+        return names;
+    }
+
+    // RSSI random walk per device, clamped to what phones report
+    static int[] rssiWalk(int count, long seed) {
+        Random random = new Random(seed);
+        int[] rssi = new int[count];
+        int value = -70;
+        for (int i = 0; i < count; i++) {
+            value = Math.max(-100, Math.min(-35, value + random.nextInt(9) - 4));
+            rssi[i] = value;
+        }
+        return rssi;
+    }
+
+    static BeaconEvent[] events(int count, long seed) {
+        long[] macs = macs(count, seed);
+        int[] rssi = rssiWalk(count, seed);
+        BeaconEvent[] events = new BeaconEvent[count];
+        for (int i = 0; i < count; i++) {
+            events[i] = new BeaconEvent();
+            events[i].set(macs[i], rssi[i], 1700000000000L + i * 37L, CLASSES[i % CLASSES.length],
+                NAMES[i % 6]);
+            events[i].seq = 1000 + i;
+        }
+        return events;
+    }
+}
@@ -0,0 +1,84 @@
+package com.hotel.blegateway.bench;
+
+import com.hotel.blegateway.BeaconMap;
+import com.hotel.blegateway.PositionEstimate;
+import com.hotel.blegateway.PositionSolver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// One anchor reading through the position solver: anchor update plus weighted least squares over
+// the device's visible anchors, for a crowded lobby of devices walking a 10 m beacon grid
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PositionBenchmark {
+    private static final int SAMPLES = 1 << 16;
+    private static final int GRID_X = 8;
+    private static final int GRID_Y = 4;
+    private static final float SPACING_M = 10f;
+
+    @Param({ "100", "4000" })
+    public int devices;
+
+    private PositionSolver solver;
+    private final PositionEstimate estimate = new PositionEstimate();
+    private long[] deviceKeys;
+    private long[] beacons;
+    private int[] rssi;
+    private int index;
+
+    @Setup
+    public void setup() {
+        long[] anchors = Fixtures.macs(GRID_X * GRID_Y, 5);
+        BeaconMap map = new BeaconMap(anchors.length);
+        for (int i = 0; i < anchors.length; i++) {
+            map.add(anchors[i], (i % GRID_X) * SPACING_M, (i / GRID_X) * SPACING_M, 1,
+                BeaconMap.DEFAULT_TX_POWER, 2.2f);
+        }
+        solver = new PositionSolver(map, PositionSolver.DEFAULT_CAPACITY, PositionSolver.DEFAULT_PUBLISH_INTERVAL_MS,
+            PositionSolver.DEFAULT_ANCHOR_TIMEOUT_MS);
+
+        Random random = new Random(11);
+        long[] population = Fixtures.macs(devices, 3);
+        float[] x = new float[devices];
+        float[] y = new float[devices];
+        for (int i = 0; i < devices; i++) {
+            x[i] = random.nextFloat() * (GRID_X - 1) * SPACING_M;
+            y[i] = random.nextFloat() * (GRID_Y - 1) * SPACING_M;
+        }
+        deviceKeys = new long[SAMPLES];
+        beacons = new long[SAMPLES];
+        rssi = new int[SAMPLES];
+        for (int i = 0; i < SAMPLES; i++) {
+            int device = i % devices;
+            // One of the 3x3 anchors around the device, as a phone in a lobby hears them
+            int cellX = Math.min(GRID_X - 2, (int) (x[device] / SPACING_M)) + random.nextInt(3) - 1;
+            int cellY = Math.min(GRID_Y - 2, (int) (y[device] / SPACING_M)) + random.nextInt(3) - 1;
+            int anchor = Math.max(0, Math.min(GRID_Y - 1, cellY)) * GRID_X + Math.max(0, Math.min(GRID_X - 1, cellX));
+            double distance = Math.hypot(x[device] - (anchor % GRID_X) * SPACING_M,
+                y[device] - (anchor / GRID_X) * SPACING_M);
+            deviceKeys[i] = population[device];
+            beacons[i] = anchors[anchor];
+            rssi[i] = (int) Math.round(BeaconMap.DEFAULT_TX_POWER - 22 * Math.log10(Math.max(0.5, distance))
+                + random.nextGaussian() * 4);
+        }
+    }
+
+    @Benchmark
+    public boolean observe() {
+        int i = index++;
+        int sample = i & (SAMPLES - 1);
+        // Ten readings per millisecond per gateway keeps every anchor fresh and the rate cap in play
+        return solver.observe(deviceKeys[sample], beacons[sample], rssi[sample], i / 10, estimate);
+    }
+}
@@ -0,0 +1,59 @@
+package com.hotel.blegateway.bench;
+
+import com.hotel.blegateway.PresenceTracker;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+// Presence bookkeeping per sighting, with the wheel advanced as the selector loop would. Time runs
+// at 10 sightings per millisecond, so with many beacons each one is heard only every few seconds
+// and entries are both rescheduled and, for the silent share of the population, expired.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PresenceBenchmark {
+    private static final int SAMPLES = 1 << 16;
+    private static final long START = 1700000000000L;
+
+    @Param({ "100", "50000" })
+    public int beacons;
+
+    private PresenceTracker tracker;
+    private final PresenceTracker.Listener listener = (mac, beaconClass, rssi, nameId, lastSeen) -> { };
+    private long[] macs;
+    private int[] classes;
+    private long index;
+
+    @Setup
+    public void setup() {
+        tracker = new PresenceTracker(PresenceTracker.DEFAULT_CAPACITY);
+        long[] population = Fixtures.macs(beacons, 3);
+        macs = new long[SAMPLES];
+        classes = new int[SAMPLES];
+        for (int i = 0; i < SAMPLES; i++) {
+            int beacon = i % beacons;
+            macs[i] = population[beacon];
+            classes[i] = Fixtures.CLASSES[beacon % Fixtures.CLASSES.length];
+        }
+        tracker.expire(START, listener);
+    }
+
+    @Benchmark
+    public boolean touch() {
+        long i = index++;
+        int sample = (int) (i & (SAMPLES - 1));
+        long now = START + i / 10;
+        if ((i & 255) == 0) {
+            tracker.expire(now, listener);
+        }
+        return tracker.touch(macs[sample], classes[sample], -60, 0, now);
+    }
+}
@@ -0,0 +1,60 @@
+package com.hotel.blegateway.bench;
+
+import com.hotel.blegateway.BeaconEvent;
+import com.hotel.blegateway.ZoneEngine;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+// RSSI smoothing and zone decision per event, over device populations of different sizes
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ZoneBenchmark {
+    private static final int SAMPLES = 1 << 16;
+
+    @Param({ "100", "10000" })
+    public int devices;
+
+    @Param({ "ema", "kalman" })
+    public String filter;
+
+    private ZoneEngine engine;
+    private final BeaconEvent event = new BeaconEvent();
+    private long[] macs;
+    private int[] classes;
+    private int[] rssi;
+    private int index;
+
+    @Setup
+    public void setup() {
+        engine = new ZoneEngine(ZoneEngine.DEFAULT_CAPACITY);
+        if ("kalman".equals(filter)) {
+            engine.useKalman(0.5f, 4f);
+        }
+        long[] population = Fixtures.macs(devices, 3);
+        macs = new long[SAMPLES];
+        classes = new int[SAMPLES];
+        for (int i = 0; i < SAMPLES; i++) {
+            int device = i % devices;
+            macs[i] = population[device];
+            classes[i] = Fixtures.CLASSES[device % Fixtures.CLASSES.length];
+        }
+        rssi = Fixtures.rssiWalk(SAMPLES, 4);
+    }
+
+    @Benchmark
+    public boolean update() {
+        int i = index++ & (SAMPLES - 1);
+        event.set(macs[i], rssi[i], i, classes[i], null);
+        return engine.update(event);
+    }
+}
@@ -0,0 +1,142 @@
+package com.hotel.blegateway.load;
+
+import com.hotel.blegateway.GatewayPipeline;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+// Plays the Bluetooth callback thread: synthetic advertisements at a fixed rate from a population
+// of beacons whose RSSI random-walks, staged into the pipeline in scan batches. Remembers when
+// each recent advertisement was injected so clients can turn (deviceId, timestamp) back into
+// scan-to-client latency.
+final class AdvertisementInjector implements Runnable {
+    // Synthetic MACs are C0:FF:EE plus the device index
+    static final long MAC_BASE = 0xC0FFEEL << 24;
+    private static final int HISTORY = 64;
+
+    private static final String[] NOISE_NAMES = {
+        "Galaxy Buds2", "Apple Watch", "[TV] Samsung 7 Series", "JBL Flip 5", "LE-Bose QC35", "Fitbit Charge 5"
+    };
+
+    private final GatewayPipeline pipeline;
+    private final int rate;
+    private final int batch;
+    private final long[] macs;
+    private final String[] names;
+    private final int[] rssi;
+    private final long[] lastTimestamp;
+    private final Random random;
+    // Per device, the last HISTORY (timestamp, nanoTime) pairs; slot = device * HISTORY + n
+    private final AtomicLongArray sentTimestamps;
+    private final AtomicLongArray sentNanos;
+    private final int[] historyCursor;
+
+    private volatile boolean running = true;
+    private volatile long injected = 0;
+    private volatile long staged = 0;
+
+    AdvertisementInjector(GatewayPipeline pipeline, int devices, double noise, int rate, int batch, long seed) {
+        this.pipeline = pipeline;
+        this.rate = rate;
+        this.batch = Math.max(1, batch);
+        this.random = new Random(seed);
+        this.macs = new long[devices];
+        this.names = new String[devices];
+        this.rssi = new int[devices];
+        this.lastTimestamp = new long[devices];
+        this.sentTimestamps = new AtomicLongArray(devices * HISTORY);
+        this.sentNanos = new AtomicLongArray(devices * HISTORY);
+        this.historyCursor = new int[devices];
+        for (int i = 0; i < devices; i++) {
+            macs[i] = MAC_BASE | i;
+            names[i] = random.nextDouble() < noise ? NOISE_NAMES[i % NOISE_NAMES.length] : beaconName(i);
+            rssi[i] = -95 + random.nextInt(50);
+        }
+    }
+
+    // One of each beacon class in turn, named the way the default rules expect
+    private static String beaconName(int index) {
+        int number = index / 4 + 1;
+        switch (index % 4) {
+            case 0: return "Gate " + number;
+            case 1: return "Kiosk-" + number;
+            case 2: return "Elevator " + number;
+            default: return "Room " + (100 + number);
+        }
+    }
+
+    void stop() {
+        running = false;
+    }
+
+    long getInjected() {
+        return injected;
+    }
+
+    long getStaged() {
+        return staged;
+    }
+
+    @Override
+    public void run() {
+        long start = System.nanoTime();
+        long sent = 0;
+        while (running) {
+            long due = (System.nanoTime() - start) * rate / 1000000000L;
+            if (sent >= due) {
+                LockSupport.parkNanos(100000);
+                continue;
+            }
+            int count = (int) Math.min(batch, due - sent);
+            long now = System.currentTimeMillis();
+            long nanos = System.nanoTime();
+            int stagedNow = 0;
+            for (int i = 0; i < count; i++) {
+                int device = random.nextInt(macs.length);
+                // Rough phone behaviour: a few dB of jitter per advertisement, clamped to what phones report
+                rssi[device] = Math.max(-100, Math.min(-35, rssi[device] + random.nextInt(9) - 4));
+                // Unique per device so (deviceId, timestamp) identifies the advertisement
+                long timestamp = Math.max(now, lastTimestamp[device] + 1);
+                lastTimestamp[device] = timestamp;
+                remember(device, timestamp, nanos);
+                if (pipeline.stage(macs[device], names[device], rssi[device], timestamp, nanos)) {
+                    stagedNow++;
+                }
+            }
+            pipeline.publishStaged();
+            sent += count;
+            injected = sent;
+            staged += stagedNow;
+        }
+    }
+
+    private void remember(int device, long timestamp, long nanos) {
+        int slot = device * HISTORY + historyCursor[device];
+        historyCursor[device] = (historyCursor[device] + 1) % HISTORY;
+        // Readers match on the timestamp, so it is cleared while the pair is replaced
+        sentTimestamps.set(slot, 0);
+        sentNanos.set(slot, nanos);
+        sentTimestamps.set(slot, timestamp);
+    }
+
+    // Any thread: when the advertisement was injected, or 0 if it is unknown or too old
+    long injectedNanos(long mac, long timestamp) {
+        if ((mac & ~0xFFFFFFL) != MAC_BASE) return 0;
+        int device = (int) (mac & 0xFFFFFF);
+        if (device >= macs.length) return 0;
+        for (int n = 0; n < HISTORY; n++) {
+            int slot = device * HISTORY + n;
+            if (sentTimestamps.get(slot) == timestamp) {
+                long nanos = sentNanos.get(slot);
+                // Overwritten while we read it
+                return sentTimestamps.get(slot) == timestamp ? nanos : 0;
+            }
+        }
+        return 0;
+    }
+
+    long mac(int device) {
+        return macs[device];
+    }
+}
@@ -0,0 +1,318 @@
+package com.hotel.blegateway.load;
+
+import com.hotel.blegateway.LatencyHistogram;
+import com.hotel.blegateway.MacAddress;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// One blocking WebSocket client on its own thread, speaking to the gateway the way
+// gatewayClient.js does: JSON wire format, a subscribe message on open, then events.
+// Each event is matched back to its injection time for scan-to-client latency.
+// A slow client reads through a small socket buffer and pauses after every frame. With an
+// extension offer the client negotiates permessage-deflate like a browser and inflates RSV1 frames.
+final class LoadClient implements Runnable {
+    private static final int OP_TEXT = 0x1;
+    private static final int OP_CLOSE = 0x8;
+    private static final int OP_PING = 0x9;
+    private static final int OP_PONG = 0xA;
+    private static final int SLOW_RECEIVE_BUFFER = 4096;
+    private static final int RSV1 = 0x40;
+    private static final byte[] FLUSH_TAIL = { 0, 0, (byte) 0xFF, (byte) 0xFF };
+
+    private final int id;
+    private final int port;
+    private final String subscribe;
+    // Sec-WebSocket-Extensions offer, null for none
+    private final String extensions;
+    private final long slowDelayMs;
+    private final AdvertisementInjector injector;
+    private final LoadTest.Phase phase;
+    private final Thread thread;
+    private final LatencyHistogram latency = new LatencyHistogram();
+    // Shared by all clients of one kind, null if this client is reported on its own
+    private final LatencyHistogram aggregate;
+
+    private volatile Socket socket;
+    private volatile long events = 0;
+    private volatile long unmatched = 0;
+    private volatile int closeCode = -1;
+    private volatile String error;
+    private volatile long wireBytes = 0;
+    private volatile long payloadBytes = 0;
+
+    // Set by the handshake when the server accepted permessage-deflate
+    private boolean deflate = false;
+    private boolean serverNoContextTakeover = false;
+    private Inflater inflater;
+    private byte[] inflated = new byte[4096];
+
+    LoadClient(int id, int port, String subscribe, String extensions, long slowDelayMs,
+               AdvertisementInjector injector, LoadTest.Phase phase, LatencyHistogram aggregate) {
+        this.id = id;
+        this.port = port;
+        this.subscribe = subscribe;
+        this.extensions = extensions;
+        this.slowDelayMs = slowDelayMs;
+        this.injector = injector;
+        this.phase = phase;
+        this.aggregate = aggregate;
+        this.thread = new Thread(this, "load-client-" + id);
+        thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    void join(long millis) throws InterruptedException {
+        thread.join(millis);
+    }
+
+    void close() {
+        Socket current = socket;
+        if (current == null) return;
+        try {
+            current.close();
+        } catch (IOException e) {
+            // already gone
+        }
+    }
+
+    int getId() {
+        return id;
+    }
+
+    boolean isSlow() {
+        return slowDelayMs > 0;
+    }
+
+    LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    long getEvents() {
+        return events;
+    }
+
+    long getUnmatched() {
+        return unmatched;
+    }
+
+    int getCloseCode() {
+        return closeCode;
+    }
+
+    String getError() {
+        return error;
+    }
+
+    // Data frame payload bytes as received, and after inflating the compressed ones
+    long getWireBytes() {
+        return wireBytes;
+    }
+
+    long getPayloadBytes() {
+        return payloadBytes;
+    }
+
+    @Override
+    public void run() {
+        try (Socket s = new Socket()) {
+            socket = s;
+            if (isSlow()) {
+                s.setReceiveBufferSize(SLOW_RECEIVE_BUFFER);
+            }
+            s.setTcpNoDelay(true);
+            s.connect(new InetSocketAddress("127.0.0.1", port));
+            OutputStream out = s.getOutputStream();
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream(), 16384));
+            handshake(out, in);
+            if (deflate) {
+                inflater = new Inflater(true);
+            }
+            sendText(out, subscribe);
+            while (true) {
+                int b0 = in.readUnsignedByte();
+                int b1 = in.readUnsignedByte();
+                long length = b1 & 0x7F;
+                if (length == 126) {
+                    length = in.readUnsignedShort();
+                } else if (length == 127) {
+                    length = in.readLong();
+                }
+                byte[] payload = new byte[(int) length];
+                in.readFully(payload);
+                int opcode = b0 & 0x0F;
+                if (opcode == OP_CLOSE) {
+                    closeCode = payload.length >= 2 ? ((payload[0] & 0xFF) << 8) | (payload[1] & 0xFF) : 1005;
+                    return;
+                }
+                if (opcode == OP_PING) {
+                    sendFrame(out, OP_PONG, payload);
+                    continue;
+                }
+                if (opcode != OP_TEXT) continue;
+                if (phase.measuring) wireBytes += payload.length;
+                if ((b0 & RSV1) != 0) {
+                    payload = inflate(payload);
+                }
+                if (phase.measuring) payloadBytes += payload.length;
+                onText(payload, System.nanoTime());
+                if (isSlow()) {
+                    Thread.sleep(slowDelayMs);
+                }
+            }
+        } catch (EOFException e) {
+            if (closeCode < 0) closeCode = 1006;
+        } catch (IOException e) {
+            if (closeCode < 0) {
+                closeCode = 1006;
+                error = e.getMessage();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (inflater != null) inflater.end();
+        }
+    }
+
+    private byte[] inflate(byte[] payload) throws IOException {
+        if (inflater == null) throw new IOException("Compressed frame without permessage-deflate");
+        try {
+            int length = inflate(payload, 0);
+            length = inflate(FLUSH_TAIL, length);
+            if (serverNoContextTakeover) inflater.reset();
+            byte[] message = new byte[length];
+            System.arraycopy(inflated, 0, message, 0, length);
+            return message;
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed frame", e);
+        }
+    }
+
+    private int inflate(byte[] input, int length) throws DataFormatException {
+        inflater.setInput(input);
+        while (true) {
+            if (length == inflated.length) {
+                byte[] grown = new byte[length * 2];
+                System.arraycopy(inflated, 0, grown, 0, length);
+                inflated = grown;
+            }
+            int n = inflater.inflate(inflated, length, inflated.length - length);
+            length += n;
+            if (n == 0 && (inflater.needsInput() || inflater.finished())) return length;
+        }
+    }
+
+    // Single events are objects, scan batches are arrays of them; pulls deviceId and timestamp
+    // out with index scans rather than a JSON parser so the client adds little to what it measures
+    private void onText(byte[] payload, long receivedNanos) {
+        if (!phase.measuring) return;
+        String text = new String(payload, StandardCharsets.UTF_8);
+        if (text.contains("\"type\"")) return;
+        int from = 0;
+        while (true) {
+            int device = text.indexOf("\"deviceId\":\"", from);
+            if (device < 0) break;
+            int macStart = device + 12;
+            long mac = MacAddress.toLong(text.substring(macStart, macStart + 17));
+            int stamp = text.indexOf("\"timestamp\":", macStart) + 12;
+            int end = stamp;
+            while (end < text.length() && Character.isDigit(text.charAt(end))) end++;
+            long timestamp = Long.parseLong(text.substring(stamp, end));
+            long injected = injector.injectedNanos(mac, timestamp);
+            events++;
+            if (injected == 0) {
+                unmatched++;
+            } else {
+                latency.recordNanos(receivedNanos - injected);
+                if (aggregate != null) aggregate.recordNanos(receivedNanos - injected);
+            }
+            from = end;
+        }
+    }
+
+    private void handshake(OutputStream out, InputStream in) throws IOException {
+        byte[] nonce = new byte[16];
+        new Random().nextBytes(nonce);
+        String request = "GET / HTTP/1.1\r\n"
+            + "Host: 127.0.0.1:" + port + "\r\n"
+            + "Upgrade: websocket\r\n"
+            + "Connection: Upgrade\r\n"
+            + "Sec-WebSocket-Key: " + Base64.getEncoder().encodeToString(nonce) + "\r\n"
+            + "Sec-WebSocket-Version: 13\r\n"
+            + (extensions != null ? "Sec-WebSocket-Extensions: " + extensions + "\r\n" : "")
+            + "\r\n";
+        out.write(request.getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+        StringBuilder response = new StringBuilder();
+        while (response.length() < 4 || !response.substring(response.length() - 4).equals("\r\n\r\n")) {
+            int c = in.read();
+            if (c < 0) throw new EOFException("Connection closed during handshake");
+            response.append((char) c);
+        }
+        if (!response.toString().startsWith("HTTP/1.1 101")) {
+            throw new IOException("Handshake rejected: " + response.substring(0, response.indexOf("\r\n")));
+        }
+        for (String line : response.toString().split("\r\n")) {
+            String lower = line.toLowerCase();
+            if (lower.startsWith("sec-websocket-extensions:") && lower.contains("permessage-deflate")) {
+                deflate = true;
+                serverNoContextTakeover = line.contains("server_no_context_takeover");
+            }
+        }
+    }
+
+    // Compressed like a browser would once deflate is on; the server always asks for
+    // client_no_context_takeover, so each message gets a fresh stream
+    private void sendText(OutputStream out, String text) throws IOException {
+        byte[] payload = text.getBytes(StandardCharsets.UTF_8);
+        if (!deflate) {
+            sendFrame(out, OP_TEXT, payload);
+            return;
+        }
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        deflater.setInput(payload);
+        byte[] compressed = new byte[payload.length + 64];
+        int length = deflater.deflate(compressed, 0, compressed.length, Deflater.SYNC_FLUSH);
+        deflater.end();
+        byte[] message = new byte[length - FLUSH_TAIL.length];
+        System.arraycopy(compressed, 0, message, 0, message.length);
+        sendFrame(out, RSV1 | OP_TEXT, message);
+    }
+
+    // Client frames are always masked (RFC 6455 5.3); payloads here stay under 64 KB
+    private static void sendFrame(OutputStream out, int opcode, byte[] payload) throws IOException {
+        byte[] mask = new byte[4];
+        new Random().nextBytes(mask);
+        int header = payload.length < 126 ? 2 : 4;
+        byte[] frame = new byte[header + 4 + payload.length];
+        frame[0] = (byte) (0x80 | opcode);
+        if (payload.length < 126) {
+            frame[1] = (byte) (0x80 | payload.length);
+        } else {
+            frame[1] = (byte) (0x80 | 126);
+            frame[2] = (byte) (payload.length >>> 8);
+            frame[3] = (byte) payload.length;
+        }
+        System.arraycopy(mask, 0, frame, header, 4);
+        for (int i = 0; i < payload.length; i++) {
+            frame[header + 4 + i] = (byte) (payload[i] ^ mask[i & 3]);
+        }
+        out.write(frame);
+        out.flush();
+    }
+}
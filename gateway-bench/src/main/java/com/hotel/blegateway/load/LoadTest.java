@@ -0,0 +1,280 @@
+package com.hotel.blegateway.load;
+
+import com.hotel.blegateway.GatewayPipeline;
+import com.hotel.blegateway.LatencyHistogram;
+import com.hotel.blegateway.MacAddress;
+import com.hotel.blegateway.PerMessageDeflate;
+import com.hotel.blegateway.WebSocketServer;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// End-to-end load run against the real gateway pipeline on this JVM: synthetic advertisements go
+// in through GatewayPipeline.stage() exactly as the scan callback delivers them, N local WebSocket
+// clients subscribe like gatewayClient.js, and the report gives throughput plus scan-to-client
+// latency overall and per client. Some clients can be made slow to see what the outbound queues do.
+//
+//   ./gradlew :gateway-bench:loadTest --args='--rate=5000 --devices=2000 --clients=64 --slow=4'
+//
+// Options (defaults in brackets):
+//   --rate           advertisements per second [2000]
+//   --devices        MAC population [1000]
+//   --noise          fraction of devices that are not hotel beacons [0.3]
+//   --batch          advertisements per scan callback; >1 turns on batched delivery [1]
+//   --clients        WebSocket clients [16]
+//   --slow           how many of them are slow consumers [0]
+//   --slowDelayMs    pause after each frame on a slow client [20]
+//   --devicesPerClient  0 subscribes to every event, otherwise to that many devices [0]
+//   --reactors       server reactor threads [cores - 1]
+//   --deflate        permessage-deflate: off, shared or takeover (per-client context) [off]
+//   --deflateMin     smallest payload worth compressing [160 shared, 32 takeover]
+//   --deflateLevel   [PerMessageDeflate.DEFAULT_LEVEL]
+//   --port           [3901]
+//   --warmup, --duration  seconds [5, 30]
+public final class LoadTest {
+    private static final long DRAIN_MS = 1000;
+    private static final long SHUTDOWN_MS = 3000;
+    private static final int MAX_CLIENT_ROWS = 32;
+    private static final int WORST_CLIENT_ROWS = 5;
+    private static final double[] QUANTILES = { 0.5, 0.99, 0.999 };
+
+    // Clients only record while measuring, so warmup and drain stay out of the numbers
+    static final class Phase {
+        volatile boolean measuring = false;
+    }
+
+    private LoadTest() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parse(args);
+        int rate = intOption(options, "rate", 2000);
+        int devices = intOption(options, "devices", 1000);
+        double noise = Double.parseDouble(options.getOrDefault("noise", "0.3"));
+        int batch = intOption(options, "batch", 1);
+        int clientCount = intOption(options, "clients", 16);
+        int slow = Math.min(clientCount, intOption(options, "slow", 0));
+        long slowDelayMs = intOption(options, "slowDelayMs", 20);
+        int devicesPerClient = intOption(options, "devicesPerClient", 0);
+        int reactors = intOption(options, "reactors", WebSocketServer.defaultReactorCount());
+        String deflate = options.getOrDefault("deflate", "off");
+        int deflateMin = intOption(options, "deflateMin",
+            PerMessageDeflate.defaultMinPayload(deflate.equals("takeover")));
+        int deflateLevel = intOption(options, "deflateLevel", PerMessageDeflate.DEFAULT_LEVEL);
+        int port = intOption(options, "port", 3901);
+        int warmup = intOption(options, "warmup", 5);
+        int duration = intOption(options, "duration", 30);
+
+        GatewayPipeline pipeline = new GatewayPipeline(port, reactors, GatewayPipeline.Logger.NONE);
+        pipeline.setBatching(batch > 1);
+        if (!deflate.equals("off")) {
+            if (!deflate.equals("shared") && !deflate.equals("takeover")) {
+                throw new IllegalArgumentException("--deflate must be off, shared or takeover");
+            }
+            pipeline.setCompression(new PerMessageDeflate(deflate.equals("takeover"), deflateMin, deflateLevel));
+        }
+        // What Chrome and Firefox offer
+        String extensions = deflate.equals("off") ? null : "permessage-deflate; client_max_window_bits";
+        pipeline.start();
+
+        AdvertisementInjector injector = new AdvertisementInjector(pipeline, devices, noise, rate, batch, 42);
+        Phase phase = new Phase();
+        LatencyHistogram fastLatency = new LatencyHistogram();
+        List<LoadClient> clients = new ArrayList<>();
+        for (int i = 0; i < clientCount; i++) {
+            // Slow clients come last so the fast ones keep contiguous ids in the report
+            boolean isSlow = i >= clientCount - slow;
+            LoadClient client = new LoadClient(i, port, subscribeMessage(i, devicesPerClient, injector, devices),
+                extensions, isSlow ? slowDelayMs : 0, injector, phase, isSlow ? null : fastLatency);
+            clients.add(client);
+        }
+        waitForListener(port);
+        for (LoadClient client : clients) {
+            client.start();
+        }
+        long deadline = System.currentTimeMillis() + SHUTDOWN_MS;
+        while (pipeline.getClientCount() < clientCount && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        System.out.println("Load: " + rate + " adv/s over " + devices + " devices (noise " + noise + ", batch "
+            + batch + "), " + clientCount + " clients (" + slow + " slow), " + reactors + " reactors, deflate "
+            + deflate);
+        Thread injectorThread = new Thread(injector, "load-injector");
+        injectorThread.start();
+        Thread.sleep(warmup * 1000L);
+
+        WebSocketServer server = pipeline.getServer();
+        long injected0 = injector.getInjected();
+        long published0 = pipeline.getPublishedEvents();
+        long bytes0 = server.getBytesWritten();
+        long start = System.nanoTime();
+        phase.measuring = true;
+        Thread.sleep(duration * 1000L);
+        long injected = injector.getInjected() - injected0;
+        long published = pipeline.getPublishedEvents() - published0;
+        long bytes = server.getBytesWritten() - bytes0;
+        double seconds = (System.nanoTime() - start) / 1e9;
+        injector.stop();
+        injectorThread.join();
+        // Let queued frames reach the clients before the numbers are read
+        Thread.sleep(DRAIN_MS);
+        phase.measuring = false;
+
+        report(clients, fastLatency, injected, published, bytes, seconds, pipeline);
+        System.out.printf("Pipeline: staged %d, ring drops %d, coalesced %d%n", injector.getStaged(),
+            pipeline.getRingDroppedEvents(), pipeline.getCoalescedEvents());
+        System.out.printf("Server: dropped %d frames, coalesced %d, slow-consumer disconnects %d, %d wakeups%n",
+            server.getDroppedFrames(), server.getCoalescedFrames(), server.getSlowConsumerDisconnects(),
+            server.getReactorWakeups());
+
+        PerMessageDeflate compression = server.getCompression();
+        if (compression != null) {
+            reportCompression(clients, compression);
+        }
+
+        pipeline.stop(SHUTDOWN_MS);
+        for (LoadClient client : clients) {
+            client.close();
+            client.join(SHUTDOWN_MS);
+        }
+    }
+
+    private static void report(List<LoadClient> clients, LatencyHistogram fastLatency, long injected,
+                               long published, long bytes, double seconds, GatewayPipeline pipeline) {
+        long delivered = 0;
+        long unmatched = 0;
+        for (LoadClient client : clients) {
+            delivered += client.getEvents();
+            unmatched += client.getUnmatched();
+        }
+        System.out.printf("Throughput: %.0f adv/s injected, %.0f events/s published, %.0f events/s delivered,"
+            + " %.1f MB/s written%n", injected / seconds, published / seconds, delivered / seconds,
+            bytes / seconds / 1e6);
+        if (unmatched > 0) {
+            System.out.println("  " + unmatched + " delivered events could not be matched to an injection time");
+        }
+        System.out.println("Latency (ms)            p50      p99     p999      max    count");
+        line("scan->client", fastLatency);
+        line("scan->encode", pipeline.getEncodeLatency());
+        line("scan->socket write", pipeline.getServer().getWriteLatency());
+        System.out.println("  (scan->encode and scan->socket write include warmup)");
+
+        // Every client when there are few; otherwise the slow ones and the worst of the rest
+        List<LoadClient> shown = new ArrayList<>(clients);
+        if (shown.size() > MAX_CLIENT_ROWS) {
+            shown.sort(Comparator.comparing(LoadClient::isSlow).reversed()
+                .thenComparing(client -> -client.getLatency().quantileMicros(0.99)));
+            shown = shown.subList(0, Math.min(shown.size(), countSlow(clients) + WORST_CLIENT_ROWS));
+        }
+        System.out.println("Per client lag (ms)     p50      p99     p999      max   events  close");
+        for (LoadClient client : shown) {
+            LatencyHistogram latency = client.getLatency();
+            System.out.printf("  %-4d %-10s %8s %8s %8s %8s %8d  %s%n", client.getId(),
+                client.isSlow() ? "slow" : "", millis(latency.quantileMicros(0.5)),
+                millis(latency.quantileMicros(0.99)), millis(latency.quantileMicros(0.999)),
+                millis(latency.getMaxMicros()), client.getEvents(),
+                client.getCloseCode() < 0 ? "open" : client.getCloseCode()
+                    + (client.getError() != null ? " " + client.getError() : ""));
+        }
+    }
+
+    // Server side since start (warmup included); client side over the measurement window
+    private static void reportCompression(List<LoadClient> clients, PerMessageDeflate compression) {
+        long messages = compression.getDeflatedMessages();
+        long nanos = compression.getDeflateNanos();
+        long output = compression.getOutputBytes();
+        System.out.printf("Deflate: %d messages compressed, %d sent plain, ratio %.2f, %.0f ms CPU"
+            + " (%.1f us per message)%n", messages, compression.getSkippedMessages(),
+            output == 0 ? 0 : (double) compression.getInputBytes() / output,
+            nanos / 1e6, messages == 0 ? 0 : nanos / 1e3 / messages);
+        long wire = 0;
+        long payload = 0;
+        for (LoadClient client : clients) {
+            wire += client.getWireBytes();
+            payload += client.getPayloadBytes();
+        }
+        System.out.printf("  clients received %.1f MB of payload as %.1f MB on the wire (%.2fx)%n",
+            payload / 1e6, wire / 1e6, wire == 0 ? 0 : (double) payload / wire);
+    }
+
+    private static int countSlow(List<LoadClient> clients) {
+        int count = 0;
+        for (LoadClient client : clients) {
+            if (client.isSlow()) count++;
+        }
+        return count;
+    }
+
+    private static void line(String label, LatencyHistogram histogram) {
+        StringBuilder out = new StringBuilder(String.format("  %-18s", label));
+        for (double q : QUANTILES) {
+            out.append(String.format(" %8s", millis(histogram.quantileMicros(q))));
+        }
+        out.append(String.format(" %8s %8d", millis(histogram.getMaxMicros()), histogram.getCount()));
+        System.out.println(out);
+    }
+
+    private static String millis(long micros) {
+        return String.format("%.2f", micros / 1000.0);
+    }
+
+    // The message gatewayClient.js sends for a guest's devices, or a wildcard subscribe
+    private static String subscribeMessage(int client, int devicesPerClient, AdvertisementInjector injector,
+                                           int devices) {
+        StringBuilder message = new StringBuilder("{\"type\":\"subscribe\"");
+        if (devicesPerClient > 0) {
+            message.append(",\"userId\":\"load-").append(client).append("\",\"devices\":[");
+            for (int i = 0; i < devicesPerClient; i++) {
+                if (i > 0) message.append(',');
+                int device = (client * devicesPerClient + i) % devices;
+                message.append('"').append(MacAddress.toString(injector.mac(device))).append('"');
+            }
+            message.append(']');
+        }
+        return message.append('}').toString();
+    }
+
+    // serve() binds on the server thread; connect attempts before that are refused
+    private static void waitForListener(int port) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + SHUTDOWN_MS;
+        while (System.currentTimeMillis() < deadline) {
+            Socket probe;
+            try {
+                probe = new Socket("127.0.0.1", port);
+            } catch (IOException e) {
+                Thread.sleep(20);
+                continue;
+            }
+            // Only the connect mattered
+            try {
+                probe.close();
+            } catch (IOException ignored) {
+            }
+            return;
+        }
+        throw new IllegalStateException("Gateway did not start listening on port " + port);
+    }
+
+    private static Map<String, String> parse(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || arg.indexOf('=') < 0) {
+                throw new IllegalArgumentException("Expected --name=value, got " + arg);
+            }
+            int eq = arg.indexOf('=');
+            options.put(arg.substring(2, eq), arg.substring(eq + 1));
+        }
+        return options;
+    }
+
+    private static int intOption(Map<String, String> options, String name, int defaultValue) {
+        String value = options.get(name);
+        return value != null ? Integer.parseInt(value) : defaultValue;
+    }
+}
@@ -0,0 +1,61 @@
+package com.hotel.blegateway;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BeaconCoalescerTest {
+    private static final long NOW = 1700000000000L;
+
+    private final BeaconEvent event = new BeaconEvent();
+
+    @Test
+    public void defaultsSendMovesOncePerIntervalAndKeepalives() {
+        BeaconCoalescer coalescer = new BeaconCoalescer(16);
+        assertTrue(shouldEmit(coalescer, -60, NOW, false));
+        // Moved, but within the minimum interval
+        assertFalse(shouldEmit(coalescer, -70, NOW + 500, false));
+        assertTrue(shouldEmit(coalescer, -70, NOW + 1000, false));
+        // Interval passed, but the RSSI barely moved
+        assertFalse(shouldEmit(coalescer, -71, NOW + 3000, false));
+        assertTrue(shouldEmit(coalescer, -71, NOW + 1000 + BeaconCoalescer.DEFAULT_KEEPALIVE_MS, false));
+        // Transitions are never held back
+        assertTrue(shouldEmit(coalescer, -71, NOW + 1000 + BeaconCoalescer.DEFAULT_KEEPALIVE_MS + 1, true));
+        assertEquals(4, coalescer.getEmitted());
+        assertEquals(2, coalescer.getCoalesced());
+    }
+
+    @Test
+    public void transitionsOnlySendsNothingElse() {
+        BeaconCoalescer coalescer = new BeaconCoalescer(16);
+        coalescer.configureTransitionsOnly(BeaconClass.ROOM);
+        assertTrue(shouldEmit(coalescer, -60, NOW, false));
+        assertFalse(shouldEmit(coalescer, -90, NOW + 60000, false));
+        assertFalse(shouldEmit(coalescer, -40, NOW + 3600000, false));
+        assertTrue(shouldEmit(coalescer, -40, NOW + 3600001, true));
+    }
+
+    @Test
+    public void classesAreConfiguredIndependently() {
+        BeaconCoalescer coalescer = new BeaconCoalescer(16);
+        coalescer.configure(BeaconClass.GATE, 0, 0, 0);
+        event.set(1, -60, NOW, BeaconClass.GATE, "Gate");
+        assertTrue(coalescer.shouldEmit(event, false));
+        assertTrue(coalescer.shouldEmit(event, false));
+        // ROOM keeps the defaults
+        assertTrue(shouldEmit(coalescer, -60, NOW, false));
+        assertFalse(shouldEmit(coalescer, -60, NOW, false));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNegativeSettings() {
+        new BeaconCoalescer(16).configure(BeaconClass.ROOM, -1, 3, 10000);
+    }
+
+    private boolean shouldEmit(BeaconCoalescer coalescer, int rssi, long timestamp, boolean zoneChanged) {
+        event.set(2, rssi, timestamp, BeaconClass.ROOM, "Room 2");
+        return coalescer.shouldEmit(event, zoneChanged);
+    }
+}
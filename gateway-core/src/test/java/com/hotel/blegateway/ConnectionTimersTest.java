@@ -0,0 +1,113 @@
+package com.hotel.blegateway;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.net.Socket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+// Keepalive and handshake deadlines as the reactors' timer wheels enforce them. Reactors advance
+// their wheel at least once a second, so every wait allows a few seconds.
+public class ConnectionTimersTest {
+    private static final long PING_INTERVAL_MS = 300;
+    private static final long PONG_TIMEOUT_MS = 300;
+    private static final long WRITE_STALL_MS = 1000;
+
+    private GatewayPipeline pipeline;
+    private WebSocketServer server;
+    private int port;
+
+    @Before
+    public void startPipeline() throws Exception {
+        port = TestClient.freePort();
+        pipeline = new GatewayPipeline(port, 2, GatewayPipeline.Logger.NONE);
+        server = pipeline.getServer();
+        server.setKeepalive(PING_INTERVAL_MS, PONG_TIMEOUT_MS, WRITE_STALL_MS);
+        server.setHandshakeTimeouts(300, 300);
+        pipeline.start();
+    }
+
+    @After
+    public void stopPipeline() throws Exception {
+        pipeline.stop(2000);
+    }
+
+    @Test
+    public void aClientThatAnswersPingsStaysConnected() throws Exception {
+        try (TestClient client = new TestClient(port, null)) {
+            long until = System.currentTimeMillis() + 10 * PING_INTERVAL_MS;
+            while (System.currentTimeMillis() < until) {
+                // Answers each ping as it comes in
+                assertNull(client.receive(100));
+            }
+            assertTrue(server.getPingsSent() >= 2);
+            assertTrue(client.eventsUntilResumed(0, null).isEmpty());
+            assertEquals(-1, client.getCloseCode());
+            assertEquals(0, server.getConnectionTimeouts(WebSocketReactor.TIMEOUT_PONG));
+        }
+    }
+
+    @Test
+    public void aClientThatStopsAnsweringIsReaped() throws Exception {
+        try (TestClient answering = new TestClient(port, null)) {
+            // Never reads, so never answers its pings
+            TestClient silent = new TestClient(port, null);
+            try {
+                long deadline = System.currentTimeMillis() + 10000;
+                while (server.getConnectionTimeouts(WebSocketReactor.TIMEOUT_PONG) == 0
+                    && System.currentTimeMillis() < deadline) {
+                    answering.receive(50);
+                }
+            } finally {
+                silent.close();
+            }
+            assertEquals(1, server.getConnectionTimeouts(WebSocketReactor.TIMEOUT_PONG));
+            assertTrue(answering.eventsUntilResumed(0, null).isEmpty());
+            assertEquals(-1, answering.getCloseCode());
+        }
+    }
+
+    @Test
+    public void aClientThatStopsReadingIsClosedAsAWriteStall() throws Exception {
+        try (TestClient stalled = new TestClient(port, null)) {
+            stalled.send("{\"type\":\"subscribe\"}");
+            assertTrue(stalled.eventsUntilResumed(0, null).isEmpty());
+
+            // From here on it only talks, so it never owes a pong; the events it does not read fill
+            // both socket buffers and then its queue. Each beacon is new, so each event goes out.
+            StringBuilder name = new StringBuilder("Room ");
+            while (name.length() < 2000) {
+                name.append('x');
+            }
+            long mac = 0xC0FFEE000000L;
+            long deadline = System.currentTimeMillis() + 10 * WRITE_STALL_MS;
+            while (server.getConnectionTimeouts(WebSocketReactor.TIMEOUT_WRITE_STALL) == 0
+                && System.currentTimeMillis() < deadline) {
+                stalled.send("{}");
+                long now = System.currentTimeMillis();
+                for (int i = 0; i < 20; i++) {
+                    pipeline.stage(++mac, name.toString(), -50, now, 0);
+                }
+                pipeline.publishStaged();
+                Thread.sleep(5);
+            }
+            assertEquals(1, server.getConnectionTimeouts(WebSocketReactor.TIMEOUT_WRITE_STALL));
+            assertEquals(0, server.getConnectionTimeouts(WebSocketReactor.TIMEOUT_PONG));
+        }
+    }
+
+    @Test
+    public void aConnectionWithoutAnUpgradeRequestIsDropped() throws Exception {
+        try (Socket socket = TestClient.connect(port)) {
+            socket.setSoTimeout(5000);
+            InputStream in = socket.getInputStream();
+            assertEquals(-1, in.read());
+        }
+        assertEquals(1, server.getConnectionTimeouts(WebSocketReactor.TIMEOUT_HANDSHAKE));
+    }
+}
@@ -0,0 +1,109 @@
+package com.hotel.blegateway;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class EventJournalTest {
+    private static final int RECORDS_PER_SEGMENT = 100;
+    private static final long SEGMENT_BYTES = EventJournal.HEADER_SIZE
+        + (long) RECORDS_PER_SEGMENT * EventJournal.RECORD_SIZE;
+    private static final long HOUR_MS = 60L * 60 * 1000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final long start = System.currentTimeMillis();
+    private final BeaconEvent event = new BeaconEvent();
+
+    @Test
+    public void readsATimeRangeAcrossSegments() throws IOException {
+        EventJournal journal = new EventJournal(folder.getRoot(), SEGMENT_BYTES, HOUR_MS, Long.MAX_VALUE);
+        append(journal, 250, 0);
+        assertEquals(3, journal.getSegmentCount());
+
+        EventJournal.Cursor cursor = journal.read(start + 50, start + 199);
+        for (int i = 50; i < 200; i++) {
+            assertTrue(cursor.next());
+            assertEquals(start + i, cursor.timestamp());
+            assertEquals(0xD0000000L + i % 7, cursor.mac());
+            assertEquals(-60 - i % 20, cursor.rssi());
+            assertEquals(-50 - i % 20, cursor.rawRssi());
+            assertEquals(BeaconClass.ROOM, cursor.beaconClass());
+            assertEquals(Zone.of(BeaconClass.ROOM, i % 2 == 0), cursor.zone());
+            assertEquals(i % 7, cursor.nameId());
+            assertEquals(i % 10 == 0, cursor.isTransition());
+        }
+        assertFalse(cursor.next());
+        journal.close();
+    }
+
+    @Test
+    public void recoversRecordsOfASegmentThatWasNeverSealed() throws IOException {
+        EventJournal crashed = new EventJournal(folder.getRoot(), SEGMENT_BYTES, HOUR_MS, Long.MAX_VALUE);
+        append(crashed, 130, 0);
+
+        // Opened again without close(), as after the process was killed
+        EventJournal reopened = new EventJournal(folder.getRoot(), SEGMENT_BYTES, HOUR_MS, Long.MAX_VALUE);
+        assertEquals(130, count(reopened.read(0, Long.MAX_VALUE), false));
+        reopened.close();
+        crashed.close();
+    }
+
+    @Test
+    public void compactsToTransitionsThenDeletesToStayWithinBudget() throws IOException {
+        long budget = 3 * SEGMENT_BYTES;
+        EventJournal journal = new EventJournal(folder.getRoot(), SEGMENT_BYTES, HOUR_MS, budget);
+        append(journal, 10 * RECORDS_PER_SEGMENT, 0);
+        // Waits for the maintenance thread to finish with the last rotation
+        journal.close();
+        assertTrue(journal.getDiskBytes() <= budget);
+        assertTrue(journal.getCompactedSegments() > 0);
+        assertEquals(0, journal.getDeletedSegments());
+
+        // Older segments keep only their transitions, the newest keep everything
+        int all = count(journal.read(0, Long.MAX_VALUE), false);
+        int transitions = count(journal.read(0, Long.MAX_VALUE), true);
+        assertEquals(all, transitions + 2 * RECORDS_PER_SEGMENT - 2 * RECORDS_PER_SEGMENT / 10);
+        assertEquals(10 * RECORDS_PER_SEGMENT / 10, transitions);
+
+        journal = new EventJournal(folder.getRoot(), SEGMENT_BYTES, HOUR_MS, budget);
+        append(journal, 30 * RECORDS_PER_SEGMENT, 10 * RECORDS_PER_SEGMENT);
+        journal.close();
+        assertTrue(journal.getDiskBytes() <= budget);
+        assertTrue(journal.getDeletedSegments() > 0);
+        // What is left is the newest history, oldest records first
+        EventJournal.Cursor cursor = journal.read(0, Long.MAX_VALUE);
+        long previous = 0;
+        long newest = 0;
+        while (cursor.next()) {
+            assertTrue(cursor.timestamp() > previous);
+            previous = cursor.timestamp();
+            newest = Math.max(newest, previous);
+        }
+        assertEquals(start + 40 * RECORDS_PER_SEGMENT - 1, newest);
+    }
+
+    // Every tenth record is a zone transition
+    private void append(EventJournal journal, int count, int offset) {
+        for (int i = offset; i < offset + count; i++) {
+            event.set(0xD0000000L + i % 7, -60 - i % 20, start + i, BeaconClass.ROOM, "Room");
+            event.zone = Zone.of(BeaconClass.ROOM, i % 2 == 0);
+            journal.append(event, -50 - i % 20, i % 7, i % 10 == 0);
+        }
+    }
+
+    private static int count(EventJournal.Cursor cursor, boolean transitionsOnly) throws IOException {
+        int count = 0;
+        while (cursor.next()) {
+            if (!transitionsOnly || cursor.isTransition()) count++;
+        }
+        return count;
+    }
+}
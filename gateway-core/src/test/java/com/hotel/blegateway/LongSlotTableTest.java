@@ -0,0 +1,48 @@
+package com.hotel.blegateway;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LongSlotTableTest {
+    @Test
+    public void theEmptyKeyNeverGetsASlot() {
+        LongSlotTable table = new LongSlotTable(4);
+        int slot = table.getOrAdd(0xC0FFEE000001L);
+        assertTrue(table.lastAdded());
+        table.remove(0xC0FFEE000001L);
+
+        // Would have matched the bucket the removed key left empty and handed out its stale slot
+        assertEquals(LongSlotTable.NO_SLOT, table.getOrAdd(MacAddress.NONE));
+        assertFalse(table.lastAdded());
+        assertEquals(LongSlotTable.NO_SLOT, table.get(MacAddress.NONE));
+        assertEquals(0, table.size());
+        assertEquals(slot, table.getOrAdd(0xC0FFEE000002L));
+    }
+
+    @Test
+    public void slotsAreReusedAfterRemovalAndProbeChainsSurvive() {
+        LongSlotTable table = new LongSlotTable(64);
+        for (long key = 1; key <= 64; key++) {
+            assertTrue(table.getOrAdd(key) != LongSlotTable.NO_SLOT);
+        }
+        assertEquals(LongSlotTable.NO_SLOT, table.getOrAdd(65));
+        for (long key = 1; key <= 64; key += 2) {
+            table.remove(key);
+        }
+        for (long key = 2; key <= 64; key += 2) {
+            assertEquals(key, table.keyAt(table.get(key)));
+        }
+        assertEquals(32, table.size());
+        assertTrue(table.getOrAdd(65) != LongSlotTable.NO_SLOT);
+    }
+
+    @Test
+    public void thePipelineDropsUnparsableAddresses() {
+        GatewayPipeline pipeline = new GatewayPipeline(0, 1, GatewayPipeline.Logger.NONE);
+        assertFalse(pipeline.stage(MacAddress.toLong("not-a-mac"), "Room 1", -50, System.currentTimeMillis(), 0));
+        assertTrue(pipeline.stage(0xC0FFEE000001L, "Room 1", -50, System.currentTimeMillis(), 0));
+    }
+}
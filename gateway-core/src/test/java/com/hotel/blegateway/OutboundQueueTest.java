@@ -0,0 +1,102 @@
+package com.hotel.blegateway;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class OutboundQueueTest {
+    @Test
+    public void nothingButAStartedFrameGoesOutAfterTheClose() throws Exception {
+        FramePool pool = new FramePool(64, 4);
+        OutboundQueue queue = new OutboundQueue(8, OutboundQueue.OverflowPolicy.COALESCE_PER_BEACON);
+        PooledFrame first = frame(pool, "first");
+        PooledFrame second = frame(pool, "second");
+        queue.offer(first.share(), 1, first);
+        queue.offer(second.share(), 2, second);
+        // The queue holds the only references from here on
+        first.release();
+        second.release();
+        queue.offerControl(text("ping"));
+
+        // The socket takes part of the first data frame, then has no room
+        Channel channel = new Channel(4 + 2);
+        assertFalse(queue.writeTo(channel));
+        assertEquals("pingfi", channel.written());
+
+        queue.offerClose(text("close"));
+        assertEquals("rst".length() + "close".length(), queue.getPendingBytes());
+        // The second frame went back to its pool without being written
+        assertSame(second, pool.acquire());
+
+        channel.room = Integer.MAX_VALUE;
+        assertTrue(queue.writeTo(channel));
+        assertEquals("pingfirstclose", channel.written());
+        assertTrue(queue.isEmpty());
+        assertSame(first, pool.acquire());
+    }
+
+    private static PooledFrame frame(FramePool pool, String text) {
+        PooledFrame frame = pool.acquire();
+        frame.buffer().clear();
+        frame.buffer().put(text.getBytes(StandardCharsets.US_ASCII)).flip();
+        return frame;
+    }
+
+    private static ByteBuffer text(String text) {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    // Accepts up to room bytes in total, like a socket whose send buffer fills up
+    private static final class Channel implements GatheringByteChannel {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        int room;
+
+        Channel(int room) {
+            this.room = room;
+        }
+
+        String written() {
+            return new String(bytes.toByteArray(), StandardCharsets.US_ASCII);
+        }
+
+        @Override
+        public long write(ByteBuffer[] sources, int offset, int length) {
+            long total = 0;
+            for (int i = offset; i < offset + length && room > 0; i++) {
+                while (sources[i].hasRemaining() && room > 0) {
+                    bytes.write(sources[i].get());
+                    room--;
+                    total++;
+                }
+            }
+            return total;
+        }
+
+        @Override
+        public long write(ByteBuffer[] sources) {
+            return write(sources, 0, sources.length);
+        }
+
+        @Override
+        public int write(ByteBuffer source) {
+            return (int) write(new ByteBuffer[] { source });
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
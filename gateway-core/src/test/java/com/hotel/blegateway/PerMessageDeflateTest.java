@@ -0,0 +1,115 @@
+package com.hotel.blegateway;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PerMessageDeflateTest {
+    private static final int SHARED = PerMessageDeflate.NEGOTIATED | PerMessageDeflate.SERVER_NO_CONTEXT_TAKEOVER;
+    private static final int TAKEOVER = PerMessageDeflate.NEGOTIATED;
+
+    private GatewayPipeline pipeline;
+    private final List<TestClient> clients = new ArrayList<>();
+
+    @After
+    public void stopPipeline() throws Exception {
+        for (TestClient client : clients) {
+            client.close();
+        }
+        if (pipeline != null) pipeline.stop(2000);
+    }
+
+    @Test
+    public void picksSharedUnlessTakeoverIsOnAndTheClientAllowsIt() throws IOException {
+        PerMessageDeflate shared = new PerMessageDeflate();
+        PerMessageDeflate takeover = new PerMessageDeflate(true, 32, PerMessageDeflate.DEFAULT_LEVEL);
+        assertEquals(SHARED, shared.negotiate(offer("permessage-deflate")));
+        assertEquals(TAKEOVER, takeover.negotiate(offer("permessage-deflate; client_max_window_bits")));
+        assertEquals(SHARED, takeover.negotiate(offer("permessage-deflate; server_no_context_takeover")));
+        assertEquals(0, takeover.negotiate(offer(null)));
+        assertEquals(0, takeover.negotiate(offer("x-webkit-deflate-frame")));
+
+        assertEquals("permessage-deflate; server_no_context_takeover; client_no_context_takeover",
+            PerMessageDeflate.responseHeader(SHARED));
+        assertEquals("permessage-deflate; client_no_context_takeover", PerMessageDeflate.responseHeader(TAKEOVER));
+    }
+
+    @Test
+    public void declinesOffersItCannotHonourAndTakesTheNextOne() throws IOException {
+        PerMessageDeflate takeover = new PerMessageDeflate(true, 32, PerMessageDeflate.DEFAULT_LEVEL);
+        // A smaller server window is not possible with java.util.zip
+        assertEquals(0, takeover.negotiate(offer("permessage-deflate; server_max_window_bits=10")));
+        assertEquals(0, takeover.negotiate(offer("permessage-deflate; client_no_context_takeover; "
+            + "client_no_context_takeover")));
+        assertEquals(0, takeover.negotiate(offer("permessage-deflate; server_no_context_takeover=1")));
+        assertEquals(0, takeover.negotiate(offer("permessage-deflate; client_max_window_bits=16")));
+        assertEquals(0, takeover.negotiate(offer("permessage-deflate; unknown_param")));
+
+        int echoed = takeover.negotiate(offer("permessage-deflate; server_max_window_bits=10, "
+            + "permessage-deflate; server_max_window_bits=\"15\"; client_max_window_bits=12"));
+        assertEquals(TAKEOVER | PerMessageDeflate.ECHO_WINDOW_BITS, echoed);
+        assertEquals("permessage-deflate; client_no_context_takeover; server_max_window_bits=15",
+            PerMessageDeflate.responseHeader(echoed));
+    }
+
+    @Test
+    public void eachClientGetsTheModeItNegotiated() throws Exception {
+        int port = TestClient.freePort();
+        pipeline = new GatewayPipeline(port, 1, GatewayPipeline.Logger.NONE);
+        PerMessageDeflate compression = new PerMessageDeflate(true, 32, PerMessageDeflate.DEFAULT_LEVEL);
+        pipeline.setCompression(compression);
+        pipeline.start();
+
+        TestClient plain = connect(port, null);
+        TestClient takeover = connect(port, "permessage-deflate; client_max_window_bits");
+        TestClient shared = connect(port, "permessage-deflate; server_no_context_takeover");
+        assertNull(plain.responseHeader(PerMessageDeflate.HEADER));
+        assertEquals(PerMessageDeflate.responseHeader(TAKEOVER), takeover.responseHeader(PerMessageDeflate.HEADER));
+        assertEquals(PerMessageDeflate.responseHeader(SHARED), shared.responseHeader(PerMessageDeflate.HEADER));
+
+        long now = System.currentTimeMillis();
+        for (int i = 1; i <= 10; i++) {
+            pipeline.stage(0xC0FFEE000000L + i, "Room " + i, -50, now, 0);
+        }
+        pipeline.publishStaged();
+        TestClient.waitFor(() -> pipeline.getLastSeq() >= 10);
+
+        // Same events whichever way they travelled
+        for (TestClient client : clients) {
+            List<JSONObject> events = client.eventsUntilResumed(10, null);
+            assertEquals(10, events.size());
+            for (int i = 0; i < events.size(); i++) {
+                assertEquals(i + 1, events.get(i).getLong("seq"));
+                assertEquals("Room " + (i + 1), events.get(i).getString("beaconName"));
+            }
+        }
+        assertEquals(0, plain.getCompressedMessages());
+        assertTrue(takeover.getCompressedMessages() > 0);
+        assertTrue(shared.getCompressedMessages() > 0);
+        assertTrue(compression.getOutputBytes() < compression.getInputBytes());
+    }
+
+    private TestClient connect(int port, String extensions) throws Exception {
+        TestClient client = new TestClient(port, extensions);
+        clients.add(client);
+        client.send("{\"type\":\"subscribe\"}");
+        assertTrue(client.eventsUntilResumed(0, null).isEmpty());
+        return client;
+    }
+
+    private static HttpRequest offer(String extensions) throws IOException {
+        String head = "GET / HTTP/1.1\r\nHost: gateway\r\n"
+            + (extensions != null ? PerMessageDeflate.HEADER + ": " + extensions + "\r\n" : "") + "\r\n";
+        return HttpRequest.parse(ByteBuffer.wrap(head.getBytes(StandardCharsets.US_ASCII)));
+    }
+}
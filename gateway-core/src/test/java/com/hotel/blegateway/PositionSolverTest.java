@@ -0,0 +1,143 @@
+package com.hotel.blegateway;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PositionSolverTest {
+    private static final long T = 1700000000000L;
+    private static final long DEVICE = 0xC0FFEE000001L;
+    private static final long A1 = 0xAABBCCDDEE01L;
+    private static final long A2 = 0xAABBCCDDEE02L;
+    private static final long A3 = 0xAABBCCDDEE03L;
+    private static final long A4 = 0xAABBCCDDEE04L;
+
+    private final PositionEstimate estimate = new PositionEstimate();
+
+    @Test
+    public void parsesTheMapAndRejectsBadLines() {
+        BeaconMap map = BeaconMap.parse("# lobby\n"
+            + "AA:BB:CC:DD:EE:01  12.5  3.0  2\n"
+            + "\n"
+            + "AA:BB:CC:DD:EE:02  40.0  3.0  3  -62  2.4\n");
+        assertEquals(2, map.size());
+        int first = map.indexOf(A1);
+        assertEquals(12.5f, map.x(first), 0f);
+        assertEquals(2, map.floor(first));
+        assertEquals(BeaconMap.DEFAULT_TX_POWER, map.txPower(first), 0f);
+        assertEquals(BeaconMap.DEFAULT_PATH_LOSS_EXPONENT, map.pathLossExponent(first), 0f);
+        int second = map.indexOf(A2);
+        assertEquals(-62f, map.txPower(second), 0f);
+        assertEquals(2.4f, map.pathLossExponent(second), 0f);
+        assertEquals(-1, map.indexOf(A3));
+
+        assertRejected("AA:BB:CC:DD:EE:01 1 2\n");
+        assertRejected("AA:BB:CC:DD:EE:01 1 2 0\nAA:BB:CC:DD:EE:01 3 4 0\n");
+        assertRejected("AA:BB:CC:DD:EE:01 1 2 0 -59 0\n");
+        assertRejected("not-a-mac 1 2 0\n");
+    }
+
+    @Test
+    public void convergesOnTheDeviceFromModelledRssi() {
+        PositionSolver solver = new PositionSolver(squareMap(), 16, 0, PositionSolver.DEFAULT_ANCHOR_TIMEOUT_MS);
+        long now = T;
+        assertTrue(solver.observe(DEVICE, A1, rssiAt(solver.getMap(), A1, 3, 4), now, estimate));
+        float oneAnchor = estimate.confidence;
+        for (int round = 0; round < 10; round++) {
+            for (long anchor : new long[] { A1, A2, A3, A4 }) {
+                now += 50;
+                assertTrue(solver.observe(DEVICE, anchor, rssiAt(solver.getMap(), anchor, 3, 4), now, estimate));
+            }
+        }
+        assertEquals(DEVICE, estimate.device);
+        assertEquals(3f, estimate.x, 0.5f);
+        assertEquals(4f, estimate.y, 0.5f);
+        assertEquals(0, estimate.floor);
+        assertEquals(4, estimate.beacons);
+        // Four agreeing anchors make a much better fix than one
+        assertTrue(estimate.confidence > 2 * oneAnchor);
+        assertEquals(now, estimate.timestamp);
+
+        // Readings of beacons outside the map are ignored
+        assertFalse(solver.observe(DEVICE, 0xAABBCCDDEEFFL, -40, now + 50, estimate));
+        assertEquals(41, solver.getObservations());
+    }
+
+    @Test
+    public void publishesTheFirstFixAtOnceThenAtMostOncePerInterval() {
+        PositionSolver solver = new PositionSolver(squareMap(), 16, 500, PositionSolver.DEFAULT_ANCHOR_TIMEOUT_MS);
+        assertTrue(solver.observe(DEVICE, A1, -65, T, estimate));
+        assertFalse(solver.observe(DEVICE, A2, -65, T + 100, estimate));
+        assertFalse(solver.observe(DEVICE, A3, -65, T + 499, estimate));
+        assertTrue(solver.observe(DEVICE, A4, -65, T + 500, estimate));
+        assertEquals(4, estimate.beacons);
+        assertEquals(4, solver.getUpdates());
+        assertEquals(2, solver.getPublished());
+    }
+
+    @Test
+    public void switchesFloorOnlyOnClearlyStrongerEvidence() {
+        BeaconMap map = BeaconMap.parse("AA:BB:CC:DD:EE:01 0 0 2\nAA:BB:CC:DD:EE:02 10 0 2\n"
+            + "AA:BB:CC:DD:EE:03 0 0 3\nAA:BB:CC:DD:EE:04 10 0 3\n");
+        PositionSolver solver = new PositionSolver(map, 16, 0, PositionSolver.DEFAULT_ANCHOR_TIMEOUT_MS);
+        solver.observe(DEVICE, A1, -70, T, estimate);
+        solver.observe(DEVICE, A2, -70, T + 10, estimate);
+        assertEquals(2, estimate.floor);
+
+        // Slightly louder upstairs is not enough
+        solver.observe(DEVICE, A3, -69, T + 20, estimate);
+        solver.observe(DEVICE, A4, -69, T + 30, estimate);
+        assertEquals(2, estimate.floor);
+        assertEquals(2, estimate.beacons);
+
+        long now = T + 30;
+        for (int i = 0; i < 10; i++) {
+            solver.observe(DEVICE, A3, -60, now += 10, estimate);
+            solver.observe(DEVICE, A4, -60, now += 10, estimate);
+        }
+        assertEquals(3, estimate.floor);
+
+        // Once the upstairs anchors time out, downstairs takes over again
+        now += PositionSolver.DEFAULT_ANCHOR_TIMEOUT_MS + 1;
+        assertTrue(solver.observe(DEVICE, A1, -70, now, estimate));
+        assertEquals(2, estimate.floor);
+        assertEquals(1, estimate.beacons);
+    }
+
+    @Test
+    public void rejectsDevicesBeyondCapacityUntilOneIsForgotten() {
+        PositionSolver solver = new PositionSolver(squareMap(), 1, 0, PositionSolver.DEFAULT_ANCHOR_TIMEOUT_MS);
+        assertTrue(solver.observe(DEVICE, A1, -60, T, estimate));
+        assertFalse(solver.observe(DEVICE + 1, A1, -60, T, estimate));
+        assertEquals(1, solver.getRejected());
+        assertTrue(solver.forget(DEVICE));
+        assertTrue(solver.observe(DEVICE + 1, A1, -60, T, estimate));
+        assertEquals(DEVICE + 1, estimate.device);
+        assertEquals(1, solver.getTrackedDevices());
+    }
+
+    // Anchors at the corners of a 10 m square on the ground floor
+    private static BeaconMap squareMap() {
+        return BeaconMap.parse("AA:BB:CC:DD:EE:01 0 0 0\nAA:BB:CC:DD:EE:02 10 0 0\n"
+            + "AA:BB:CC:DD:EE:03 10 10 0\nAA:BB:CC:DD:EE:04 0 10 0\n");
+    }
+
+    // Log-distance path loss, rounded to whole dB like a real scan record
+    private static int rssiAt(BeaconMap map, long anchor, double x, double y) {
+        int index = map.indexOf(anchor);
+        double distance = Math.hypot(x - map.x(index), y - map.y(index));
+        return (int) Math.round(map.txPower(index) - 10 * map.pathLossExponent(index) * Math.log10(distance));
+    }
+
+    private static void assertRejected(String text) {
+        try {
+            BeaconMap.parse(text);
+            fail("Accepted " + text.trim());
+        } catch (IllegalArgumentException expected) {
+            // NumberFormatException included
+        }
+    }
+}
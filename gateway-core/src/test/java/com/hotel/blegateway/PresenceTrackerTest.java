@@ -0,0 +1,126 @@
+package com.hotel.blegateway;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PresenceTrackerTest {
+    // On a tick boundary, so deadlines fall on ticks as well
+    private static final long T = 1700000000000L;
+    private static final long MAC = 0xC0FFEE000001L;
+
+    private final List<Long> exits = new ArrayList<>();
+    private final List<Long> lastSeen = new ArrayList<>();
+    private final PresenceTracker.Listener listener = (mac, beaconClass, rssi, nameId, seen) -> {
+        exits.add(mac);
+        lastSeen.add(seen);
+    };
+
+    @Test
+    public void expiresExactlyAtTheClassTimeout() {
+        PresenceTracker tracker = new PresenceTracker(16);
+        tracker.expire(T, listener);
+        List<int[]> reported = new ArrayList<>();
+        tracker.touch(MAC, BeaconClass.ROOM, -61, 7, T);
+        assertEquals(0, tracker.expire(T + 59999, listener));
+        assertEquals(1, tracker.expire(T + 60000,
+            (mac, beaconClass, rssi, nameId, seen) -> reported.add(new int[] { beaconClass, rssi, nameId })));
+        assertEquals(BeaconClass.ROOM, reported.get(0)[0]);
+        assertEquals(-61, reported.get(0)[1]);
+        assertEquals(7, reported.get(0)[2]);
+        assertEquals(0, tracker.getTrackedBeacons());
+        assertEquals(1, tracker.getExpired());
+
+        // Gates are passed through and time out sooner
+        tracker.touch(MAC, BeaconClass.GATE, -61, 7, T + 60000);
+        assertEquals(1, tracker.expire(T + 75000, listener));
+    }
+
+    @Test
+    public void hearingABeaconAgainPushesItsDeadlineOut() {
+        PresenceTracker tracker = new PresenceTracker(16);
+        tracker.expire(T, listener);
+        tracker.touch(MAC, BeaconClass.ROOM, -60, 0, T);
+        tracker.touch(MAC, BeaconClass.ROOM, -60, 0, T + 30000);
+        // A late batched result does not pull it back in
+        tracker.touch(MAC, BeaconClass.ROOM, -60, 0, T + 10000);
+        assertEquals(0, tracker.expire(T + 60000, listener));
+        assertEquals(1, tracker.getRescheduled());
+        assertEquals(0, tracker.expire(T + 89999, listener));
+        assertEquals(1, tracker.expire(T + 90000, listener));
+        assertEquals(Long.valueOf(T + 30000), lastSeen.get(0));
+    }
+
+    @Test
+    public void deadlinesBeyondOneRevolutionWaitForTheirRound() {
+        PresenceTracker tracker = new PresenceTracker(16);
+        // The wheel covers 256 s
+        tracker.setSilence(BeaconClass.ROOM, 600000);
+        tracker.expire(T, listener);
+        tracker.touch(MAC, BeaconClass.ROOM, -60, 0, T);
+        for (long now = T + 1000; now < T + 600000; now += 1000) {
+            assertEquals(0, tracker.expire(now, listener));
+        }
+        assertEquals(1, tracker.expire(T + 600000, listener));
+    }
+
+    @Test
+    public void oneCallAfterALongStallExpiresEverythingDue() {
+        PresenceTracker tracker = new PresenceTracker(1024);
+        tracker.expire(T, listener);
+        for (int i = 0; i < 1000; i++) {
+            tracker.touch(MAC + i, i % 2 == 0 ? BeaconClass.GATE : BeaconClass.ROOM, -60, 0, T + i * 100);
+        }
+        tracker.touch(MAC + 1000, BeaconClass.ROOM, -60, 0, T + 3600000);
+        assertEquals(1000, tracker.expire(T + 3600000, listener));
+        assertEquals(1, tracker.getTrackedBeacons());
+    }
+
+    @Test
+    public void forgottenAndRejectedBeaconsAreNotReported() {
+        PresenceTracker tracker = new PresenceTracker(1);
+        tracker.expire(T, listener);
+        assertTrue(tracker.touch(MAC, BeaconClass.ROOM, -60, 0, T));
+        assertFalse(tracker.touch(MAC + 1, BeaconClass.ROOM, -60, 0, T));
+        assertEquals(1, tracker.getRejected());
+        assertTrue(tracker.forget(MAC));
+        assertFalse(tracker.forget(MAC));
+        assertEquals(0, tracker.expire(T + 3600000, listener));
+        assertTrue(exits.isEmpty());
+    }
+
+    @Test
+    public void thePipelinePublishesAnExitWhenABeaconGoesQuiet() throws Exception {
+        int port = TestClient.freePort();
+        GatewayPipeline pipeline = new GatewayPipeline(port, 1, GatewayPipeline.Logger.NONE);
+        pipeline.setPresenceTimeout(BeaconClass.ROOM, 300);
+        pipeline.start();
+        try (TestClient client = new TestClient(port, null)) {
+            client.send("{\"type\":\"subscribe\",\"zones\":[\"ROOM\",\"EXITED_ROOM\"]}");
+            assertTrue(client.eventsUntilResumed(0, null).isEmpty());
+
+            pipeline.stage(MAC, "Room 1", -55, System.currentTimeMillis(), 0);
+            pipeline.publishStaged();
+            List<JSONObject> events = new ArrayList<>();
+            long deadline = System.currentTimeMillis() + 5000;
+            while (events.size() < 2 && System.currentTimeMillis() < deadline) {
+                events.addAll(client.eventsUntilResumed(0, null));
+                Thread.sleep(50);
+            }
+            assertEquals(2, events.size());
+            assertEquals("ROOM", events.get(0).getString("zone"));
+            assertEquals("EXITED_ROOM", events.get(1).getString("zone"));
+            assertEquals(MacAddress.toString(MAC), events.get(1).getString("deviceId"));
+            assertEquals(events.get(0).getLong("seq") + 1, events.get(1).getLong("seq"));
+            assertEquals(1, pipeline.getPresence().getExpired());
+        } finally {
+            pipeline.stop(2000);
+        }
+    }
+}
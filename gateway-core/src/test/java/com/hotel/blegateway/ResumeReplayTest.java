@@ -0,0 +1,146 @@
+package com.hotel.blegateway;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+public class ResumeReplayTest {
+    private static final long MAC_BASE = 0xC0FFEE000000L;
+
+    private GatewayPipeline pipeline;
+    private int port;
+    private int published = 0;
+    private final List<TestClient> clients = new ArrayList<>();
+
+    @Before
+    public void startPipeline() throws Exception {
+        port = TestClient.freePort();
+        pipeline = new GatewayPipeline(port, 1, GatewayPipeline.Logger.NONE);
+        pipeline.start();
+    }
+
+    @After
+    public void stopPipeline() throws Exception {
+        for (TestClient client : clients) {
+            client.close();
+        }
+        pipeline.stop(2000);
+    }
+
+    @Test
+    public void resumingInTheSubscribeReplaysExactlyWhatWasMissed() throws Exception {
+        publish(5);
+        TestClient client = connect();
+        client.send("{\"type\":\"subscribe\",\"lastSeq\":2}");
+        JSONObject[] resumed = new JSONObject[1];
+        assertEquals(Arrays.asList(3L, 4L, 5L), seqs(client.eventsUntilResumed(resumed)));
+        assertResumed(resumed[0], 5, 3, 0);
+
+        // Live from there on, each event once
+        publish(2);
+        assertEquals(Arrays.asList(6L, 7L), seqs(client.eventsUntilResumed(7, resumed)));
+        assertResumed(resumed[0], 7, 0, 0);
+    }
+
+    @Test
+    public void aLateResumeStopsShortOfTheLiveEvents() throws Exception {
+        publish(3);
+        TestClient client = connect();
+        client.send("{\"type\":\"subscribe\"}");
+        // Publish until the subscription is in place and the first live event has arrived
+        long firstLive = -1;
+        while (firstLive < 0) {
+            publish(1);
+            String text = client.receive(200);
+            if (text != null) firstLive = new JSONObject(text).getLong("seq");
+        }
+        publish(2);
+
+        JSONObject[] resumed = new JSONObject[1];
+        List<Long> received = seqs(client.eventsUntilResumed(1, resumed));
+        List<Long> expected = new ArrayList<>();
+        expected.add(firstLive + 1);
+        expected.add(firstLive + 2);
+        for (long seq = 2; seq < firstLive; seq++) {
+            expected.add(seq);
+        }
+        // The two live events, then the replay up to just before the first live one: no duplicates
+        assertEquals(expected, received);
+        assertResumed(resumed[0], firstLive + 2, firstLive - 2, 0);
+    }
+
+    @Test
+    public void replayIsBoundedAndReportsWhatWasLost() throws Exception {
+        int total = GatewayPipeline.MAX_REPLAY_EVENTS + 4;
+        publish(total);
+        TestClient client = connect();
+        client.send("{\"type\":\"subscribe\",\"lastSeq\":0}");
+        JSONObject[] resumed = new JSONObject[1];
+        List<Long> replayed = seqs(client.eventsUntilResumed(resumed));
+        assertEquals(GatewayPipeline.MAX_REPLAY_EVENTS, replayed.size());
+        assertEquals(5L, (long) replayed.get(0));
+        assertEquals((long) total, (long) replayed.get(replayed.size() - 1));
+        assertResumed(resumed[0], total, GatewayPipeline.MAX_REPLAY_EVENTS, 4);
+
+        // A lastSeq beyond the gateway's (it restarted cold) replays nothing and resets the client
+        assertEquals(Collections.emptyList(), client.eventsUntilResumed(total + 1000, resumed));
+        assertResumed(resumed[0], total, 0, 0);
+    }
+
+    @Test
+    public void unsubscribedConnectionsGetNeitherLiveNorReplayedEvents() throws Exception {
+        publish(2);
+        TestClient client = connect();
+        JSONObject[] resumed = new JSONObject[1];
+        assertEquals(Collections.emptyList(), client.eventsUntilResumed(0, resumed));
+        publish(1);
+        assertEquals(Collections.emptyList(), client.eventsUntilResumed(0, resumed));
+        assertResumed(resumed[0], 3, 0, 0);
+    }
+
+    private TestClient connect() throws Exception {
+        TestClient client = new TestClient(port, null);
+        clients.add(client);
+        return client;
+    }
+
+    // New beacons each time, so every sighting is a zone transition and gets a sequence number
+    private void publish(int count) throws InterruptedException {
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < count; i++) {
+            int beacon = ++published;
+            pipeline.stage(MAC_BASE + beacon, "Room " + beacon, -50, now, 0);
+            if (beacon % 1000 == 0 || i == count - 1) {
+                pipeline.publishStaged();
+                TestClient.waitFor(() -> pipeline.getLastSeq() == beacon);
+            }
+        }
+        assertEquals(published, pipeline.getLastSeq());
+    }
+
+    private static void assertResumed(JSONObject resumed, long lastSeq, long replayed, long lost) {
+        assertNotNull(resumed);
+        assertEquals(lastSeq, resumed.getLong("lastSeq"));
+        assertEquals(replayed, resumed.getLong("replayed"));
+        assertEquals(lost, resumed.getLong("lost"));
+    }
+
+    private static List<Long> seqs(List<JSONObject> events) {
+        List<Long> seqs = new ArrayList<>();
+        for (JSONObject event : events) {
+            seqs.add(event.getLong("seq"));
+        }
+        assertEquals("Duplicate events", seqs.size(), new HashSet<>(seqs).size());
+        return seqs;
+    }
+}
@@ -0,0 +1,62 @@
+package com.hotel.blegateway;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class ScanSchedulerTest {
+    private static final long T = 1700000000000L;
+    private static final int NOON = 12;
+
+    @Test
+    public void stepsDownOnlyAfterTheHold() {
+        ScanScheduler scheduler = new ScanScheduler();
+        scheduler.start(T);
+        // Clients but no activity: BALANCED is wanted, LOW_LATENCY held for a minute
+        assertEquals(ScanScheduler.MODE_LOW_LATENCY, scheduler.evaluate(T, 2, NOON));
+        assertEquals(ScanScheduler.MODE_LOW_LATENCY,
+            scheduler.evaluate(T + ScanScheduler.DEFAULT_STEP_DOWN_HOLD_MS - 1, 2, NOON));
+        assertEquals(ScanScheduler.MODE_BALANCED,
+            scheduler.evaluate(T + ScanScheduler.DEFAULT_STEP_DOWN_HOLD_MS, 2, NOON));
+        assertEquals(1, scheduler.getModeChanges());
+        assertEquals(ScanScheduler.DEFAULT_STEP_DOWN_HOLD_MS,
+            scheduler.getTimeInMode(ScanScheduler.MODE_LOW_LATENCY, T + 70000));
+    }
+
+    @Test
+    public void stepsUpOnATransitionButNotFasterThanTheScanStartLimit() {
+        ScanScheduler scheduler = new ScanScheduler();
+        scheduler.setStepDownHold(0);
+        scheduler.start(T);
+        assertEquals(ScanScheduler.MODE_BALANCED, scheduler.evaluate(T, 2, NOON));
+
+        scheduler.recordActivity(T + 1000, true);
+        assertEquals(ScanScheduler.MODE_BALANCED,
+            scheduler.evaluate(T + ScanScheduler.MIN_SWITCH_INTERVAL_MS - 1, 2, NOON));
+        assertEquals(ScanScheduler.MODE_LOW_LATENCY,
+            scheduler.evaluate(T + ScanScheduler.MIN_SWITCH_INTERVAL_MS, 2, NOON));
+
+        // Activity without transitions keeps it at BALANCED once the peak window has passed
+        long later = T + 1000 + ScanScheduler.DEFAULT_PEAK_TRANSITION_WINDOW_MS;
+        scheduler.recordActivity(later, false);
+        assertEquals(ScanScheduler.MODE_BALANCED, scheduler.evaluate(later, 2, NOON));
+        assertEquals(3, scheduler.getModeChanges());
+    }
+
+    @Test
+    public void idlesLowerWithoutClientsAndInQuietHours() {
+        ScanScheduler scheduler = new ScanScheduler();
+        scheduler.setStepDownHold(0);
+        scheduler.setQuietHours(22, 6);
+        scheduler.start(T);
+        assertEquals(ScanScheduler.MODE_LOW_POWER, scheduler.evaluate(T, 1, 23));
+        assertEquals(ScanScheduler.MODE_OPPORTUNISTIC, scheduler.evaluate(T + 6000, 0, 23));
+        // Leaving quiet hours with a client raises the rate straight away
+        assertEquals(ScanScheduler.MODE_BALANCED, scheduler.evaluate(T + 12000, 1, 6));
+
+        // Without clients, recent activity keeps LOW_POWER outside quiet hours only
+        scheduler.recordActivity(T + 18000, false);
+        assertEquals(ScanScheduler.MODE_LOW_POWER, scheduler.evaluate(T + 18000, 0, NOON));
+        assertEquals(ScanScheduler.MODE_OPPORTUNISTIC, scheduler.evaluate(T + 24000, 0, 2));
+    }
+}
@@ -0,0 +1,263 @@
+package com.hotel.blegateway;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class StateSnapshotTest {
+    private static final long NOW = 1700000000000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void emptyDirectoryHasNothingToRestore() throws IOException {
+        StateSnapshot snapshot = new StateSnapshot(folder.getRoot());
+        assertNull(snapshot.read());
+        assertEquals(0, snapshot.getWrittenAt());
+        snapshot.close();
+    }
+
+    @Test
+    public void newestCheckpointWins() throws IOException {
+        StateSnapshot snapshot = new StateSnapshot(folder.getRoot());
+        write(snapshot, bytes(100, 1), NOW);
+        write(snapshot, bytes(120, 2), NOW + 5000);
+        write(snapshot, bytes(80, 3), NOW + 10000);
+        snapshot.close();
+
+        StateSnapshot reopened = new StateSnapshot(folder.getRoot());
+        assertEquals(NOW + 10000, reopened.getWrittenAt());
+        assertArrayEquals(bytes(80, 3), remaining(reopened.read()));
+        // Handed out once
+        assertNull(reopened.read());
+        reopened.close();
+    }
+
+    @Test
+    public void tornCheckpointFallsBackToThePreviousOne() throws IOException {
+        StateSnapshot snapshot = new StateSnapshot(folder.getRoot());
+        write(snapshot, bytes(100, 1), NOW);
+        write(snapshot, bytes(100, 2), NOW + 5000);
+        snapshot.close();
+
+        // The second checkpoint went to the second file; damage its payload as a kill mid-copy would
+        try (RandomAccessFile raf = new RandomAccessFile(new File(folder.getRoot(), "state-b.snap"), "rw")) {
+            raf.seek(StateSnapshot.HEADER_SIZE + 50);
+            raf.write(0xFF);
+        }
+        StateSnapshot reopened = new StateSnapshot(folder.getRoot());
+        assertEquals(NOW, reopened.getWrittenAt());
+        assertArrayEquals(bytes(100, 1), remaining(reopened.read()));
+
+        // The next checkpoint replaces the damaged file, not the one that survived
+        write(reopened, bytes(60, 3), NOW + 10000);
+        reopened.close();
+        StateSnapshot again = new StateSnapshot(folder.getRoot());
+        assertArrayEquals(bytes(60, 3), remaining(again.read()));
+        again.close();
+    }
+
+    @Test
+    public void checkpointsOutgrowTheInitialMapping() throws IOException {
+        StateSnapshot snapshot = new StateSnapshot(folder.getRoot());
+        write(snapshot, bytes(1000, 1), NOW);
+        write(snapshot, bytes(300000, 2), NOW + 5000);
+        write(snapshot, bytes(500000, 3), NOW + 10000);
+        snapshot.close();
+
+        StateSnapshot reopened = new StateSnapshot(folder.getRoot());
+        assertArrayEquals(bytes(500000, 3), remaining(reopened.read()));
+        reopened.close();
+    }
+
+    @Test
+    public void zoneEngineCarriesOnFromItsFilterState() {
+        ZoneEngine before = new ZoneEngine(64);
+        before.useKalman(0.5f, 4f);
+        BeaconEvent event = new BeaconEvent();
+        for (int i = 0; i < 20; i++) {
+            for (int device = 1; device <= 10; device++) {
+                event.set(device, -55 - device - (i % 3) * 4, NOW + i * 100, BeaconClass.ROOM, "Room " + device);
+                before.update(event);
+            }
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(before.snapshotBytes());
+        before.writeSnapshot(buffer);
+        assertEquals(buffer.capacity(), buffer.position());
+        buffer.flip();
+
+        ZoneEngine after = new ZoneEngine(64);
+        after.useKalman(0.5f, 4f);
+        after.readSnapshot(buffer);
+        assertEquals(10, after.getTrackedDevices());
+
+        long transitions = before.getTransitions();
+        BeaconEvent expected = new BeaconEvent();
+        BeaconEvent actual = new BeaconEvent();
+        for (int device = 1; device <= 10; device++) {
+            assertEquals(before.zoneOf(device), after.zoneOf(device));
+            expected.set(device, -80, NOW + 5000, BeaconClass.ROOM, "Room " + device);
+            actual.set(device, -80, NOW + 5000, BeaconClass.ROOM, "Room " + device);
+            assertEquals(before.update(expected), after.update(actual));
+            assertEquals(expected.rssi, actual.rssi);
+            assertEquals(expected.zone, actual.zone);
+        }
+        // Picked up where it was, rather than treating every device as new
+        assertEquals(before.getTransitions() - transitions, after.getTransitions());
+    }
+
+    @Test
+    public void presenceExpiresFromWhenBeaconsWereLastHeard() {
+        PresenceTracker before = new PresenceTracker(64);
+        before.touch(0xA1L, BeaconClass.GATE, -61, 3, NOW);
+        before.touch(0xA2L, BeaconClass.ROOM, -72, 4, NOW + 1000);
+        ByteBuffer buffer = ByteBuffer.allocate(before.snapshotBytes());
+        before.writeSnapshot(buffer);
+        buffer.flip();
+
+        PresenceTracker after = new PresenceTracker(64);
+        after.readSnapshot(buffer);
+        assertEquals(2, after.getTrackedBeacons());
+
+        List<long[]> exits = new ArrayList<>();
+        PresenceTracker.Listener listener = (mac, beaconClass, rssi, nameId, lastSeen) ->
+            exits.add(new long[] { mac, beaconClass, rssi, nameId, lastSeen });
+        after.expire(NOW + 10000, listener);
+        assertTrue(exits.isEmpty());
+        after.expire(NOW + 16000, listener);
+        assertEquals(1, exits.size());
+        assertArrayEquals(new long[] { 0xA1L, BeaconClass.GATE, -61, 3, NOW }, exits.get(0));
+        after.expire(NOW + 62000, listener);
+        assertEquals(2, exits.size());
+        assertArrayEquals(new long[] { 0xA2L, BeaconClass.ROOM, -72, 4, NOW + 1000 }, exits.get(1));
+    }
+
+    @Test
+    public void replayRingNumbersOnWithoutInventingEvents() {
+        ReplayRing ring = new ReplayRing(16);
+        ring.restoreLastSeq(1000);
+        assertEquals(1000, ring.lastSeq());
+        assertEquals(1001, ring.firstSeq());
+        BeaconEvent event = new BeaconEvent();
+        assertEquals(-1, ring.read(990, event));
+        event.set(0xB1L, -60, NOW, BeaconClass.KIOSK, "Kiosk");
+        assertEquals(1001, ring.append(event, 0));
+        assertEquals(1001, ring.firstSeq());
+    }
+
+    @Test
+    public void pipelineRestartsWhereItStopped() throws Exception {
+        long lastSeq = checkpointFiftyBeacons();
+
+        GatewayPipeline second = restored(null, System.currentTimeMillis());
+        assertEquals(lastSeq, second.getLastSeq());
+        assertEquals(50, second.getPresence().getTrackedBeacons());
+
+        // Zones classified under other rules are not brought back, the numbering is
+        GatewayPipeline otherRules = restored(BeaconMatcher.compile(BeaconRule.parse("contains:Room=HOTEL")),
+            System.currentTimeMillis());
+        assertEquals(lastSeq, otherRules.getLastSeq());
+        assertEquals(0, otherRules.getPresence().getTrackedBeacons());
+
+        GatewayPipeline stale = restored(null, System.currentTimeMillis() + GatewayPipeline.DEFAULT_SNAPSHOT_MAX_AGE_MS
+            + 1000);
+        assertEquals(lastSeq, stale.getLastSeq());
+        assertEquals(0, stale.getPresence().getTrackedBeacons());
+    }
+
+    @Test
+    public void unreadableCheckpointLeavesThePipelineCold() throws Exception {
+        checkpointFiftyBeacons();
+        StateSnapshot snapshot = new StateSnapshot(folder.getRoot());
+        byte[] payload = remaining(snapshot.read());
+        // Cut into the last section: the header, names and earlier sections still read fine
+        write(snapshot, Arrays.copyOf(payload, payload.length - 10), System.currentTimeMillis());
+        snapshot.close();
+        assertCold();
+
+        // A record count that overruns the buffer, in the coalescer section that ends the checkpoint
+        snapshot = new StateSnapshot(folder.getRoot());
+        payload = remaining(snapshot.read());
+        ByteBuffer.wrap(payload).putInt(payload.length - 4 - 50 * BeaconCoalescer.SNAPSHOT_RECORD_BYTES, 51);
+        write(snapshot, payload, System.currentTimeMillis());
+        snapshot.close();
+        assertCold();
+    }
+
+    // Runs a pipeline over fifty new beacons and stops it, which checkpoints; returns its last seq
+    private long checkpointFiftyBeacons() throws Exception {
+        GatewayPipeline first = new GatewayPipeline(0, 1, GatewayPipeline.Logger.NONE);
+        first.setSnapshot(new StateSnapshot(folder.getRoot()), GatewayPipeline.DEFAULT_CHECKPOINT_INTERVAL_MS);
+        first.start();
+        long now = System.currentTimeMillis();
+        for (int round = 0; round < 3; round++) {
+            for (int beacon = 1; beacon <= 50; beacon++) {
+                first.stage(0xC0FFEE000000L + beacon, "Room " + beacon, -50, now, 0);
+            }
+            first.publishStaged();
+        }
+        TestClient.waitFor(() -> first.getPresence().getTrackedBeacons() == 50);
+        // Stopping takes a last checkpoint on the selector thread
+        first.stop(5000);
+        long lastSeq = first.getLastSeq();
+        assertEquals(50, lastSeq);
+        return lastSeq;
+    }
+
+    private void assertCold() throws IOException {
+        GatewayPipeline pipeline = new GatewayPipeline(0, 1, GatewayPipeline.Logger.NONE);
+        StateSnapshot snapshot = new StateSnapshot(folder.getRoot());
+        pipeline.setSnapshot(snapshot, GatewayPipeline.DEFAULT_CHECKPOINT_INTERVAL_MS);
+        assertFalse(pipeline.restoreSnapshot(System.currentTimeMillis(), GatewayPipeline.DEFAULT_SNAPSHOT_MAX_AGE_MS));
+        snapshot.close();
+        assertEquals(0, pipeline.getLastSeq());
+        assertEquals(0, pipeline.getPresence().getTrackedBeacons());
+    }
+
+    private GatewayPipeline restored(BeaconMatcher matcher, long now) throws IOException {
+        GatewayPipeline pipeline = new GatewayPipeline(0, 1, GatewayPipeline.Logger.NONE);
+        if (matcher != null) pipeline.setBeaconMatcher(matcher);
+        StateSnapshot snapshot = new StateSnapshot(folder.getRoot());
+        pipeline.setSnapshot(snapshot, GatewayPipeline.DEFAULT_CHECKPOINT_INTERVAL_MS);
+        assertTrue(pipeline.restoreSnapshot(now, GatewayPipeline.DEFAULT_SNAPSHOT_MAX_AGE_MS));
+        assertFalse(pipeline.restoreSnapshot(now, GatewayPipeline.DEFAULT_SNAPSHOT_MAX_AGE_MS));
+        snapshot.close();
+        return pipeline;
+    }
+
+    private static void write(StateSnapshot snapshot, byte[] payload, long now) {
+        snapshot.buffer(payload.length).put(payload);
+        assertTrue(snapshot.write(now));
+    }
+
+    private static byte[] bytes(int length, int seed) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) (i * 31 + seed);
+        }
+        return bytes;
+    }
+
+    private static byte[] remaining(ByteBuffer buffer) {
+        assertNotNull(buffer);
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,82 @@
+package com.hotel.blegateway;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SubscriptionRoutingTest {
+    private static final long GUEST_DEVICE = 0xC0FFEE000001L;
+    private static final long OTHER_DEVICE = 0xC0FFEE000002L;
+    private static final long GATE_DEVICE = 0xC0FFEE000003L;
+
+    private GatewayPipeline pipeline;
+    private int port;
+    private final List<TestClient> clients = new ArrayList<>();
+
+    @Before
+    public void startPipeline() throws Exception {
+        port = TestClient.freePort();
+        pipeline = new GatewayPipeline(port, 1, GatewayPipeline.Logger.NONE);
+        pipeline.start();
+    }
+
+    @After
+    public void stopPipeline() throws Exception {
+        for (TestClient client : clients) {
+            client.close();
+        }
+        pipeline.stop(2000);
+    }
+
+    @Test
+    public void routesEachEventOnlyToTheSessionsThatAskedForIt() throws Exception {
+        TestClient silent = connect(null);
+        TestClient userOnly = connect("{\"type\":\"subscribe\",\"userId\":\"guest-1\"}");
+        TestClient owner = connect("{\"type\":\"subscribe\",\"userId\":\"guest-2\",\"devices\":[\""
+            + MacAddress.toString(GUEST_DEVICE) + "\"]}");
+        // A second session of the same guest that only names the guest
+        TestClient secondSession = connect("{\"type\":\"subscribe\",\"userId\":\"guest-2\"}");
+        TestClient gates = connect("{\"type\":\"subscribe\",\"zones\":[\"GATE\"]}");
+        TestClient dashboard = connect("{\"type\":\"subscribe\"}");
+
+        long now = System.currentTimeMillis();
+        pipeline.stage(GUEST_DEVICE, "Room 1", -50, now, 0);
+        pipeline.stage(OTHER_DEVICE, "Room 2", -50, now, 0);
+        pipeline.stage(GATE_DEVICE, "Gate 1", -50, now, 0);
+        pipeline.publishStaged();
+        TestClient.waitFor(() -> pipeline.getLastSeq() == 3);
+
+        assertEquals(Collections.emptyList(), devices(silent));
+        assertEquals(Collections.emptyList(), devices(userOnly));
+        assertEquals(Collections.singletonList(GUEST_DEVICE), devices(owner));
+        assertEquals(Collections.singletonList(GUEST_DEVICE), devices(secondSession));
+        assertEquals(Collections.singletonList(GATE_DEVICE), devices(gates));
+        assertEquals(Arrays.asList(GUEST_DEVICE, OTHER_DEVICE, GATE_DEVICE), devices(dashboard));
+    }
+
+    // The subscribe is in place once the resume sent after it has been answered
+    private TestClient connect(String subscribe) throws Exception {
+        TestClient client = new TestClient(port, null);
+        clients.add(client);
+        if (subscribe != null) client.send(subscribe);
+        assertTrue(client.eventsUntilResumed(0, null).isEmpty());
+        return client;
+    }
+
+    private List<Long> devices(TestClient client) throws Exception {
+        List<Long> devices = new ArrayList<>();
+        for (JSONObject event : client.eventsUntilResumed(pipeline.getLastSeq(), null)) {
+            devices.add(MacAddress.toLong(event.getString("deviceId")));
+        }
+        return devices;
+    }
+}
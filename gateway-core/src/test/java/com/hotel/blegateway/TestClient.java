@@ -0,0 +1,247 @@
+package com.hotel.blegateway;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+// Blocking WebSocket client for the socket-level tests: JSON wire format; inflates compressed
+// messages when permessage-deflate was negotiated
+final class TestClient implements AutoCloseable {
+    private static final int OP_TEXT = 0x1;
+    private static final int OP_CLOSE = 0x8;
+    private static final int OP_PING = 0x9;
+    private static final int OP_PONG = 0xA;
+
+    private final Socket socket;
+    private final OutputStream out;
+    private final DataInputStream in;
+    private final String handshakeResponse;
+    private int closeCode = -1;
+    // One window for the whole connection covers both the shared and the context takeover modes
+    private final Inflater inflater = new Inflater(true);
+    private int compressedMessages = 0;
+
+    // Retries while the server thread is still binding
+    TestClient(int port, String extensions) throws IOException, InterruptedException {
+        socket = connect(port);
+        out = socket.getOutputStream();
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        byte[] nonce = new byte[16];
+        new Random().nextBytes(nonce);
+        String request = "GET / HTTP/1.1\r\n"
+            + "Host: 127.0.0.1:" + port + "\r\n"
+            + "Upgrade: websocket\r\n"
+            + "Connection: Upgrade\r\n"
+            + "Sec-WebSocket-Key: " + Base64.getEncoder().encodeToString(nonce) + "\r\n"
+            + "Sec-WebSocket-Version: 13\r\n"
+            + (extensions != null ? "Sec-WebSocket-Extensions: " + extensions + "\r\n" : "")
+            + "\r\n";
+        out.write(request.getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+        StringBuilder response = new StringBuilder();
+        while (response.length() < 4 || !response.substring(response.length() - 4).equals("\r\n\r\n")) {
+            int c = in.read();
+            if (c < 0) throw new EOFException("Connection closed during handshake");
+            response.append((char) c);
+        }
+        handshakeResponse = response.toString();
+        if (!handshakeResponse.startsWith("HTTP/1.1 101")) {
+            throw new IOException("Handshake rejected: " + handshakeResponse);
+        }
+    }
+
+    static Socket connect(int port) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (true) {
+            // A socket whose connect failed cannot be reused
+            Socket attempt = new Socket();
+            try {
+                attempt.connect(new InetSocketAddress("127.0.0.1", port), 1000);
+                return attempt;
+            } catch (IOException e) {
+                attempt.close();
+                if (System.currentTimeMillis() > deadline) throw e;
+                Thread.sleep(20);
+            }
+        }
+    }
+
+    interface Condition {
+        boolean met();
+    }
+
+    // Polls until the condition holds or the time is up; callers assert on the outcome themselves
+    static void waitFor(Condition condition, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (!condition.met() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    static void waitFor(Condition condition) throws InterruptedException {
+        waitFor(condition, 5000);
+    }
+
+    static int freePort() throws IOException {
+        try (ServerSocket probe = new ServerSocket(0)) {
+            return probe.getLocalPort();
+        }
+    }
+
+    // Value of the response header, null when absent
+    String responseHeader(String name) {
+        for (String line : handshakeResponse.split("\r\n")) {
+            int colon = line.indexOf(':');
+            if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase(name)) {
+                return line.substring(colon + 1).trim();
+            }
+        }
+        return null;
+    }
+
+    void send(String text) throws IOException {
+        byte[] payload = text.getBytes(StandardCharsets.UTF_8);
+        byte[] mask = new byte[4];
+        new Random().nextBytes(mask);
+        int header = payload.length < 126 ? 2 : 4;
+        byte[] frame = new byte[header + 4 + payload.length];
+        frame[0] = (byte) (0x80 | OP_TEXT);
+        if (payload.length < 126) {
+            frame[1] = (byte) (0x80 | payload.length);
+        } else {
+            frame[1] = (byte) (0x80 | 126);
+            frame[2] = (byte) (payload.length >>> 8);
+            frame[3] = (byte) payload.length;
+        }
+        System.arraycopy(mask, 0, frame, header, 4);
+        for (int i = 0; i < payload.length; i++) {
+            frame[header + 4 + i] = (byte) (payload[i] ^ mask[i & 3]);
+        }
+        out.write(frame);
+        out.flush();
+    }
+
+    // Next text message, null on timeout or once the server has closed
+    String receive(long timeoutMs) throws IOException {
+        socket.setSoTimeout((int) timeoutMs);
+        try {
+            while (true) {
+                int b0 = in.readUnsignedByte();
+                int b1 = in.readUnsignedByte();
+                long length = b1 & 0x7F;
+                if (length == 126) {
+                    length = in.readUnsignedShort();
+                } else if (length == 127) {
+                    length = in.readLong();
+                }
+                byte[] payload = new byte[(int) length];
+                in.readFully(payload);
+                int opcode = b0 & 0x0F;
+                if (opcode == OP_CLOSE) {
+                    closeCode = payload.length >= 2 ? ((payload[0] & 0xFF) << 8) | (payload[1] & 0xFF) : 1005;
+                    return null;
+                }
+                if (opcode == OP_PING) {
+                    sendPong(payload);
+                    continue;
+                }
+                if (opcode == OP_TEXT && (b0 & 0x40) != 0) payload = inflate(payload);
+                if (opcode == OP_TEXT) return new String(payload, StandardCharsets.UTF_8);
+            }
+        } catch (SocketTimeoutException e) {
+            return null;
+        } catch (EOFException e) {
+            if (closeCode < 0) closeCode = 1006;
+            return null;
+        }
+    }
+
+    // Beacon events received up to the "resumed" reply to a resume(lastSeq) sent now; the reply
+    // follows everything sent to this connection before it, so nothing is still in flight
+    List<JSONObject> eventsUntilResumed(long lastSeq, JSONObject[] resumed) throws IOException {
+        send("{\"type\":\"resume\",\"lastSeq\":" + lastSeq + "}");
+        return eventsUntilResumed(resumed);
+    }
+
+    // Beacon events received up to the next "resumed" message, which is stored in resumed[0]
+    List<JSONObject> eventsUntilResumed(JSONObject[] resumed) throws IOException {
+        List<JSONObject> events = new ArrayList<>();
+        while (true) {
+            String text = receive(5000);
+            if (text == null) throw new IOException("No resumed message");
+            if (text.startsWith("[")) {
+                JSONArray array = new JSONArray(text);
+                for (int i = 0; i < array.length(); i++) {
+                    events.add(array.getJSONObject(i));
+                }
+                continue;
+            }
+            JSONObject message = new JSONObject(text);
+            if ("resumed".equals(message.optString("type"))) {
+                if (resumed != null) resumed[0] = message;
+                return events;
+            }
+            if (!message.has("type")) events.add(message);
+        }
+    }
+
+    int getCompressedMessages() {
+        return compressedMessages;
+    }
+
+    int getCloseCode() {
+        return closeCode;
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+        inflater.end();
+    }
+
+    private byte[] inflate(byte[] payload) throws IOException {
+        compressedMessages++;
+        byte[] input = new byte[payload.length + PerMessageDeflate.FLUSH_TAIL.length];
+        System.arraycopy(payload, 0, input, 0, payload.length);
+        System.arraycopy(PerMessageDeflate.FLUSH_TAIL, 0, input, payload.length, PerMessageDeflate.FLUSH_TAIL.length);
+        inflater.setInput(input);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(payload.length * 4);
+        byte[] buffer = new byte[4096];
+        try {
+            while (!inflater.needsInput()) {
+                int n = inflater.inflate(buffer);
+                if (n == 0 && !inflater.needsInput()) throw new IOException("Inflate stalled");
+                out.write(buffer, 0, n);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        }
+        return out.toByteArray();
+    }
+
+    private void sendPong(byte[] payload) throws IOException {
+        byte[] frame = new byte[2 + 4 + payload.length];
+        frame[0] = (byte) (0x80 | OP_PONG);
+        frame[1] = (byte) (0x80 | payload.length);
+        System.arraycopy(payload, 0, frame, 6, payload.length);
+        out.write(frame);
+        out.flush();
+    }
+}
@@ -0,0 +1,216 @@
+package com.hotel.blegateway;
+
+import com.sun.net.httpserver.HttpServer;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class UpstreamForwarderTest {
+    private static final int BATCH_SIZE = 10;
+    // Long enough that batches are only ever cut by size
+    private static final long BATCH_DELAY_MS = 60000;
+    // Backoff after the first failure is a second plus jitter
+    private static final long WAIT_MS = 10000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final FakeUplink uplink = new FakeUplink();
+    private final BeaconEvent event = new BeaconEvent();
+    private long offered = 0;
+
+    @Test
+    public void spilledBatchesGoOutInOrderAheadOfNewerOnes() throws Exception {
+        UpstreamForwarder forwarder = forwarder(Long.MAX_VALUE);
+        uplink.down = true;
+        forwarder.start();
+        offer(forwarder, 3 * BATCH_SIZE);
+        TestClient.waitFor(() -> forwarder.getSpillBacklog() == 3, WAIT_MS);
+        assertEquals(3, forwarder.getSpilledBatches());
+        assertEquals(1, forwarder.getSendFailures());
+
+        // Recovers while backing off; the newer batch queues behind the spilled ones
+        uplink.down = false;
+        offer(forwarder, BATCH_SIZE);
+        TestClient.waitFor(() -> forwarder.getEventsSent() == 4 * BATCH_SIZE, WAIT_MS);
+        forwarder.stop();
+
+        assertEquals(sequence(1, 4 * BATCH_SIZE), uplink.seqs);
+        assertEquals(4, forwarder.getBatchesSent());
+        assertEquals(BATCH_SIZE, forwarder.getLastBatchSize());
+        assertEquals(0, forwarder.getSpillBacklog());
+        assertEquals(0, forwarder.getSpillBacklogBytes());
+        assertEquals(uplink.bytes, forwarder.getBytesSent());
+        assertTrue(forwarder.getUncompressedBytes() > forwarder.getBytesSent());
+    }
+
+    @Test
+    public void spillBudgetDropsTheOldestBatches() throws Exception {
+        // Any budget smaller than a batch keeps just the newest one
+        UpstreamForwarder forwarder = forwarder(1);
+        uplink.down = true;
+        forwarder.start();
+        offer(forwarder, 3 * BATCH_SIZE);
+        TestClient.waitFor(() -> forwarder.getSpillDroppedEvents() == 2 * BATCH_SIZE, WAIT_MS);
+        assertEquals(3, forwarder.getSpilledBatches());
+        assertEquals(1, forwarder.getSpillBacklog());
+
+        uplink.down = false;
+        TestClient.waitFor(() -> forwarder.getEventsSent() == BATCH_SIZE, WAIT_MS);
+        forwarder.stop();
+        assertEquals(sequence(2 * BATCH_SIZE + 1, 3 * BATCH_SIZE), uplink.seqs);
+    }
+
+    @Test
+    public void whatIsLeftAtStopIsSentAfterTheNextStart() throws Exception {
+        UpstreamForwarder stopped = forwarder(Long.MAX_VALUE);
+        uplink.down = true;
+        stopped.start();
+        offer(stopped, BATCH_SIZE + 5);
+        TestClient.waitFor(() -> stopped.getSpilledBatches() == 1, WAIT_MS);
+        // The partial batch still queued is spilled on the way out
+        stopped.stop();
+        assertEquals(0, stopped.getQueuedEvents());
+        assertEquals(2, stopped.getSpilledBatches());
+
+        // Still down, so the new forwarder cannot drain the backlog before it is counted
+        UpstreamForwarder restarted = forwarder(Long.MAX_VALUE);
+        restarted.start();
+        assertEquals(2, restarted.getSpillBacklog());
+        uplink.down = false;
+        TestClient.waitFor(() -> restarted.getEventsSent() == BATCH_SIZE + 5, WAIT_MS);
+        restarted.stop();
+        assertEquals(sequence(1, BATCH_SIZE + 5), uplink.seqs);
+        assertEquals(5, restarted.getLastBatchSize());
+    }
+
+    @Test
+    public void httpUplinkPostsGzipAndBacksOffOnAnErrorStatus() throws Exception {
+        List<Long> posts = new CopyOnWriteArrayList<>();
+        List<String> encodings = new CopyOnWriteArrayList<>();
+        List<String> counts = new CopyOnWriteArrayList<>();
+        List<byte[]> bodies = new CopyOnWriteArrayList<>();
+        AtomicInteger status = new AtomicInteger(500);
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/events", exchange -> {
+            posts.add(System.nanoTime());
+            encodings.add(exchange.getRequestHeaders().getFirst("Content-Encoding"));
+            counts.add(exchange.getRequestHeaders().getFirst("X-Event-Count"));
+            bodies.add(readAll(exchange.getRequestBody()));
+            exchange.sendResponseHeaders(status.get(), -1);
+            exchange.close();
+        });
+        server.start();
+        try {
+            URL url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/events");
+            UpstreamForwarder forwarder = new UpstreamForwarder(new UpstreamForwarder.HttpUplink(url), "gw-test",
+                folder.getRoot(), 1024, BATCH_SIZE, BATCH_DELAY_MS, Long.MAX_VALUE);
+            forwarder.start();
+            offer(forwarder, BATCH_SIZE);
+            TestClient.waitFor(() -> forwarder.getSpilledBatches() == 1, WAIT_MS);
+            assertEquals(1, forwarder.getSendFailures());
+            assertEquals(1, forwarder.getSpillBacklog());
+
+            status.set(200);
+            TestClient.waitFor(() -> forwarder.getEventsSent() == BATCH_SIZE, WAIT_MS);
+            forwarder.stop();
+            assertEquals(BATCH_SIZE, forwarder.getEventsSent());
+            assertEquals(0, forwarder.getSpillBacklog());
+
+            // The spilled batch is retried once, after the backoff
+            assertEquals(2, posts.size());
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(posts.get(1) - posts.get(0)) >= 1000);
+            for (int i = 0; i < posts.size(); i++) {
+                assertEquals("gzip", encodings.get(i));
+                assertEquals(Integer.toString(BATCH_SIZE), counts.get(i));
+                JSONObject batch = new JSONObject(gunzip(bodies.get(i)));
+                assertEquals(BATCH_SIZE, batch.getJSONArray("events").length());
+            }
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    private UpstreamForwarder forwarder(long spillBudget) {
+        return new UpstreamForwarder(uplink, "gw-test", folder.getRoot(), 1024, BATCH_SIZE, BATCH_DELAY_MS,
+            spillBudget);
+    }
+
+    private void offer(UpstreamForwarder forwarder, int count) {
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < count; i++) {
+            long seq = ++offered;
+            event.set(0xC0FFEE000000L + seq, -60, now, BeaconClass.ROOM, "Room " + seq);
+            event.seq = seq;
+            assertTrue(forwarder.offer(event));
+        }
+    }
+
+    private static List<Long> sequence(long first, long last) {
+        List<Long> seqs = new ArrayList<>();
+        for (long seq = first; seq <= last; seq++) {
+            seqs.add(seq);
+        }
+        return seqs;
+    }
+
+    // Decodes every accepted batch; throws while down, as an unreachable server would
+    private static final class FakeUplink implements UpstreamForwarder.Uplink {
+        volatile boolean down = false;
+        final List<Long> seqs = new ArrayList<>();
+        long bytes = 0;
+
+        @Override
+        public synchronized void send(byte[] body, int eventCount) throws IOException {
+            if (down) throw new IOException("Uplink down");
+            JSONObject batch = new JSONObject(gunzip(body));
+            assertEquals("gw-test", batch.getString("gatewayId"));
+            JSONArray events = batch.getJSONArray("events");
+            assertEquals(eventCount, events.length());
+            for (int i = 0; i < events.length(); i++) {
+                JSONObject event = events.getJSONObject(i);
+                long seq = event.getLong("seq");
+                assertEquals(MacAddress.toString(0xC0FFEE000000L + seq), event.getString("deviceId"));
+                assertEquals("Room " + seq, event.getString("beaconName"));
+                seqs.add(seq);
+            }
+            bytes += body.length;
+        }
+
+    }
+
+    private static String gunzip(byte[] body) throws IOException {
+        return new String(readAll(new GZIPInputStream(new ByteArrayInputStream(body))), StandardCharsets.UTF_8);
+    }
+
+    private static byte[] readAll(InputStream source) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = source) {
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+        }
+        return out.toByteArray();
+    }
+}
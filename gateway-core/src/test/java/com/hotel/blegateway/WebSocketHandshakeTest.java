@@ -0,0 +1,74 @@
+package com.hotel.blegateway;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+
+public class WebSocketHandshakeTest {
+    private GatewayPipeline pipeline;
+    private int port;
+
+    @Before
+    public void startPipeline() throws Exception {
+        port = TestClient.freePort();
+        pipeline = new GatewayPipeline(port, 1, GatewayPipeline.Logger.NONE);
+        pipeline.start();
+    }
+
+    @After
+    public void stopPipeline() throws Exception {
+        pipeline.stop(2000);
+    }
+
+    @Test
+    public void acceptsAHeadLargerThanTheInitialReadBuffer() throws Exception {
+        String head = "GET / HTTP/1.1\r\n"
+            + "Host: gateway\r\n"
+            + "Upgrade: websocket\r\n"
+            + "Connection: Upgrade\r\n"
+            + "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n"
+            + "Sec-WebSocket-Version: 13\r\n"
+            + "Cookie: session=" + filler(6000) + "\r\n"
+            + "\r\n";
+        assertEquals("HTTP/1.1 101 Switching Protocols", statusLine(head));
+    }
+
+    @Test
+    public void rejectsAHeadThatFillsTheLimitWithoutEnding() throws Exception {
+        String start = "GET / HTTP/1.1\r\nCookie: ";
+        String head = start + filler(HttpRequest.MAX_HEAD_SIZE - start.length());
+        assertEquals("HTTP/1.1 431 Request Header Fields Too Large", statusLine(head));
+    }
+
+    private String statusLine(String head) throws IOException, InterruptedException {
+        try (Socket socket = TestClient.connect(port)) {
+            socket.setSoTimeout(5000);
+            OutputStream out = socket.getOutputStream();
+            out.write(head.getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            InputStream in = socket.getInputStream();
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = in.read()) >= 0 && c != '\r') {
+                line.append((char) c);
+            }
+            return line.toString();
+        }
+    }
+
+    private static String filler(int length) {
+        StringBuilder text = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            text.append((char) ('a' + i % 26));
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,66 @@
+package com.hotel.blegateway;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ZoneEngineTest {
+    private static final long NOW = 1700000000000L;
+
+    private final BeaconEvent event = new BeaconEvent();
+
+    @Test
+    public void reportsOnlyTransitionsWithHysteresis() {
+        ZoneEngine engine = new ZoneEngine(16);
+        engine.useEma(1f);
+        engine.setThreshold(BeaconClass.ROOM, -60f, 4f);
+
+        assertTrue(update(engine, 1, -55, NOW));
+        assertEquals(Zone.of(BeaconClass.ROOM, true), event.zone);
+        assertFalse(update(engine, 1, -50, NOW + 100));
+        // Below the enter threshold but above enter - hysteresis: still inside
+        assertFalse(update(engine, 1, -62, NOW + 200));
+        assertTrue(update(engine, 1, -65, NOW + 300));
+        assertEquals(Zone.of(BeaconClass.ROOM, false), event.zone);
+        assertEquals(2, engine.getTransitions());
+        assertEquals(2, engine.getSuppressed());
+    }
+
+    @Test
+    public void fullTableMakesRoomByEvictingIdleDevices() {
+        ZoneEngine engine = new ZoneEngine(4);
+        for (int device = 1; device <= 4; device++) {
+            update(engine, device, -50, NOW);
+        }
+        // Everyone was heard recently: the newcomer is turned away and counted
+        update(engine, 5, -50, NOW + 1000);
+        assertEquals(Zone.UNKNOWN, event.zone);
+        assertEquals(1, engine.getRejected());
+
+        update(engine, 2, -50, NOW + ZoneEngine.IDLE_EVICT_MS);
+        assertTrue(update(engine, 5, -50, NOW + ZoneEngine.IDLE_EVICT_MS + 1000));
+        assertEquals(Zone.of(BeaconClass.ROOM, true), event.zone);
+        assertEquals(3, engine.getEvicted());
+        assertEquals(2, engine.getTrackedDevices());
+        assertEquals(Zone.of(BeaconClass.ROOM, true), engine.zoneOf(2));
+        assertEquals(Zone.UNKNOWN, engine.zoneOf(1));
+        assertEquals(1, engine.getRejected());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAnAlphaOutsideItsRange() {
+        new ZoneEngine(4).useEma(1.5f);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNegativeHysteresis() {
+        new ZoneEngine(4).setThreshold(BeaconClass.GATE, -65f, -1f);
+    }
+
+    private boolean update(ZoneEngine engine, long mac, int rssi, long timestamp) {
+        event.set(mac, rssi, timestamp, BeaconClass.ROOM, "Room " + mac);
+        return engine.update(event);
+    }
+}
@@ -22,6 +22,21 @@ L.Icon.Default.mergeOptions({
 });
 // --- End of fix ---
 
+// Inside zones each step of the guest journey waits for. A guest session subscribes to its userId
+// (the devices registered to that guest) plus only the steps it has not completed yet, so a zone
+// event reaches the guests still heading there instead of every connected guest. Only dashboards
+// subscribe to every zone.
+const JOURNEY_ZONES = [
+  { zones: ['GATE', 'HOTEL'], done: (progress) => progress.hasReachedHotel },
+  { zones: ['KIOSK'], done: (progress) => progress.checkInStatus === 'Checked In' },
+  { zones: ['ELEVATOR'], done: (progress) => progress.elevatorAccess === 'Yes, Floor 13' },
+  { zones: ['ROOM'], done: (progress) => progress.roomAccess === 'Granted' },
+];
+
+const guestGatewayFilters = (progress) => ({
+  zones: JOURNEY_ZONES.filter(step => !step.done(progress)).flatMap(step => step.zones),
+});
+
 // --- Dummy Booking Data & Initial Time ---
 const CHECK_IN_DATE = new Date();
 CHECK_IN_DATE.setHours(15, 0, 0, 0); // Today at 3:00 PM
@@ -247,11 +262,14 @@ function App() {
   useEffect(() => { verifiedPhoneNumberRef.current = verifiedPhoneNumber; }, [verifiedPhoneNumber]);
   const bleUnsubscribeRef = useRef(null);
 
+  const gatewayFilters = guestGatewayFilters({ hasReachedHotel, checkInStatus, elevatorAccess, roomAccess });
+  const gatewayZones = gatewayFilters.zones.join(',');
+
   // Connect to Gateway Server when phone is verified (but don't start BLE tracking yet)
   useEffect(() => {
     if (verifiedPhoneNumber) {
       addMessage(`Connecting to Gateway Server...`);
-      gatewayClient.connect(verifiedPhoneNumber);
+      gatewayClient.connect(verifiedPhoneNumber, gatewayFilters);
       setGatewayConnected(true);
       setBleStatus('Connected');
       addMessage(`Connected to Gateway: ${gatewayClient.getGatewayUrl()}`);
@@ -261,10 +279,12 @@ function App() {
         const { beaconName, rssi, zone } = data;
         console.log('[App.js subscription] BLE Event received:', beaconName, zone, rssi);
         addMessage(`BLE Event: ${zone} (RSSI: ${rssi})`);
+        // The Android gateway reports zone transitions; only act once the guest is inside a zone
+        if (zone && (zone.startsWith('APPROACHING_') || zone.startsWith('EXITED_'))) return;
         // Notify api.js waiting system with beaconName
         api.notifyBeaconDetection(beaconName);
-        // Also call processBeaconDetection for UI updates
-        processBeaconDetection(zone, rssi);
+        // Also call processBeaconDetection for UI updates (beacon name drives the decision logic)
+        processBeaconDetection(beaconName || zone, rssi);
       });
       
       // Store unsubscribe function
@@ -295,6 +315,14 @@ function App() {
     // eslint-disable-next-line react-hooks/exhaustive-deps
   }, [verifiedPhoneNumber, addMessage, setGatewayConnected, setBleStatus]);
 
+  // Narrow the session's subscription as journey steps complete; the gateway replaces it in place
+  useEffect(() => {
+    if (verifiedPhoneNumber) {
+      gatewayClient.setFilters(gatewayFilters);
+    }
+    // eslint-disable-next-line react-hooks/exhaustive-deps
+  }, [gatewayZones]);
+
   const handleInputChange = (e) => {
     const { name, value } = e.target;
     setFormState(prevState => ({ ...prevState, [name]: value }));
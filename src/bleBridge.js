@@ -1,8 +1,16 @@
 // BLE Bridge for Android WebView communication
+
+// Must match BleEventBridge.PORT_MESSAGE in the Android app
+const BLE_PORT_MESSAGE = 'hotel-ble-port';
+// Smoothing state of devices not heard for this long is dropped, swept at most this often
+const HISTORY_TTL_MS = 60000;
+const HISTORY_SWEEP_MS = 10000;
+
 class BleBridge {
   constructor() {
     this.listeners = [];
-    this.rssiHistory = new Map(); // For RSSI smoothing
+    this.rssiHistory = new Map(); // For RSSI smoothing: deviceId -> { readings, lastSeen }
+    this.lastSweep = 0;
     this.zoneThresholds = {
       GATE: -65,    // Strong signal at gate
       KIOSK: -70,   // Medium signal at kiosk  
@@ -10,8 +18,15 @@ class BleBridge {
       ROOM: -60     // Very strong at room door
     };
     
-    // Setup Android bridge listener
+    // Setup Android bridge listener. The app delivers one array of scan results per display
+    // frame: over a MessagePort when the WebView supports it, else through window.onBleEvents.
     window.onBleEvent = this.handleBleEvent.bind(this);
+    window.onBleEvents = this.handleBleBatch.bind(this);
+    window.addEventListener('message', (message) => {
+      if (message.data === BLE_PORT_MESSAGE && message.ports && message.ports[0]) {
+        message.ports[0].onmessage = (event) => this.handleBleBatch(event.data);
+      }
+    });
   }
 
   // Subscribe to BLE events
@@ -22,33 +37,65 @@ class BleBridge {
     };
   }
 
-  // Handle incoming BLE events from Android
+  // Handle a single BLE event (older app builds and manual testing)
   handleBleEvent(jsonData) {
     try {
       const data = typeof jsonData === 'string' ? JSON.parse(jsonData) : jsonData;
-      const smoothedRssi = this.smoothRssi(data.deviceId, data.rssi);
-      const zone = this.determineZone(data.deviceName, smoothedRssi);
-      
-      const event = {
-        ...data,
-        rssi: smoothedRssi,
-        zone,
-        timestamp: Date.now()
-      };
-      
+      const event = this.toEvent(data, Date.now());
       this.listeners.forEach(callback => callback(event));
     } catch (error) {
       console.error('BLE Bridge error:', error);
     }
   }
 
+  // Handle one frame's worth of BLE events from Android: a single parse, then one pass
+  handleBleBatch(jsonData) {
+    try {
+      const batch = typeof jsonData === 'string' ? JSON.parse(jsonData) : jsonData;
+      const now = Date.now();
+      const listeners = this.listeners;
+      for (let i = 0; i < batch.length; i++) {
+        const event = this.toEvent(batch[i], now);
+        for (let j = 0; j < listeners.length; j++) {
+          listeners[j](event);
+        }
+      }
+    } catch (error) {
+      console.error('BLE Bridge error:', error);
+    }
+  }
+
+  toEvent(data, now) {
+    // Events classified by the gateway's ZoneEngine already carry a smoothed RSSI and zone
+    if (data.zone) {
+      if (data.zone.startsWith('EXITED_')) {
+        this.rssiHistory.delete(data.deviceId);
+      }
+      return { ...data, timestamp: data.timestamp || now };
+    }
+
+    this.evictStale(now);
+    const smoothedRssi = this.smoothRssi(data.deviceId, data.rssi, now);
+    const zone = this.determineZone(data.deviceName, smoothedRssi);
+
+    return {
+      ...data,
+      rssi: smoothedRssi,
+      zone,
+      timestamp: now
+    };
+  }
+
   // RSSI smoothing using moving average
-  smoothRssi(deviceId, newRssi) {
-    if (!this.rssiHistory.has(deviceId)) {
-      this.rssiHistory.set(deviceId, []);
+  smoothRssi(deviceId, newRssi, now) {
+    let entry = this.rssiHistory.get(deviceId);
+    if (!entry) {
+      entry = { readings: [], lastSeen: now };
+      this.rssiHistory.set(deviceId, entry);
     }
+    entry.lastSeen = now;
     
-    const history = this.rssiHistory.get(deviceId);
+    const history = entry.readings;
     history.push(newRssi);
     
     // Keep only last 3 readings
@@ -59,6 +106,17 @@ class BleBridge {
     return Math.round(history.reduce((sum, val) => sum + val, 0) / history.length);
   }
 
+  // Devices walk out of range without telling anyone; forget the ones that went quiet
+  evictStale(now) {
+    if (now - this.lastSweep < HISTORY_SWEEP_MS) return;
+    this.lastSweep = now;
+    this.rssiHistory.forEach((entry, deviceId) => {
+      if (now - entry.lastSeen > HISTORY_TTL_MS) {
+        this.rssiHistory.delete(deviceId);
+      }
+    });
+  }
+
   // Determine zone based on beacon name and RSSI
   determineZone(deviceName, rssi) {
     const name = deviceName.toLowerCase();
@@ -117,25 +175,8 @@ class BleBridge {
 export default new BleBridge();
 
 /*
-  --- TESTING IN BROWSER (MOCK) ---
-  To test the UI without the Android device, paste this into your Chrome Console:
-
-  window.AndroidBLE = {
-    startScan: () => {
-      console.log("Android: Start Scan");
-      // Simulate finding a beacon after 1.5 seconds
-      setTimeout(() => {
-        if (window.onBleEvent) {
-          window.onBleEvent(JSON.stringify({
-            deviceName: "MWC Entry Gate",
-            deviceId: "mock-id-01",
-            rssi: -60
-          }));
-        }
-      }, 1500);
-    },
-    stopScan: () => console.log("Android: Stop Scan"),
-    requestScan: () => console.log("Android: Request Scan"),
-    testConnection: () => alert("Android Bridge Connected!")
-  };
-*/
\ No newline at end of file
+  --- TESTING WITHOUT THE ANDROID DEVICE ---
+  Run the gateway load tool (see BLE_TESTING.md) and start the app with
+  REACT_APP_GATEWAY_URL=http://localhost:3901; synthetic beacon events then arrive through
+  gatewayClient.js exactly as they do from the phone.
+*/
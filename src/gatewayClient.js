@@ -1,21 +1,55 @@
 // Gateway Server URL - Update this when deployed to cloud
 const GATEWAY_URL = process.env.REACT_APP_GATEWAY_URL || 'http://localhost:3001';
 
+// Opt in to the Android gateway's compact binary event stream
+const USE_BINARY = process.env.REACT_APP_GATEWAY_BINARY === 'true';
+const PROTOCOL_BINARY = 'hotel-ble.bin.v2';
+const PROTOCOL_JSON = 'hotel-ble.json';
+
+// Binary message types and zone ids, must match WireFormat / BeaconClass / Zone on the gateway
+const MSG_NAMES = 0x01;
+const MSG_EVENTS = 0x02;
+const BEACON_CLASSES = ['UNKNOWN', 'GATE', 'KIOSK', 'ELEVATOR', 'ROOM', 'HOTEL'];
+const ZONE_APPROACHING = 0x80;
+const ZONE_EXITED = 0x40;
+const RECORD_SIZE = 14;
+const EVENTS_HEADER_SIZE = 19;
+
+const hex = (value) => (value < 16 ? '0' : '') + value.toString(16).toUpperCase();
+
+const zoneName = (zone) => {
+  const beaconClass = BEACON_CLASSES[zone & ~(ZONE_APPROACHING | ZONE_EXITED)];
+  if (!beaconClass || beaconClass === 'UNKNOWN') return 'UNKNOWN';
+  if (zone & ZONE_EXITED) return 'EXITED_' + beaconClass;
+  return (zone & ZONE_APPROACHING) ? 'APPROACHING_' + beaconClass : beaconClass;
+};
+
 class GatewayClient {
   constructor() {
     this.ws = null;
     this.connected = false;
     this.subscribers = [];
     this.userId = null;
+    this.filters = null;
+    // Highest event sequence number seen, sent as resume(lastSeq) after a reconnect
+    this.lastSeq = null;
+    this.beaconNames = [];
+    this.textDecoder = typeof TextDecoder !== 'undefined' ? new TextDecoder() : null;
   }
 
-  // Connect to Gateway Server
-  connect(userId) {
+  // Connect to Gateway Server. Filters say what the gateway routes to this session:
+  // { devices: ['AA:BB:..'], zones: ['GATE', 'APPROACHING_ROOM'], classes: ['KIOSK'] }
+  // Without any, only events from devices registered to userId arrive.
+  connect(userId, filters = null) {
+    if (userId !== this.userId) {
+      this.lastSeq = null;
+    }
     if (this.ws) {
       this.disconnect();
     }
 
     this.userId = userId;
+    this.filters = filters;
     // Convert HTTP URL to WebSocket URL and ensure proper path
     let wsUrl = GATEWAY_URL.replace('http://', 'ws://').replace('https://', 'wss://');
     // Remove trailing slash if present, then add it back for consistency
@@ -24,14 +58,22 @@ class GatewayClient {
     console.log('[Gateway] Connecting to:', wsUrl);
     
     try {
-      this.ws = new WebSocket(wsUrl);
+      this.ws = USE_BINARY
+        ? new WebSocket(wsUrl, [PROTOCOL_BINARY, PROTOCOL_JSON])
+        : new WebSocket(wsUrl);
+      this.ws.binaryType = 'arraybuffer';
 
       this.ws.onopen = () => {
         console.log('[Gateway] Connected to server');
         this.connected = true;
         
-        // Subscribe to user's BLE events
-        this.ws.send(JSON.stringify({ type: 'subscribe', userId: this.userId }));
+        // Subscribe to user's BLE events. After a reconnect, lastSeq asks for anything missed
+        // while disconnected; the gateway replays it before any live event.
+        const subscribe = { type: 'subscribe', userId: this.userId, ...(this.filters || {}) };
+        if (this.lastSeq !== null) {
+          subscribe.lastSeq = this.lastSeq;
+        }
+        this.ws.send(JSON.stringify(subscribe));
       };
 
       this.ws.onclose = (event) => {
@@ -43,7 +85,7 @@ class GatewayClient {
           console.log('[Gateway] Reconnecting in 2 seconds...');
           setTimeout(() => {
             if (this.userId) {
-              this.connect(this.userId);
+              this.connect(this.userId, this.filters);
             }
           }, 2000);
         }
@@ -55,10 +97,25 @@ class GatewayClient {
 
       // Listen for BLE events from Gateway
       this.ws.onmessage = (event) => {
+        if (event.data instanceof ArrayBuffer) {
+          this.handleBinary(event.data);
+          return;
+        }
         try {
           const data = JSON.parse(event.data);
+          if (data.type === 'resumed') {
+            console.log('[Gateway] Resumed:', data.replayed, 'events replayed,', data.lost, 'lost');
+            // Caught up to here; lower than before if the gateway restarted without its state
+            this.lastSeq = data.lastSeq;
+            return;
+          }
           console.log('[Gateway] BLE event received:', data);
-          this.notifySubscribers(data);
+          // Batched scan mode and replays send an array of events in one frame
+          if (Array.isArray(data)) {
+            data.forEach(item => this.notifyEvent(item));
+          } else {
+            this.notifyEvent(data);
+          }
         } catch (error) {
           console.error('[Gateway] Error parsing message:', error);
         }
@@ -70,6 +127,62 @@ class GatewayClient {
     return this.ws;
   }
 
+  // Decode hotel-ble.bin.v2 messages (layout documented in BinaryEventEncoder.java)
+  handleBinary(buffer) {
+    try {
+      const view = new DataView(buffer);
+      const type = view.getUint8(0);
+      const count = view.getUint16(1);
+
+      if (type === MSG_NAMES) {
+        let offset = 3;
+        for (let i = 0; i < count; i++) {
+          const id = view.getUint16(offset);
+          const length = view.getUint8(offset + 2);
+          const bytes = new Uint8Array(buffer, offset + 3, length);
+          this.beaconNames[id] = this.textDecoder
+            ? this.textDecoder.decode(bytes)
+            : String.fromCharCode.apply(null, bytes);
+          offset += 3 + length;
+        }
+        return;
+      }
+
+      if (type === MSG_EVENTS) {
+        // i64 base timestamp read as two halves to stay clear of BigInt
+        const base = view.getUint32(3) * 4294967296 + view.getUint32(7);
+        const baseSeq = view.getUint32(11) * 4294967296 + view.getUint32(15);
+        for (let i = 0; i < count; i++) {
+          const offset = EVENTS_HEADER_SIZE + i * RECORD_SIZE;
+          let deviceId = hex(view.getUint8(offset));
+          for (let b = 1; b < 6; b++) {
+            deviceId += ':' + hex(view.getUint8(offset + b));
+          }
+          const beaconName = this.beaconNames[view.getUint16(offset + 8)] || 'Unknown';
+          this.notifyEvent({
+            deviceId,
+            beaconName,
+            rssi: view.getInt8(offset + 6),
+            zone: zoneName(view.getUint8(offset + 7)),
+            timestamp: base + view.getUint16(offset + 10),
+            seq: baseSeq + view.getUint16(offset + 12)
+          });
+        }
+      }
+    } catch (error) {
+      console.error('[Gateway] Error decoding binary message:', error);
+    }
+  }
+
+  // Replaces what the gateway routes to this session without reconnecting. A later reconnect
+  // subscribes with these filters too.
+  setFilters(filters) {
+    this.filters = filters;
+    if (this.isConnected()) {
+      this.ws.send(JSON.stringify({ type: 'subscribe', userId: this.userId, ...(filters || {}) }));
+    }
+  }
+
   // Subscribe to BLE events
   subscribe(callback) {
     this.subscribers.push(callback);
@@ -80,6 +193,15 @@ class GatewayClient {
     };
   }
 
+  // Events at or below lastSeq were already delivered; a replay never repeats them on purpose
+  notifyEvent(data) {
+    if (typeof data.seq === 'number') {
+      if (this.lastSeq !== null && data.seq <= this.lastSeq) return;
+      this.lastSeq = data.seq;
+    }
+    this.notifySubscribers(data);
+  }
+
   // Notify all subscribers
   notifySubscribers(data) {
     this.subscribers.forEach(callback => {
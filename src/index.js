@@ -12,6 +12,13 @@ root.render(
   </React.StrictMode>
 );
 
+// Tells the Android app the first render is on screen (startup trace, reportFullyDrawn)
+requestAnimationFrame(() => setTimeout(() => {
+  if (window.AndroidBLE && window.AndroidBLE.appReady) {
+    window.AndroidBLE.appReady();
+  }
+}, 0));
+
 // If you want to start measuring performance in your app, pass a function
 // to log results (for example: reportWebVitals(console.log))
 // or send to an analytics endpoint. Learn more: https://bit.ly/CRA-vitals